@@ -23,7 +23,11 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.Namespaces;
+import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.memtree.SAXAdapter;
+import org.exist.jms.shared.AdmissionController;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.PayloadBuffer;
 import org.exist.jms.shared.Report;
 import org.exist.jms.shared.eXistMessagingListener;
 import org.exist.security.Subject;
@@ -42,7 +46,6 @@ import javax.jms.*;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
@@ -67,12 +70,26 @@ public class MessagingJmsListener extends eXistMessagingListener {
     private final Sequence functionParams;
     private final Report report;
     private final BrokerPool brokerPool;
+    private final AdmissionController admission;
     private Subject subject;
 
     //    private Session session;
     private int receiverID = -1;
 
     public MessagingJmsListener(final FunctionReference functionReference, final Sequence functionParams, final XQueryContext xqueryContext) {
+        this(functionReference, functionParams, xqueryContext, new JmsConfiguration());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param functionReference The callback function
+     * @param functionParams    Additional parameters of the callback function
+     * @param xqueryContext     Context of the query that registered the receiver
+     * @param config            Receiver configuration, for the admission control
+     */
+    public MessagingJmsListener(final FunctionReference functionReference, final Sequence functionParams,
+                                final XQueryContext xqueryContext, final JmsConfiguration config) {
         super();
         this.functionReference = functionReference;
         this.xqueryContext = xqueryContext;
@@ -80,6 +97,8 @@ public class MessagingJmsListener extends eXistMessagingListener {
         this.report = getReport();
         this.brokerPool = xqueryContext.getBroker().getBrokerPool();
         this.subject = xqueryContext.getSubject();
+        this.admission = new AdmissionController(brokerPool, config.getConsumerAdmissionReserve(),
+                config.getConsumerAdmissionDelay());
     }
 
     @Override
@@ -130,6 +149,10 @@ public class MessagingJmsListener extends eXistMessagingListener {
             if (subject == null) {
                 subject = brokerPool.getSecurityManager().getGuestSubject();
             }
+
+            // Wait while the database is busy
+            admission.admit();
+
             final DBBroker dummyBroker = brokerPool.get(Optional.of(subject));
 
             // Copy message and jms configuration details into Maptypes
@@ -226,22 +249,23 @@ public class MessagingJmsListener extends eXistMessagingListener {
             // XML nodes and base64 (binary) data are sent as an array of bytes
             final BytesMessage bm = (BytesMessage) msg;
 
-            // Read data into byte buffer
-            final byte[] data = new byte[(int) bm.getBodyLength()];
-            bm.readBytes(data);
-
             final String value = msg.getStringProperty(EXIST_DOCUMENT_COMPRESSION);
             final boolean isCompressed = (StringUtils.isNotBlank(value) && COMPRESSION_TYPE_GZIP.equals(value));
 
-            // Serialize data
-            if (DATA_TYPE_XML.equalsIgnoreCase(bm.getStringProperty(EXIST_DATA_TYPE))) {
-                // XML(fragment)
-                content = processXML(data, isCompressed);
+            // Read data into buffer, large data is moved to disk
+            try (final PayloadBuffer data = new PayloadBuffer()) {
+                data.readFrom(bm);
 
-            } else {
-                // Binary data - read compressed when indicated
-                try (final InputStream is = getInputStream(data, isCompressed)) {
-                    content = Base64BinaryDocument.getInstance(xqueryContext, is);
+                // Serialize data
+                if (DATA_TYPE_XML.equalsIgnoreCase(bm.getStringProperty(EXIST_DATA_TYPE))) {
+                    // XML(fragment)
+                    content = processXML(data, isCompressed);
+
+                } else {
+                    // Binary data - read compressed when indicated
+                    try (final InputStream is = getInputStream(data, isCompressed)) {
+                        content = Base64BinaryDocument.getInstance(xqueryContext, is);
+                    }
                 }
             }
 
@@ -398,15 +422,15 @@ public class MessagingJmsListener extends eXistMessagingListener {
     }
 
     /**
-     * Parse an byte-array containing (compressed) XML data into
+     * Parse a buffer containing (compressed) XML data into
      * an eXist-db document.
      *
-     * @param data      Byte array containg the XML data.
+     * @param data      Buffer containg the XML data.
      * @param isGzipped Set TRUE is data is in GZIP format
      * @return Sequence containing the XML as DocumentImpl
      * @throws XPathException Something bad happened.
      */
-    private Sequence processXML(final byte[] data, final boolean isGzipped) throws XPathException {
+    private Sequence processXML(final PayloadBuffer data, final boolean isGzipped) throws XPathException {
 
         final ValidationReport validationReport = new ValidationReport();
         final SAXAdapter adapter = new SAXAdapter(xqueryContext);
@@ -446,10 +470,10 @@ public class MessagingJmsListener extends eXistMessagingListener {
         return content;
     }
 
-    private InputStream getInputStream(final byte[] data, final boolean isGzipped) throws IOException {
+    private InputStream getInputStream(final PayloadBuffer data, final boolean isGzipped) throws IOException {
         return isGzipped
-                ? new GZIPInputStream(new ByteArrayInputStream(data))
-                : new ByteArrayInputStream(data);
+                ? new GZIPInputStream(data.getInputStream())
+                : data.getInputStream();
     }
 
 
@@ -458,4 +482,14 @@ public class MessagingJmsListener extends eXistMessagingListener {
         return "messaging";
     }
 
+    @Override
+    public void close() {
+        admission.close();
+    }
+
+    @Override
+    public void writeStatistics(final MemTreeBuilder builder) {
+        admission.write(builder);
+    }
+
 }
@@ -0,0 +1,899 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.CompressionPolicy;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.BrokerPool;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Asynchronous publishing of replication events. The trigger hands off a lightweight event
+ * (without document content) to a bounded queue; background sender threads serialize the
+ * document and send the message.
+ * <p>
+ * Events are distributed over the sender threads by top-level collection, e.g. /db/apps, so a
+ * collection and everything in it is handled by one thread and these events are sent in the
+ * original order. Events that span top-level collections, e.g. a move from /db/a to /db/b or an
+ * operation on /db itself, are barriers: they are sent when all earlier events are sent, and
+ * before any later event. With one sender thread all events are sent in order.
+ * <p>
+ * The events of a committed transaction are handled as one unit, see {@link EventBatch}: they
+ * are queued or journaled together, and sent in one JMS transaction.
+ * <p>
+ * The trigger never waits for the sender threads beyond {@link #OFFER_TIMEOUT}. When the queue
+ * stays full, or the earlier events of a barrier are not sent in time, the event is written to the
+ * journal and all following events are journaled too, until the journal drainer has moved them
+ * back into the queues. Without a journal the event is rejected.
+ * <p>
+ * An event that cannot be serialized or sent is retried with increasing delay by its sender thread,
+ * the later events of the same top-level collection wait meanwhile. On shutdown it is journaled
+ * together with the queued events. After a limited number of attempts the event is given up: it
+ * is written to the dead letter journal, a sub directory of the journal, and the later events are
+ * sent. Dead letters are not sent again automatically.
+ * <p>
+ * Optionally updates of the same document are coalesced within a time window, see {@link EventCoalescer}.
+ *
+ * @author Dannes Wessels
+ */
+class AsyncPublisher {
+
+    private final static Logger LOG = LogManager.getLogger(AsyncPublisher.class);
+
+    private static final long POLL_INTERVAL = 500;
+    private static final long OFFER_TIMEOUT = 5000;
+    private static final long RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
+    private static final int MAX_MOVES = 1024;
+    private static final String DEAD_LETTER_DIR = "failed";
+
+    private final Transport transport;
+    private final BrokerPool brokerPool;
+    private final PublisherParameters.QueuePolicy policy;
+    private final long chunkThreshold;
+    private final long bufferThreshold;
+    private final CompressionPolicy compressionPolicy;
+    private final long coalesceWindow;
+    private final int retryAttempts;
+
+    private final List<BlockingQueue<eXistMessage>> queues = new ArrayList<>();
+    private final List<EventCoalescer> coalescers = new ArrayList<>();
+    private final List<Thread> senders = new ArrayList<>();
+    private final MovedResources movedResources = new MovedResources(MAX_MOVES);
+    private final PublishJournal journal;
+    private final PublishJournal deadLetters;
+    private final Object journalLock = new Object();
+    private final Thread journalDrainer;
+
+    // Set while the journal contains events, changed under the journal lock
+    private volatile boolean journaling = false;
+
+    // Events are queued under the read lock, a barrier is sent under the write lock
+    private final ReadWriteLock barrierLock = new ReentrantReadWriteLock(true);
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Object idle = new Object();
+    private volatile boolean flushing = false;
+
+    private volatile boolean running = true;
+
+    /*
+     * Statistics
+     */
+    private final AtomicLong nrQueued = new AtomicLong();
+    private final AtomicLong nrSent = new AtomicLong();
+    private final AtomicLong nrFailed = new AtomicLong();
+    private final AtomicLong nrRetried = new AtomicLong();
+    private final AtomicLong nrDeadLetters = new AtomicLong();
+    private final AtomicLong nrRejected = new AtomicLong();
+    private final AtomicLong nrJournaled = new AtomicLong();
+    private final AtomicLong nrSkipped = new AtomicLong();
+    private final AtomicLong nrCoalesced = new AtomicLong();
+    private final AtomicLong nrBarriers = new AtomicLong();
+    private volatile int maxQueueDepth = 0;
+
+    AsyncPublisher(final Transport transport, final PublisherParameters parameters,
+                   final BrokerPool brokerPool, final Path journalDir) {
+        this.transport = transport;
+        this.brokerPool = brokerPool;
+        this.chunkThreshold = parameters.getChunkThreshold();
+        this.bufferThreshold = parameters.getBufferThreshold();
+        this.compressionPolicy = parameters.getCompressionPolicy();
+        this.coalesceWindow = parameters.getCoalesceWindow();
+        this.retryAttempts = parameters.getRetryAttempts();
+
+        final int nrThreads = parameters.getSenderThreads();
+        final int capacity = Math.max(1, parameters.getQueueSize() / nrThreads);
+
+        // The journal is also used to save queued events on shutdown
+        PublishJournal newJournal = null;
+        try {
+            newJournal = new PublishJournal(journalDir);
+        } catch (final IOException ex) {
+            LOG.error("Unable to open replication journal {}: {}", journalDir, ex.getMessage(), ex);
+        }
+        this.journal = newJournal;
+
+        PublishJournal newDeadLetters = null;
+        if (journal != null) {
+            try {
+                newDeadLetters = new PublishJournal(journalDir.resolve(DEAD_LETTER_DIR));
+                if (!newDeadLetters.isEmpty()) {
+                    LOG.warn("{} replication events were not sent, these are kept in {}", newDeadLetters.size(), newDeadLetters.getDirectory());
+                }
+            } catch (final IOException ex) {
+                LOG.error("Unable to open dead letter journal: {}", ex.getMessage(), ex);
+            }
+        }
+        this.deadLetters = newDeadLetters;
+        this.journaling = (journal != null && !journal.isEmpty());
+
+        if (parameters.getQueuePolicy() == PublisherParameters.QueuePolicy.JOURNAL && journal == null) {
+            LOG.warn("No journal available, falling back to policy {}", PublisherParameters.QueuePolicy.BLOCK);
+            this.policy = PublisherParameters.QueuePolicy.BLOCK;
+        } else {
+            this.policy = parameters.getQueuePolicy();
+        }
+
+        for (int i = 0; i < nrThreads; i++) {
+            final BlockingQueue<eXistMessage> queue = new ArrayBlockingQueue<>(capacity);
+            queues.add(queue);
+
+            final EventCoalescer coalescer = new EventCoalescer(coalesceWindow, capacity);
+            coalescers.add(coalescer);
+
+            final Thread sender = new Thread(() -> processQueue(queue, coalescer), "jms-publisher-" + i);
+            sender.setDaemon(true);
+            senders.add(sender);
+        }
+        senders.forEach(Thread::start);
+
+        if (journal != null) {
+            journalDrainer = new Thread(this::drainJournal, "jms-publisher-journal");
+            journalDrainer.setDaemon(true);
+            journalDrainer.start();
+        } else {
+            journalDrainer = null;
+        }
+
+        LOG.info("Started {} replication sender threads, queue capacity {} per thread, policy {}, coalesce window {} ms",
+                nrThreads, capacity, policy, coalesceWindow);
+    }
+
+    /**
+     * Hand off an event to the sender threads.
+     *
+     * @param em The event
+     * @throws TransportException The event could not be queued.
+     */
+    void publish(final eXistMessage em) throws TransportException {
+
+        if (!running) {
+            throw new TransportException("Replication publisher is shut down");
+        }
+
+        register(em);
+
+        if (isBarrier(em)) {
+            publishBarrier(em);
+            return;
+        }
+
+        barrierLock.readLock().lock();
+        try {
+            enqueue(em);
+        } finally {
+            barrierLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hand off the events of a transaction to the sender threads as one unit. They are sent in
+     * one JMS transaction; when the unit cannot be queued none of the events is published.
+     *
+     * @param events The events, in order
+     * @throws TransportException The events could not be queued.
+     */
+    void publish(final List<eXistMessage> events) throws TransportException {
+        if (events.size() == 1) {
+            publish(events.get(0));
+        } else {
+            publish(new EventBatch(events));
+        }
+    }
+
+    /**
+     * Register the moves of the event, so the documents of the other events can be read at their new location.
+     */
+    private void register(final eXistMessage em) {
+        if (em instanceof EventBatch) {
+            ((EventBatch) em).getEvents().forEach(movedResources::register);
+        } else {
+            movedResources.register(em);
+        }
+    }
+
+    private void enqueue(final eXistMessage em) throws TransportException {
+
+        // Once events are journaled, all following events are journaled to keep the order
+        if (journaling) {
+            synchronized (journalLock) {
+                if (journaling) {
+                    journal(em);
+                    return;
+                }
+            }
+        }
+
+        final BlockingQueue<eXistMessage> queue = getQueue(em);
+
+        // Counted before the sender thread can take it
+        outstanding.incrementAndGet();
+
+        final boolean queued;
+        try {
+            // Not under the journal lock, with the block policy this can take a while
+            queued = offer(queue, em);
+
+        } catch (final InterruptedException ex) {
+            completed();
+            Thread.currentThread().interrupt();
+            throw new TransportException("Interrupted while waiting for room in replication queue", ex);
+        }
+
+        if (!queued) {
+            completed();
+            overflow(em, "Replication queue is full");
+            return;
+        }
+
+        nrQueued.incrementAndGet();
+        updateMaxQueueDepth();
+    }
+
+    /**
+     * Journal an event that cannot be queued or sent right away. With the fail policy, or
+     * without a journal, the event is rejected; unless events are journaled already meanwhile.
+     */
+    private void overflow(final eXistMessage em, final String reason) throws TransportException {
+
+        if (journal != null) {
+            synchronized (journalLock) {
+                if (journaling || policy != PublisherParameters.QueuePolicy.FAIL) {
+                    journal(em);
+                    return;
+                }
+            }
+        }
+
+        nrRejected.incrementAndGet();
+        throw new TransportException(String.format("%s, rejected %s", reason, em.getReport()));
+    }
+
+    /**
+     * Add an event to a queue. With the block policy this waits a limited time for room, the
+     * sender threads could be waiting for a lock that is held by the calling transaction.
+     */
+    private boolean offer(final BlockingQueue<eXistMessage> queue, final eXistMessage em) throws InterruptedException {
+        return (policy == PublisherParameters.QueuePolicy.BLOCK)
+                ? queue.offer(em, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)
+                : queue.offer(em);
+    }
+
+    /**
+     * Append an event to the journal, the caller holds the journal lock.
+     */
+    private void journal(final eXistMessage em) throws TransportException {
+        try {
+            journal.append(em);
+            journaling = true;
+            nrJournaled.incrementAndGet();
+
+        } catch (final IOException ex) {
+            throw new TransportException(String.format("Unable to journal %s: %s", em.getReport(), ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Send an event that spans top-level collections, when all earlier events are sent. No other
+     * event is queued meanwhile. When events are journaled the event is journaled after them, and
+     * when the earlier events are not sent within {@link #OFFER_TIMEOUT}, or the event cannot be
+     * sent, it is journaled as overflow. The journal drainer sends it then.
+     */
+    private void publishBarrier(final eXistMessage em) throws TransportException {
+
+        barrierLock.writeLock().lock();
+        try {
+            if (journaling) {
+                synchronized (journalLock) {
+                    if (journaling) {
+                        journal(em);
+                        return;
+                    }
+                }
+            }
+
+            if (!awaitIdle(OFFER_TIMEOUT)) {
+                overflow(em, "Replication queue is busy");
+                return;
+            }
+
+            nrBarriers.incrementAndGet();
+            try {
+                process(em);
+
+            } catch (final TransportException ex) {
+                nrFailed.incrementAndGet();
+                if (journal == null) {
+                    throw ex;
+                }
+
+                LOG.warn("Unable to send {}, it is sent from the journal: {}", em.getReport(), ex.getMessage());
+                synchronized (journalLock) {
+                    journal(em);
+                }
+            }
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TransportException(String.format("Interrupted while waiting to send %s", em.getReport()), ex);
+
+        } finally {
+            barrierLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait until all queued events are sent. Events held for coalescing are released right away.
+     *
+     * @param timeout Maximum time to wait in milliseconds
+     * @return TRUE when all queued events are sent
+     */
+    private boolean awaitIdle(final long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        flushing = true;
+        try {
+            synchronized (idle) {
+                long remaining = timeout;
+                while (outstanding.get() > 0 && running && remaining > 0) {
+                    idle.wait(Math.min(POLL_INTERVAL, remaining));
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                return outstanding.get() <= 0;
+            }
+        } finally {
+            flushing = false;
+        }
+    }
+
+    /**
+     * An event is sent, dropped or merged with another event.
+     */
+    private void completed() {
+        if (outstanding.decrementAndGet() <= 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Events within one top-level collection are always processed by the same sender thread.
+     */
+    private BlockingQueue<eXistMessage> getQueue(final eXistMessage em) {
+        final String partition = getPartition(em.getResourceType(), em.getResourcePath());
+        return queues.get(Math.floorMod(partition.hashCode(), queues.size()));
+    }
+
+    /**
+     * Get the top-level collection of a resource, e.g. /db/apps for /db/apps/demo/data.xml, or /db
+     * for a document in /db or for /db itself.
+     */
+    static String getPartition(final eXistMessage.ResourceType type, final String path) {
+        if (path == null) {
+            return "";
+        }
+
+        final XmldbURI uri = (type == eXistMessage.ResourceType.DOCUMENT)
+                ? XmldbURI.create(path).removeLastSegment()
+                : XmldbURI.create(path);
+
+        final String[] segments = uri.toString().split("/");
+        return (segments.length > 2) ? "/" + segments[1] + "/" + segments[2] : uri.toString();
+    }
+
+    /**
+     * @return TRUE when the event affects more than one top-level collection
+     */
+    static boolean isBarrier(final eXistMessage em) {
+        final String partition = getPartition(em.getResourceType(), em.getResourcePath());
+
+        if (em.getResourcePath() == null
+                || (em.getResourceType() == eXistMessage.ResourceType.COLLECTION && partition.split("/").length <= 2)) {
+            return true;
+        }
+
+        return em.getDestinationPath() != null
+                && !partition.equals(getPartition(em.getResourceType(), em.getDestinationPath()));
+    }
+
+    private void updateMaxQueueDepth() {
+        final int depth = getQueueDepth();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * @return Total number of events waiting in the queues, including events held for coalescing
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (final BlockingQueue<eXistMessage> queue : queues) {
+            depth += queue.size();
+        }
+        for (final EventCoalescer coalescer : coalescers) {
+            depth += coalescer.size();
+        }
+        return depth;
+    }
+
+    private void processQueue(final BlockingQueue<eXistMessage> queue, final EventCoalescer coalescer) {
+
+        while (running) {
+            try {
+                // Wait for a new event, but not beyond the moment a held event is due
+                final long delay = Math.min(POLL_INTERVAL, coalescer.getDelay(now()));
+                final eXistMessage em = (delay > 0) ? queue.poll(delay, TimeUnit.MILLISECONDS) : queue.poll();
+
+                if (em != null && coalescer.add(em, System.currentTimeMillis())) {
+                    nrCoalesced.incrementAndGet();
+                    completed();
+                }
+
+                eXistMessage next;
+                while (running && (next = coalescer.poll(now())) != null) {
+                    try {
+                        if (!processWithRetry(next)) {
+                            journalUnsent(next);
+                        }
+                    } finally {
+                        completed();
+                    }
+                }
+
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+
+            } catch (final Throwable t) {
+                LOG.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * @return Current time, or the end of time while a barrier waits for the held events
+     */
+    private long now() {
+        return flushing ? Long.MAX_VALUE : System.currentTimeMillis();
+    }
+
+    /**
+     * Process an event, a failed attempt is retried with increasing delay until it succeeds, the
+     * publisher is shut down or the maximum number of attempts is reached. The caller waits
+     * meanwhile, so later events are not sent before it.
+     *
+     * @return FALSE when the publisher was shut down before the event was sent
+     */
+    private boolean processWithRetry(final eXistMessage em) {
+
+        long delay = RETRY_DELAY;
+        int attempt = 0;
+        while (true) {
+            try {
+                attempt++;
+                process(em);
+                return true;
+
+            } catch (final TransportException ex) {
+                nrFailed.incrementAndGet();
+                if (!running) {
+                    return false;
+                }
+
+                if (attempt >= retryAttempts) {
+                    LOG.error("Unable to send {} after {} attempts, giving up: {}", em.getReport(), attempt, ex.getMessage());
+                    deadLetter(em);
+                    return true;
+                }
+                LOG.error("Unable to send {}, retrying in {} ms: {}", em.getReport(), delay, ex.getMessage());
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            nrRetried.incrementAndGet();
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Set aside an event that cannot be sent, so the later events are not held back.
+     */
+    private void deadLetter(final eXistMessage em) {
+
+        nrDeadLetters.incrementAndGet();
+        if (deadLetters == null) {
+            LOG.error("Replication event {} is dropped", em.getReport());
+            return;
+        }
+
+        try {
+            deadLetters.append(em);
+            LOG.error("Replication event {} is kept in {}", em.getReport(), deadLetters.getDirectory());
+        } catch (final IOException ex) {
+            LOG.error("Unable to keep {}, it is dropped: {}", em.getReport(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Write an event that was not sent before shutdown to the journal, it is sent when the publisher
+     * is started again.
+     */
+    private void journalUnsent(final eXistMessage em) {
+
+        if (journal == null) {
+            LOG.error("Replication event {} was not sent", em.getReport());
+            return;
+        }
+
+        try {
+            synchronized (journalLock) {
+                journal.append(em);
+                journaling = true;
+            }
+            nrJournaled.incrementAndGet();
+        } catch (final IOException ex) {
+            LOG.error("Unable to journal {}: {}", em.getReport(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Serialize the document of the event when required, and send the event.
+     *
+     * @throws TransportException The document could not be serialized or the event could not be sent.
+     */
+    private void process(final eXistMessage em) throws TransportException {
+
+        if (em instanceof EventBatch) {
+            processBatch((EventBatch) em);
+            return;
+        }
+
+        if (!loadPayload(em)) {
+            // Document was removed, the delete is replicated separately
+            nrSkipped.incrementAndGet();
+            return;
+        }
+
+        // Content is the same as the version that was published last, other events update the digests
+        if (transport.skipUnchanged(em)) {
+            nrSkipped.incrementAndGet();
+            return;
+        }
+
+        transport.send(em);
+        nrSent.incrementAndGet();
+
+        // Queued events of the document are sent, or were sent
+        movedResources.remove(em);
+    }
+
+    /**
+     * Serialize the documents of a transaction and send the events in one JMS transaction. All
+     * documents are serialized before the digests are compared, so a failed attempt does not
+     * leave digests of events that were not sent.
+     */
+    private void processBatch(final EventBatch batch) throws TransportException {
+
+        final List<eXistMessage> loaded = new ArrayList<>();
+        for (final eXistMessage em : batch.getEvents()) {
+            if (loadPayload(em)) {
+                loaded.add(em);
+            } else {
+                nrSkipped.incrementAndGet();
+            }
+        }
+
+        final List<eXistMessage> events = new ArrayList<>();
+        for (final eXistMessage em : loaded) {
+            if (transport.skipUnchanged(em)) {
+                nrSkipped.incrementAndGet();
+            } else {
+                events.add(em);
+            }
+        }
+
+        if (!events.isEmpty()) {
+            transport.sendBatch(events);
+            nrSent.addAndGet(events.size());
+        }
+
+        batch.getEvents().forEach(movedResources::remove);
+    }
+
+    /**
+     * Serialize the document of a create or update event, unless the payload is available.
+     *
+     * @return FALSE when the document was removed
+     * @throws TransportException The document could not be serialized.
+     */
+    private boolean loadPayload(final eXistMessage em) throws TransportException {
+
+        if (em.getResourceType() != eXistMessage.ResourceType.DOCUMENT || em.getPayload() != null
+                || (em.getResourceOperation() != eXistMessage.ResourceOperation.CREATE
+                && em.getResourceOperation() != eXistMessage.ResourceOperation.UPDATE)) {
+            return true;
+        }
+
+        try {
+            return loadDocumentPayload(em);
+
+        } catch (final IOException | RuntimeException ex) {
+            throw new TransportException(String.format("Problem while serializing document %s: %s",
+                    em.getResourcePath(), ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Read the document of the event. When the document was moved after the event was queued,
+     * it is read at its new location.
+     */
+    private boolean loadDocumentPayload(final eXistMessage em) throws IOException {
+
+        if (MessageHelper.loadDocumentPayload(brokerPool, em, chunkThreshold, bufferThreshold, compressionPolicy)) {
+            return true;
+        }
+
+        final String location = movedResources.resolve(em.getResourcePath());
+        if (location == null) {
+            return false;
+        }
+
+        LOG.debug("Document {} was moved, reading it from {}", em.getResourcePath(), location);
+        return MessageHelper.loadDocumentPayload(brokerPool, em, XmldbURI.create(location), chunkThreshold, bufferThreshold, compressionPolicy);
+    }
+
+    /**
+     * Move journaled events back into the queues when there is room.
+     */
+    private void drainJournal() {
+
+        while (running) {
+            try {
+                eXistMessage barrier = null;
+                synchronized (journalLock) {
+                    boolean hasRoom = true;
+                    while (running && hasRoom && barrier == null && !journal.isEmpty()) {
+                        eXistMessage em = null;
+                        try {
+                            em = journal.peek();
+                        } catch (final IOException | IllegalArgumentException ex) {
+                            LOG.error("Unable to read journaled event, removing it: {}", ex.getMessage());
+                            journal.remove();
+                        }
+
+                        if (em != null && isBarrier(em)) {
+                            barrier = em;
+
+                        } else if (em != null) {
+                            outstanding.incrementAndGet();
+                            hasRoom = getQueue(em).offer(em);
+                            if (hasRoom) {
+                                journal.remove();
+                                nrQueued.incrementAndGet();
+                            } else {
+                                completed();
+                            }
+                        }
+                    }
+
+                    // New events are queued again
+                    if (journal.isEmpty()) {
+                        journaling = false;
+                    }
+                }
+                updateMaxQueueDepth();
+
+                // Sent when the events before it are sent, it stays first in the journal until then
+                if (barrier != null) {
+                    drainBarrier(barrier);
+                    continue;
+                }
+
+                Thread.sleep(POLL_INTERVAL);
+
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+
+            } catch (final Throwable t) {
+                LOG.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * Send the barrier at the head of the journal. All new events are journaled while it is there,
+     * so only the queued events need to be sent first.
+     */
+    private void drainBarrier(final eXistMessage em) throws InterruptedException, IOException {
+
+        while (!awaitIdle(OFFER_TIMEOUT)) {
+            if (!running) {
+                return;
+            }
+        }
+
+        nrBarriers.incrementAndGet();
+        if (processWithRetry(em)) {
+            synchronized (journalLock) {
+                journal.remove();
+            }
+        }
+    }
+
+    /**
+     * Stop the sender threads. Events that are still queued are written to the journal, they
+     * are sent when the publisher is started again.
+     */
+    void shutdown() {
+
+        running = false;
+
+        senders.forEach(Thread::interrupt);
+        if (journalDrainer != null) {
+            journalDrainer.interrupt();
+        }
+
+        for (final Thread sender : senders) {
+            try {
+                sender.join(POLL_INTERVAL * 4);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int nrLost = 0;
+        for (int i = 0; i < queues.size(); i++) {
+
+            // Events held for coalescing are older than the queued events
+            final List<eXistMessage> remaining = coalescers.get(i).drain();
+            queues.get(i).drainTo(remaining);
+
+            for (final eXistMessage em : remaining) {
+                if (journal == null) {
+                    nrLost++;
+                    continue;
+                }
+
+                try {
+                    synchronized (journalLock) {
+                        journal.append(em);
+                        journaling = true;
+                    }
+                    nrJournaled.incrementAndGet();
+                } catch (final IOException ex) {
+                    nrLost++;
+                    LOG.error("Unable to journal {}: {}", em.getReport(), ex.getMessage());
+                }
+            }
+        }
+
+        if (nrLost > 0) {
+            LOG.error("{} queued replication events were not sent", nrLost);
+        }
+
+        LOG.info("Replication sender threads are stopped");
+    }
+
+    /**
+     * Write queue statistics to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "queue", "queue", null);
+
+        writeValue(builder, "policy", policy.name().toLowerCase(Locale.ENGLISH));
+        writeValue(builder, "senderThreads", "" + senders.size());
+        writeValue(builder, "depth", "" + getQueueDepth());
+        writeValue(builder, "maxDepth", "" + maxQueueDepth);
+        writeValue(builder, "journalDepth", "" + (journal == null ? 0 : journal.size()));
+        writeValue(builder, "nrQueued", "" + nrQueued.get());
+        writeValue(builder, "nrSent", "" + nrSent.get());
+        writeValue(builder, "nrFailed", "" + nrFailed.get());
+        writeValue(builder, "nrRetried", "" + nrRetried.get());
+        writeValue(builder, "nrDeadLetters", "" + nrDeadLetters.get());
+        writeValue(builder, "deadLetterDepth", "" + (deadLetters == null ? 0 : deadLetters.size()));
+        writeValue(builder, "nrSkipped", "" + nrSkipped.get());
+        writeValue(builder, "coalesceWindow", "" + coalesceWindow);
+        writeValue(builder, "nrCoalesced", "" + nrCoalesced.get());
+        writeValue(builder, "nrBarriers", "" + nrBarriers.get());
+        writeValue(builder, "nrMoves", "" + movedResources.size());
+        writeValue(builder, "nrRejected", "" + nrRejected.get());
+        writeValue(builder, "nrJournaled", "" + nrJournaled.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    /**
+     * Sends the events, implemented by {@link PublisherRuntime}.
+     */
+    interface Transport {
+
+        /**
+         * @param em The event, with its payload
+         * @return TRUE when the content is the same as the version that was sent last, the event is dropped.
+         */
+        boolean skipUnchanged(eXistMessage em);
+
+        /**
+         * @param em The event, with its payload
+         * @throws TransportException The event could not be sent.
+         */
+        void send(eXistMessage em) throws TransportException;
+
+        /**
+         * @param events The events of a transaction with their payloads, sent in one JMS transaction
+         * @throws TransportException The events could not be sent, none of them is delivered.
+         */
+        void sendBatch(List<eXistMessage> events) throws TransportException;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the digests of the documents that were published last, per document path.
+ * An update of a document that has the same digest as the last published version is a no-op
+ * and does not need to be published.
+ * <p>
+ * The cache is updated when an event is accepted for publishing, so an update is compared with
+ * the version before it also while that version is still waiting to be sent. When an event is
+ * not sent after all, e.g. the transaction is aborted or sending fails, the paths of the event
+ * are forgotten and the next update is always published.
+ *
+ * @author Dannes Wessels
+ */
+class DigestCache {
+
+    private final Map<String, String> digests;
+    private final int maxSize;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize Maximum number of documents, the least recently used entries are
+     *                evicted first. The cache is disabled when the size is 0.
+     */
+    DigestCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.digests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return size() > DigestCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Accept a message for publishing, unless it is an update of a document with the content
+     * that was published last. The cache is updated for an accepted message.
+     *
+     * @param em The message
+     * @return FALSE when the update does not need to be published.
+     */
+    synchronized boolean accept(final eXistMessage em) {
+
+        if (maxSize == 0) {
+            return true;
+        }
+
+        if (em.getResourceType() == eXistMessage.ResourceType.DOCUMENT
+                && em.getResourceOperation() == eXistMessage.ResourceOperation.UPDATE) {
+            final Object digest = em.getMetadata().get(MessageHelper.EXIST_RESOURCE_DIGEST);
+            if (digest != null && digest.equals(digests.get(em.getResourcePath()))) {
+                return false;
+            }
+        }
+
+        update(em);
+        return true;
+    }
+
+    /**
+     * Forget the paths of an accepted message that is not sent.
+     *
+     * @param em The message
+     */
+    synchronized void forget(final eXistMessage em) {
+
+        if (maxSize == 0) {
+            return;
+        }
+
+        if (em.getResourceType() == eXistMessage.ResourceType.COLLECTION) {
+            removeCollection(em.getResourcePath());
+            removeCollection(em.getDestinationPath());
+
+        } else {
+            digests.remove(em.getResourcePath());
+            if (em.getDestinationPath() != null) {
+                digests.remove(em.getDestinationPath());
+            }
+        }
+    }
+
+    private void update(final eXistMessage em) {
+
+        if (em.getResourceType() == eXistMessage.ResourceType.DOCUMENT) {
+            switch (em.getResourceOperation()) {
+                case CREATE:
+                case UPDATE:
+                    final Object digest = em.getMetadata().get(MessageHelper.EXIST_RESOURCE_DIGEST);
+                    if (digest == null) {
+                        digests.remove(em.getResourcePath());
+                    } else {
+                        digests.put(em.getResourcePath(), digest.toString());
+                    }
+                    break;
+
+                case DELETE:
+                case MOVE:
+                case COPY:
+                    digests.remove(em.getResourcePath());
+                    if (em.getDestinationPath() != null) {
+                        digests.remove(em.getDestinationPath());
+                    }
+                    break;
+
+                default:
+                    // Content is not changed
+                    break;
+            }
+
+        } else if (em.getResourceType() == eXistMessage.ResourceType.COLLECTION) {
+            switch (em.getResourceOperation()) {
+                case DELETE:
+                case MOVE:
+                case COPY:
+                    removeCollection(em.getResourcePath());
+                    removeCollection(em.getDestinationPath());
+                    break;
+
+                default:
+                    // Documents are not changed
+                    break;
+            }
+        }
+    }
+
+    private void removeCollection(final String path) {
+        if (path == null) {
+            return;
+        }
+
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        final Iterator<String> iterator = digests.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return digests.size();
+    }
+}
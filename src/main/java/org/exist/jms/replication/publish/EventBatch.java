@@ -0,0 +1,80 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The events of one committed database transaction. In asynchronous mode the events are
+ * queued, journaled and sent as one unit, in one JMS transaction.
+ * <p>
+ * The batch is placed in the queue of the top-level collection of its events. When the events
+ * span top-level collections the batch has no path, and it is a barrier.
+ *
+ * @author Dannes Wessels
+ */
+class EventBatch extends eXistMessage {
+
+    private final List<eXistMessage> events;
+
+    /**
+     * Constructor.
+     *
+     * @param events The events, in order
+     */
+    EventBatch(final List<eXistMessage> events) {
+        this.events = Collections.unmodifiableList(new ArrayList<>(events));
+        setResourcePath(getCommonPartition(events));
+    }
+
+    List<eXistMessage> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return The top-level collection of all events, or NULL when there is none.
+     */
+    private static String getCommonPartition(final List<eXistMessage> events) {
+
+        String partition = null;
+        for (final eXistMessage em : events) {
+            if (AsyncPublisher.isBarrier(em)) {
+                return null;
+            }
+
+            final String current = AsyncPublisher.getPartition(em.getResourceType(), em.getResourcePath());
+            if (partition == null) {
+                partition = current;
+            } else if (!partition.equals(current)) {
+                return null;
+            }
+        }
+        return partition;
+    }
+
+    @Override
+    public String getReport() {
+        return "batch of " + events.size() + " events, first " + (events.isEmpty() ? "none" : events.get(0).getReport());
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.*;
+
+/**
+ * Holds events of one sender thread for a time window, so that frequent updates of the same
+ * document are replicated once. Within the window a CREATE, UPDATE or METADATA event of a
+ * document supersedes the pending event of the same document; the document is serialized
+ * only when the surviving event is sent.
+ * <p>
+ * All other events (delete, move, copy, collection events) are ordering barriers: they are not
+ * merged, events before a barrier are never merged with events after it, and a pending barrier
+ * releases the events before it without waiting for the window to pass.
+ * <p>
+ * Events are released in the order they were added. A superseded event keeps the position
+ * and the release time of the first event of the document, so a continuously updated document
+ * is still replicated once per window.
+ *
+ * @author Dannes Wessels
+ */
+class EventCoalescer {
+
+    private final long window;
+    private final int capacity;
+
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private final Map<String, Pending> mergeable = new HashMap<>();
+    private int nrBarriers = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param window   Time in milliseconds that events are held, 0 releases events immediately
+     * @param capacity Maximum number of pending events, when reached the oldest event is released
+     *                 before its window has passed.
+     */
+    EventCoalescer(final long window, final int capacity) {
+        this.window = window;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add an event.
+     *
+     * @param em  The event
+     * @param now Current time in milliseconds
+     * @return TRUE when the event was merged with a pending event of the same document.
+     */
+    synchronized boolean add(final eXistMessage em, final long now) {
+
+        if (!isMergeable(em)) {
+            pending.addLast(new Pending(em, now, true));
+            mergeable.clear();
+            nrBarriers++;
+            return false;
+        }
+
+        final Pending existing = mergeable.get(em.getResourcePath());
+        if (existing != null) {
+            existing.em = merge(existing.em, em);
+            return true;
+        }
+
+        final Pending added = new Pending(em, now + window, false);
+        pending.addLast(added);
+        mergeable.put(em.getResourcePath(), added);
+        return false;
+    }
+
+    /**
+     * Get the next event that can be sent.
+     *
+     * @param now Current time in milliseconds
+     * @return The event, or NULL when no event is due.
+     */
+    synchronized eXistMessage poll(final long now) {
+
+        final Pending head = pending.peekFirst();
+        if (head == null || (head.due > now && nrBarriers == 0 && pending.size() < capacity)) {
+            return null;
+        }
+
+        pending.removeFirst();
+        if (head.barrier) {
+            nrBarriers--;
+        } else {
+            mergeable.remove(head.em.getResourcePath(), head);
+        }
+        return head.em;
+    }
+
+    /**
+     * @param now Current time in milliseconds
+     * @return Milliseconds until the next event is due, {@link Long#MAX_VALUE} when there are no events.
+     */
+    synchronized long getDelay(final long now) {
+        final Pending head = pending.peekFirst();
+        if (head == null) {
+            return Long.MAX_VALUE;
+        }
+        return (nrBarriers > 0) ? 0 : Math.max(0, head.due - now);
+    }
+
+    /**
+     * Remove all pending events, e.g. on shutdown.
+     *
+     * @return The events, in order
+     */
+    synchronized List<eXistMessage> drain() {
+        final List<eXistMessage> events = new ArrayList<>(pending.size());
+        pending.forEach(p -> events.add(p.em));
+        pending.clear();
+        mergeable.clear();
+        nrBarriers = 0;
+        return events;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    private static boolean isMergeable(final eXistMessage em) {
+        if (em.getResourceType() != eXistMessage.ResourceType.DOCUMENT || em.getResourcePath() == null) {
+            return false;
+        }
+
+        switch (em.getResourceOperation()) {
+            case CREATE:
+            case UPDATE:
+            case METADATA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isContent(final eXistMessage em) {
+        return em.getResourceOperation() != eXistMessage.ResourceOperation.METADATA;
+    }
+
+    /**
+     * Merge two events of the same document. The document content and metadata are read when
+     * the event is sent, so a content event also covers later metadata changes. A pending CREATE
+     * stays a CREATE.
+     */
+    private static eXistMessage merge(final eXistMessage earlier, final eXistMessage later) {
+        if (isContent(earlier)) {
+            return earlier;
+        }
+        return later;
+    }
+
+    private static class Pending {
+
+        private eXistMessage em;
+        private final long due;
+        private final boolean barrier;
+
+        Pending(final eXistMessage em, final long due, final boolean barrier) {
+            this.em = em;
+            this.due = due;
+            this.barrier = barrier;
+        }
+    }
+}
@@ -23,19 +23,16 @@ package org.exist.jms.replication.publish;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.CompressionPolicy;
 import org.exist.jms.replication.shared.MessageSender;
 import org.exist.jms.replication.shared.TransportException;
-import org.exist.jms.shared.JmsConfiguration;
-import org.exist.jms.shared.JmsMessageProperties;
 import org.exist.jms.shared.eXistMessage;
-import org.exist.jms.shared.eXistMessageItem;
-import org.exist.jms.shared.send.Sender;
-
-import java.util.List;
-import java.util.Map;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.txn.Txn;
 
 /**
- * Specific class for sending a eXistMessage via JMS to a broker
+ * Specific class for sending a eXistMessage via JMS to a broker. The JMS resources are
+ * provided by the long living {@link PublisherRuntime} of the trigger configuration.
  *
  * @author Dannes Wessels
  */
@@ -43,16 +40,20 @@ public class JMSMessageSender implements MessageSender {
 
     private final static Logger LOG = LogManager.getLogger(JMSMessageSender.class);
 
-    private final PublisherParameters parameters = new PublisherParameters();
+    private final PublisherProfile profile;
+    private final BrokerPool brokerPool;
+    private PublisherRuntime runtime = null;
 
     /**
      * Constructor
      *
-     * @param params Set of (Key,value) parameters for setting JMS routing
-     *               instructions, like java.naming.* , destination and connection factory.
+     * @param profile    The compiled trigger configuration, with the JMS routing
+     *                   instructions like java.naming.* , destination and connection factory.
+     * @param brokerPool The database
      */
-    JMSMessageSender(final Map<String, List<?>> params) {
-        parameters.setMultiValueParameters(params);
+    JMSMessageSender(final PublisherProfile profile, final BrokerPool brokerPool) {
+        this.profile = profile;
+        this.brokerPool = brokerPool;
     }
 
     /**
@@ -65,28 +66,87 @@ public class JMSMessageSender implements MessageSender {
     public void sendMessage(final eXistMessage em) throws TransportException {
 
         try {
-            // Get from .xconf file, fill defaults when needed
-            parameters.processParameters();
+            getRuntime().publish(em);
+
+        } catch (final TransportException ex) {
+            throw ex;
 
-            final Sender sender = new Sender();
+        } catch (final Throwable ex) {
+            // I know, this is bad coding practice,
+            // but in case of problems we really need to fire this exception
+            LOG.error(ex.getMessage(), ex);
+            throw new TransportException(ex.getMessage(), ex);
+        }
 
-            final eXistMessageItem item = new eXistMessageItem();
-            item.setData(em);
+    }
 
-            final JmsConfiguration jmsConfig = new JmsConfiguration();
-            jmsConfig.loadPublisherParameters(parameters);
+    /**
+     * Send {@link eXistMessage} to message broker when the transaction is committed.
+     *
+     * @param txn The database transaction that caused the message
+     * @param em  The message that needs to be sent
+     * @throws TransportException Thrown when something bad happens.
+     */
+    public void sendMessage(final Txn txn, final eXistMessage em) throws TransportException {
 
-            final JmsMessageProperties msgMetaProps = new JmsMessageProperties();
-            msgMetaProps.loadParameters(parameters);
+        try {
+            getRuntime().publish(txn, em);
 
-            sender.send(jmsConfig, msgMetaProps, item);
+        } catch (final TransportException ex) {
+            throw ex;
 
         } catch (final Throwable ex) {
-            // I know, this is bad coding practice,
-            // but in case of problems we really need to fire this exception
             LOG.error(ex.getMessage(), ex);
             throw new TransportException(ex.getMessage(), ex);
         }
+    }
+
+    /**
+     * Determine if messages are published by background threads. In that case
+     * documents are serialized by the sender threads.
+     *
+     * @return TRUE when publishing is asynchronous
+     */
+    boolean isAsynchronous() {
+        return profile.isAsynchronous();
+    }
+
+    /**
+     * Get the size above which documents are not serialized into memory but into a file,
+     * to be sent in chunks.
+     *
+     * @return Threshold in bytes
+     */
+    long getChunkThreshold() {
+        return profile.getChunkThreshold();
+    }
+
+    /**
+     * Get the number of serialized bytes of a document that are kept in memory, larger
+     * documents are written to a temporary file.
+     *
+     * @return Threshold in bytes
+     */
+    long getBufferThreshold() {
+        return profile.getBufferThreshold();
+    }
+
+    /**
+     * Get the policy that selects the encoding of document payloads.
+     *
+     * @return The policy
+     */
+    CompressionPolicy getCompressionPolicy() {
+        return profile.getCompressionPolicy();
+    }
 
+    /**
+     * Get runtime for the trigger configuration, lookup again when the runtime was closed.
+     */
+    private synchronized PublisherRuntime getRuntime() {
+        if (runtime == null || runtime.isClosed()) {
+            runtime = PublisherRuntime.getInstance(profile, brokerPool);
+        }
+        return runtime;
     }
 }
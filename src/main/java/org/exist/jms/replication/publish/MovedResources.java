@@ -0,0 +1,129 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded registry of the moves that are published but not sent yet. Queued events of a
+ * document are sent after the document is moved, the registry provides the current location
+ * of the document so its content can still be read.
+ * <p>
+ * A move is registered when its event is published and removed when the event is sent. For
+ * documents that are moved outside a transaction there is a short period between the move and
+ * the publication of its event in which the new location is not known yet.
+ *
+ * @author Dannes Wessels
+ */
+class MovedResources {
+
+    // Guards against cyclic moves, e.g. a to b and back
+    private static final int MAX_MOVES = 16;
+
+    private final Map<String, String> moves;
+    private final int maxSize;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize Maximum number of moves, the oldest moves are evicted first.
+     */
+    MovedResources(final int maxSize) {
+        this.maxSize = maxSize;
+        this.moves = new LinkedHashMap<String, String>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return size() > MovedResources.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Register the event when it moves a document or collection.
+     *
+     * @param em The event
+     */
+    synchronized void register(final eXistMessage em) {
+        if (isMove(em)) {
+            moves.put(em.getResourcePath(), em.getDestinationPath());
+        }
+    }
+
+    /**
+     * Remove the event when it moves a document or collection, it is sent.
+     *
+     * @param em The event
+     */
+    synchronized void remove(final eXistMessage em) {
+        if (isMove(em)) {
+            moves.remove(em.getResourcePath(), em.getDestinationPath());
+        }
+    }
+
+    /**
+     * Get the current location of a resource.
+     *
+     * @param path Original path of the resource
+     * @return The current path, or NULL when the resource was not moved.
+     */
+    synchronized String resolve(final String path) {
+
+        String current = path;
+        for (int i = 0; i < MAX_MOVES; i++) {
+            final String moved = resolveOnce(current);
+            if (moved == null || moved.equals(path)) {
+                break;
+            }
+            current = moved;
+        }
+
+        return current.equals(path) ? null : current;
+    }
+
+    private String resolveOnce(final String path) {
+
+        final String destination = moves.get(path);
+        if (destination != null) {
+            return destination;
+        }
+
+        // The document is in a collection that was moved
+        for (final Map.Entry<String, String> move : moves.entrySet()) {
+            final String prefix = move.getKey().endsWith("/") ? move.getKey() : move.getKey() + "/";
+            if (path.startsWith(prefix)) {
+                return move.getValue() + "/" + path.substring(prefix.length());
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isMove(final eXistMessage em) {
+        return em.getResourceOperation() == eXistMessage.ResourceOperation.MOVE
+                && em.getResourcePath() != null && em.getDestinationPath() != null;
+    }
+
+    synchronized int size() {
+        return moves.size();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.shared.eXistMessage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+/**
+ * Local on-disk journal for replication events that could not be queued. Each event is
+ * stored in its own file, named after an increasing sequence number so the original order
+ * is kept. The events of a transaction, see {@link EventBatch}, are stored together in one
+ * file. Only the description of the event is stored, never the document content.
+ *
+ * @author Dannes Wessels
+ */
+class PublishJournal {
+
+    private final static Logger LOG = LogManager.getLogger(PublishJournal.class);
+
+    private static final String EXTENSION = ".event";
+    private static final String BATCH_EXTENSION = ".batch";
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_LONG = 2;
+
+    private final Path directory;
+    private final NavigableSet<Long> sequenceNumbers = new ConcurrentSkipListSet<>();
+    private long lastSequenceNumber = 0;
+
+    /**
+     * Constructor. Events left behind by a previous run are picked up.
+     *
+     * @param directory Location of the journal
+     * @throws IOException The directory could not be created or read.
+     */
+    PublishJournal(final Path directory) throws IOException {
+        this.directory = directory;
+
+        Files.createDirectories(directory);
+
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(EXTENSION) || name.endsWith(BATCH_EXTENSION))
+                    .forEach(name -> {
+                        try {
+                            sequenceNumbers.add(Long.parseLong(name.substring(0, name.lastIndexOf('.'))));
+                        } catch (final NumberFormatException ex) {
+                            LOG.warn("Ignoring unknown journal file {}", name);
+                        }
+                    });
+        }
+
+        if (!sequenceNumbers.isEmpty()) {
+            lastSequenceNumber = sequenceNumbers.last();
+            LOG.info("Found {} journaled replication events in {}", sequenceNumbers.size(), directory);
+        }
+    }
+
+    boolean isEmpty() {
+        return sequenceNumbers.isEmpty();
+    }
+
+    int size() {
+        return sequenceNumbers.size();
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Add event to the end of the journal.
+     *
+     * @param em The event, or the events of a transaction
+     * @throws IOException The event could not be written.
+     */
+    synchronized void append(final eXistMessage em) throws IOException {
+
+        final long sequenceNumber = ++lastSequenceNumber;
+
+        if (em instanceof EventBatch) {
+            final List<eXistMessage> events = ((EventBatch) em).getEvents();
+            try (final DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(getPath(sequenceNumber, BATCH_EXTENSION))))) {
+                dos.writeInt(events.size());
+                for (final eXistMessage event : events) {
+                    write(dos, event);
+                }
+            }
+
+        } else {
+            try (final DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(getPath(sequenceNumber, EXTENSION))))) {
+                write(dos, em);
+            }
+        }
+
+        sequenceNumbers.add(sequenceNumber);
+    }
+
+    private static void write(final DataOutputStream dos, final eXistMessage em) throws IOException {
+
+        dos.writeUTF(em.getResourceType().name());
+        dos.writeUTF(em.getResourceOperation().name());
+        dos.writeUTF(em.getResourcePath());
+        dos.writeBoolean(em.getDestinationPath() != null);
+        if (em.getDestinationPath() != null) {
+            dos.writeUTF(em.getDestinationPath());
+        }
+
+        final Map<String, Object> metadata = em.getMetadata();
+        dos.writeInt(metadata.size());
+        for (final Map.Entry<String, Object> entry : metadata.entrySet()) {
+            dos.writeUTF(entry.getKey());
+
+            final Object value = entry.getValue();
+            if (value instanceof Integer) {
+                dos.writeByte(TYPE_INTEGER);
+                dos.writeInt((Integer) value);
+
+            } else if (value instanceof Long) {
+                dos.writeByte(TYPE_LONG);
+                dos.writeLong((Long) value);
+
+            } else {
+                dos.writeByte(TYPE_STRING);
+                dos.writeUTF(String.valueOf(value));
+            }
+        }
+    }
+
+    /**
+     * Get the oldest event without removing it from the journal.
+     *
+     * @return The event, an {@link EventBatch} for the events of a transaction, or NULL when the journal is empty
+     * @throws IOException The event could not be read
+     */
+    eXistMessage peek() throws IOException {
+
+        if (sequenceNumbers.isEmpty()) {
+            return null;
+        }
+
+        final long sequenceNumber = sequenceNumbers.first();
+
+        final Path batchFile = getPath(sequenceNumber, BATCH_EXTENSION);
+        if (Files.exists(batchFile)) {
+            try (final DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(batchFile)))) {
+                final int size = dis.readInt();
+                final List<eXistMessage> events = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    events.add(read(dis));
+                }
+                return new EventBatch(events);
+            }
+        }
+
+        try (final DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(getPath(sequenceNumber, EXTENSION))))) {
+            return read(dis);
+        }
+    }
+
+    private static eXistMessage read(final DataInputStream dis) throws IOException {
+
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(dis.readUTF());
+        em.setResourceOperation(dis.readUTF());
+        em.setResourcePath(dis.readUTF());
+        if (dis.readBoolean()) {
+            em.setDestinationPath(dis.readUTF());
+        }
+
+        final Map<String, Object> metadata = em.getMetadata();
+        final int size = dis.readInt();
+        for (int i = 0; i < size; i++) {
+            final String key = dis.readUTF();
+            final byte type = dis.readByte();
+            switch (type) {
+                case TYPE_INTEGER:
+                    metadata.put(key, dis.readInt());
+                    break;
+                case TYPE_LONG:
+                    metadata.put(key, dis.readLong());
+                    break;
+                default:
+                    metadata.put(key, dis.readUTF());
+                    break;
+            }
+        }
+
+        return em;
+    }
+
+    /**
+     * Remove the oldest event from the journal.
+     *
+     * @throws IOException The file could not be removed
+     */
+    void remove() throws IOException {
+        final Long sequenceNumber = sequenceNumbers.pollFirst();
+        if (sequenceNumber != null) {
+            Files.deleteIfExists(getPath(sequenceNumber, EXTENSION));
+            Files.deleteIfExists(getPath(sequenceNumber, BATCH_EXTENSION));
+        }
+    }
+
+    private Path getPath(final long sequenceNumber, final String extension) {
+        return directory.resolve(String.format("%020d%s", sequenceNumber, extension));
+    }
+}
@@ -23,10 +23,15 @@ package org.exist.jms.replication.publish;
 
 import org.apache.commons.lang3.StringUtils;
 import org.exist.jms.replication.shared.ClientParameters;
+import org.exist.jms.replication.shared.CompressionPolicy;
 import org.exist.jms.replication.shared.TransportException;
 import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.PayloadCodec;
+import org.exist.jms.shared.PayloadCodecs;
 
 import javax.naming.Context;
+import java.util.Locale;
 
 /**
  * Publisher specific properties.
@@ -39,6 +44,20 @@ public class PublisherParameters extends ClientParameters {
     private Integer priority;
     private String deliveryMode;
 
+    private boolean asynchronous = false;
+    private int queueSize = 1000;
+    private QueuePolicy queuePolicy = QueuePolicy.BLOCK;
+    private int senderThreads = 2;
+    private String journalDir;
+    private boolean transactionBatch = true;
+    private int chunkThreshold = 8 * 1024 * 1024;
+    private int chunkSize = 1024 * 1024;
+    private int bufferThreshold = PayloadBuffer.DEFAULT_THRESHOLD;
+    private CompressionPolicy compressionPolicy = new CompressionPolicy(PayloadCodecs.get(PayloadCodecs.GZIP));
+    private int digestCacheSize = 10000;
+    private int coalesceWindow = 0;
+    private int retryAttempts = 10;
+
     public Long getTimeToLive() {
         return timeToLive;
     }
@@ -51,6 +70,58 @@ public class PublisherParameters extends ClientParameters {
         return deliveryMode;
     }
 
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public QueuePolicy getQueuePolicy() {
+        return queuePolicy;
+    }
+
+    public int getSenderThreads() {
+        return senderThreads;
+    }
+
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public boolean isTransactionBatch() {
+        return transactionBatch;
+    }
+
+    public int getChunkThreshold() {
+        return chunkThreshold;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getBufferThreshold() {
+        return bufferThreshold;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    public int getDigestCacheSize() {
+        return digestCacheSize;
+    }
+
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    public int getRetryAttempts() {
+        return retryAttempts;
+    }
+
     @Override
     public void processParameters() throws TransportException {
 
@@ -122,13 +193,199 @@ public class PublisherParameters extends ClientParameters {
         // Get connection authentication
         connectionUsername = props.getProperty(Constants.JMS_CONNECTION_USERNAME);
         connectionPassword = props.getProperty(Constants.JMS_CONNECTION_PASSWORD);
+
+        // Get publish mode, synchronous by default
+        value = props.getProperty(Constants.PUBLISHER_MODE);
+        if (StringUtils.isNotBlank(value)) {
+            if (Constants.PUBLISHER_MODE_ASYNC.equalsIgnoreCase(value)) {
+                asynchronous = true;
+
+            } else if (Constants.PUBLISHER_MODE_SYNC.equalsIgnoreCase(value)) {
+                asynchronous = false;
+
+            } else {
+                final String errorText = String.format("'%s' contains wrong value '%s'", Constants.PUBLISHER_MODE, value);
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Get queue size and number of sender threads
+        queueSize = getPositiveInteger(Constants.PUBLISHER_QUEUE_SIZE, queueSize);
+        senderThreads = getPositiveInteger(Constants.PUBLISHER_THREADS, senderThreads);
+
+        // Get backpressure policy
+        value = props.getProperty(Constants.PUBLISHER_QUEUE_POLICY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                queuePolicy = QueuePolicy.valueOf(value.toUpperCase(Locale.ENGLISH));
+            } catch (final IllegalArgumentException ex) {
+                final String errorText = String.format("'%s' contains wrong value '%s'", Constants.PUBLISHER_QUEUE_POLICY, value);
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Get journal directory, when not set a directory inside the database data directory is used
+        journalDir = props.getProperty(Constants.PUBLISHER_JOURNAL_DIR);
+
+        // Get transaction batching, default all events of a transaction are published on commit
+        value = props.getProperty(Constants.PUBLISHER_TRANSACTION_BATCH);
+        if (value != null) {
+
+            if ("FALSE".equalsIgnoreCase(value) || "NO".equalsIgnoreCase(value)) {
+                transactionBatch = false;
+
+            } else if ("TRUE".equalsIgnoreCase(value) || "YES".equalsIgnoreCase(value)) {
+                transactionBatch = true;
+
+            } else {
+                final String errorText = String.format("'%s' contains wrong value '%s'", Constants.PUBLISHER_TRANSACTION_BATCH, value);
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Documents larger than the threshold are sent in chunks
+        chunkThreshold = getPositiveInteger(Constants.PUBLISHER_CHUNK_THRESHOLD, chunkThreshold);
+        chunkSize = getPositiveInteger(Constants.PUBLISHER_CHUNK_SIZE, chunkSize);
+
+        // Serialized documents larger than the threshold are written to a temporary file, 0 to always use a file
+        bufferThreshold = getInteger(Constants.PUBLISHER_BUFFER_THRESHOLD, bufferThreshold, 0);
+
+        // Get content encoding (compression) of the payload, gzip by default
+        value = props.getProperty(Constants.PUBLISHER_COMPRESSION_LEVEL);
+        int level = PayloadCodecs.DEFAULT_LEVEL;
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                level = Integer.parseInt(value.trim());
+            } catch (final NumberFormatException ex) {
+                final String errorText = String.format("Unable to set %s; got '%s'. %s", Constants.PUBLISHER_COMPRESSION_LEVEL, value, ex.getMessage());
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        value = props.getProperty(Constants.PUBLISHER_CONTENT_ENCODING);
+        final PayloadCodec codec;
+        try {
+            codec = PayloadCodecs.get(value, level);
+        } catch (final IllegalArgumentException ex) {
+            final String errorText = String.format("Unable to set %s: %s", Constants.PUBLISHER_CONTENT_ENCODING, ex.getMessage());
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Get mime types of binary documents that are already compressed
+        final String skipTypes = props.getProperty(Constants.PUBLISHER_COMPRESSION_SKIP, CompressionPolicy.DEFAULT_SKIP_TYPES);
+
+        // Check entropy of binary documents, default yes
+        boolean sampling = true;
+        value = props.getProperty(Constants.PUBLISHER_COMPRESSION_SAMPLE);
+        if (value != null) {
+
+            if ("FALSE".equalsIgnoreCase(value) || "NO".equalsIgnoreCase(value)) {
+                sampling = false;
+
+            } else if ("TRUE".equalsIgnoreCase(value) || "YES".equalsIgnoreCase(value)) {
+                sampling = true;
+
+            } else {
+                final String errorText = String.format("'%s' contains wrong value '%s'", Constants.PUBLISHER_COMPRESSION_SAMPLE, value);
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        compressionPolicy = new CompressionPolicy(codec, skipTypes, sampling);
+
+        // Number of documents for which the last sent digest is kept, 0 disables the suppression of unchanged updates
+        digestCacheSize = getInteger(Constants.PUBLISHER_DIGEST_CACHE_SIZE, digestCacheSize, 0);
+
+        // Time in milliseconds that updates of a document are coalesced, default disabled.
+        coalesceWindow = getInteger(Constants.PUBLISHER_COALESCE_WINDOW, coalesceWindow, 0);
+        if (coalesceWindow > 0 && !asynchronous) {
+            LOG.warn("'{}' is only used when '{}' is '{}'", Constants.PUBLISHER_COALESCE_WINDOW,
+                    Constants.PUBLISHER_MODE, Constants.PUBLISHER_MODE_ASYNC);
+        }
+
+        // Number of attempts to send a queued event before it is set aside, default 10
+        retryAttempts = getPositiveInteger(Constants.PUBLISHER_RETRY_ATTEMPTS, retryAttempts);
+    }
+
+    /**
+     * Get integer value larger than zero.
+     *
+     * @param key          Name of the parameter
+     * @param defaultValue Value returned when the parameter is not set.
+     * @return The value of the parameter
+     * @throws TransportException The value is not a positive number.
+     */
+    private int getPositiveInteger(final String key, final int defaultValue) throws TransportException {
+        return getInteger(key, defaultValue, 1);
+    }
+
+    /**
+     * Get integer value.
+     *
+     * @param key          Name of the parameter
+     * @param defaultValue Value returned when the parameter is not set.
+     * @param minimum      Smallest allowed value
+     * @return The value of the parameter
+     * @throws TransportException The value is not a number or is too small.
+     */
+    private int getInteger(final String key, final int defaultValue, final int minimum) throws TransportException {
+
+        final String value = props.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+
+        try {
+            final int retVal = Integer.parseInt(value.trim());
+            if (retVal < minimum) {
+                throw new NumberFormatException(String.format("value must be at least %d", minimum));
+            }
+            return retVal;
+
+        } catch (final NumberFormatException ex) {
+            final String errorText = String.format("Unable to set %s; got '%s'. %s", key, value, ex.getMessage());
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
     }
 
     @Override
     public String getReport() {
-        return String.format("Publisher configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%d' %s='%d'%s='%s'",
+        return String.format("Publisher configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%d' %s='%d' %s='%s' %s='%s' %s='%d' %s='%s' %s='%d' %s='%s' %s='%d' %s='%d' %s='%d' %s='%s' %s='%d' %s='%d' %s='%d'",
                 Context.INITIAL_CONTEXT_FACTORY, initialContextFactory, Context.PROVIDER_URL, providerUrl,
                 Constants.DESTINATION, topic, Constants.CLIENT_ID, clientId, Constants.PRODUCER_TTL,
-                timeToLive, Constants.PRODUCER_PRIORITY, priority, Constants.PRODUCER_DELIVERY_MODE, deliveryMode);
+                timeToLive, Constants.PRODUCER_PRIORITY, priority, Constants.PRODUCER_DELIVERY_MODE, deliveryMode,
+                Constants.PUBLISHER_MODE, asynchronous ? Constants.PUBLISHER_MODE_ASYNC : Constants.PUBLISHER_MODE_SYNC,
+                Constants.PUBLISHER_QUEUE_SIZE, queueSize, Constants.PUBLISHER_QUEUE_POLICY, queuePolicy,
+                Constants.PUBLISHER_THREADS, senderThreads, Constants.PUBLISHER_TRANSACTION_BATCH, transactionBatch,
+                Constants.PUBLISHER_CHUNK_THRESHOLD, chunkThreshold, Constants.PUBLISHER_CHUNK_SIZE, chunkSize,
+                Constants.PUBLISHER_BUFFER_THRESHOLD, bufferThreshold,
+                Constants.PUBLISHER_CONTENT_ENCODING, compressionPolicy.getCodec().getName(),
+                Constants.PUBLISHER_DIGEST_CACHE_SIZE, digestCacheSize, Constants.PUBLISHER_COALESCE_WINDOW, coalesceWindow,
+                Constants.PUBLISHER_RETRY_ATTEMPTS, retryAttempts);
+    }
+
+    /**
+     * What to do when the asynchronous publish queue is full.
+     */
+    public enum QueuePolicy {
+        /**
+         * Wait a limited time until the sender threads have made room, then journal the event
+         */
+        BLOCK,
+        /**
+         * Write the event to a local journal, it is queued again when there is room
+         */
+        JOURNAL,
+        /**
+         * Reject the event
+         */
+        FAIL
     }
 }
@@ -0,0 +1,153 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.CompressionPolicy;
+import org.exist.jms.replication.shared.TransportException;
+
+import java.util.*;
+
+/**
+ * Validated publisher configuration of a replication trigger. The trigger parameters are parsed
+ * once; triggers are instantiated and configured for each operation, and all instances with the
+ * same parameters share the same profile.
+ * <p>
+ * The values used by the triggers are copied when the profile is compiled. The processed
+ * {@link PublisherParameters} are only handed to the runtime of the profile. The profiles of
+ * the most recently used configurations are cached, so the profiles of configurations that are
+ * replaced, e.g. when a collection configuration is changed, are eventually evicted.
+ *
+ * @author Dannes Wessels
+ */
+public final class PublisherProfile {
+
+    private final static Logger LOG = LogManager.getLogger(PublisherProfile.class);
+
+    private static final int MAX_PROFILES = 64;
+
+    private static final Map<Map<String, List<?>>, PublisherProfile> profiles =
+            new LinkedHashMap<Map<String, List<?>>, PublisherProfile>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Map<String, List<?>>, PublisherProfile> eldest) {
+                    return size() > MAX_PROFILES;
+                }
+            };
+
+    private final Map<Object, Object> key;
+    private final PublisherParameters parameters;
+
+    private final boolean asynchronous;
+    private final boolean transactionBatch;
+    private final long chunkThreshold;
+    private final long bufferThreshold;
+    private final CompressionPolicy compressionPolicy;
+    private final String report;
+
+    private PublisherProfile(final Map<Object, Object> key, final PublisherParameters parameters) {
+        this.key = Collections.unmodifiableMap(key);
+        this.parameters = parameters;
+
+        this.asynchronous = parameters.isAsynchronous();
+        this.transactionBatch = parameters.isTransactionBatch();
+        this.chunkThreshold = parameters.getChunkThreshold();
+        this.bufferThreshold = parameters.getBufferThreshold();
+        this.compressionPolicy = parameters.getCompressionPolicy();
+        this.report = parameters.getReport();
+    }
+
+    /**
+     * Get the profile for trigger parameters, the parameters are parsed and validated
+     * when they are seen for the first time.
+     *
+     * @param params The trigger parameters as provided by the collection configuration
+     * @return The profile
+     * @throws TransportException The configuration is not valid.
+     */
+    public static PublisherProfile compile(final Map<String, List<?>> params) throws TransportException {
+
+        synchronized (profiles) {
+            final PublisherProfile profile = profiles.get(params);
+            if (profile != null) {
+                return profile;
+            }
+        }
+
+        final PublisherParameters parameters = new PublisherParameters();
+        parameters.setMultiValueParameters(params);
+
+        // The configured values, before defaults are filled
+        final Map<Object, Object> key = new HashMap<>(parameters.getProps());
+
+        // Get from .xconf file, fill defaults when needed
+        parameters.processParameters();
+
+        final PublisherProfile profile = new PublisherProfile(key, parameters);
+
+        synchronized (profiles) {
+            final PublisherProfile existing = profiles.putIfAbsent(new HashMap<>(params), profile);
+            if (existing != null) {
+                return existing;
+            }
+        }
+
+        LOG.debug("Compiled publisher profile. {}", profile.getReport());
+        return profile;
+    }
+
+    /**
+     * @return The processed parameters, only used to create the runtime of the profile.
+     */
+    PublisherParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return The raw parameters, identifies the runtime of the profile.
+     */
+    Map<Object, Object> getKey() {
+        return key;
+    }
+
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public boolean isTransactionBatch() {
+        return transactionBatch;
+    }
+
+    public long getChunkThreshold() {
+        return chunkThreshold;
+    }
+
+    public long getBufferThreshold() {
+        return bufferThreshold;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    public String getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,854 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.CompressionPolicy;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.Identity;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JmsMessageProperties;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+
+import javax.jms.*;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Long living JMS resources for publishing replication messages.
+ * <p>
+ * One runtime exists for each distinct replication trigger configuration. The runtime keeps
+ * the JNDI context and the JMS connection open, and holds warm sessions and producers for each
+ * destination. JMS sessions are single threaded, so these are handed out to one sending thread
+ * at a time. When the connection fails all resources are discarded and rebuilt on the next send.
+ * <p>
+ * Events of a database transaction are collected and published in one JMS transaction when
+ * the database transaction is committed. Nothing is published for an aborted transaction.
+ * <p>
+ * Large documents are serialized to a file and sent as a sequence of chunk messages, each chunk
+ * is committed on its own so the broker never holds the whole document in a transaction. The
+ * subscriber reassembles the chunks before storing the document, and discards transfers that
+ * are not completed.
+ * <p>
+ * Updates of documents with the same content as the version that was published last are not
+ * published, see {@link DigestCache}.
+ * <p>
+ * A runtime belongs to one database instance. The runtimes of a database are closed when that
+ * database is shut down, also when the database is embedded and started again in the same JVM.
+ *
+ * @author Dannes Wessels
+ */
+public class PublisherRuntime implements ExceptionListener {
+
+    private final static Logger LOG = LogManager.getLogger(PublisherRuntime.class);
+
+    private static final Map<RuntimeKey, PublisherRuntime> runtimes = new ConcurrentHashMap<>();
+    private static final Set<BrokerPool> monitoredPools = Collections.newSetFromMap(new IdentityHashMap<>());
+    private static final Thread shutdownHook = new Thread(PublisherRuntime::shutdownAll, "jms-publisher-shutdown");
+
+    static {
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private final RuntimeKey key;
+    private final BrokerPool brokerPool;
+    private final PublisherParameters parameters;
+    private final JmsConfiguration jmsConfig;
+    private final JmsMessageProperties msgMetaProps;
+    private final AsyncPublisher asyncPublisher;
+
+    private final Map<String, BlockingDeque<ProducerChannel>> channels = new ConcurrentHashMap<>();
+    private final Map<String, BlockingDeque<ProducerChannel>> transactedChannels = new ConcurrentHashMap<>();
+    private final Map<Long, TransactionBatch> batches = new ConcurrentHashMap<>();
+    private final DigestCache digestCache;
+    private final AtomicLong nrUnchanged = new AtomicLong();
+
+    private Context context = null;
+    private Connection connection = null;
+    private volatile long generation = 0;
+    private volatile boolean closed = false;
+
+    private PublisherRuntime(final RuntimeKey key, final PublisherParameters parameters, final BrokerPool brokerPool) {
+        this.key = key;
+        this.brokerPool = brokerPool;
+        this.parameters = parameters;
+
+        this.jmsConfig = new JmsConfiguration();
+        jmsConfig.loadPublisherParameters(parameters);
+
+        this.msgMetaProps = new JmsMessageProperties();
+        msgMetaProps.loadParameters(parameters);
+
+        // Retrieve and set JMS identifier
+        final String id = Identity.getInstance().getIdentity();
+        if (StringUtils.isNotBlank(id)) {
+            msgMetaProps.setProperty(Constants.EXIST_INSTANCE_ID, id);
+        } else {
+            LOG.error("An empty value was provided for '{}'", Constants.EXIST_INSTANCE_ID);
+        }
+
+        this.digestCache = new DigestCache(parameters.getDigestCacheSize());
+
+        this.asyncPublisher = parameters.isAsynchronous()
+                ? new AsyncPublisher(new RuntimeTransport(), parameters, brokerPool, getJournalDir(parameters, brokerPool, key.configuration))
+                : null;
+    }
+
+    /**
+     * Get location of the journal for asynchronous publishing. Each configuration has its own
+     * journal, named after a digest of the configuration.
+     */
+    private static Path getJournalDir(final PublisherParameters parameters, final BrokerPool brokerPool, final Map<Object, Object> key) {
+
+        final String configured = parameters.getJournalDir();
+        final Path baseDir;
+        if (StringUtils.isNotBlank(configured)) {
+            baseDir = Paths.get(configured);
+
+        } else {
+            final Configuration configuration = brokerPool.getConfiguration();
+            final Object dataDir = configuration.getProperty(BrokerPool.PROPERTY_DATA_DIR);
+            final Path dataPath = (dataDir instanceof Path) ? (Path) dataDir : Paths.get(String.valueOf(dataDir));
+            baseDir = dataPath.resolve("jms-journal");
+        }
+
+        return baseDir.resolve(MessageHelper.getConfigurationDigest(key));
+    }
+
+    /**
+     * Get the runtime for a trigger configuration, create one when not yet available.
+     *
+     * @param profile    The compiled trigger configuration
+     * @param brokerPool The database, the runtime is closed when it is shut down
+     * @return The shared runtime
+     */
+    public static PublisherRuntime getInstance(final PublisherProfile profile, final BrokerPool brokerPool) {
+
+        final RuntimeKey key = new RuntimeKey(brokerPool, profile.getKey());
+
+        PublisherRuntime runtime = runtimes.get(key);
+        if (runtime == null || runtime.closed) {
+            synchronized (runtimes) {
+                runtime = runtimes.get(key);
+                if (runtime == null || runtime.closed) {
+
+                    runtime = new PublisherRuntime(key, profile.getParameters(), brokerPool);
+                    runtimes.put(key, runtime);
+
+                    // Closed together with its database. A database has one shutdown listener,
+                    // it is registered once and closes all runtimes of the database.
+                    if (monitoredPools.add(brokerPool)) {
+                        brokerPool.registerShutdownListener((dbName, remainingInstances) -> {
+                            LOG.info("Database {} is shut down, closing its publisher runtimes", dbName);
+                            shutdown(brokerPool);
+                        });
+                    }
+
+                    LOG.info("Created publisher runtime. {}", profile.getReport());
+                }
+            }
+        }
+
+        return runtime;
+    }
+
+    /**
+     * @return All active runtimes
+     */
+    public static Collection<PublisherRuntime> getInstances() {
+        return Collections.unmodifiableCollection(runtimes.values());
+    }
+
+    /**
+     * Close the runtimes of a database.
+     *
+     * @param brokerPool The database that is shut down
+     */
+    private static void shutdown(final BrokerPool brokerPool) {
+        synchronized (runtimes) {
+            monitoredPools.remove(brokerPool);
+            runtimes.values().stream()
+                    .filter(runtime -> runtime.brokerPool == brokerPool)
+                    .collect(Collectors.toList())
+                    .forEach(PublisherRuntime::close);
+        }
+    }
+
+    /**
+     * Close all runtimes, typically when the JVM is stopped.
+     */
+    public static void shutdownAll() {
+        runtimes.values().forEach(PublisherRuntime::close);
+        runtimes.clear();
+    }
+
+    /**
+     * Publish {@link eXistMessage}. In asynchronous mode the message is queued and sent by a
+     * background thread, otherwise it is sent immediately.
+     *
+     * @param em The message that needs to be published
+     * @throws TransportException The message could not be sent or queued.
+     */
+    public void publish(final eXistMessage em) throws TransportException {
+        stamp(em);
+
+        if (asyncPublisher == null) {
+            if (!skipUnchanged(em)) {
+                send(em);
+            }
+        } else {
+            // Compared after serialization, in the order the events are sent
+            asyncPublisher.publish(em);
+        }
+    }
+
+    /**
+     * Publish {@link eXistMessage} as part of a database transaction. The message is published
+     * when the transaction is committed, and discarded when the transaction is aborted.
+     *
+     * @param txn The database transaction, when NULL the message is published immediately
+     * @param em  The message that needs to be published
+     * @throws TransportException The message could not be sent or queued.
+     */
+    public void publish(final Txn txn, final eXistMessage em) throws TransportException {
+
+        if (txn == null || !parameters.isTransactionBatch()) {
+            publish(em);
+            return;
+        }
+
+        stamp(em);
+
+        if (closed) {
+            throw new TransportException("Publisher runtime is closed");
+        }
+
+        // In asynchronous mode compared after serialization
+        if (asyncPublisher == null && skipUnchanged(em)) {
+            return;
+        }
+
+        // A transaction is used by one thread only
+        TransactionBatch batch = batches.get(txn.getId());
+        if (batch == null) {
+            batch = new TransactionBatch(this, txn);
+            batches.put(txn.getId(), batch);
+        }
+        batch.add(em);
+    }
+
+    /**
+     * Publish the events of a committed transaction in one JMS transaction. In asynchronous mode
+     * the events are queued as one unit and sent by a background thread.
+     *
+     * @param events The events, in order
+     * @throws TransportException The events could not be sent or queued.
+     */
+    void publishBatch(final List<eXistMessage> events) throws TransportException {
+        if (asyncPublisher == null) {
+            sendBatch(jmsConfig.getDestination(), events);
+        } else {
+            asyncPublisher.publish(events);
+        }
+    }
+
+    /**
+     * Give the event a sequence number, so a subscriber can recognize redelivered messages.
+     * Events that are published again, e.g. from the journal, keep their number.
+     */
+    private static void stamp(final eXistMessage em) {
+        em.getMetadata().putIfAbsent(MessageHelper.EXIST_MESSAGE_SEQUENCE, MessageHelper.nextSequenceNumber());
+    }
+
+    void removeBatch(final TransactionBatch batch) {
+        batches.remove(batch.getTxnId(), batch);
+    }
+
+    /**
+     * Discard the events of an aborted transaction.
+     *
+     * @param events The events
+     */
+    void discardBatch(final List<eXistMessage> events) {
+        events.forEach(digestCache::forget);
+    }
+
+    /**
+     * Drop an update of a document that has the same content as the version that was published
+     * last. Otherwise the message is accepted, later updates are compared with it. Messages
+     * without digest are never dropped.
+     *
+     * @param em The message
+     * @return TRUE when the message is dropped
+     */
+    boolean skipUnchanged(final eXistMessage em) {
+        if (digestCache.accept(em)) {
+            return false;
+        }
+
+        LOG.debug("Content of {} is unchanged, update is not published", em.getResourcePath());
+        nrUnchanged.incrementAndGet();
+        em.deletePayloadFile();
+        return true;
+    }
+
+    /**
+     * @return Size above which documents are serialized to a file and sent in chunks.
+     */
+    public long getChunkThreshold() {
+        return parameters.getChunkThreshold();
+    }
+
+    /**
+     * @return Selects the encoding of document payloads.
+     */
+    public CompressionPolicy getCompressionPolicy() {
+        return parameters.getCompressionPolicy();
+    }
+
+    /**
+     * @return TRUE when messages are sent by background threads.
+     */
+    public boolean isAsynchronous() {
+        return asyncPublisher != null;
+    }
+
+    /**
+     * Send {@link eXistMessage} to the configured destination.
+     *
+     * @param em The message that needs to be sent
+     * @throws TransportException The message could not be sent, also not after rebuilding the connection.
+     */
+    public void send(final eXistMessage em) throws TransportException {
+        send(jmsConfig.getDestination(), em);
+    }
+
+    /**
+     * Send {@link eXistMessage} to a destination. A failing send is retried once on a
+     * newly created connection.
+     *
+     * @param destination JNDI name of the destination
+     * @param em          The message that needs to be sent
+     * @throws TransportException The message could not be sent.
+     */
+    public void send(final String destination, final eXistMessage em) throws TransportException {
+
+        if (closed) {
+            throw new TransportException("Publisher runtime is closed");
+        }
+
+        try {
+            try {
+                doSend(destination, em);
+
+            } catch (final JMSException | NamingException ex) {
+                LOG.warn("Unable to send message, rebuilding connection: {}", ex.getMessage());
+                invalidate();
+
+                try {
+                    doSend(destination, em);
+
+                } catch (final JMSException | NamingException ex2) {
+                    LOG.error(ex2.getMessage(), ex2);
+                    invalidate();
+                    digestCache.forget(em);
+                    throw new TransportException(ex2.getMessage(), ex2);
+                }
+            }
+
+        } catch (final IOException ex) {
+            digestCache.forget(em);
+            throw new TransportException(String.format("Unable to read payload of %s: %s", em.getReport(), ex.getMessage()), ex);
+
+        } finally {
+            em.deletePayloadFile();
+        }
+    }
+
+    /**
+     * Send the messages to a destination in one JMS transaction: either all messages are
+     * delivered or none. A failing batch is retried once on a newly created connection.
+     * <p>
+     * A large document is sent in chunks that are committed one by one, the messages before it
+     * are committed with its first chunk.
+     *
+     * @param destination JNDI name of the destination
+     * @param events      The messages that need to be sent, in order
+     * @throws TransportException The messages could not be sent.
+     */
+    public void sendBatch(final String destination, final List<eXistMessage> events) throws TransportException {
+
+        if (closed) {
+            throw new TransportException("Publisher runtime is closed");
+        }
+
+        try {
+            try {
+                doSendBatch(destination, events);
+
+            } catch (final JMSException | NamingException ex) {
+                LOG.warn("Unable to send batch of {} messages, rebuilding connection: {}", events.size(), ex.getMessage());
+                invalidate();
+
+                try {
+                    doSendBatch(destination, events);
+
+                } catch (final JMSException | NamingException ex2) {
+                    LOG.error(ex2.getMessage(), ex2);
+                    invalidate();
+                    events.forEach(digestCache::forget);
+                    throw new TransportException(ex2.getMessage(), ex2);
+                }
+            }
+
+        } catch (final IOException ex) {
+            events.forEach(digestCache::forget);
+            throw new TransportException(String.format("Unable to read payload: %s", ex.getMessage()), ex);
+
+        } finally {
+            events.forEach(eXistMessage::deletePayloadFile);
+        }
+    }
+
+    private void doSend(final String destination, final eXistMessage em) throws JMSException, NamingException, IOException {
+
+        // Chunks are sent on a transacted session, they are committed one by one
+        if (isChunked(em)) {
+            doSendBatch(destination, Collections.singletonList(em));
+            return;
+        }
+
+        final ProducerChannel channel = borrow(channels, destination, false);
+        boolean healthy = false;
+        try {
+            channel.producer.send(createMessage(channel.session, em));
+            healthy = true;
+
+        } finally {
+            if (healthy) {
+                release(channels, destination, channel);
+            } else {
+                channel.close();
+            }
+        }
+    }
+
+    private void doSendBatch(final String destination, final List<eXistMessage> events) throws JMSException, NamingException, IOException {
+
+        final ProducerChannel channel = borrow(transactedChannels, destination, true);
+        boolean healthy = false;
+        try {
+            for (final eXistMessage em : events) {
+                if (isChunked(em)) {
+                    sendChunks(channel, em);
+                } else {
+                    channel.producer.send(createMessage(channel.session, em));
+                }
+            }
+            channel.session.commit();
+            healthy = true;
+
+        } finally {
+            if (healthy) {
+                release(transactedChannels, destination, channel);
+            } else {
+                // Closing a transacted session rolls back the messages sent so far
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A payload on disk is sent in chunks when it is larger than one chunk.
+     */
+    private boolean isChunked(final eXistMessage em) throws IOException {
+        return em.getPayloadFile() != null && em.getPayloadSize() > parameters.getChunkSize();
+    }
+
+    /**
+     * Send the payload file as a sequence of chunk messages. Each chunk carries the
+     * properties of the message, the transfer id and its sequence number. Every chunk is
+     * committed, so the subscriber receives the transfer while it is being sent. A transfer
+     * that is not completed is discarded by the subscriber.
+     */
+    private void sendChunks(final ProducerChannel channel, final eXistMessage em) throws JMSException, IOException {
+
+        final Path file = em.getPayloadFile();
+        final long size = Files.size(file);
+        final int chunkSize = parameters.getChunkSize();
+        final int nrChunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        final String transferId = UUID.randomUUID().toString();
+
+        final byte[] buffer = new byte[chunkSize];
+        try (final InputStream is = Files.newInputStream(file)) {
+            for (int chunk = 0; chunk < nrChunks; chunk++) {
+                final int length = IOUtils.read(is, buffer);
+
+                final BytesMessage message = channel.session.createBytesMessage();
+                message.writeBytes(buffer, 0, length);
+
+                em.updateMessageProperties(message);
+                setMessageProperties(message);
+
+                message.setStringProperty(eXistMessage.EXIST_TRANSFER_ID, transferId);
+                message.setIntProperty(eXistMessage.EXIST_TRANSFER_CHUNK, chunk);
+                message.setIntProperty(eXistMessage.EXIST_TRANSFER_CHUNKS, nrChunks);
+                message.setLongProperty(eXistMessage.EXIST_TRANSFER_SIZE, size);
+
+                channel.producer.send(message);
+                channel.session.commit();
+            }
+        }
+
+        LOG.debug("Sent {} bytes in {} chunks for {}", size, nrChunks, em.getReport());
+    }
+
+    private BytesMessage createMessage(final Session session, final eXistMessage em) throws JMSException, IOException {
+
+        final BytesMessage message = session.createBytesMessage();
+
+        final byte[] payload = em.getPayload();
+        if (em.getPayloadFile() != null) {
+            try (final InputStream is = Files.newInputStream(em.getPayloadFile())) {
+                PayloadBuffer.copy(is, message);
+            }
+
+        } else if (payload == null) {
+            LOG.debug("No payload for replication");
+
+        } else {
+            message.writeBytes(payload);
+        }
+
+        em.updateMessageProperties(message);
+        setMessageProperties(message);
+
+        return message;
+    }
+
+    /**
+     * Get an idle session/producer for the destination, or create a new one.
+     */
+    private ProducerChannel borrow(final Map<String, BlockingDeque<ProducerChannel>> pool, final String destination,
+                                   final boolean transacted) throws JMSException, NamingException {
+
+        final BlockingDeque<ProducerChannel> idle = pool.computeIfAbsent(destination, d -> new LinkedBlockingDeque<>());
+
+        ProducerChannel channel = idle.pollFirst();
+        while (channel != null && channel.generation != generation) {
+            // Stale channel, created on a connection that has been replaced
+            channel.close();
+            channel = idle.pollFirst();
+        }
+
+        if (channel == null) {
+            channel = createChannel(destination, transacted);
+        }
+
+        return channel;
+    }
+
+    private void release(final Map<String, BlockingDeque<ProducerChannel>> pool, final String destination,
+                         final ProducerChannel channel) {
+        if (closed || channel.generation != generation) {
+            channel.close();
+        } else {
+            pool.computeIfAbsent(destination, d -> new LinkedBlockingDeque<>()).offerFirst(channel);
+        }
+    }
+
+    private synchronized ProducerChannel createChannel(final String destinationName, final boolean transacted) throws JMSException, NamingException {
+
+        final Connection conn = getConnection();
+
+        final Destination destination = (Destination) context.lookup(destinationName);
+        final Session session = transacted
+                ? conn.createSession(true, Session.SESSION_TRANSACTED)
+                : conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        final MessageProducer producer = session.createProducer(destination);
+
+        // Set time-to-live (when available)
+        final Long timeToLive = parameters.getTimeToLive();
+        if (timeToLive != null) {
+            producer.setTimeToLive(timeToLive);
+        }
+
+        // Set priority (when available)
+        final Integer priority = parameters.getPriority();
+        if (priority != null) {
+            producer.setPriority(priority);
+        }
+
+        // Set deliveryMethod (when available)
+        final Integer deliveryMethod = jmsConfig.getDeliveryMethod();
+        if (deliveryMethod != null) {
+            producer.setDeliveryMode(deliveryMethod);
+        }
+
+        LOG.debug("Created producer for {}", destinationName);
+
+        return new ProducerChannel(session, producer, generation);
+    }
+
+    private synchronized Connection getConnection() throws JMSException, NamingException {
+
+        if (connection == null) {
+
+            // Setup Context
+            final Properties props = new Properties();
+            props.setProperty(Context.INITIAL_CONTEXT_FACTORY, jmsConfig.getInitialContextFactory());
+            props.setProperty(Context.PROVIDER_URL, jmsConfig.getBrokerURL());
+            context = new InitialContext(props);
+
+            final ConnectionFactory cf = (ConnectionFactory) context.lookup(jmsConfig.getConnectionFactory());
+
+            // Setup username/password when required
+            final String userName = jmsConfig.getConnectionUserName();
+            final String password = jmsConfig.getConnectionPassword();
+
+            final Connection conn = (StringUtils.isBlank(userName) || StringUtils.isBlank(password))
+                    ? cf.createConnection()
+                    : cf.createConnection(userName, password);
+
+            // Set clientId when set and not empty
+            final String clientId = jmsConfig.getClientId();
+            if (StringUtils.isNotBlank(clientId)) {
+                conn.setClientID(clientId);
+            }
+
+            conn.setExceptionListener(this);
+
+            connection = conn;
+            generation++;
+
+            LOG.info("Publisher connection is opened for {}", jmsConfig.getBrokerURL());
+        }
+
+        return connection;
+    }
+
+    private void setMessageProperties(final Message message) throws JMSException {
+        for (final Map.Entry<Object, Object> entry : msgMetaProps.entrySet()) {
+            final Object value = entry.getValue();
+            if (value instanceof String) {
+                message.setStringProperty((String) entry.getKey(), (String) value);
+            }
+        }
+    }
+
+    /**
+     * Discard connection, sessions and producers. They are recreated on the next send.
+     */
+    private synchronized void invalidate() {
+
+        generation++;
+
+        channels.values().forEach(PublisherRuntime::closeChannels);
+        transactedChannels.values().forEach(PublisherRuntime::closeChannels);
+
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final JMSException ex) {
+                LOG.debug("Problem closing connection, ignored. {}", ex.getMessage());
+            }
+            connection = null;
+        }
+
+        if (context != null) {
+            try {
+                context.close();
+            } catch (final NamingException ex) {
+                LOG.debug("Problem closing context, ignored. {}", ex.getMessage());
+            }
+            context = null;
+        }
+    }
+
+    private static void closeChannels(final BlockingDeque<ProducerChannel> idle) {
+        ProducerChannel channel;
+        while ((channel = idle.pollFirst()) != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Close the runtime and release all JMS resources.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        runtimes.remove(key, this);
+
+        if (asyncPublisher != null) {
+            asyncPublisher.shutdown();
+        }
+
+        invalidate();
+
+        LOG.info("Publisher runtime is closed for {}", jmsConfig.getBrokerURL());
+    }
+
+    @Override
+    public void onException(final JMSException jmse) {
+        LOG.error("Publisher connection failed: {} ({})", jmse.getMessage(), jmse.getErrorCode());
+        invalidate();
+    }
+
+    /**
+     * Write details about the runtime to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "publisher", "publisher", null);
+
+        writeValue(builder, Context.PROVIDER_URL, jmsConfig.getBrokerURL());
+        writeValue(builder, Constants.DESTINATION, jmsConfig.getDestination());
+        writeValue(builder, Constants.PUBLISHER_MODE, isAsynchronous() ? Constants.PUBLISHER_MODE_ASYNC : Constants.PUBLISHER_MODE_SYNC);
+        writeValue(builder, "connected", "" + (connection != null));
+        writeValue(builder, Constants.PUBLISHER_TRANSACTION_BATCH, "" + parameters.isTransactionBatch());
+        writeValue(builder, "openTransactions", "" + batches.size());
+        writeValue(builder, Constants.PUBLISHER_DIGEST_CACHE_SIZE, "" + parameters.getDigestCacheSize());
+        writeValue(builder, "cachedDigests", "" + digestCache.size());
+        writeValue(builder, "unchangedSkipped", "" + nrUnchanged.get());
+
+        if (asyncPublisher != null) {
+            asyncPublisher.write(builder);
+        }
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        if (value != null) {
+            builder.characters(value);
+        }
+        builder.endElement();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public JmsConfiguration getJmsConfiguration() {
+        return jmsConfig;
+    }
+
+    /**
+     * Sends the events of the asynchronous publisher through this runtime.
+     */
+    private class RuntimeTransport implements AsyncPublisher.Transport {
+
+        @Override
+        public boolean skipUnchanged(final eXistMessage em) {
+            return PublisherRuntime.this.skipUnchanged(em);
+        }
+
+        @Override
+        public void send(final eXistMessage em) throws TransportException {
+            PublisherRuntime.this.send(em);
+        }
+
+        @Override
+        public void sendBatch(final List<eXistMessage> events) throws TransportException {
+            PublisherRuntime.this.sendBatch(jmsConfig.getDestination(), events);
+        }
+    }
+
+    /**
+     * Identifies a runtime: the database instance and the configured values.
+     */
+    private static class RuntimeKey {
+
+        private final BrokerPool brokerPool;
+        private final Map<Object, Object> configuration;
+
+        RuntimeKey(final BrokerPool brokerPool, final Map<Object, Object> configuration) {
+            this.brokerPool = brokerPool;
+            this.configuration = configuration;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof RuntimeKey)) {
+                return false;
+            }
+            final RuntimeKey that = (RuntimeKey) other;
+            return brokerPool == that.brokerPool && configuration.equals(that.configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(brokerPool) + configuration.hashCode();
+        }
+    }
+
+    /**
+     * Session and producer that are used by one thread at a time.
+     */
+    private static class ProducerChannel {
+
+        private final Session session;
+        private final MessageProducer producer;
+        private final long generation;
+
+        ProducerChannel(final Session session, final MessageProducer producer, final long generation) {
+            this.session = session;
+            this.producer = producer;
+            this.generation = generation;
+        }
+
+        void close() {
+            try {
+                session.close();
+            } catch (final JMSException ex) {
+                LOG.debug("Problem closing session, ignored. {}", ex.getMessage());
+            }
+        }
+    }
+}
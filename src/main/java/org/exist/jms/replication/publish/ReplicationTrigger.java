@@ -32,6 +32,7 @@ import org.exist.dom.persistent.DocumentImpl;
 import org.exist.jms.replication.shared.MessageHelper;
 import org.exist.jms.replication.shared.ReplicationGuard;
 import org.exist.jms.replication.shared.ReplicationTxnManager;
+import org.exist.jms.replication.shared.TransportException;
 import org.exist.jms.shared.eXistMessage;
 import org.exist.storage.DBBroker;
 import org.exist.storage.txn.Txn;
@@ -53,7 +54,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
     public static final String BLOCKED_MESSAGE = "Prevented re-replication of '{}'";
     private final static Logger LOGGER = LogManager.getLogger(ReplicationTrigger.class);
     private final ReplicationGuard guard = ReplicationGuard.getInstance();
-    private Map<String, List<?>> parameters;
+    private JMSMessageSender sender;
 
     /**
      * Verify if the transaction is started by the JMX extension
@@ -86,20 +87,20 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrievePermission(md, document.getPermissions());
 
 
-        // The content is always gzip-ped
-        md.put(MessageHelper.EXIST_MESSAGE_CONTENTENCODING, "gzip");
+        // Serialize document, in asynchronous mode this is done by the sender threads
+        if (!sender.isAsynchronous()) {
+            try {
+                MessageHelper.serializePayload(broker, transaction, document, msg, sender.getChunkThreshold(),
+                        sender.getBufferThreshold(), sender.getCompressionPolicy());
 
-        // Serialize document
-        try {
-            msg.setPayload(MessageHelper.gzipSerialize(broker, transaction, document));
-
-        } catch (final Throwable ex) {
-            LOGGER.error("Problem while serializing document (contentLength={}) to compressed message: {}",
-                    document.getContentLength(), ex.getMessage(), ex);
+            } catch (final Throwable ex) {
+                LOGGER.error("Problem while serializing document (contentLength={}) to compressed message: {}",
+                        document.getContentLength(), ex.getMessage(), ex);
+            }
         }
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -161,7 +162,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(document.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -187,7 +188,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(document.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -212,7 +213,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setResourcePath(uri.toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     //
@@ -244,7 +245,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrieveFromCollection(md, collection);
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     //@Override
@@ -278,7 +279,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrieveFromCollection(md, collection);
 
         // Send Message
-        sendMessage(msg);
+        sendMessage(txn, msg);
     }
 
     @Override
@@ -304,7 +305,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(collection.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -330,7 +331,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(collection.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -355,7 +356,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setResourcePath(uri.toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     // 
@@ -393,7 +394,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrievePermission(md, document.getPermissions());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     //
@@ -408,26 +409,37 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
             LOGGER.debug("Configuring replication trigger for collection '{}'", parentCollection.getURI());
         }
 
-        this.parameters = parameters;
+        // The parameters are parsed once, the JMS resources are shared by all trigger
+        // instances with the same configuration
+        final PublisherProfile profile;
+        try {
+            profile = PublisherProfile.compile(parameters);
+
+        } catch (final TransportException ex) {
+            throw new TriggerException(String.format("Invalid replication configuration for collection '%s': %s",
+                    parentCollection.getURI(), ex.getMessage()), ex);
+        }
+
+        this.sender = new JMSMessageSender(profile, broker.getBrokerPool());
 
     }
 
     /**
      * Send 'trigger' message with parameters set using
-     * {@link #configure(org.exist.storage.DBBroker, org.exist.storage.txn.Txn, org.exist.collections.Collection, java.util.Map)}
+     * {@link #configure(org.exist.storage.DBBroker, org.exist.storage.txn.Txn, org.exist.collections.Collection, java.util.Map)}.
+     * The message is sent when the transaction is committed.
      */
-    private void sendMessage(final eXistMessage msg) /* throws TriggerException  */ {
-        // Send Message   
-        final JMSMessageSender sender = new JMSMessageSender(parameters);
+    private void sendMessage(final Txn transaction, final eXistMessage msg) /* throws TriggerException  */ {
         try {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Sending JMS message for '{}' on '{}'", msg.getResourceOperation().toString(), msg.getResourcePath());
             }
 
-            sender.sendMessage(msg);
+            sender.sendMessage(transaction, msg);
 
         } catch (final Throwable ex) {
             LOGGER.error(ex.getMessage(), ex);
+            msg.deletePayloadFile();
             //throw new TriggerException(ex.getMessage(), ex); TransportException
         }
     }
@@ -0,0 +1,92 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the replication events of one database transaction. The events are published
+ * together when the transaction is committed, and are discarded when it is aborted.
+ *
+ * @author Dannes Wessels
+ */
+class TransactionBatch implements TxnListener {
+
+    private final static Logger LOG = LogManager.getLogger(TransactionBatch.class);
+
+    private final PublisherRuntime runtime;
+    private final long txnId;
+    private final List<eXistMessage> events = new ArrayList<>();
+
+    TransactionBatch(final PublisherRuntime runtime, final Txn txn) {
+        this.runtime = runtime;
+        this.txnId = txn.getId();
+        txn.registerListener(this);
+    }
+
+    long getTxnId() {
+        return txnId;
+    }
+
+    /**
+     * Add event to the batch, events are published in the order they are added.
+     *
+     * @param em The event
+     */
+    void add(final eXistMessage em) {
+        events.add(em);
+    }
+
+    @Override
+    public void commit() {
+        runtime.removeBatch(this);
+
+        if (events.isEmpty()) {
+            return;
+        }
+
+        LOG.debug("Transaction {} committed, publishing {} events", txnId, events.size());
+
+        try {
+            runtime.publishBatch(events);
+
+        } catch (final TransportException ex) {
+            LOG.error("Unable to publish {} events of transaction {}: {}", events.size(), txnId, ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void abort() {
+        runtime.removeBatch(this);
+
+        LOG.debug("Transaction {} aborted, discarding {} events", txnId, events.size());
+        runtime.discardBatch(events);
+        events.forEach(eXistMessage::deletePayloadFile);
+        events.clear();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.shared.PayloadCodec;
+import org.exist.jms.shared.PayloadCodecs;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Decides per document how the payload is encoded. Binary documents that are already
+ * compressed (images, archives, office documents, ...) are not compressed again. The decision
+ * is made on the mime type, and optionally on the entropy of the first block of the document.
+ * XML documents are always encoded with the configured codec.
+ *
+ * @author Dannes Wessels
+ */
+public class CompressionPolicy {
+
+    /**
+     * Mime types of formats that are compressed. An entry ending with '*' matches all types
+     * starting with the entry.
+     */
+    public static final String DEFAULT_SKIP_TYPES = "image/jpeg,image/png,image/gif,image/webp,"
+            + "application/zip,application/gzip,application/x-gzip,application/x-bzip2,application/x-xz,"
+            + "application/x-7z-compressed,application/x-rar-compressed,application/java-archive,"
+            + "application/pdf,application/epub+zip,"
+            + "application/vnd.openxmlformats-officedocument.*,application/vnd.oasis.opendocument.*,"
+            + "audio/*,video/*";
+
+    private final static Logger LOG = LogManager.getLogger(CompressionPolicy.class);
+
+    private static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * Entropy in bits per byte above which data is considered to be compressed.
+     */
+    private static final double ENTROPY_THRESHOLD = 7.5;
+
+    private final PayloadCodec codec;
+    private final Set<String> skipTypes = new HashSet<>();
+    private final List<String> skipPrefixes = new ArrayList<>();
+    private final boolean sampling;
+
+    /**
+     * Constructor.
+     *
+     * @param codec     The configured codec
+     * @param skipTypes Comma separated list of mime types that are not compressed.
+     * @param sampling  Set TRUE to check the entropy of the first block of binary documents
+     */
+    public CompressionPolicy(final PayloadCodec codec, final String skipTypes, final boolean sampling) {
+        this.codec = codec;
+        this.sampling = sampling;
+
+        if (skipTypes != null) {
+            for (final String type : skipTypes.split(",")) {
+                final String value = type.trim().toLowerCase(Locale.ENGLISH);
+                if (value.endsWith("*")) {
+                    skipPrefixes.add(value.substring(0, value.length() - 1));
+                } else if (StringUtils.isNotBlank(value)) {
+                    this.skipTypes.add(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Policy that always uses the codec.
+     *
+     * @param codec The codec
+     */
+    public CompressionPolicy(final PayloadCodec codec) {
+        this(codec, null, false);
+    }
+
+    /**
+     * @return The configured codec
+     */
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Select the codec for a document.
+     *
+     * @param broker      The broker
+     * @param transaction The transaction
+     * @param document    The document
+     * @return The configured codec, or the identity codec for compressed binary documents.
+     */
+    public PayloadCodec select(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+
+        if (document.getResourceType() == DocumentImpl.XML_FILE || PayloadCodecs.IDENTITY.equals(codec.getName())) {
+            return codec;
+        }
+
+        final String mimeType = document.getMetadata() == null ? null : document.getMetadata().getMimeType();
+        if (isCompressedType(mimeType)) {
+            LOG.debug("Not compressing {}, mime type {}", document.getURI(), mimeType);
+            return PayloadCodecs.get(PayloadCodecs.IDENTITY);
+        }
+
+        if (sampling) {
+            final byte[] sample = new byte[SAMPLE_SIZE];
+            try (final InputStream is = broker.getBinaryResource(transaction, (BinaryDocument) document)) {
+                final int length = IOUtils.read(is, sample);
+                if (isHighEntropy(sample, length)) {
+                    LOG.debug("Not compressing {}, content is compressed", document.getURI());
+                    return PayloadCodecs.get(PayloadCodecs.IDENTITY);
+                }
+
+            } catch (final IOException ex) {
+                LOG.debug("Unable to sample {}: {}", document.getURI(), ex.getMessage());
+            }
+        }
+
+        return codec;
+    }
+
+    boolean isCompressedType(final String mimeType) {
+        if (StringUtils.isBlank(mimeType)) {
+            return false;
+        }
+
+        // Parameters, e.g. the charset, are not part of the type
+        final String value = StringUtils.substringBefore(mimeType, ";").trim().toLowerCase(Locale.ENGLISH);
+        if (skipTypes.contains(value)) {
+            return true;
+        }
+
+        for (final String prefix : skipPrefixes) {
+            if (value.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine if data looks compressed or encrypted, based on the Shannon entropy of a sample.
+     *
+     * @param sample The data
+     * @param length Number of bytes in the sample
+     * @return TRUE when the entropy is close to 8 bits per byte.
+     */
+    static boolean isHighEntropy(final byte[] sample, final int length) {
+
+        // Too little data to say anything useful
+        if (length < 256) {
+            return false;
+        }
+
+        final int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for (final int count : counts) {
+            if (count > 0) {
+                final double p = (double) count / length;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+
+        return entropy > ENTROPY_THRESHOLD;
+    }
+}
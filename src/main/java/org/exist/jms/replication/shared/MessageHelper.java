@@ -21,26 +21,45 @@
  */
 package org.exist.jms.replication.shared;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
 import org.exist.collections.Collection;
 import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.DocumentMetadata;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.PayloadCodec;
+import org.exist.jms.shared.PayloadCodecs;
 import org.exist.jms.shared.eXistMessage;
 import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionException;
 import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper class for retrieving (meta)data from an in eXist stored document.
@@ -60,83 +79,232 @@ public class MessageHelper {
     public static final String EXIST_RESOURCE_TYPE = "exist.resource.type";
     public static final String EXIST_RESOURCE_MODE = "exist.resource.permission.mode";
     public static final String EXIST_MESSAGE_CONTENTENCODING = "exist.message.content-encoding";
+    public static final String EXIST_RESOURCE_DIGEST = "exist.resource.digest";
+    public static final String EXIST_MESSAGE_SEQUENCE = "exist.message.sequence";
+
+    /**
+     * Algorithm of the digest of the serialized, not encoded, document.
+     */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
 
     private final static Logger LOG = LogManager.getLogger(MessageHelper.class);
 
+    /**
+     * Sequence numbers start at the current time shifted by 20 bits, so numbers keep increasing
+     * after a restart while allowing a million events per millisecond.
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong(System.currentTimeMillis() << 20);
+
+    /**
+     * Get the next sequence number for a replication event of this instance.
+     *
+     * @return Monotonically increasing number
+     */
+    public static long nextSequenceNumber() {
+        return SEQUENCE.incrementAndGet();
+    }
 
     /**
-     * Serialize document to byte array as gzipped document.
+     * Get a name for a configuration, e.g. for files that belong to it. Unlike a hash code it
+     * does not collide for different configurations.
      *
-     * @param broker   The broker
-     * @param document Document to compress
-     * @return document as array of bytes
-     * @throws IOException When the
+     * @param configuration The configured values
+     * @return Hex encoded {@value #DIGEST_ALGORITHM} digest of the configuration, independent of the order of the entries.
      */
-    public static byte[] gzipSerialize(final DBBroker broker, final Txn transaction, final DocumentImpl document) throws IOException {
+    public static String getConfigurationDigest(final Map<Object, Object> configuration) {
+
+        final SortedMap<String, String> sorted = new TreeMap<>();
+        configuration.forEach((name, value) -> sorted.put(String.valueOf(name), String.valueOf(value)));
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+
+        for (final Map.Entry<String, String> entry : sorted.entrySet()) {
+            // Lengths are included, so entries cannot run into each other
+            for (final String part : new String[]{entry.getKey(), entry.getValue()}) {
+                final byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                digest.update(String.valueOf(bytes.length).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) ':');
+                digest.update(bytes);
+            }
+        }
 
-        // This is the weak spot, the data is serialized into
-        // a byte array. Better to have an overflow to a file,
-        byte[] payload;
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Serialize document into a stream, encoded by the codec. The digest is calculated over
+     * the serialized document before it is encoded, so it does not depend on the codec.
+     *
+     * @param broker      The broker
+     * @param transaction The transaction
+     * @param document    Document to serialize
+     * @param codec       Encoding of the serialized document, e.g. compression
+     * @param os          Stream to write the encoded document to, the stream is not closed.
+     * @return Base64 encoded {@value #DIGEST_ALGORITHM} digest of the serialized document
+     * @throws IOException When the document could not be serialized.
+     */
+    public static String serialize(final DBBroker broker, final Txn transaction, final DocumentImpl document,
+                                   final PayloadCodec codec, final OutputStream os) throws IOException {
 
-        if (document.getResourceType() == DocumentImpl.XML_FILE) {
+        final MessageDigest digest = createDigest();
 
-            // Stream XML document
-            final Serializer serializer = broker.getSerializer();
+        try (final OutputStream eos = new DigestOutputStream(codec.encode(new CloseShieldOutputStream(os)), digest)) {
 
-            try {
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (document.getResourceType() == DocumentImpl.XML_FILE) {
 
-                try (final GZIPOutputStream gos = new GZIPOutputStream(baos);
-                     final Writer w = new OutputStreamWriter(gos, StandardCharsets.UTF_8)) {
+                // Stream XML document
+                final Serializer serializer = broker.getSerializer();
+                try {
+                    final Writer w = new OutputStreamWriter(eos, StandardCharsets.UTF_8);
                     serializer.serialize(document, w);
                     w.flush();
+
+                } catch (final SAXException e) {
+                    throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
                 }
 
-                payload = baos.toByteArray();
+            } else {
+                // Stream NON-XML document
+                broker.readBinaryResource(transaction, (BinaryDocument) document, eos);
+            }
+        }
+
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Calculate the digest of a document, as it would be calculated when the document
+     * is serialized into a message.
+     *
+     * @param broker      The broker
+     * @param transaction The transaction
+     * @param document    The document
+     * @return Base64 encoded {@value #DIGEST_ALGORITHM} digest of the serialized document
+     * @throws IOException When the document could not be serialized.
+     */
+    public static String digest(final DBBroker broker, final Txn transaction, final DocumentImpl document) throws IOException {
+        return serialize(broker, transaction, document, PayloadCodecs.get(PayloadCodecs.IDENTITY), NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(String.format("Digest algorithm %s is not available", DIGEST_ALGORITHM), e);
+        }
+    }
 
+    /**
+     * Serialize document into the message. Documents larger than the threshold are written
+     * to a temporary file, to be sent in chunks, instead of being kept in memory. Smaller
+     * documents are written to disk when the serialized data exceeds the buffer threshold.
+     *
+     * @param broker      The broker
+     * @param transaction The transaction
+     * @param document    Document to compress
+     * @param msg         Message to set the payload of
+     * @param threshold   Maximum size of documents that are kept in memory
+     * @param bufferThreshold Maximum number of serialized bytes that are kept in memory
+     * @param policy      Selects the encoding of the payload, the name of the codec is set as
+     *                    content-encoding of the message. The digest of the document is set as well.
+     * @throws IOException When the document could not be serialized.
+     */
+    public static void serializePayload(final DBBroker broker, final Txn transaction, final DocumentImpl document,
+                                        final eXistMessage msg, final long threshold, final long bufferThreshold,
+                                        final CompressionPolicy policy) throws IOException {
+
+        final PayloadCodec codec = policy.select(broker, transaction, document);
 
-            } catch (final SAXException | IOException e) {
-                payload = new byte[0];
-                LOG.error(e);
-                throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
+        // Large documents are written to disk directly, smaller documents when they
+        // exceed the in-memory threshold of the buffer
+        final String digest;
+        try (final PayloadBuffer buffer = (document.getContentLength() > threshold)
+                ? new PayloadBuffer(0) : new PayloadBuffer(bufferThreshold)) {
 
-            } catch (final Throwable e) {
-                payload = new byte[0];
-                System.gc(); // recover from out of memory exception
-                LOG.error(e.getMessage(), e);
-                throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
+            try (final OutputStream os = buffer.getOutputStream()) {
+                digest = serialize(broker, transaction, document, codec, os);
             }
 
-        } else {
-            // Stream NON-XML document
+            if (!buffer.isInMemory()) {
+                LOG.debug("Serialized {} ({} bytes) to disk", document.getURI(), buffer.size());
+            }
+            buffer.moveTo(msg);
+        }
 
-            try {
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        msg.getMetadata().put(EXIST_MESSAGE_CONTENTENCODING, codec.getName());
+        msg.getMetadata().put(EXIST_RESOURCE_DIGEST, digest);
+    }
 
-                try (final GZIPOutputStream gos = new GZIPOutputStream(baos)) {
-                    // DW: check classtype before using
-                    broker.readBinaryResource(transaction, (BinaryDocument) document, gos);
-                    gos.flush();
-                }
+    /**
+     * Serialize the current state of the document described by the message into the message. Used
+     * for messages that are created without payload, e.g. when the message is sent by a background thread.
+     * The document metadata is refreshed as well.
+     *
+     * @param brokerPool The database
+     * @param msg        Message describing a document
+     * @param threshold  Maximum size of documents that are kept in memory
+     * @param bufferThreshold Maximum number of serialized bytes that are kept in memory
+     * @param policy     Selects the encoding of the payload
+     * @return FALSE when the document does not exist (anymore), else TRUE
+     * @throws IOException The document could not be serialized.
+     */
+    public static boolean loadDocumentPayload(final BrokerPool brokerPool, final eXistMessage msg, final long threshold,
+                                              final long bufferThreshold, final CompressionPolicy policy) throws IOException {
+        return loadDocumentPayload(brokerPool, msg, XmldbURI.create(msg.getResourcePath()), threshold, bufferThreshold, policy);
+    }
 
-                payload = baos.toByteArray();
+    /**
+     * Serialize the current state of a document into the message, reading it from another location
+     * than described by the message, e.g. when the document was moved after the message was created.
+     *
+     * @param brokerPool The database
+     * @param msg        Message describing a document
+     * @param uri        Current location of the document
+     * @param threshold  Maximum size of documents that are kept in memory
+     * @param bufferThreshold Maximum number of serialized bytes that are kept in memory
+     * @param policy     Selects the encoding of the payload
+     * @return FALSE when the document does not exist (anymore), else TRUE
+     * @throws IOException The document could not be serialized.
+     */
+    public static boolean loadDocumentPayload(final BrokerPool brokerPool, final eXistMessage msg, final XmldbURI uri,
+                                              final long threshold, final long bufferThreshold,
+                                              final CompressionPolicy policy) throws IOException {
 
-            } catch (final IOException e) {
-                payload = new byte[0];
-                LOG.error(e);
-                throw new IOException(String.format("Error while serializing binary document: %s", e.getMessage()), e);
+        try (final DBBroker broker = brokerPool.get(Optional.of(brokerPool.getSecurityManager().getSystemSubject()));
+             final LockedDocument lockedDocument = broker.getXMLResource(uri, Lock.LockMode.READ_LOCK)) {
 
-            } catch (final Throwable e) {
-                payload = new byte[0];
-                System.gc(); // recover from out of memory exception
-                LOG.error(e.getMessage(), e);
-                throw new IOException(String.format("Error while serializing binary document: %s", e.getMessage()), e);
+            if (lockedDocument == null) {
+                LOG.debug("Document {} does not exist anymore", uri);
+                return false;
             }
-        }
 
+            final DocumentImpl document = lockedDocument.getDocument();
 
-        return payload;
+            // Metadata could have been changed after the message was created
+            final Map<String, Object> md = msg.getMetadata();
+            retrieveDocMetadata(md, document.getMetadata());
+            retrieveFromDocument(md, document);
+            retrievePermission(md, document.getPermissions());
 
+            try (final Txn txn = brokerPool.getTransactionManager().beginTransaction()) {
+                serializePayload(broker, txn, document, msg, threshold, bufferThreshold, policy);
+                txn.commit();
+            }
+
+            return true;
+
+        } catch (final EXistException | PermissionDeniedException | TransactionException e) {
+            throw new IOException(String.format("Unable to read document %s: %s", uri, e.getMessage()), e);
+        }
     }
 
     public static void retrieveDocMetadata(final Map<String, Object> props, final DocumentMetadata docMetadata) {
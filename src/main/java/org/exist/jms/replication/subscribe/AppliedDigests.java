@@ -0,0 +1,190 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the digests of the documents that were applied last, per document path,
+ * together with the last modification time the document got. A replicated update is compared
+ * with the cached digest, the local document only needs to be serialized when its path is not
+ * in the cache.
+ * <p>
+ * The cache is a hint: the cached version only counts when the local document still has the
+ * cached modification time, so a document that was changed locally or a store that was rolled
+ * back is not mistaken for the cached version. Deleted, moved and copied documents and
+ * collections are forgotten.
+ *
+ * @author Dannes Wessels
+ */
+class AppliedDigests {
+
+    private final Map<String, Version> versions;
+    private final int maxSize;
+
+    private long nrHits = 0;
+    private long nrMisses = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize Maximum number of documents, the least recently used entries are evicted first.
+     */
+    AppliedDigests(final int maxSize) {
+        this.maxSize = maxSize;
+        this.versions = new LinkedHashMap<String, Version>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Version> eldest) {
+                return size() > AppliedDigests.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param path Path of the document
+     * @return The version that was applied last, or NULL when not known.
+     */
+    synchronized Version get(final String path) {
+        final Version version = versions.get(path);
+        if (version == null) {
+            nrMisses++;
+        } else {
+            nrHits++;
+        }
+        return version;
+    }
+
+    /**
+     * Register the version of a document that was applied or compared.
+     *
+     * @param path         Path of the document
+     * @param digest       Digest of the content
+     * @param lastModified Last modification time of the local document
+     */
+    synchronized void put(final String path, final String digest, final long lastModified) {
+        versions.put(path, new Version(digest, lastModified));
+    }
+
+    /**
+     * Forget the documents that are removed or replaced by an applied event.
+     *
+     * @param em The applied event
+     */
+    synchronized void forget(final eXistMessage em) {
+
+        if (em.getResourceType() == eXistMessage.ResourceType.DOCUMENT) {
+            switch (em.getResourceOperation()) {
+                case DELETE:
+                case MOVE:
+                case COPY:
+                    versions.remove(em.getResourcePath());
+                    if (em.getDestinationPath() != null) {
+                        versions.remove(em.getDestinationPath());
+                    }
+                    break;
+
+                default:
+                    // The version is registered when the document is stored
+                    break;
+            }
+
+        } else if (em.getResourceType() == eXistMessage.ResourceType.COLLECTION) {
+            switch (em.getResourceOperation()) {
+                case DELETE:
+                case MOVE:
+                case COPY:
+                    removeCollection(em.getResourcePath());
+                    removeCollection(em.getDestinationPath());
+                    break;
+
+                default:
+                    // Documents are not changed
+                    break;
+            }
+        }
+    }
+
+    private void removeCollection(final String path) {
+        if (path == null) {
+            return;
+        }
+
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        final Iterator<String> iterator = versions.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return versions.size();
+    }
+
+    /**
+     * Write statistics of the cache to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "appliedDigests", "appliedDigests", null);
+
+        writeValue(builder, "size", "" + versions.size());
+        writeValue(builder, "nrHits", "" + nrHits);
+        writeValue(builder, "nrMisses", "" + nrMisses);
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    /**
+     * Digest of a document and the last modification time of the local document with that content.
+     */
+    static class Version {
+
+        private final String digest;
+        private final long lastModified;
+
+        Version(final String digest, final long lastModified) {
+            this.digest = digest;
+            this.lastModified = lastModified;
+        }
+
+        String getDigest() {
+            return digest;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+    }
+}
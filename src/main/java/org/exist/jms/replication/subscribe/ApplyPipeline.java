@@ -0,0 +1,314 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Applies replicated changes in three stages, each on its own threads:
+ * <ol>
+ * <li>decode - the payload is decompressed by a pool of threads;</li>
+ * <li>prepare - owner, group and mime type are resolved by one thread;</li>
+ * <li>commit - the change is applied to the database by one thread, in the original order.</li>
+ * </ol>
+ * Only the commit stage uses the database and holds locks. The number of messages in the
+ * pipeline is limited; the listener waits when the pipeline is full, so messages stay at the
+ * broker. When decoding or preparing a message fails, the commit stage does the work itself.
+ * <p>
+ * The pipeline only applies messages, these are acknowledged by the listener.
+ *
+ * @author Dannes Wessels
+ */
+class ApplyPipeline {
+
+    private final static Logger LOG = LogManager.getLogger(ApplyPipeline.class);
+
+    private static final long POLL_INTERVAL = 500;
+
+    private final int capacity;
+    private final Stage decodeFunction;
+    private final Stage prepareFunction;
+    private final Commit commitFunction;
+    private final Report report;
+
+    private final ThreadPoolExecutor decoders;
+    private final ThreadPoolExecutor preparer;
+    private final BlockingQueue<Task> ordered;
+    private final Thread committer;
+
+    private final Object lock = new Object();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    private final AtomicLong nrSubmitted = new AtomicLong();
+    private final AtomicLong nrCommitted = new AtomicLong();
+    private final AtomicLong nrUnprepared = new AtomicLong();
+    private final AtomicLong nrWaits = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong decodeTime = new AtomicLong();
+    private final AtomicLong prepareTime = new AtomicLong();
+    private final AtomicLong commitTime = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param decoders        Number of threads that decode messages
+     * @param capacity        Maximum number of messages in the pipeline
+     * @param decodeFunction  Decodes the payload of a message
+     * @param prepareFunction Prepares a message to be applied, without using the database
+     * @param commitFunction  Applies a message to the database, or hands it over to the applier
+     * @param report          Report of the listener, for errors
+     */
+    ApplyPipeline(final int decoders, final int capacity, final Stage decodeFunction, final Stage prepareFunction,
+                  final Commit commitFunction, final Report report) {
+        this.capacity = Math.max(1, capacity);
+        this.decodeFunction = decodeFunction;
+        this.prepareFunction = prepareFunction;
+        this.commitFunction = commitFunction;
+        this.report = report;
+
+        // A message is in at most one of the queues, these never overflow
+        this.decoders = newExecutor(Math.max(1, decoders), this.capacity, "jms-replication-decode-");
+        this.preparer = newExecutor(1, this.capacity, "jms-replication-prepare-");
+        this.ordered = new ArrayBlockingQueue<>(this.capacity);
+
+        this.committer = new Thread(this::run, "jms-replication-commit");
+        committer.setDaemon(true);
+        committer.start();
+
+        LOG.info("Replicated changes are decoded by {} threads, at most {} changes are in the pipeline", decoders, capacity);
+    }
+
+    private static ThreadPoolExecutor newExecutor(final int threads, final int capacity, final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), r -> {
+            final Thread thread = new Thread(r, name + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add a message to the pipeline. Blocks when the pipeline is full.
+     *
+     * @param em The converted message
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    void submit(final eXistMessage em) throws InterruptedException {
+
+        synchronized (lock) {
+            if (queued.get() >= capacity) {
+                nrWaits.incrementAndGet();
+                final long start = System.currentTimeMillis();
+                while (queued.get() >= capacity && running) {
+                    lock.wait(POLL_INTERVAL);
+                }
+                waitTime.addAndGet(System.currentTimeMillis() - start);
+            }
+
+            if (!running) {
+                throw new MessageReceiveException("Replication pipeline is stopped", em);
+            }
+
+            queued.incrementAndGet();
+        }
+
+        nrSubmitted.incrementAndGet();
+        final CompletableFuture<Void> future = CompletableFuture
+                .runAsync(() -> execute(decodeFunction, em, decodeTime), decoders)
+                .thenRunAsync(() -> execute(prepareFunction, em, prepareTime), preparer);
+
+        ordered.put(new Task(em, future));
+    }
+
+    private static void execute(final Stage stage, final eXistMessage em, final AtomicLong time) {
+        final long start = System.currentTimeMillis();
+        try {
+            stage.accept(em);
+        } catch (final Exception ex) {
+            throw new CompletionException(ex);
+        } finally {
+            time.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    private void run() {
+        while (running || !ordered.isEmpty()) {
+            final Task task;
+            try {
+                task = ordered.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (task != null) {
+                commit(task);
+            }
+        }
+    }
+
+    private void commit(final Task task) {
+
+        try {
+            task.future.join();
+
+        } catch (final CompletionException | CancellationException ex) {
+            nrUnprepared.incrementAndGet();
+            final Throwable cause = (ex.getCause() == null) ? ex : ex.getCause();
+            LOG.debug("Unable to prepare {}, it is prepared while it is applied: {}", task.em.getReport(), cause.getMessage());
+        }
+
+        synchronized (lock) {
+            queued.decrementAndGet();
+            lock.notifyAll();
+        }
+
+        final long start = System.currentTimeMillis();
+        try {
+            commitFunction.accept(task.em);
+            nrCommitted.incrementAndGet();
+
+        } catch (final Throwable t) {
+            report.addListenerError(t);
+            LOG.error("Could not apply {}: {}", task.em.getReport(), t.getMessage(), t);
+
+        } finally {
+            commitTime.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Stop the pipeline after the messages in it are applied. Messages that are not applied
+     * in time are discarded, these will be redelivered.
+     *
+     * @param discardFunction Releases a message that is not applied
+     */
+    void shutdown(final Consumer<eXistMessage> discardFunction) {
+        running = false;
+
+        try {
+            committer.join(POLL_INTERVAL * 10);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (committer.isAlive()) {
+            committer.interrupt();
+        }
+
+        // Decoded messages are handed to the preparer, stop it last
+        try {
+            decoders.shutdown();
+            decoders.awaitTermination(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            preparer.shutdown();
+            preparer.awaitTermination(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        Task task;
+        int discarded = 0;
+        while ((task = ordered.poll()) != null) {
+            discardFunction.accept(task.em);
+            discarded++;
+        }
+        if (discarded > 0) {
+            LOG.info("{} received messages are not applied, these will be redelivered", discarded);
+        }
+
+        LOG.info("Replication pipeline is stopped");
+    }
+
+    /**
+     * Write statistics of the pipeline to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "pipeline", "pipeline", null);
+
+        writeValue(builder, "decoders", "" + decoders.getCorePoolSize());
+        writeValue(builder, "capacity", "" + capacity);
+        writeValue(builder, "decodeQueue", "" + decoders.getQueue().size());
+        writeValue(builder, "prepareQueue", "" + preparer.getQueue().size());
+        writeValue(builder, "commitQueue", "" + ordered.size());
+        writeValue(builder, "nrSubmitted", "" + nrSubmitted.get());
+        writeValue(builder, "nrCommitted", "" + nrCommitted.get());
+        writeValue(builder, "nrUnprepared", "" + nrUnprepared.get());
+        writeValue(builder, "nrWaits", "" + nrWaits.get());
+        writeValue(builder, "waitTime", "" + waitTime.get());
+        writeValue(builder, "decodeTime", "" + decodeTime.get());
+        writeValue(builder, "prepareTime", "" + prepareTime.get());
+        writeValue(builder, "commitTime", "" + commitTime.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    private static class Task {
+
+        private final eXistMessage em;
+        private final CompletableFuture<Void> future;
+
+        Task(final eXistMessage em, final CompletableFuture<Void> future) {
+            this.em = em;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Decodes or prepares a message.
+     */
+    @FunctionalInterface
+    interface Stage {
+        void accept(eXistMessage em) throws Exception;
+    }
+
+    /**
+     * Applies a message to the database.
+     */
+    @FunctionalInterface
+    interface Commit {
+        void accept(eXistMessage em) throws Exception;
+    }
+}
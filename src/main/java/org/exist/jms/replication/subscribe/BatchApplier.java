@@ -0,0 +1,242 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Applies replicated changes in groups, each group in one database transaction.
+ * <p>
+ * Messages are collected until the batch is full or the oldest message has waited for the
+ * batch time. Collection operations can affect many documents and are applied in a transaction
+ * of their own. The batches are only applied, the messages are acknowledged by the listener.
+ * <p>
+ * When a batch fails, the transaction is aborted. An aborted transaction is not rolled back
+ * while the database runs, the changes made before the failure remain. The messages of the
+ * batch are therefore applied again one at a time, each in its own transaction; applying a
+ * replicated change again stores the same document or finds the resource already removed or
+ * moved. The failing message is reported and parked, as it would be when messages are applied
+ * one at a time.
+ *
+ * @author Dannes Wessels
+ */
+class BatchApplier {
+
+    private final static Logger LOG = LogManager.getLogger(BatchApplier.class);
+
+    private final int batchSize;
+    private final long batchTime;
+    private final Consumer<List<eXistMessage>> applyFunction;
+    private final BiConsumer<eXistMessage, Throwable> failureFunction;
+    private final Consumer<eXistMessage> completedFunction;
+    private final Report report;
+    private final ScheduledExecutorService timer;
+
+    private final List<eXistMessage> pending = new ArrayList<>();
+    private long firstReceived = 0;
+
+    private final AtomicLong nrBatches = new AtomicLong();
+    private final AtomicLong nrApplied = new AtomicLong();
+    private final AtomicLong nrFailed = new AtomicLong();
+    private final AtomicLong nrRetried = new AtomicLong();
+    private final AtomicLong processingTime = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param batchSize         Maximum number of messages in one transaction
+     * @param batchTime         Maximum time in milliseconds that a message waits to be applied
+     * @param applyFunction     Applies messages to the database in one transaction
+     * @param failureFunction   Parks a message that could not be applied, before its payload is removed
+     * @param completedFunction Releases a message that is applied, parked or discarded
+     * @param report            Report of the listener, for errors
+     */
+    BatchApplier(final int batchSize, final long batchTime, final Consumer<List<eXistMessage>> applyFunction,
+                 final BiConsumer<eXistMessage, Throwable> failureFunction,
+                 final Consumer<eXistMessage> completedFunction, final Report report) {
+        this.batchSize = batchSize;
+        this.batchTime = batchTime;
+        this.applyFunction = applyFunction;
+        this.failureFunction = failureFunction;
+        this.completedFunction = completedFunction;
+        this.report = report;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "jms-replication-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final long interval = Math.max(10, batchTime / 4);
+        timer.scheduleWithFixedDelay(this::flushIfDue, interval, interval, TimeUnit.MILLISECONDS);
+
+        LOG.info("Replicated changes are applied in batches of {} messages or {} ms", batchSize, batchTime);
+    }
+
+    /**
+     * Add a message to the batch. The batch is applied when it is full.
+     *
+     * @param em The converted message
+     */
+    synchronized void add(final eXistMessage em) {
+
+        final boolean isCollection = em.getResourceType() == eXistMessage.ResourceType.COLLECTION;
+        if (isCollection) {
+            flush();
+        }
+
+        if (pending.isEmpty()) {
+            firstReceived = System.currentTimeMillis();
+        }
+        pending.add(em);
+
+        if (isCollection || pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private synchronized void flushIfDue() {
+        if (!pending.isEmpty() && System.currentTimeMillis() - firstReceived >= batchTime) {
+            flush();
+        }
+    }
+
+    /**
+     * Apply the pending messages, e.g. before the listener acknowledges the received messages.
+     */
+    synchronized void flush() {
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        try {
+            applyIsolating(pending);
+            nrBatches.incrementAndGet();
+
+        } finally {
+            pending.forEach(completedFunction);
+            pending.clear();
+            processingTime.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Apply messages in one transaction. When this fails, apply them one at a time.
+     */
+    private void applyIsolating(final List<eXistMessage> messages) {
+        try {
+            applyFunction.accept(messages);
+            nrApplied.addAndGet(messages.size());
+
+        } catch (final Throwable t) {
+
+            if (messages.size() == 1) {
+                failed(messages.get(0), t);
+                return;
+            }
+
+            nrRetried.incrementAndGet();
+            LOG.debug("Batch of {} messages failed, applying them one at a time: {}", messages.size(), t.getMessage());
+
+            for (final eXistMessage em : messages) {
+                try {
+                    applyFunction.accept(Collections.singletonList(em));
+                    nrApplied.incrementAndGet();
+
+                } catch (final Throwable ex) {
+                    failed(em, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Report and park a message that could not be applied.
+     */
+    private void failed(final eXistMessage em, final Throwable t) {
+        nrFailed.incrementAndGet();
+        report.addListenerError(t);
+        LOG.error("Could not apply {}: {}", em.getReport(), t.getMessage(), t);
+        try {
+            failureFunction.accept(em, t);
+        } catch (final Throwable ex) {
+            LOG.error("Message is lost: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Stop applying batches. Pending messages are not applied and not acknowledged, they are
+     * redelivered when the subscription is resumed.
+     */
+    synchronized void shutdown() {
+        timer.shutdownNow();
+
+        if (!pending.isEmpty()) {
+            LOG.info("{} received messages are not applied, these will be redelivered", pending.size());
+            pending.forEach(completedFunction);
+            pending.clear();
+        }
+    }
+
+    /**
+     * Write statistics of the batches to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "batch", "batch", null);
+
+        writeValue(builder, "batchSize", "" + batchSize);
+        writeValue(builder, "batchTime", "" + batchTime);
+        synchronized (this) {
+            writeValue(builder, "pending", "" + pending.size());
+        }
+        writeValue(builder, "nrBatches", "" + nrBatches.get());
+        writeValue(builder, "nrApplied", "" + nrApplied.get());
+        writeValue(builder, "nrFailed", "" + nrFailed.get());
+        writeValue(builder, "nrRetried", "" + nrRetried.get());
+        writeValue(builder, "processingTime", "" + processingTime.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.eXistMessage;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of received messages, and the size of their payloads, that are not yet
+ * applied. The listener waits before it copies the body of the next message when the window is
+ * full, so the consumer stops taking messages and these stay at the broker.
+ * <p>
+ * The messages that the broker sends in advance are held by the JMS client, outside the window;
+ * these are limited by the prefetch of the consumer. ActiveMQ sets the prefetch when the consumer
+ * is created, it cannot be changed while the consumer is open, so it is not adapted.
+ * <p>
+ * In adaptive mode the window is halved when applying a message takes longer than the target
+ * latency or when the payloads in the window grow large, and grows by one message when
+ * messages are applied quickly.
+ *
+ * @author Dannes Wessels
+ */
+class FlowController {
+
+    private final static Logger LOG = LogManager.getLogger(FlowController.class);
+
+    private static final long POLL_INTERVAL = 500;
+    private static final double SMOOTHING = 0.2;
+
+    private final int minWindow;
+    private final int maxWindow;
+    private final long maxBytes;
+    private final boolean adaptive;
+    private final long targetLatency;
+
+    private final Map<Object, Long> inFlight = new IdentityHashMap<>();
+    private long inFlightBytes = 0;
+    private int window;
+
+    private double latency = 0;
+    private long lastDecrease = 0;
+
+    private long nrWaits = 0;
+    private long waitTime = 0;
+    private long nrIncreases = 0;
+    private long nrDecreases = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param minWindow     Smallest window in adaptive mode, e.g. the size of a batch
+     * @param maxWindow     Maximum number of messages that are not yet applied
+     * @param maxBytes      Maximum size of the payloads that are not yet applied
+     * @param adaptive      Adapt the window to the time it takes to apply a message
+     * @param targetLatency Time in milliseconds that applying a message should take at most
+     */
+    FlowController(final int minWindow, final int maxWindow, final long maxBytes, final boolean adaptive,
+                   final long targetLatency) {
+        this.maxWindow = Math.max(1, maxWindow);
+        this.minWindow = Math.min(Math.max(1, minWindow), this.maxWindow);
+        this.maxBytes = maxBytes;
+        this.adaptive = adaptive;
+        this.targetLatency = targetLatency;
+        this.window = this.maxWindow;
+    }
+
+    /**
+     * Wait until the message fits in the window. A single message always fits, regardless of
+     * its size.
+     *
+     * @param em The received message
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    synchronized void acquire(final eXistMessage em) throws InterruptedException {
+        acquire(em, getPayloadSize(em));
+    }
+
+    /**
+     * Wait until a message that is not yet converted fits in the window. A single message always
+     * fits, regardless of its size.
+     *
+     * @param message The received message, e.g. the JMS message before its body is copied
+     * @param size    Size of the body of the message
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    synchronized void acquire(final Object message, final long size) throws InterruptedException {
+
+        if (isFull(size)) {
+            nrWaits++;
+            final long start = System.currentTimeMillis();
+            while (isFull(size)) {
+                wait(POLL_INTERVAL);
+            }
+            waitTime += System.currentTimeMillis() - start;
+        }
+
+        inFlight.put(message, size);
+        inFlightBytes += size;
+    }
+
+    /**
+     * Replace a message in the window by its converted message, with the size of its payload.
+     *
+     * @param message The received message
+     * @param em      The converted message, released when it is applied
+     */
+    synchronized void convert(final Object message, final eXistMessage em) {
+        final Long size = inFlight.remove(message);
+        if (size != null) {
+            inFlightBytes -= size;
+        }
+
+        final long payloadSize = getPayloadSize(em);
+        inFlight.put(em, payloadSize);
+        inFlightBytes += payloadSize;
+        notifyAll();
+    }
+
+    private static long getPayloadSize(final eXistMessage em) {
+        try {
+            return em.getPayloadSize();
+        } catch (final IOException ex) {
+            return 0;
+        }
+    }
+
+    private boolean isFull(final long size) {
+        return !inFlight.isEmpty() && (inFlight.size() >= window || inFlightBytes + size > maxBytes);
+    }
+
+    /**
+     * Remove a message from the window, when it is applied, parked or discarded.
+     *
+     * @param message The received or converted message
+     */
+    synchronized void release(final Object message) {
+        final Long size = inFlight.remove(message);
+        if (size != null) {
+            inFlightBytes -= size;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return TRUE when all received messages are applied, parked or discarded
+     */
+    synchronized boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    /**
+     * Wait until all received messages are applied, parked or discarded.
+     *
+     * @param timeout Maximum time to wait in milliseconds
+     * @return TRUE when the window is empty, FALSE when the time is up
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    synchronized boolean awaitEmpty(final long timeout) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        while (!inFlight.isEmpty()) {
+            final long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(Math.min(POLL_INTERVAL, remaining));
+        }
+        return true;
+    }
+
+    /**
+     * Register the time it took to apply messages, to adapt the window.
+     *
+     * @param count    Number of applied messages
+     * @param duration Time in milliseconds it took to apply them
+     */
+    synchronized void applied(final int count, final long duration) {
+        if (count == 0) {
+            return;
+        }
+
+        final double perMessage = (double) duration / count;
+        latency = (latency == 0) ? perMessage : (1 - SMOOTHING) * latency + SMOOTHING * perMessage;
+
+        if (!adaptive) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (latency > targetLatency || inFlightBytes > maxBytes / 2) {
+            // Decrease at most once per target latency, the effect is only visible after a while
+            if (window > minWindow && now - lastDecrease >= targetLatency) {
+                window = Math.max(minWindow, window / 2);
+                lastDecrease = now;
+                nrDecreases++;
+                LOG.debug("Window decreased to {} messages, latency {} ms, {} bytes", window, (long) latency, inFlightBytes);
+            }
+
+        } else if (latency < targetLatency / 2.0 && window < maxWindow) {
+            window++;
+            nrIncreases++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Write statistics of the window to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "flowControl", "flowControl", null);
+
+        writeValue(builder, "adaptive", "" + adaptive);
+        writeValue(builder, "window", "" + window);
+        writeValue(builder, "minWindow", "" + minWindow);
+        writeValue(builder, "maxWindow", "" + maxWindow);
+        writeValue(builder, "maxBytes", "" + maxBytes);
+        writeValue(builder, "targetLatency", "" + targetLatency);
+        writeValue(builder, "inFlight", "" + inFlight.size());
+        writeValue(builder, "inFlightBytes", "" + inFlightBytes);
+        writeValue(builder, "latency", "" + Math.round(latency));
+        writeValue(builder, "nrWaits", "" + nrWaits);
+        writeValue(builder, "waitTime", "" + waitTime);
+        writeValue(builder, "nrIncreases", "" + nrIncreases);
+        writeValue(builder, "nrDecreases", "" + nrDecreases);
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+}
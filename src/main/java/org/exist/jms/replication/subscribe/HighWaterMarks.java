@@ -0,0 +1,211 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sequence number of the last applied event per resource path. An event with a lower sequence
+ * number than the last applied event of the same path and the same sending instance is stale:
+ * it was delayed, redelivered or received out of order, and would overwrite a newer version.
+ * <p>
+ * A collection that is created, deleted, moved or copied replaces everything inside it, so its
+ * mark also applies to the resources below it: an older event of e.g. a document in a deleted
+ * collection is stale too, applying it would recreate the document and the collection.
+ * <p>
+ * Sequence numbers of different instances are not compared. The number of paths is bounded,
+ * the least recently used paths are forgotten.
+ *
+ * @author Dannes Wessels
+ */
+class HighWaterMarks {
+
+    private final int maxSize;
+    private final Map<String, Mark> marks;
+    private final Map<String, Mark> subtreeMarks;
+
+    private long nrStaleSequence = 0;
+    private long nrStaleModified = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize Maximum number of paths
+     */
+    HighWaterMarks(final int maxSize) {
+        this.maxSize = maxSize;
+        this.marks = createMarks();
+        this.subtreeMarks = createMarks();
+    }
+
+    private Map<String, Mark> createMarks() {
+        return new LinkedHashMap<String, Mark>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Mark> eldest) {
+                return size() > HighWaterMarks.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Check if a newer event of the same path, or a newer event that replaced a collection
+     * containing the path, has been applied.
+     *
+     * @param em The received event
+     * @return TRUE when the event is stale
+     */
+    synchronized boolean isStale(final eXistMessage em) {
+
+        final Object instance = em.getMetadata().get(Constants.EXIST_INSTANCE_ID);
+        final Object sequence = em.getMetadata().get(MessageHelper.EXIST_MESSAGE_SEQUENCE);
+        if (instance == null || !(sequence instanceof Long) || em.getResourcePath() == null) {
+            // Sent by an older version
+            return false;
+        }
+
+        final String path = em.getResourcePath();
+        boolean stale = isNewer(marks.get(path), instance, (Long) sequence);
+
+        // The collections containing the path
+        int slash = path.lastIndexOf('/');
+        while (!stale && slash > 0) {
+            final String parent = path.substring(0, slash);
+            stale = isNewer(subtreeMarks.get(parent), instance, (Long) sequence);
+            slash = parent.lastIndexOf('/');
+        }
+
+        if (stale) {
+            nrStaleSequence++;
+        }
+        return stale;
+    }
+
+    private static boolean isNewer(final Mark mark, final Object instance, final long sequence) {
+        return mark != null && mark.instance.equals(instance) && mark.sequence > sequence;
+    }
+
+    /**
+     * Register an applied event, for its source and destination path.
+     *
+     * @param em The applied event
+     */
+    synchronized void applied(final eXistMessage em) {
+
+        final Object instance = em.getMetadata().get(Constants.EXIST_INSTANCE_ID);
+        final Object sequence = em.getMetadata().get(MessageHelper.EXIST_MESSAGE_SEQUENCE);
+        if (instance == null || !(sequence instanceof Long)) {
+            return;
+        }
+
+        final Mark mark = new Mark(instance.toString(), (Long) sequence);
+        if (em.getResourcePath() != null) {
+            marks.merge(em.getResourcePath(), mark, Mark::max);
+        }
+        if (em.getDestinationPath() != null) {
+            marks.merge(em.getDestinationPath(), mark, Mark::max);
+        }
+
+        if (em.getResourceType() != eXistMessage.ResourceType.COLLECTION) {
+            return;
+        }
+
+        switch (em.getResourceOperation()) {
+            case CREATE:
+            case DELETE:
+                if (em.getResourcePath() != null) {
+                    subtreeMarks.merge(em.getResourcePath(), mark, Mark::max);
+                }
+                break;
+
+            case MOVE:
+                if (em.getResourcePath() != null) {
+                    subtreeMarks.merge(em.getResourcePath(), mark, Mark::max);
+                }
+                if (em.getDestinationPath() != null) {
+                    subtreeMarks.merge(em.getDestinationPath(), mark, Mark::max);
+                }
+                break;
+
+            case COPY:
+                if (em.getDestinationPath() != null) {
+                    subtreeMarks.merge(em.getDestinationPath(), mark, Mark::max);
+                }
+                break;
+
+            default:
+                // Metadata of the collection does not replace its content
+                break;
+        }
+    }
+
+    /**
+     * Count an event that is older than the local document.
+     */
+    synchronized void staleModified() {
+        nrStaleModified++;
+    }
+
+    /**
+     * Write statistics to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "staleEvents", "staleEvents", null);
+
+        writeValue(builder, "paths", "" + marks.size());
+        writeValue(builder, "collections", "" + subtreeMarks.size());
+        writeValue(builder, "nrStaleSequence", "" + nrStaleSequence);
+        writeValue(builder, "nrStaleModified", "" + nrStaleModified);
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    private static class Mark {
+
+        private final String instance;
+        private final long sequence;
+
+        Mark(final String instance, final long sequence) {
+            this.instance = instance;
+            this.sequence = sequence;
+        }
+
+        /**
+         * The mark of a different instance replaces the current mark.
+         */
+        static Mark max(final Mark current, final Mark applied) {
+            return (current.instance.equals(applied.instance) && current.sequence > applied.sequence) ? current : applied;
+        }
+    }
+}
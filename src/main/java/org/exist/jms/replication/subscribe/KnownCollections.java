@@ -0,0 +1,101 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collections that are known to exist in the database, so that documents can be stored
+ * without checking or creating their collection first.
+ * <p>
+ * The cache is a hint: a collection can be removed locally after it was added. A collection
+ * that cannot be opened must be removed from the cache and created again.
+ *
+ * @author Dannes Wessels
+ */
+class KnownCollections {
+
+    private static final int MAX_SIZE = 10000;
+
+    private final Set<String> collections = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong nrHits = new AtomicLong();
+    private final AtomicLong nrMisses = new AtomicLong();
+
+    /**
+     * @param uri Path of the collection
+     * @return TRUE when the collection was seen before.
+     */
+    boolean contains(final XmldbURI uri) {
+        final boolean known = collections.contains(uri.getCollectionPath());
+        (known ? nrHits : nrMisses).incrementAndGet();
+        return known;
+    }
+
+    /**
+     * Register a collection that exists. When the cache is full it is cleared.
+     *
+     * @param uri Path of the collection
+     */
+    void add(final XmldbURI uri) {
+        if (collections.size() >= MAX_SIZE) {
+            collections.clear();
+        }
+        collections.add(uri.getCollectionPath());
+    }
+
+    /**
+     * Remove a collection and its sub collections, e.g. when it is deleted or moved.
+     *
+     * @param uri Path of the collection
+     */
+    void invalidate(final XmldbURI uri) {
+        final String path = uri.getCollectionPath();
+        final String prefix = path + "/";
+        collections.removeIf(c -> c.equals(path) || c.startsWith(prefix));
+    }
+
+    /**
+     * Write statistics of the cache to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "knownCollections", "knownCollections", null);
+
+        writeValue(builder, "size", "" + collections.size());
+        writeValue(builder, "nrHits", "" + nrHits.get());
+        writeValue(builder, "nrMisses", "" + nrMisses.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of the collection write locks that are taken to store replicated documents:
+ * how long it took to get the lock and how long it was held, per stored document.
+ *
+ * @author Dannes Wessels
+ */
+class LockTimes {
+
+    private final static Logger LOG = LogManager.getLogger(LockTimes.class);
+
+    private long nrLocked = 0;
+    private long waitTime = 0;
+    private long holdTime = 0;
+    private long lastHoldTime = 0;
+    private long maxHoldTime = 0;
+    private XmldbURI maxHoldCollection = null;
+
+    /**
+     * Register a write lock.
+     *
+     * @param collection The locked collection
+     * @param wait       Time in nanoseconds to open the collection, including waiting for the lock
+     * @param hold       Time in nanoseconds the lock was held
+     */
+    synchronized void add(final XmldbURI collection, final long wait, final long hold) {
+        nrLocked++;
+        waitTime += wait;
+        holdTime += hold;
+        lastHoldTime = hold;
+        if (hold > maxHoldTime) {
+            maxHoldTime = hold;
+            maxHoldCollection = collection;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Write lock of {} held for {} ms, {} ms to get it", collection, toMillis(hold), toMillis(wait));
+        }
+    }
+
+    private static String toMillis(final long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Write statistics of the locks to report. Times are in milliseconds.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "locks", "locks", null);
+
+        writeValue(builder, "nrLocked", "" + nrLocked);
+        writeValue(builder, "waitTime", toMillis(waitTime));
+        writeValue(builder, "holdTime", toMillis(holdTime));
+        writeValue(builder, "averageWaitTime", toMillis(nrLocked == 0 ? 0 : waitTime / nrLocked));
+        writeValue(builder, "averageHoldTime", toMillis(nrLocked == 0 ? 0 : holdTime / nrLocked));
+        writeValue(builder, "lastHoldTime", toMillis(lastHoldTime));
+        writeValue(builder, "maxHoldTime", toMillis(maxHoldTime));
+        if (maxHoldCollection != null) {
+            writeValue(builder, "maxHoldCollection", maxHoldCollection.toString());
+        }
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+}
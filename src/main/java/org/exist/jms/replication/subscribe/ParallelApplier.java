@@ -0,0 +1,245 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Applies replicated changes with a number of worker threads.
+ * <p>
+ * Document changes are distributed over the workers by document path, so changes of one
+ * document are applied in the original order while changes of unrelated documents are applied
+ * concurrently. Changes that affect more than one path (collection operations, moving and
+ * copying documents) are barriers: they are applied when all earlier changes are applied, and
+ * before any later change.
+ * <p>
+ * The workers only apply messages, these are acknowledged by the listener.
+ *
+ * @author Dannes Wessels
+ */
+class ParallelApplier {
+
+    private final static Logger LOG = LogManager.getLogger(ParallelApplier.class);
+
+    private static final int QUEUE_SIZE = 64;
+    private static final long POLL_INTERVAL = 500;
+
+    private final Consumer<eXistMessage> applyFunction;
+    private final Report report;
+    private final List<Worker> workers = new ArrayList<>();
+
+    private final Object lock = new Object();
+    private int inFlight = 0;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong nrBarriers = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param concurrency   Number of worker threads
+     * @param applyFunction Applies a message to the database
+     * @param report        Report of the listener, for errors
+     */
+    ParallelApplier(final int concurrency, final Consumer<eXistMessage> applyFunction, final Report report) {
+        this.applyFunction = applyFunction;
+        this.report = report;
+
+        for (int i = 0; i < concurrency; i++) {
+            workers.add(new Worker(i));
+        }
+        workers.forEach(w -> w.thread.start());
+
+        LOG.info("Started {} replication apply threads", concurrency);
+    }
+
+    /**
+     * Apply a message. Barriers are applied by the calling thread, other messages are
+     * handed over to a worker. Blocks when the queue of the worker is full.
+     *
+     * @param em The converted message
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    void dispatch(final eXistMessage em) throws InterruptedException {
+
+        if (isBarrier(em)) {
+            awaitIdle();
+            nrBarriers.incrementAndGet();
+
+            applyFunction.accept(em);
+            return;
+        }
+
+        final Worker worker = workers.get(Math.floorMod(em.getResourcePath().hashCode(), workers.size()));
+
+        synchronized (lock) {
+            inFlight++;
+        }
+        worker.queue.put(em);
+    }
+
+    private static boolean isBarrier(final eXistMessage em) {
+        if (em.getResourceType() != eXistMessage.ResourceType.DOCUMENT || em.getResourcePath() == null) {
+            return true;
+        }
+        return em.getResourceOperation() == eXistMessage.ResourceOperation.MOVE
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.COPY;
+    }
+
+    /**
+     * Wait until all dispatched messages are applied.
+     */
+    private void awaitIdle() throws InterruptedException {
+        synchronized (lock) {
+            while (inFlight > 0) {
+                lock.wait(POLL_INTERVAL);
+            }
+        }
+    }
+
+    private void completed() {
+        synchronized (lock) {
+            inFlight--;
+            if (inFlight == 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop the workers after the queued messages are applied.
+     */
+    void shutdown() {
+        running = false;
+
+        for (final Worker worker : workers) {
+            try {
+                worker.thread.join(POLL_INTERVAL * 10);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (worker.thread.isAlive()) {
+                worker.thread.interrupt();
+            }
+        }
+
+        LOG.info("Replication apply threads are stopped");
+    }
+
+    /**
+     * Write statistics of the workers to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "apply", "apply", null);
+
+        writeValue(builder, "concurrency", "" + workers.size());
+        writeValue(builder, "nrBarriers", "" + nrBarriers.get());
+
+        for (final Worker worker : workers) {
+            builder.startElement("", "worker", "worker", null);
+            builder.addAttribute(new QName("id", null, null), "" + worker.id);
+
+            writeValue(builder, "queueDepth", "" + worker.queue.size());
+            writeValue(builder, "nrApplied", "" + worker.nrApplied.get());
+            writeValue(builder, "nrFailed", "" + worker.nrFailed.get());
+            writeValue(builder, "processingTime", "" + worker.processingTime.get());
+
+            builder.endElement();
+        }
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    private class Worker implements Runnable {
+
+        private final int id;
+        private final BlockingQueue<eXistMessage> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final Thread thread;
+
+        private final AtomicLong nrApplied = new AtomicLong();
+        private final AtomicLong nrFailed = new AtomicLong();
+        private final AtomicLong processingTime = new AtomicLong();
+
+        Worker(final int id) {
+            this.id = id;
+            this.thread = new Thread(this, "jms-replication-apply-" + id);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+
+            while (running || !queue.isEmpty()) {
+                final eXistMessage em;
+                try {
+                    em = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                if (em != null) {
+                    apply(em);
+                }
+            }
+        }
+
+        private void apply(final eXistMessage em) {
+            final long start = System.currentTimeMillis();
+            try {
+                applyFunction.accept(em);
+                nrApplied.incrementAndGet();
+
+            } catch (final Throwable t) {
+                nrFailed.incrementAndGet();
+                report.addListenerError(t);
+                LOG.error("Could not apply {}: {}", em.getReport(), t.getMessage(), t);
+
+            } finally {
+                processingTime.addAndGet(System.currentTimeMillis() - start);
+                completed();
+            }
+        }
+    }
+}
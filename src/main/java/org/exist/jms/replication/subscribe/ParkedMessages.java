@@ -0,0 +1,408 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.shared.eXistMessage;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Local dead-letter store for received messages that could not be applied. Each message is
+ * stored with its payload in its own file, so it can be applied again after the message
+ * has been acknowledged. The message file is synced to disk before it is acknowledged. The
+ * error report of the last attempt is kept in a separate small file that is replaced after
+ * each attempt.
+ *
+ * @author Dannes Wessels
+ */
+class ParkedMessages {
+
+    private final static Logger LOG = LogManager.getLogger(ParkedMessages.class);
+
+    private static final String MESSAGE_EXTENSION = ".msg";
+    private static final String ERROR_EXTENSION = ".err";
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_LONG = 2;
+
+    private static final int MAX_ERROR_LENGTH = 4096;
+
+    private final Path directory;
+    private long lastId = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param directory Location of the parked messages, created when the first message is parked
+     */
+    ParkedMessages(final Path directory) {
+        this.directory = directory;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Read the entries left behind by a previous run.
+     *
+     * @return The entries, ordered by identifier
+     * @throws IOException The directory could not be read.
+     */
+    synchronized List<Entry> load() throws IOException {
+
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+
+        final List<Long> ids = new ArrayList<>();
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(MESSAGE_EXTENSION))
+                    .forEach(name -> {
+                        try {
+                            ids.add(Long.parseLong(name.substring(0, name.length() - MESSAGE_EXTENSION.length())));
+                        } catch (final NumberFormatException ex) {
+                            LOG.warn("Ignoring unknown file {}", name);
+                        }
+                    });
+        }
+        ids.sort(Long::compare);
+
+        final List<Entry> entries = new ArrayList<>();
+        for (final long id : ids) {
+            lastId = Math.max(lastId, id);
+            try {
+                entries.add(readEntry(id));
+            } catch (final IOException ex) {
+                LOG.error("Unable to read parked message {}: {}", id, ex.getMessage());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Store a message together with its payload.
+     *
+     * @param em The message that could not be applied
+     * @param t  The reason
+     * @return The entry of the stored message
+     * @throws IOException The message could not be stored.
+     */
+    synchronized Entry park(final eXistMessage em, final Throwable t) throws IOException {
+
+        Files.createDirectories(directory);
+
+        final long id = ++lastId;
+        final Path file = getMessageFile(id);
+
+        try (final FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+            dos.writeUTF(em.getResourceType().name());
+            dos.writeUTF(em.getResourceOperation().name());
+            writeOptional(dos, em.getResourcePath());
+            writeOptional(dos, em.getDestinationPath());
+            writeOptional(dos, em.getMessageId());
+
+            final Map<String, Object> metadata = em.getMetadata();
+            dos.writeInt(metadata.size());
+            for (final Map.Entry<String, Object> entry : metadata.entrySet()) {
+                dos.writeUTF(entry.getKey());
+
+                final Object value = entry.getValue();
+                if (value instanceof Integer) {
+                    dos.writeByte(TYPE_INTEGER);
+                    dos.writeInt((Integer) value);
+
+                } else if (value instanceof Long) {
+                    dos.writeByte(TYPE_LONG);
+                    dos.writeLong((Long) value);
+
+                } else {
+                    dos.writeByte(TYPE_STRING);
+                    dos.writeUTF(String.valueOf(value));
+                }
+            }
+
+            // The payload, as received, is the remainder of the file
+            try (final InputStream is = ReplicationJmsListener.openPayload(em)) {
+                IOUtils.copy(is, dos);
+            }
+
+            // The message is acknowledged when this method returns
+            dos.flush();
+            channel.force(true);
+
+        } catch (final IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        syncDirectory();
+
+        final Entry entry = new Entry(id, em.getMessageId(), em.getReport(), System.currentTimeMillis());
+        failed(entry, t);
+        return entry;
+    }
+
+    /**
+     * Register a failed attempt of an entry.
+     *
+     * @param entry The entry
+     * @param t     The reason
+     */
+    synchronized void failed(final Entry entry, final Throwable t) {
+        entry.attempts++;
+        entry.lastFailure = System.currentTimeMillis();
+        entry.error = StringUtils.abbreviate(String.valueOf(t.getMessage()), MAX_ERROR_LENGTH);
+
+        try (final DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(getErrorFile(entry.id))))) {
+            dos.writeInt(entry.attempts);
+            dos.writeLong(entry.firstFailure);
+            dos.writeLong(entry.lastFailure);
+            dos.writeUTF(entry.error);
+
+        } catch (final IOException ex) {
+            LOG.warn("Unable to write error report of parked message {}: {}", entry.id, ex.getMessage());
+        }
+    }
+
+    /**
+     * Read a stored message. The payload is copied to a temporary file, which is removed
+     * with {@link eXistMessage#deletePayloadFile()}.
+     *
+     * @param entry The entry of the message
+     * @return The message
+     * @throws IOException The message could not be read.
+     */
+    eXistMessage read(final Entry entry) throws IOException {
+
+        final eXistMessage em = new eXistMessage();
+        try (final DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(getMessageFile(entry.id))))) {
+
+            readHeaders(dis, em);
+
+            final Path payloadFile = Files.createTempFile("jms-parked-", ".payload");
+            try (final OutputStream os = Files.newOutputStream(payloadFile)) {
+                IOUtils.copy(dis, os);
+            } catch (final IOException ex) {
+                Files.deleteIfExists(payloadFile);
+                throw ex;
+            }
+            em.setPayloadFile(payloadFile);
+        }
+
+        return em;
+    }
+
+    /**
+     * Remove a stored message.
+     *
+     * @param entry The entry of the message
+     */
+    void remove(final Entry entry) {
+        try {
+            Files.deleteIfExists(getMessageFile(entry.id));
+            Files.deleteIfExists(getErrorFile(entry.id));
+        } catch (final IOException ex) {
+            LOG.error("Unable to remove parked message {}: {}", entry.id, ex.getMessage());
+        }
+    }
+
+    private Entry readEntry(final long id) throws IOException {
+
+        final eXistMessage em = new eXistMessage();
+        try (final DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(getMessageFile(id))))) {
+            readHeaders(dis, em);
+        }
+
+        final Entry entry = new Entry(id, em.getMessageId(), em.getReport(), 0);
+
+        final Path errorFile = getErrorFile(id);
+        if (Files.exists(errorFile)) {
+            try (final DataInputStream dis = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(errorFile)))) {
+                entry.attempts = dis.readInt();
+                entry.firstFailure = dis.readLong();
+                entry.lastFailure = dis.readLong();
+                entry.error = dis.readUTF();
+            }
+        }
+
+        return entry;
+    }
+
+    private static void readHeaders(final DataInputStream dis, final eXistMessage em) throws IOException {
+
+        em.setResourceType(dis.readUTF());
+        em.setResourceOperation(dis.readUTF());
+        em.setResourcePath(readOptional(dis));
+        em.setDestinationPath(readOptional(dis));
+        em.setMessageId(readOptional(dis));
+
+        final Map<String, Object> metadata = em.getMetadata();
+        final int size = dis.readInt();
+        for (int i = 0; i < size; i++) {
+            final String key = dis.readUTF();
+            final byte type = dis.readByte();
+            switch (type) {
+                case TYPE_INTEGER:
+                    metadata.put(key, dis.readInt());
+                    break;
+                case TYPE_LONG:
+                    metadata.put(key, dis.readLong());
+                    break;
+                default:
+                    metadata.put(key, dis.readUTF());
+                    break;
+            }
+        }
+    }
+
+    private static void writeOptional(final DataOutputStream dos, final String value) throws IOException {
+        dos.writeBoolean(value != null);
+        if (value != null) {
+            dos.writeUTF(value);
+        }
+    }
+
+    private static String readOptional(final DataInputStream dis) throws IOException {
+        return dis.readBoolean() ? dis.readUTF() : null;
+    }
+
+    /**
+     * Sync the directory, so the entry of a new file survives a crash. Not all platforms
+     * support this.
+     */
+    private void syncDirectory() {
+        try (final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final IOException ex) {
+            LOG.debug("Unable to sync directory {}: {}", directory, ex.getMessage());
+        }
+    }
+
+    private Path getMessageFile(final long id) {
+        return directory.resolve(String.format("%020d%s", id, MESSAGE_EXTENSION));
+    }
+
+    private Path getErrorFile(final long id) {
+        return directory.resolve(String.format("%020d%s", id, ERROR_EXTENSION));
+    }
+
+    /**
+     * A stored message and the report of its last failure.
+     */
+    static class Entry {
+
+        private final long id;
+        private final String messageId;
+        private final String description;
+
+        private int attempts = 0;
+        private long firstFailure;
+        private long lastFailure = 0;
+        private String error = "";
+
+        private volatile long nextAttempt = 0;
+        private volatile int generation = 0;
+
+        Entry(final long id, final String messageId, final String description, final long firstFailure) {
+            this.id = id;
+            this.messageId = messageId;
+            this.description = description;
+            this.firstFailure = firstFailure;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        String getMessageId() {
+            return messageId;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        long getFirstFailure() {
+            return firstFailure;
+        }
+
+        long getLastFailure() {
+            return lastFailure;
+        }
+
+        String getError() {
+            return error;
+        }
+
+        /**
+         * @return Time of the next retry, 0 when the message is parked until it is replayed.
+         */
+        long getNextAttempt() {
+            return nextAttempt;
+        }
+
+        void setNextAttempt(final long nextAttempt) {
+            this.nextAttempt = nextAttempt;
+        }
+
+        /**
+         * @return Identification of the last schedule, a retry of an older schedule is ignored.
+         */
+        int getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Start a new schedule, retries of older schedules are ignored.
+         *
+         * @return Identification of the new schedule
+         */
+        int nextGeneration() {
+            return ++generation;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.util.MimeType;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.Optional;
+
+/**
+ * Properties of a replicated document that are resolved before the document is stored:
+ * location, mime type, owner, group, mode and dates. None of these need the database, so
+ * they can be resolved before any lock is taken.
+ *
+ * @author Dannes Wessels
+ */
+class PreparedDocument {
+
+    private final XmldbURI sourcePath;
+    private final MimeType mime;
+    private final String mimeType;
+    private final Optional<String> userName;
+    private final Optional<String> groupName;
+    private final Optional<Integer> mode;
+    private final Optional<Long> lastModified;
+    private final Optional<Long> createTime;
+
+    PreparedDocument(final XmldbURI sourcePath, final MimeType mime, final String mimeType,
+                     final Optional<String> userName, final Optional<String> groupName, final Optional<Integer> mode,
+                     final Optional<Long> lastModified, final Optional<Long> createTime) {
+        this.sourcePath = sourcePath;
+        this.mime = mime;
+        this.mimeType = mimeType;
+        this.userName = userName;
+        this.groupName = groupName;
+        this.mode = mode;
+        this.lastModified = lastModified;
+        this.createTime = createTime;
+    }
+
+    XmldbURI getSourcePath() {
+        return sourcePath;
+    }
+
+    XmldbURI getCollectionURI() {
+        return sourcePath.removeLastSegment();
+    }
+
+    XmldbURI getDocumentURI() {
+        return sourcePath.lastSegment();
+    }
+
+    /**
+     * @return Mime type derived from the name of the document, decides how it is stored
+     */
+    MimeType getMime() {
+        return mime;
+    }
+
+    /**
+     * @return Mime type that is set on the document
+     */
+    String getMimeType() {
+        return mimeType;
+    }
+
+    Optional<String> getUserName() {
+        return userName;
+    }
+
+    Optional<String> getGroupName() {
+        return groupName;
+    }
+
+    Optional<Integer> getMode() {
+        return mode;
+    }
+
+    Optional<Long> getLastModified() {
+        return lastModified;
+    }
+
+    Optional<Long> getCreateTime() {
+        return createTime;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded cache of resolved principal names, the owner and group names of replicated resources
+ * are mapped to the names of existing accounts and groups.
+ * <p>
+ * The security manager does not notify changes of accounts and groups, so entries expire after
+ * a configurable time. A principal that is renamed or removed locally is picked up when its entry
+ * expires, until then resources can get the owner or group that was removed. A principal that
+ * does not exist is not cached, so it is used as soon as it is created.
+ * <p>
+ * Missing principals are not created, the subscriber falls back to the system account and its
+ * default group.
+ *
+ * @author Dannes Wessels
+ */
+class PrincipalCache {
+
+    private final String name;
+    private final int maxSize;
+    private final long expiry;
+    private final Map<String, Entry> entries;
+
+    private long nrHits = 0;
+    private long nrMisses = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param name    Name of the cache in the report
+     * @param maxSize Maximum number of principals, the least recently used entries are evicted first.
+     * @param expiry  Time in milliseconds that a resolved name is used
+     */
+    PrincipalCache(final String name, final int maxSize, final long expiry) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.expiry = expiry;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > PrincipalCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the resolved name of a principal.
+     *
+     * @param principal The name of the principal as replicated
+     * @param resolver  Resolves the name when it is not cached, or when the cached value has expired.
+     *                  Returns NULL when the principal does not exist.
+     * @return The name of an existing principal, or NULL when it does not exist.
+     */
+    String resolve(final String principal, final UnaryOperator<String> resolver) {
+
+        final long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            final Entry entry = entries.get(principal);
+            if (entry != null && entry.expires > now) {
+                nrHits++;
+                return entry.resolved;
+            }
+            nrMisses++;
+        }
+
+        // Resolve outside the lock, the security manager has its own locking
+        final String resolved = resolver.apply(principal);
+        if (resolved == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            entries.put(principal, new Entry(resolved, now + expiry));
+        }
+        return resolved;
+    }
+
+    /**
+     * Write statistics of the cache to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", name, name, null);
+
+        writeValue(builder, "size", "" + entries.size());
+        writeValue(builder, "nrHits", "" + nrHits);
+        writeValue(builder, "nrMisses", "" + nrMisses);
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    private static class Entry {
+
+        private final String resolved;
+        private final long expires;
+
+        Entry(final String resolved, final long expires) {
+            this.resolved = resolved;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Identities of the most recently applied messages, to recognize messages that are redelivered
+ * after they were applied, e.g. when the acknowledgement was lost.
+ * <p>
+ * The identities are kept as 64 bit hashes in a ring of fixed size, with an index for constant
+ * time lookups. The ring is written to a file, so redeliveries after a restart are recognized
+ * as well. The file is not synced for each message: after a crash the last identities can be
+ * missing, those messages are applied again.
+ *
+ * @author Dannes Wessels
+ */
+class ProcessedMessages implements Closeable {
+
+    private final static Logger LOG = LogManager.getLogger(ProcessedMessages.class);
+
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 8;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int capacity;
+    private final long[] ring;
+    private final Set<Long> index;
+    private int next = 0;
+
+    private final Path file;
+    private FileChannel channel = null;
+
+    private long nrRecorded = 0;
+    private long nrDuplicates = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Number of identities that are kept, 0 disables the detection
+     * @param file     File to keep the identities in, NULL when they are only kept in memory
+     */
+    ProcessedMessages(final int capacity, final Path file) {
+        this.capacity = capacity;
+        this.ring = new long[capacity];
+        this.index = new HashSet<>(capacity * 2);
+        this.file = file;
+
+        if (capacity > 0 && file != null) {
+            open();
+        }
+    }
+
+    private void open() {
+        final long fileSize = HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+        try {
+            Files.createDirectories(file.getParent());
+
+            if (Files.exists(file) && Files.size(file) == fileSize) {
+                final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+
+                next = (int) Math.floorMod(buffer.getLong(), (long) capacity);
+                for (int i = 0; i < capacity; i++) {
+                    ring[i] = buffer.getLong();
+                    if (ring[i] != 0) {
+                        index.add(ring[i]);
+                    }
+                }
+                channel = FileChannel.open(file, StandardOpenOption.WRITE);
+
+                LOG.info("Loaded {} identities of processed messages from {}", index.size(), file);
+
+            } else {
+                // New file, or a different capacity
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                channel.write(ByteBuffer.allocate((int) fileSize), 0);
+            }
+
+        } catch (final IOException ex) {
+            LOG.error("Unable to use {}, identities of processed messages are kept in memory only: {}", file, ex.getMessage());
+            closeChannel();
+        }
+    }
+
+    /**
+     * Check if a message was applied before.
+     *
+     * @param id Identity of the message
+     * @return TRUE when the message was applied
+     */
+    synchronized boolean contains(final String id) {
+        if (capacity == 0 || id == null) {
+            return false;
+        }
+
+        final boolean found = index.contains(hash(id));
+        if (found) {
+            nrDuplicates++;
+        }
+        return found;
+    }
+
+    /**
+     * Record that a message is applied.
+     *
+     * @param id Identity of the message
+     */
+    synchronized void add(final String id) {
+        if (capacity == 0 || id == null) {
+            return;
+        }
+
+        final long hash = hash(id);
+        if (!index.add(hash)) {
+            return;
+        }
+
+        final int slot = next;
+        if (ring[slot] != 0) {
+            index.remove(ring[slot]);
+        }
+        ring[slot] = hash;
+        next = (slot + 1) % capacity;
+        nrRecorded++;
+
+        if (channel != null) {
+            try {
+                channel.write((ByteBuffer) ByteBuffer.allocate(ENTRY_SIZE).putLong(hash).flip(), HEADER_SIZE + (long) slot * ENTRY_SIZE);
+                channel.write((ByteBuffer) ByteBuffer.allocate(HEADER_SIZE).putLong(next).flip(), 0);
+
+            } catch (final IOException ex) {
+                LOG.error("Unable to write to {}, identities of processed messages are kept in memory only: {}", file, ex.getMessage());
+                closeChannel();
+            }
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash, 0 is reserved for empty slots.
+     */
+    private static long hash(final String id) {
+        long hash = FNV_OFFSET;
+        for (final byte b : id.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xFF);
+            hash *= FNV_PRIME;
+        }
+        return (hash == 0) ? 1 : hash;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (final IOException ex) {
+                LOG.warn("Unable to write {}: {}", file, ex.getMessage());
+            }
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException ex) {
+                LOG.debug("Unable to close {}: {}", file, ex.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Write statistics to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "processedMessages", "processedMessages", null);
+
+        writeValue(builder, "capacity", "" + capacity);
+        writeValue(builder, "size", "" + index.size());
+        writeValue(builder, "persistent", "" + (channel != null));
+        writeValue(builder, "nrRecorded", "" + nrRecorded);
+        writeValue(builder, "nrDuplicates", "" + nrDuplicates);
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+}
@@ -26,6 +26,7 @@ import org.exist.jms.shared.receive.Receiver;
 import org.exist.jms.shared.receive.ReceiversManager;
 import org.exist.storage.DBBroker;
 import org.exist.storage.txn.Txn;
+import org.exist.xquery.XPathException;
 
 import java.util.List;
 import java.util.Map;
@@ -61,15 +62,22 @@ public class ReceiverStartupTrigger implements org.exist.storage.StartupTrigger
             jmsConfig.loadSubscriberParameters(parameters);
 
             // Setup listeners
-            final ReplicationJmsListener jmsListener = new ReplicationJmsListener(broker.getBrokerPool());
+            final ReplicationJmsListener jmsListener = new ReplicationJmsListener(broker.getBrokerPool(), jmsConfig);
 
             final Receiver receiver = new Receiver(jmsConfig, jmsListener);
             manager.register(receiver);
 
-            receiver.initialize();
-            receiver.start();
+            try {
+                receiver.initialize();
+                receiver.start();
 
-            LOG.info("Subscription was successful.");
+                LOG.info("Subscription was successful.");
+
+            } catch (final XPathException ex) {
+                // E.g. the broker is not yet available, keep trying in the background
+                LOG.warn("Unable to start subscription, retrying in the background: {}", ex.getMessage());
+                receiver.scheduleReconnect();
+            }
 
         } catch (final Throwable t) {
             LOG.error("Unable to start subscription: {}", t.getMessage(), t);
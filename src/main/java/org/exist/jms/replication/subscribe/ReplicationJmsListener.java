@@ -26,13 +26,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.collections.Collection;
 import org.exist.collections.IndexInfo;
+import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
 import org.exist.jms.replication.shared.MessageHelper;
 import org.exist.jms.replication.shared.ReplicationTxnManager;
 import org.exist.jms.shared.*;
 import org.exist.security.Account;
 import org.exist.security.Group;
 import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.lock.Lock;
@@ -48,11 +51,19 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.zip.GZIPInputStream;
+import java.util.OptionalLong;
 
 /**
  * JMS listener for receiving JMS replication messages
@@ -62,12 +73,35 @@ import java.util.zip.GZIPInputStream;
 public class ReplicationJmsListener extends eXistMessagingListener {
 
     private final static Logger LOG = LogManager.getLogger(ReplicationJmsListener.class);
+
+    private static final int PRINCIPAL_CACHE_SIZE = 1000;
+    private static final int HIGH_WATER_MARKS_SIZE = 100000;
+    private static final int APPLIED_DIGESTS_SIZE = 10000;
+
     private final BrokerPool brokerPool;
     private final org.exist.security.SecurityManager securityManager;
     private final TransactionManager txnManager;
 
     private final String localID;
     private final Report report;
+    private final TransferAssembler transferAssembler;
+    private final KnownCollections knownCollections = new KnownCollections();
+    private final PrincipalCache accounts;
+    private final PrincipalCache groups;
+    private final long bufferThreshold;
+    private final ProcessedMessages processedMessages;
+    private final HighWaterMarks highWaterMarks = new HighWaterMarks(HIGH_WATER_MARKS_SIZE);
+    private final AppliedDigests appliedDigests = new AppliedDigests(APPLIED_DIGESTS_SIZE);
+    private final LockTimes lockTimes = new LockTimes();
+    private final RetryScheduler retries;
+    private final FlowController flowControl;
+    private final AdmissionController admission;
+    private final SessionAcknowledger acknowledger;
+    private final ParallelApplier applier;
+    private final BatchApplier batchApplier;
+    private final ApplyPipeline pipeline;
+    private final SubtreeApplier subtreeApplier;
+    private final Map<eXistMessage, PreparedDocument> prepared = Collections.synchronizedMap(new IdentityHashMap<>());
 
     /**
      * Constructor
@@ -75,11 +109,96 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      * @param brokerpool Reference to database broker pool
      */
     public ReplicationJmsListener(final BrokerPool brokerpool) {
+        this(brokerpool, new JmsConfiguration());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param brokerpool Reference to database broker pool
+     * @param config     Subscriber configuration, for the number of threads that apply messages,
+     *                   the size of the batches, the window of messages that are not yet applied
+     *                   the pipeline that decodes and prepares messages and the size of the
+     *                   chunks in which collections are deleted, moved or copied.
+     */
+    public ReplicationJmsListener(final BrokerPool brokerpool, final JmsConfiguration config) {
         this.brokerPool = brokerpool;
         this.securityManager = brokerpool.getSecurityManager();
         this.txnManager = brokerpool.getTransactionManager();
         this.localID = Identity.getInstance().getIdentity();
         this.report = getReport();
+        this.processedMessages = new ProcessedMessages(config.getSubscriberProcessedSize(),
+                getSubscriptionPath(brokerpool, config, "jms-processed", ".ring"));
+        this.retries = new RetryScheduler(new ParkedMessages(getSubscriptionPath(brokerpool, config, "jms-parked", "")),
+                config.getSubscriberRetryAttempts(), config.getSubscriberRetryDelay(), config.getSubscriberRetryMaxDelay(),
+                this::reapply);
+
+        this.accounts = new PrincipalCache("accounts", PRINCIPAL_CACHE_SIZE, config.getSubscriberPrincipalExpiry());
+        this.groups = new PrincipalCache("groups", PRINCIPAL_CACHE_SIZE, config.getSubscriberPrincipalExpiry());
+        this.bufferThreshold = config.getSubscriberBufferThreshold();
+        this.transferAssembler = new TransferAssembler(config.getSubscriberTransferExpiry());
+
+        final int concurrency = config.getSubscriberConcurrency();
+        final int batchSize = config.getSubscriberBatchSize();
+
+        this.admission = new AdmissionController(brokerpool, config.getConsumerAdmissionReserve(),
+                config.getConsumerAdmissionDelay());
+
+        // A batch must fit in the window
+        this.flowControl = new FlowController((concurrency > 1) ? 1 : batchSize, config.getSubscriberWindow(),
+                config.getSubscriberWindowBytes(), config.isSubscriberWindowAdaptive(), config.getSubscriberWindowLatency());
+
+        // Wait for the applied messages at least once per window, to acknowledge them
+        this.acknowledger = new SessionAcknowledger(config.getSubscriberWindow(), this::canAcknowledge, this::drain);
+
+        this.applier = (concurrency > 1)
+                ? new ParallelApplier(concurrency, this::apply, report)
+                : null;
+
+        if (batchSize > 1 && applier != null) {
+            LOG.warn("{} is ignored when messages are applied by {} threads", Constants.SUBSCRIBER_BATCH_SIZE, concurrency);
+        }
+
+        this.batchApplier = (batchSize > 1 && applier == null)
+                ? new BatchApplier(batchSize, config.getSubscriberBatchTime(), this::applyBatch, retries::failed,
+                this::completed, report)
+                : null;
+
+        final int decoders = config.getSubscriberPipelineDecoders();
+        this.pipeline = (decoders > 0)
+                ? new ApplyPipeline(decoders, config.getSubscriberPipelineQueue(), this::decode, this::prepare,
+                this::commit, report)
+                : null;
+
+        final int subtreeChunk = config.getSubscriberSubtreeChunk();
+        this.subtreeApplier = (subtreeChunk > 0)
+                ? new SubtreeApplier(brokerpool, subtreeChunk, getSubscriptionPath(brokerpool, config, "jms-subtree", ".ckpt"),
+                knownCollections::invalidate)
+                : null;
+    }
+
+    /**
+     * Get a file or directory in the data directory, each subscription has its own. It is named
+     * after a digest of the subscription.
+     *
+     * @param folder    Folder in the data directory
+     * @param extension Extension of the file, empty for a directory
+     */
+    private static Path getSubscriptionPath(final BrokerPool brokerPool, final JmsConfiguration config,
+                                            final String folder, final String extension) {
+
+        final Map<Object, Object> subscription = new HashMap<>();
+        subscription.put(Constants.CLIENT_ID, String.valueOf(config.getClientId()));
+        subscription.put(Constants.SUBSCRIBER_NAME, String.valueOf(config.getSubscriberName()));
+        subscription.put(Constants.DESTINATION, String.valueOf(config.getDestination()));
+
+        return getDataPath(brokerPool).resolve(folder)
+                .resolve(MessageHelper.getConfigurationDigest(subscription) + extension);
+    }
+
+    private static Path getDataPath(final BrokerPool brokerPool) {
+        final Object dataDir = brokerPool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        return (dataDir instanceof Path) ? (Path) dataDir : Paths.get(String.valueOf(dataDir));
     }
 
     /**
@@ -106,65 +225,50 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         report.start();
 
         try {
-            // Detect if the sender of the incoming message is the receiver
-            if (StringUtils.isNotEmpty(localID)) {
-                final String remoteID = msg.getStringProperty(Constants.EXIST_INSTANCE_ID);
-                if (localID.equals(remoteID)) {
-                    LOG.info("Incoming JMS messsage was originally sent by this same instance (jms.id={}). Stopped processing.", localID);
-                    msg.acknowledge();
-                    return; // Do not throw exeception; Receive was OK
+            // Wait while too many received messages are not yet applied, before the body is copied
+            flowControl.acquire(msg, getBodyLength(msg));
+
+            final eXistMessage em;
+            try {
+                em = receive(msg);
+                if (em != null) {
+                    // Wait while the database is busy
+                    admission.admit();
                 }
-            }
-
-            if (msg instanceof BytesMessage) {
 
-                // Prepare received message
-                final eXistMessage em = convertMessage((BytesMessage) msg);
+            } catch (final Throwable t) {
+                flowControl.release(msg);
+                throw t;
+            }
 
-                final Enumeration e = msg.getPropertyNames();
-                while (e.hasMoreElements()) {
-                    final Object next = e.nextElement();
-                    if (next instanceof String) {
-                        em.getMetadata().put((String) next, msg.getObjectProperty((String) next));
-                    }
-                }
+            if (em == null) {
+                flowControl.release(msg);
+                return;
+            }
+            flowControl.convert(msg, em);
 
-                // Report some details into logging
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(em.getFullReport());
-                } else {
-                    LOG.info(em.getReport());
-                }
+            if (pipeline != null) {
+                // Decoded and prepared by the pipeline, then applied in order
+                pipeline.submit(em);
+                acknowledge(msg);
 
-                // First step: distinct between update for documents and messsages
-                switch (em.getResourceType()) {
-                    case DOCUMENT:
-                        handleDocument(em);
-                        break;
-                    case COLLECTION:
-                        handleCollection(em);
-                        break;
-                    default:
-                        // We need to ack the message
-                        msg.acknowledge();
+            } else if (applier != null) {
+                // Applied by the workers, acknowledged when all delivered messages are applied
+                applier.dispatch(em);
+                acknowledge(msg);
 
-                        final String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
-                        LOG.error(errorMessage);
-                        throw new MessageReceiveException(errorMessage);
-                }
-                report.incMessageCounterOK();
+            } else if (batchApplier != null) {
+                // Applied with the batch, acknowledged when all delivered messages are applied
+                batchApplier.add(em);
+                acknowledge(msg);
 
             } else {
-                // We need to ack the message
-                msg.acknowledge();
+                apply(em);
 
-                // Only ByteMessage objects supported. 
-                throw new MessageReceiveException(String.format("Could not handle message type %s", msg.getClass().getSimpleName()));
+                // We need to ack the message, unless a transfer is partially received
+                acknowledge(msg);
             }
 
-            // We need to ack the message
-            msg.acknowledge();
-
         } catch (final MessageReceiveException ex) {
             // Thrown by local code. Just make it pass\
             report.addListenerError(ex);
@@ -184,6 +288,416 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         }
     }
 
+    /**
+     * @return Size of the body of a bytes message, 0 for other messages
+     */
+    private static long getBodyLength(final Message msg) throws JMSException {
+        return (msg instanceof BytesMessage) ? ((BytesMessage) msg).getBodyLength() : 0;
+    }
+
+    /**
+     * Convert the incoming JMS message.
+     *
+     * @param msg The JMS message
+     * @return The converted message, or NULL when there is nothing to apply.
+     * @throws JMSException The message could not be read.
+     */
+    private eXistMessage receive(final Message msg) throws JMSException {
+
+        // Detect if the sender of the incoming message is the receiver
+        if (StringUtils.isNotEmpty(localID)) {
+            final String remoteID = msg.getStringProperty(Constants.EXIST_INSTANCE_ID);
+            if (localID.equals(remoteID)) {
+                LOG.info("Incoming JMS messsage was originally sent by this same instance (jms.id={}). Stopped processing.", localID);
+                acknowledge(msg);
+                return null; // Do not throw exeception; Receive was OK
+            }
+        }
+
+        if (!(msg instanceof BytesMessage)) {
+            // We need to ack the message
+            acknowledge(msg);
+
+            // Only ByteMessage objects supported.
+            throw new MessageReceiveException(String.format("Could not handle message type %s", msg.getClass().getSimpleName()));
+        }
+
+        final BytesMessage bm = (BytesMessage) msg;
+
+        // Prepare received message
+        final eXistMessage em;
+        if (TransferAssembler.isChunk(bm)) {
+            final Path payloadFile = transferAssembler.addChunk(bm);
+            if (payloadFile == null) {
+                // Not yet complete. The chunks are acknowledged together with the last chunk.
+                return null;
+            }
+            em = convertHeaders(bm);
+            em.setPayloadFile(payloadFile);
+
+        } else {
+            em = convertMessage(bm);
+        }
+
+        final Enumeration e = msg.getPropertyNames();
+        while (e.hasMoreElements()) {
+            final Object next = e.nextElement();
+            if (next instanceof String) {
+                em.getMetadata().put((String) next, msg.getObjectProperty((String) next));
+            }
+        }
+
+        // Report some details into logging
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(em.getFullReport());
+        } else {
+            LOG.info(em.getReport());
+        }
+
+        if (em.getResourceType() != eXistMessage.ResourceType.DOCUMENT
+                && em.getResourceType() != eXistMessage.ResourceType.COLLECTION) {
+            em.deletePayloadFile();
+
+            // We need to ack the message
+            acknowledge(msg);
+
+            final String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
+            LOG.error(errorMessage);
+            throw new MessageReceiveException(errorMessage);
+        }
+
+        // Redelivered after it was applied, e.g. the acknowledgement got lost
+        em.setMessageId(getMessageId(msg, em));
+        if (processedMessages.contains(em.getMessageId())) {
+            LOG.info("Message {} was already applied, redelivery is ignored. {}", em.getMessageId(), em.getReport());
+            em.deletePayloadFile();
+            acknowledge(msg);
+            return null;
+        }
+
+        // A newer version of the resource has been applied already
+        if (highWaterMarks.isStale(em)) {
+            LOG.info("Message {} is older than the last applied change of {}, ignored.", em.getMessageId(), em.getResourcePath());
+            em.deletePayloadFile();
+            acknowledge(msg);
+            return null;
+        }
+
+        return em;
+    }
+
+    /**
+     * Get the identity of a message, which is the same when the message is redelivered: the
+     * instance and sequence number of the event, or the JMS message id for older senders.
+     */
+    private static String getMessageId(final Message msg, final eXistMessage em) throws JMSException {
+        final Object instance = em.getMetadata().get(Constants.EXIST_INSTANCE_ID);
+        final Object sequence = em.getMetadata().get(MessageHelper.EXIST_MESSAGE_SEQUENCE);
+        if (instance != null && sequence != null) {
+            return instance + "/" + sequence;
+        }
+        return msg.getJMSMessageID();
+    }
+
+    /**
+     * Apply the replicated change to the database in its own transaction. When this fails
+     * the message is parked to be retried later.
+     *
+     * @param em The converted message
+     * @throws MessageReceiveException The message could not be applied nor parked.
+     */
+    void apply(final eXistMessage em) {
+        try {
+            applyBatch(Collections.singletonList(em));
+
+        } catch (final Throwable t) {
+            report.addListenerError(t);
+            LOG.error("Could not apply {}, the message is parked: {}", em.getReport(), t.getMessage());
+            retries.failed(em, t);
+
+        } finally {
+            completed(em);
+        }
+    }
+
+    /**
+     * Release a message that is applied or parked: remove its payload file and make room
+     * in the window for the next message.
+     *
+     * @param em The converted message
+     */
+    private void completed(final eXistMessage em) {
+        prepared.remove(em);
+        em.deletePayloadFile();
+        flowControl.release(em);
+    }
+
+    /**
+     * Last stage of the pipeline: apply the decoded and prepared message, in the original order.
+     *
+     * @param em The converted message
+     */
+    private void commit(final eXistMessage em) throws InterruptedException {
+        if (applier != null) {
+            try {
+                applier.dispatch(em);
+            } catch (final InterruptedException ex) {
+                // Not handed over, the message is redelivered
+                completed(em);
+                throw ex;
+            }
+
+        } else if (batchApplier != null) {
+            batchApplier.add(em);
+
+        } else {
+            apply(em);
+        }
+    }
+
+    /**
+     * First stage of the pipeline: decompress the payload of a document, so the document can
+     * be stored without decoding it while the collection is locked.
+     *
+     * @param em The converted message
+     * @throws IOException The payload could not be decoded, it is decoded again when applied.
+     */
+    private void decode(final eXistMessage em) throws IOException {
+        if (!isStore(em)) {
+            return;
+        }
+
+        final PayloadBuffer decoded = decodePayload(em);
+        if (decoded == null) {
+            return;
+        }
+
+        // The decoded payload replaces the received payload
+        final Path received = em.getPayloadFile();
+        try {
+            em.setPayloadFile(null);
+            decoded.moveTo(em);
+
+        } catch (final IOException ex) {
+            em.setPayloadFile(received);
+            throw ex;
+
+        } finally {
+            decoded.close();
+        }
+
+        em.getMetadata().put(MessageHelper.EXIST_MESSAGE_CONTENTENCODING, PayloadCodecs.IDENTITY);
+        if (received != null) {
+            Files.deleteIfExists(received);
+        }
+    }
+
+    /**
+     * Second stage of the pipeline: resolve the properties of a document, without using
+     * the database.
+     *
+     * @param em The converted message
+     */
+    private void prepare(final eXistMessage em) {
+        if (isStore(em)) {
+            prepared.put(em, prepareDocument(em));
+        }
+    }
+
+    private static boolean isStore(final eXistMessage em) {
+        return em.getResourceType() == eXistMessage.ResourceType.DOCUMENT
+                && (em.getResourceOperation() == eXistMessage.ResourceOperation.CREATE
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.UPDATE);
+    }
+
+    /**
+     * Apply a parked message again, unless it has been superseded in the meantime.
+     *
+     * @param em The parked message
+     */
+    private void reapply(final eXistMessage em) {
+        if (processedMessages.contains(em.getMessageId()) || highWaterMarks.isStale(em)) {
+            LOG.info("Parked message {} is superseded, discarded. {}", em.getMessageId(), em.getReport());
+            return;
+        }
+        applyBatch(Collections.singletonList(em));
+    }
+
+    /**
+     * Write the messages that are parked because they could not be applied.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void writeParkedMessages(final MemTreeBuilder builder) {
+        retries.writeEntries(builder);
+    }
+
+    /**
+     * Apply parked messages now. Messages that fail again stay parked.
+     *
+     * @param ids Identifiers of the parked messages, all messages when empty
+     * @return Number of applied messages
+     */
+    public int replayParkedMessages(final List<Long> ids) {
+        return retries.replay(ids);
+    }
+
+    /**
+     * Remove parked messages without applying them.
+     *
+     * @param ids Identifiers of the parked messages, all messages when empty
+     * @return Number of removed messages
+     */
+    public int purgeParkedMessages(final List<Long> ids) {
+        return retries.purge(ids);
+    }
+
+    /**
+     * Apply replicated changes to the database in one transaction. When one of the changes
+     * fails, the transaction is aborted and none of the changes is applied. The payload
+     * files of the messages are not removed. A collection that is deleted, moved or copied is
+     * applied in chunks when configured, it is always the only message of its batch.
+     *
+     * @param messages The converted messages, in order
+     */
+    void applyBatch(final List<eXistMessage> messages) {
+
+        final long start = System.currentTimeMillis();
+        if (subtreeApplier != null && messages.size() == 1 && SubtreeApplier.isSubtree(messages.get(0))) {
+            subtreeApplier.apply(messages.get(0));
+        } else {
+            applyTransaction(messages);
+        }
+
+        flowControl.applied(messages.size(), System.currentTimeMillis() - start);
+
+        for (final eXistMessage em : messages) {
+            processedMessages.add(em.getMessageId());
+            highWaterMarks.applied(em);
+            appliedDigests.forget(em);
+            report.incMessageCounterOK();
+        }
+    }
+
+    /**
+     * Apply replicated changes in one transaction.
+     */
+    private void applyTransaction(final List<eXistMessage> messages) {
+        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
+             final Txn txn = txnManager.beginTransaction()) {
+
+            setOrigin(txn);
+
+            // First step: distinct between update for documents and messsages
+            for (final eXistMessage em : messages) {
+                switch (em.getResourceType()) {
+                    case DOCUMENT:
+                        handleDocument(broker, txn, em);
+                        break;
+                    case COLLECTION:
+                        handleCollection(broker, txn, em);
+                        break;
+                    default:
+                        final String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
+                        LOG.error(errorMessage);
+                        throw new MessageReceiveException(errorMessage, em);
+                }
+            }
+
+            // Commit changes
+            txn.commit();
+
+        } catch (final MessageReceiveException ex) {
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new MessageReceiveException(String.format("Unable to apply changes to database: %s", t.getMessage()), t);
+        }
+    }
+
+    /**
+     * Acknowledge a message, deferred while the pipeline, the workers or a batch have messages
+     * that are not yet applied. A session acknowledges all delivered messages, so also the
+     * chunks of a transfer that is partially received; the acknowledgement is then deferred
+     * until a later message, after the transfer is complete. Called by the session thread only.
+     */
+    private void acknowledge(final Message msg) throws JMSException {
+        acknowledger.acknowledge(msg);
+    }
+
+    /**
+     * A session acknowledges all delivered messages, only when all of them are applied or
+     * parked and no chunked transfer is incomplete.
+     */
+    private boolean canAcknowledge() {
+        return transferAssembler.isIdle() && flowControl.isEmpty();
+    }
+
+    /**
+     * Wait until all delivered messages are applied, unless a chunked transfer is incomplete.
+     * A pending batch is applied right away.
+     *
+     * @param timeout Maximum time to wait in milliseconds
+     * @return TRUE when the messages can be acknowledged
+     */
+    private boolean drain(final long timeout) throws InterruptedException {
+        if (!transferAssembler.isIdle()) {
+            return false;
+        }
+        if (batchApplier != null) {
+            batchApplier.flush();
+        }
+        return flowControl.awaitEmpty(timeout);
+    }
+
+    /**
+     * Stop the pipeline and the workers that apply messages in parallel or in batches, when
+     * used, stop the retries and close the index of processed messages.
+     */
+    @Override
+    public void close() {
+        admission.close();
+        if (pipeline != null) {
+            pipeline.shutdown(this::completed);
+        }
+        if (applier != null) {
+            applier.shutdown();
+        }
+        if (batchApplier != null) {
+            batchApplier.shutdown();
+        }
+        retries.shutdown();
+        processedMessages.close();
+    }
+
+    @Override
+    public void writeStatistics(final MemTreeBuilder builder) {
+        knownCollections.write(builder);
+        accounts.write(builder);
+        groups.write(builder);
+        processedMessages.write(builder);
+        highWaterMarks.write(builder);
+        appliedDigests.write(builder);
+        lockTimes.write(builder);
+        if (subtreeApplier != null) {
+            subtreeApplier.write(builder);
+        }
+        retries.write(builder);
+        flowControl.write(builder);
+        admission.write(builder);
+        acknowledger.write(builder);
+        if (pipeline != null) {
+            pipeline.write(builder);
+        }
+        if (applier != null) {
+            applier.write(builder);
+        }
+        if (batchApplier != null) {
+            batchApplier.write(builder);
+        }
+    }
+
     //
     // The code below handles the incoming message ; DW: should be moved to separate class
     //
@@ -195,6 +709,37 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      * @return The converted message
      */
     private eXistMessage convertMessage(final BytesMessage bm) {
+        final eXistMessage em = convertHeaders(bm);
+
+        // The body is copied on the session thread, the message is not kept. Large bodies
+        // are written to a temporary file, which is removed when the message is completed.
+        // The JMS client already holds the complete body, so this does not bound the memory
+        // of a received message; that is done by the window and the consumer prefetch.
+        try (final PayloadBuffer buffer = new PayloadBuffer(bufferThreshold)) {
+            buffer.readFrom(bm);
+            buffer.moveTo(em);
+
+        } catch (final JMSException ex) {
+            final String errorMessage = String.format("Unable to read body of incoming message. (%s):  %s", ex.getErrorCode(), ex.getMessage());
+            LOG.error(errorMessage, ex);
+            throw new MessageReceiveException(errorMessage);
+
+        } catch (final IOException ex) {
+            final String errorMessage = String.format("Unable to read body of incoming message. %s", ex.getMessage());
+            LOG.error(errorMessage, ex);
+            throw new MessageReceiveException(errorMessage);
+        }
+
+        return em;
+    }
+
+    /**
+     * Convert the JMS message properties into an eXist-db specific message, without payload.
+     *
+     * @param bm The original message
+     * @return The converted message
+     */
+    private eXistMessage convertHeaders(final BytesMessage bm) {
         final eXistMessage em = new eXistMessage();
 
         try {
@@ -210,12 +755,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             value = bm.getStringProperty(eXistMessage.EXIST_DESTINATION_PATH);
             em.setDestinationPath(value);
 
-            // This is potentially memory intensive
-            final long size = bm.getBodyLength();
-            final byte[] payload = new byte[(int) size];
-            bm.readBytes(payload);
-            em.setPayload(payload);
-
         } catch (final JMSException ex) {
             final String errorMessage = String.format("Unable to convert incoming message. (%s):  %s", ex.getErrorCode(), ex.getMessage());
             LOG.error(errorMessage, ex);
@@ -233,30 +772,32 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Handle operation on documents
      *
-     * @param em Message containing information about documents
+     * @param broker The broker of the transaction
+     * @param txn    The transaction
+     * @param em     Message containing information about documents
      */
-    private void handleDocument(final eXistMessage em) {
+    private void handleDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         switch (em.getResourceOperation()) {
             case CREATE:
             case UPDATE:
-                createUpdateDocument(em);
+                createUpdateDocument(broker, txn, em);
                 break;
 
             case METADATA:
-                updateMetadataDocument(em);
+                updateMetadataDocument(broker, txn, em);
                 break;
 
             case DELETE:
-                deleteDocument(em);
+                deleteDocument(broker, txn, em);
                 break;
 
             case MOVE:
-                relocateDocument(em, false);
+                relocateDocument(broker, txn, em, false);
                 break;
 
             case COPY:
-                relocateDocument(em, true);
+                relocateDocument(broker, txn, em, true);
                 break;
 
             default:
@@ -269,30 +810,32 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Handle operation on collections
      *
-     * @param em Message containing information about collections
+     * @param broker The broker of the transaction
+     * @param txn    The transaction
+     * @param em     Message containing information about collections
      */
-    private void handleCollection(final eXistMessage em) {
+    private void handleCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         switch (em.getResourceOperation()) {
             case CREATE:
             case UPDATE:
-                createCollection(em);
+                createCollection(broker, txn, em);
                 break;
 
             case METADATA:
-                updateMetadataCollection(em);
+                updateMetadataCollection(broker, txn, em);
                 break;
 
             case DELETE:
-                deleteCollection(em);
+                deleteCollection(broker, txn, em);
                 break;
 
             case MOVE:
-                relocateCollection(em, false);
+                relocateCollection(broker, txn, em, false);
                 break;
 
             case COPY:
-                relocateCollection(em, true);
+                relocateCollection(broker, txn, em, true);
                 break;
 
             default:
@@ -305,17 +848,154 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Created document in database
      */
-    private void createUpdateDocument(final eXistMessage em) {
+    private void createUpdateDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
+
+        // Prepared by the pipeline, or now
+        PreparedDocument document = prepared.get(em);
+        if (document == null) {
+            document = prepareDocument(em);
+        }
+
+        final XmldbURI sourcePath = document.getSourcePath();
+        final XmldbURI colURI = document.getCollectionURI();
+        final XmldbURI docURI = document.getDocumentURI();
+        final MimeType mime = document.getMime();
+        final String mimeType = document.getMimeType();
+        final Optional<String> userName = document.getUserName();
+        final Optional<String> groupName = document.getGroupName();
+        final Optional<Integer> mode = document.getMode();
+        final Optional<Long> lastModified = document.getLastModified();
+        final Optional<Long> createTime = document.getCreateTime();
+
+        // Only the store itself needs the lock of the collection
+        long start = 0;
+        long locked = 0;
+        try (final PayloadBuffer spooled = spoolPayload(em)) {
+
+            // Serializing the local document for its digest can take long, also not under the lock
+            final OptionalLong unchangedVersion = getUnchangedVersion(broker, txn, sourcePath, em);
+
+            start = System.nanoTime();
+            try (final Collection collection = openOrCreateCollection(broker, txn, colURI, em)) {
+                if (collection == null) {
+                    throw new MessageReceiveException("Collection " + sourcePath + " does not exist", em);
+                }
+                locked = System.nanoTime();
+
+                // Skip the store and reindex when the content did not change
+                final DocumentImpl existing = collection.getDocument(broker, docURI);
+                if (existing != null && isOlder(lastModified, existing)) {
+                    LOG.info("Replicated version of {} is older than the local document, ignored.", sourcePath);
+                    highWaterMarks.staleModified();
+                    return;
+                }
+
+                // Unless the local document was modified after it was compared
+                final boolean unchanged = existing != null && unchangedVersion.isPresent()
+                        && unchangedVersion.getAsLong() == existing.getMetadata().getLastModified();
+
+                final DocumentImpl doc;
+                if (unchanged) {
+                    LOG.debug("Content of {} is unchanged, only metadata is updated", sourcePath);
+                    doc = existing;
+                    doc.getMetadata().setMimeType(mimeType);
+
+                } else if (mime.isXMLType()) {
+
+                    // Decoded once, the document is parsed twice: to validate and to store. A
+                    // malformed document is rejected by the validation.
+                    final IndexInfo info;
+                    try (final InputStream is = openDecodedPayload(em, spooled)) {
+                        // DW: collection can be null?
+                        info = collection.validateXMLResource(txn, broker, docURI, new InputSource(is));
+                    }
+                    doc = info.getDocument();
+                    doc.getMetadata().setMimeType(mimeType);
+
+                    // reconstruct input stream
+                    try (final InputStream is = openDecodedPayload(em, spooled)) {
+                        collection.store(txn, broker, info, new InputSource(is));
+                    }
+
+                } else {
+
+                    // Stream into database
+                    final long size = (spooled == null) ? em.getPayloadSize() : spooled.size();
+                    try (final InputStream is = openDecodedPayload(em, spooled);
+                         final BufferedInputStream bis = new BufferedInputStream(is)) {
+                        // DW: collection can be null
+                        doc = collection.addBinaryResource(txn, broker, docURI, bis, mimeType, size);
+                    }
+                }
+
+                // Set owner,group and permissions
+                final Permission permission = doc.getPermissions();
+                if (userName.isPresent()) {
+                    permission.setOwner(userName.get());
+                }
+                if (groupName.isPresent()) {
+                    permission.setGroup(groupName.get());
+                }
+                if (mode.isPresent()) {
+                    permission.setMode(mode.get());
+                }
+
+                // Set dates
+                lastModified.ifPresent(aLong -> doc.getMetadata().setLastModified(aLong));
+                createTime.ifPresent(aLong -> doc.getMetadata().setCreated(aLong));
+
+                if (unchanged) {
+                    broker.storeMetadata(txn, doc);
+                }
+
+                // The next update of the document is compared without serializing it
+                final Object digest = em.getMetadata().get(MessageHelper.EXIST_RESOURCE_DIGEST);
+                if (digest != null) {
+                    appliedDigests.put(sourcePath.toString(), digest.toString(), doc.getMetadata().getLastModified());
+                }
+
+            } finally {
+                if (locked != 0) {
+                    lockTimes.add(colURI, locked - start, System.nanoTime() - locked);
+                }
+            }
+
+        } catch (final Throwable ex) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.error(ex.getMessage(), ex);
+            } else {
+                LOG.error(ex.getMessage());
+            }
+
+            throw new MessageReceiveException(String.format("Unable to write document into database. Reason: %s", ex.getMessage()), em);
+
+        }
+    }
+
+    /**
+     * Decode the payload into a local buffer, so the document is stored while the collection
+     * is locked without waiting for decompression. The body of the received message was
+     * copied when it was received.
+     *
+     * @return The buffer, or NULL when the payload is not encoded, e.g. when it was decoded
+     * by the pipeline.
+     */
+    private PayloadBuffer spoolPayload(final eXistMessage em) throws IOException {
+        return decodePayload(em);
+    }
+
+    /**
+     * Resolve the properties of a replicated document that do not need the database.
+     */
+    private PreparedDocument prepareDocument(final eXistMessage em) {
 
         final Map<String, Object> metaData = em.getMetadata();
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
-        final XmldbURI colURI = sourcePath.removeLastSegment();
-        final XmldbURI docURI = sourcePath.lastSegment();
-
 
         // Get mime, or NULL when not available
-        MimeType mime = MimeTable.getInstance().getContentTypeFor(docURI.toString());
+        MimeType mime = MimeTable.getInstance().getContentTypeFor(sourcePath.lastSegment().toString());
         if (mime == null) {
             mime = MimeType.BINARY_TYPE;
         }
@@ -334,9 +1014,29 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         final Optional<Long> lastModified = getLastModified(metaData);
         final Optional<Long> createTime = getCreationTime(metaData);
 
+        return new PreparedDocument(sourcePath, mime, mimeType, userName, groupName, mode, lastModified, createTime);
+    }
+
+    /**
+     * Open the collection of a document with a write lock. When the collection is not known
+     * to exist, it is created first.
+     */
+    private Collection openOrCreateCollection(final DBBroker broker, final Txn txn, final XmldbURI colURI,
+                                              final eXistMessage em) throws PermissionDeniedException {
+
+        if (knownCollections.contains(colURI)) {
+            final Collection collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK);
+            if (collection != null) {
+                return collection;
+            }
+
+            // Removed after it was seen
+            knownCollections.invalidate(colURI);
+        }
+
         // Check for collection, create if not existent
         try {
-            createOrCheckCollection(colURI);
+            createOrCheckCollection(broker, txn, colURI);
 
         } catch (final MessageReceiveException e) {
             LOG.error(e.getMessage(), e);
@@ -352,97 +1052,61 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             throw new MessageReceiveException(String.format("Unable to create collection in database: %s", t.getMessage()), em);
         }
 
+        return broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK);
+    }
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK)) {
-
-            if (collection == null) {
-                throw new MessageReceiveException("Collection " + sourcePath + " does not exist", em);
-            }
-
-            setOrigin(txn);
-
-            final DocumentImpl doc;
-            if (mime.isXMLType()) {
-
-                InputSource inputsource = null;
-
-                // Stream into database
-                try (final InputStream byteInputStream = new ByteArrayInputStream(em.getPayload())) {
-
-                    // DW: future improvement: determine compression based on property.
-                    GZIPInputStream gis = new GZIPInputStream(byteInputStream);
-                    inputsource = new InputSource(gis);
-
-                    // DW: collection can be null?
-                    final IndexInfo info = collection.validateXMLResource(txn, broker, docURI, inputsource);
-                    doc = info.getDocument();
-                    doc.getMetadata().setMimeType(mimeType);
-
-                    // reconstruct gzip input stream
-                    byteInputStream.reset();
-                    gis = new GZIPInputStream(byteInputStream);
-                    inputsource = new InputSource(gis);
-
-                    collection.store(txn, broker, info, inputsource);
-
-
-                } finally {
-                    if (inputsource != null) {
-                        inputsource.getByteStream().close();
-                    }
-                }
-
-            } else {
-
-                // Stream into database
-                try (final ByteArrayInputStream bais = new ByteArrayInputStream(em.getPayload());
-                     final GZIPInputStream gis = new GZIPInputStream(bais);
-                     final BufferedInputStream bis = new BufferedInputStream(gis)) {
-                    // DW: collection can be null
-                    doc = collection.addBinaryResource(txn, broker, docURI, bis, mimeType, em.getPayload().length);
-                }
-            }
-
-            // Set owner,group and permissions
-            final Permission permission = doc.getPermissions();
-            if (userName.isPresent()) {
-                permission.setOwner(userName.get());
-            }
-            if (groupName.isPresent()) {
-                permission.setGroup(groupName.get());
-            }
-            if (mode.isPresent()) {
-                permission.setMode(mode.get());
-            }
-
-            // Set dates
-            lastModified.ifPresent(aLong -> doc.getMetadata().setLastModified(aLong));
-            createTime.ifPresent(aLong -> doc.getMetadata().setCreated(aLong));
-
-            // Commit change
-            txn.commit();
-
+    /**
+     * Open the payload of the message, either from memory or from the file of a large message
+     * or a chunked transfer.
+     */
+    static InputStream openPayload(final eXistMessage em) throws IOException {
+        final Path payloadFile = em.getPayloadFile();
+        return (payloadFile == null)
+                ? new ByteArrayInputStream(em.getPayload())
+                : new BufferedInputStream(Files.newInputStream(payloadFile));
+    }
 
-        } catch (final Throwable ex) {
+    private PayloadCodec getCodec(final eXistMessage em) {
+        final Object encoding = em.getMetadata().get(MessageHelper.EXIST_MESSAGE_CONTENTENCODING);
+        return PayloadCodecs.get(encoding == null ? null : encoding.toString());
+    }
 
-            if (LOG.isDebugEnabled()) {
-                LOG.error(ex.getMessage(), ex);
-            } else {
-                LOG.error(ex.getMessage());
-            }
+    /**
+     * Decode the payload of the message into a buffer, so it can be read more than once without
+     * decoding it again. Small payloads are kept in memory, large payloads in a memory mapped
+     * temporary file.
+     *
+     * @return The buffer, or NULL when the payload is not encoded and can be read directly.
+     */
+    private PayloadBuffer decodePayload(final eXistMessage em) throws IOException {
+        final PayloadCodec codec = getCodec(em);
+        if (PayloadCodecs.IDENTITY.equals(codec.getName())) {
+            return null;
+        }
 
-            throw new MessageReceiveException(String.format("Unable to write document into database. Reason: %s", ex.getMessage()), em);
+        final PayloadBuffer buffer = new PayloadBuffer(bufferThreshold);
+        try (final InputStream is = codec.decode(openPayload(em))) {
+            buffer.readFrom(is);
 
+        } catch (final IOException | RuntimeException ex) {
+            buffer.close();
+            throw ex;
         }
+        return buffer;
+    }
+
+    /**
+     * Open the decoded payload, from the buffer when the payload was decoded into a buffer.
+     */
+    private InputStream openDecodedPayload(final eXistMessage em, final PayloadBuffer decoded) throws IOException {
+        return (decoded == null) ? openPayload(em) : decoded.getInputStream();
     }
 
     /**
      * Metadata is updated in database
      * <p>
      */
-    private void updateMetadataDocument(final eXistMessage em) {
+    private void updateMetadataDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
         // Permissions
         // Mimetype
         // owner/groupname
@@ -461,16 +1125,11 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // References to the database
         final DocumentImpl resource;
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK)) {
-
-            setOrigin(txn);
+        try (final Collection collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK)) {
 
             // Open collection if possible, else abort
             if (collection == null) {
                 LOG.error("Collection does not exist {}", colURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -478,13 +1137,18 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             resource = collection.getDocument(broker, docURI);
             if (resource == null) {
                 LOG.error("No resource found for path: {}", sourcePath);
-                txn.abort();
                 return; // be silent
             }
 
             // Get supplied metadata
             final Map<String, Object> metaData = em.getMetadata();
 
+            if (isOlder(getLastModified(metaData), resource)) {
+                LOG.info("Replicated metadata of {} is older than the local document, ignored.", sourcePath);
+                highWaterMarks.staleModified();
+                return;
+            }
+
             final Permission perms = resource.getPermissions();
 
             final Optional<String> userName = getOrCreateUserName(metaData);
@@ -516,9 +1180,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             // Make persistent
             broker.storeMetadata(txn, resource);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), e, em);
@@ -526,26 +1187,83 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
     }
 
+    /**
+     * Check if the replicated version of a document was modified before the local document.
+     */
+    private static boolean isOlder(final Optional<Long> lastModified, final DocumentImpl document) {
+        return lastModified.isPresent() && lastModified.get() < document.getMetadata().getLastModified();
+    }
+
+    /**
+     * Compare the digest of the replicated content with the digest of the local document. The
+     * digest of the version that was applied last is cached, the local document is only
+     * serialized when its path is not in the cache. Only the document is locked, for reading,
+     * while it is serialized; the collection is not locked.
+     * <p>
+     * The caller must check that the local document still has the returned modification time.
+     *
+     * @return The last modification time of the local document when the message carries a digest
+     * that matches it, empty otherwise.
+     */
+    private OptionalLong getUnchangedVersion(final DBBroker broker, final Txn txn, final XmldbURI sourcePath,
+                                             final eXistMessage em) {
+
+        final Object digest = em.getMetadata().get(MessageHelper.EXIST_RESOURCE_DIGEST);
+        if (digest == null) {
+            // Sent by an older version
+            return OptionalLong.empty();
+        }
+
+        final AppliedDigests.Version applied = appliedDigests.get(sourcePath.toString());
+        if (applied != null) {
+            return digest.toString().equals(applied.getDigest())
+                    ? OptionalLong.of(applied.getLastModified())
+                    : OptionalLong.empty();
+        }
+
+        try (final LockedDocument lockedDocument = broker.getXMLResource(sourcePath, Lock.LockMode.READ_LOCK)) {
+            if (lockedDocument == null) {
+                return OptionalLong.empty();
+            }
+            final DocumentImpl document = lockedDocument.getDocument();
+
+            // Cheap check first, the content length of binary documents is exact
+            if (document.getResourceType() == DocumentImpl.BINARY_FILE) {
+                final Object contentLength = em.getMetadata().get(MessageHelper.EXIST_RESOURCE_CONTENTLENGTH);
+                if (contentLength instanceof Number && ((Number) contentLength).longValue() != document.getContentLength()) {
+                    return OptionalLong.empty();
+                }
+            }
+
+            final String localDigest = MessageHelper.digest(broker, txn, document);
+            final long localModified = document.getMetadata().getLastModified();
+            appliedDigests.put(sourcePath.toString(), localDigest, localModified);
+
+            if (digest.toString().equals(localDigest)) {
+                return OptionalLong.of(localModified);
+            }
+
+        } catch (final IOException | PermissionDeniedException ex) {
+            LOG.debug("Unable to calculate digest of {}: {}", sourcePath, ex.getMessage());
+        }
+        return OptionalLong.empty();
+    }
+
     /**
      * Remove document from database. If a document or collection does not exist, this is logged.
      */
-    private void deleteDocument(final eXistMessage em) {
+    private void deleteDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
         final XmldbURI colURI = sourcePath.removeLastSegment();
         final XmldbURI docURI = sourcePath.lastSegment();
 
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK)) {
-
-            setOrigin(txn);
+        try (final Collection collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK)) {
 
             // Open collection if possible, else abort
             if (collection == null) {
                 LOG.error("Collection does not exist {}", colURI);
-                txn.abort();
                 return; // silently ignore
             }
 
@@ -553,7 +1271,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             final DocumentImpl resource = collection.getDocument(broker, docURI);
             if (resource == null) {
                 LOG.error("No resource found for path: {}", sourcePath);
-                txn.abort();
                 return; // silently ignore
             }
 
@@ -565,9 +1282,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 collection.removeXMLResource(txn, broker, resource.getFileURI());
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -584,31 +1298,24 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Remove collection from database
      */
-    private void deleteCollection(final eXistMessage em) {
+    private void deleteCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection collection = broker.openCollection(sourcePath, Lock.LockMode.WRITE_LOCK)) {
-
-            setOrigin(txn);
+        try (final Collection collection = broker.openCollection(sourcePath, Lock.LockMode.WRITE_LOCK)) {
 
             // Open collection if possible, else abort
 
             if (collection == null) {
                 LOG.error("Collection does not exist: {}", sourcePath);
-                txn.abort();
                 return;  // be silent
             }
 
             // Remove collection
+            knownCollections.invalidate(sourcePath);
             broker.removeCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -624,7 +1331,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Created collection in database
      */
-    private void createCollection(final eXistMessage em) {
+    private void createCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
@@ -638,23 +1345,19 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         final Optional<Long> createTime = getCreationTime(metaData);
 
         // Be sure collection exists
-        createOrCheckCollection(sourcePath);
+        createOrCheckCollection(broker, txn, sourcePath);
 
         // Update meta data
-        updateCollectionMetadata(sourcePath, userName, groupName, mode, createTime);
+        updateCollectionMetadata(broker, txn, sourcePath, userName, groupName, mode, createTime);
     }
 
     /**
      * Create new collection when required.
      */
-    private void createOrCheckCollection(final XmldbURI sourcePath) throws MessageReceiveException {
+    private void createOrCheckCollection(final DBBroker broker, final Txn txn, final XmldbURI sourcePath) throws MessageReceiveException {
 
         // New collection to be created
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection collection = broker.getOrCreateCollection(txn, sourcePath)) {
-
-            setOrigin(txn);
+        try (final Collection collection = broker.getOrCreateCollection(txn, sourcePath)) {
 
             // Create collection when required
             if (collection == null) {
@@ -663,9 +1366,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
             broker.saveCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
+            knownCollections.add(sourcePath);
 
         } catch (final Throwable t) {
 
@@ -684,17 +1385,14 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Create new collection when required, or force update meta-data when already present.
      */
-    private Collection updateCollectionMetadata(final XmldbURI sourcePath, final Optional<String> userName,
+    private Collection updateCollectionMetadata(final DBBroker broker, final Txn txn,
+                                                final XmldbURI sourcePath, final Optional<String> userName,
                                                 final Optional<String> groupName, final Optional<Integer> mode,
                                                 final Optional<Long> createTime) throws MessageReceiveException {
 
 
         // New collection to be created
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection collection = broker.openCollection(sourcePath, Lock.LockMode.WRITE_LOCK)) {
-
-            setOrigin(txn);
+        try (final Collection collection = broker.openCollection(sourcePath, Lock.LockMode.WRITE_LOCK)) {
 
             // Create collection when required
             if (collection == null) {
@@ -718,9 +1416,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
             broker.saveCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
             // ToDO... possible?
             return collection;
 
@@ -738,7 +1433,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     }
 
 
-    private void relocateDocument(final eXistMessage em, final boolean keepDocument) {
+    private void relocateDocument(final DBBroker broker, final Txn txn, final eXistMessage em, final boolean keepDocument) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
         final XmldbURI sourceColURI = sourcePath.removeLastSegment();
@@ -755,17 +1450,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Use the correct lock
         final Lock.LockMode lockTypeOriginal = keepDocument ? Lock.LockMode.READ_LOCK : Lock.LockMode.WRITE_LOCK;
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection srcCollection = broker.openCollection(sourceColURI, lockTypeOriginal);
+        try (final Collection srcCollection = broker.openCollection(sourceColURI, lockTypeOriginal);
              final Collection destCollection = broker.openCollection(destColURI, Lock.LockMode.WRITE_LOCK)) {
 
-            setOrigin(txn);
-
             // Open collection if possible, else abort
             if (srcCollection == null) {
                 LOG.error("Collection not found: {}", sourceColURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -773,14 +1463,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             srcDocument = srcCollection.getDocument(broker, sourceDocURI);
             if (srcDocument == null) {
                 LOG.error("No resource found for path: {}", sourcePath);
-                txn.abort();
                 return; // be silent
             }
 
             // Open collection if possible, else abort
             if (destCollection == null) {
                 LOG.error("Destination collection {} does not exist.", destColURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -791,9 +1479,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 broker.moveResource(txn, srcDocument, destCollection, destDocURI);
             }
 
-            // Commit change
-            txnManager.commit(txn);
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), e, em);
@@ -801,7 +1486,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         }
     }
 
-    private void relocateCollection(final eXistMessage em, final boolean keepCollection) {
+    private void relocateCollection(final DBBroker broker, final Txn txn, final eXistMessage em, final boolean keepCollection) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
@@ -815,17 +1500,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Use the correct lock
         final Lock.LockMode lockTypeOriginal = keepCollection ? Lock.LockMode.READ_LOCK : Lock.LockMode.WRITE_LOCK;
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection srcCollection = broker.openCollection(sourcePath, lockTypeOriginal);
+        try (final Collection srcCollection = broker.openCollection(sourcePath, lockTypeOriginal);
              final Collection destCollection = broker.openCollection(destColURI, Lock.LockMode.WRITE_LOCK)) {
 
-            setOrigin(txn);
-
             // Open source collection if possible, else abort
             if (srcCollection == null) {
                 LOG.error("Source collection {} does not exist.", sourcePath);
-                txn.abort();
                 return; // be silent
             }
 
@@ -833,7 +1513,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             // TODO: potential improvement: create collection, risk: permissions of parent collections.
             if (destCollection == null) {
                 LOG.error("Destination collection {} does not exist.", destColURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -841,12 +1520,10 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             if (keepCollection) {
                 broker.copyCollection(txn, srcCollection, destCollection, destDocURI);
             } else {
+                knownCollections.invalidate(sourcePath);
                 broker.moveCollection(txn, srcCollection, destCollection, destDocURI);
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), em);
@@ -859,7 +1536,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         return "replication";
     }
 
-    private void updateMetadataCollection(final eXistMessage em) {
+    private void updateMetadataCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
         final XmldbURI sourceColURI = XmldbURI.create(em.getResourcePath());
 
         final Map<String, Object> metaData = em.getMetadata();
@@ -873,16 +1550,11 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         final Optional<Long> created = getCreationTime(metaData);
 
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             final Txn txn = txnManager.beginTransaction();
-             final Collection collection = broker.openCollection(sourceColURI, Lock.LockMode.WRITE_LOCK)) {
-
-            setOrigin(txn);
+        try (final Collection collection = broker.openCollection(sourceColURI, Lock.LockMode.WRITE_LOCK)) {
 
             // Open collection if possible, else abort
             if (collection == null) {
                 LOG.error("Collection not found: {}", sourceColURI);
-                txnManager.abort(txn);
                 return; // be silent
             }
 
@@ -902,9 +1574,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             // Make persistent
             broker.saveCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), em);
@@ -929,6 +1598,16 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             return Optional.empty();
         }
 
+        // The fallback is not cached, an account that is created locally is used right away
+        final String resolved = accounts.resolve(userName, this::resolveUserName);
+        return Optional.of(resolved == null ? securityManager.getSystemSubject().getName() : resolved);
+    }
+
+    /**
+     * @return The name of the existing account, NULL when it does not exist.
+     */
+    private String resolveUserName(final String userName) {
+
         Account account = securityManager.getAccount(userName);
         if (account == null) {
             LOG.error("Username {} does not exist.", userName);
@@ -946,10 +1625,10 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 //
 //        // Fallback
 //        if (account == null) {
-            account = securityManager.getSystemSubject();
+            return null;
         }
 
-        return Optional.of(account.getName());
+        return account.getName();
     }
 
     /**
@@ -967,6 +1646,16 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             return Optional.empty();
         }
 
+        // The fallback is not cached, a group that is created locally is used right away
+        final String resolved = groups.resolve(groupName, this::resolveGroupName);
+        return Optional.of(resolved == null ? securityManager.getSystemSubject().getDefaultGroup().getName() : resolved);
+    }
+
+    /**
+     * @return The name of the existing group, NULL when it does not exist.
+     */
+    private String resolveGroupName(final String groupName) {
+
         Group group = securityManager.getGroup(groupName);
         if (group == null) {
             LOG.info("Group {} does not exist.", groupName);
@@ -982,10 +1671,10 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 //
 //        // Fallback
 //        if (group == null) {
-            group = securityManager.getSystemSubject().getDefaultGroup();
+            return null;
         }
 
-        return Optional.of(group.getName());
+        return group.getName();
     }
 
     private Optional<Long> getLastModified(final Map<String, Object> metaData) {
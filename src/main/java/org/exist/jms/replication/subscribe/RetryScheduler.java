@@ -0,0 +1,327 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.eXistMessage;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Retries received messages that could not be applied, without blocking the consumer.
+ * <p>
+ * A failing message is parked with its payload and acknowledged by the listener, so the
+ * messages after it are applied. The parked message is applied again by a separate thread,
+ * after a delay that doubles after each attempt. When all attempts fail the message stays
+ * parked until it is replayed or purged by an administrator.
+ * <p>
+ * Messages that are parked when the database is stopped are retried after a restart.
+ *
+ * @author Dannes Wessels
+ */
+class RetryScheduler {
+
+    private final static Logger LOG = LogManager.getLogger(RetryScheduler.class);
+
+    private final ParkedMessages store;
+    private final int maxAttempts;
+    private final long delay;
+    private final long maxDelay;
+    private final Consumer<eXistMessage> applyFunction;
+
+    private final NavigableMap<Long, ParkedMessages.Entry> entries = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong nrFailed = new AtomicLong();
+    private final AtomicLong nrRetries = new AtomicLong();
+    private final AtomicLong nrRecovered = new AtomicLong();
+    private final AtomicLong nrParked = new AtomicLong();
+    private final AtomicLong nrReplayed = new AtomicLong();
+    private final AtomicLong nrPurged = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param store         Storage of the parked messages
+     * @param maxAttempts   Number of retries before a message stays parked, 0 to park it at once
+     * @param delay         Delay in milliseconds before the first retry
+     * @param maxDelay      Maximum delay in milliseconds between two retries
+     * @param applyFunction Applies a message to the database, throws an exception when it fails
+     */
+    RetryScheduler(final ParkedMessages store, final int maxAttempts, final long delay, final long maxDelay,
+                   final Consumer<eXistMessage> applyFunction) {
+        this.store = store;
+        this.maxAttempts = maxAttempts;
+        this.delay = delay;
+        this.maxDelay = Math.max(delay, maxDelay);
+        this.applyFunction = applyFunction;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "jms-replication-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Messages parked in a previous run
+        try {
+            final List<ParkedMessages.Entry> parked = store.load();
+            parked.forEach(this::schedule);
+            if (!parked.isEmpty()) {
+                LOG.info("Found {} parked replication messages in {}", parked.size(), store.getDirectory());
+            }
+        } catch (final IOException ex) {
+            LOG.error("Unable to read parked messages from {}: {}", store.getDirectory(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Park a message that could not be applied, it is retried later.
+     *
+     * @param em The message
+     * @param t  The reason it could not be applied
+     * @throws MessageReceiveException The message could not be parked, it must not be acknowledged.
+     */
+    void failed(final eXistMessage em, final Throwable t) {
+        final ParkedMessages.Entry entry;
+        try {
+            entry = store.park(em, t);
+
+        } catch (final IOException ex) {
+            LOG.error("Unable to park {}: {}", em.getReport(), ex.getMessage());
+            throw new MessageReceiveException(String.format("Unable to park message: %s", ex.getMessage()), ex);
+        }
+
+        nrFailed.incrementAndGet();
+        schedule(entry);
+        reportExhausted(entry);
+    }
+
+    /**
+     * Schedule the next attempt of an entry, or keep it parked when all attempts failed.
+     */
+    private void schedule(final ParkedMessages.Entry entry) {
+
+        // The first failure was not a retry
+        final int retries = entry.getAttempts() - 1;
+        final int generation = entry.nextGeneration();
+
+        if (retries >= maxAttempts) {
+            entry.setNextAttempt(0);
+            entries.put(entry.getId(), entry);
+            return;
+        }
+
+        final long wait = Math.min(maxDelay, delay << Math.min(retries, 30));
+        entry.setNextAttempt(System.currentTimeMillis() + wait);
+        entries.put(entry.getId(), entry);
+
+        timer.schedule(() -> retry(entry.getId(), generation), wait, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(final long id, final int generation) {
+
+        // Not available when replayed or purged in the meantime, or parked again by a replay
+        final ParkedMessages.Entry entry = entries.get(id);
+        if (entry == null || entry.getGeneration() != generation || !entries.remove(id, entry)) {
+            return;
+        }
+
+        // Replayed and parked again between the check and the removal
+        if (entry.getGeneration() != generation) {
+            entries.put(id, entry);
+            return;
+        }
+
+        nrRetries.incrementAndGet();
+        if (attempt(entry)) {
+            nrRecovered.incrementAndGet();
+            LOG.info("Applied {} after {} failed attempts", entry.getDescription(), entry.getAttempts());
+        } else {
+            schedule(entry);
+            reportExhausted(entry);
+        }
+    }
+
+    private void reportExhausted(final ParkedMessages.Entry entry) {
+        if (entry.getNextAttempt() == 0) {
+            nrParked.incrementAndGet();
+            LOG.warn("Giving up on {} after {} attempts, the message is parked: {}",
+                    entry.getDescription(), entry.getAttempts(), entry.getError());
+        }
+    }
+
+    /**
+     * Apply a parked message. The entry is removed when the message is applied.
+     *
+     * @return TRUE when the message was applied
+     */
+    private boolean attempt(final ParkedMessages.Entry entry) {
+        eXistMessage em = null;
+        try {
+            em = store.read(entry);
+            applyFunction.accept(em);
+            store.remove(entry);
+            return true;
+
+        } catch (final Throwable t) {
+            LOG.debug("Attempt {} of {} failed: {}", entry.getAttempts(), entry.getDescription(), t.getMessage());
+            store.failed(entry, t);
+            return false;
+
+        } finally {
+            if (em != null) {
+                em.deletePayloadFile();
+            }
+        }
+    }
+
+    /**
+     * Apply parked messages now, in order. Messages that fail again stay parked.
+     *
+     * @param ids Identifiers of the messages, all messages when empty
+     * @return Number of applied messages
+     */
+    int replay(final List<Long> ids) {
+        int applied = 0;
+        for (final long id : select(ids)) {
+            final ParkedMessages.Entry entry = entries.remove(id);
+            if (entry == null) {
+                continue;
+            }
+
+            if (attempt(entry)) {
+                applied++;
+                nrReplayed.incrementAndGet();
+            } else {
+                // Stays parked, a pending retry is ignored
+                entry.nextGeneration();
+                entry.setNextAttempt(0);
+                entries.put(id, entry);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Remove parked messages without applying them.
+     *
+     * @param ids Identifiers of the messages, all messages when empty
+     * @return Number of removed messages
+     */
+    int purge(final List<Long> ids) {
+        int purged = 0;
+        for (final long id : select(ids)) {
+            final ParkedMessages.Entry entry = entries.remove(id);
+            if (entry != null) {
+                LOG.info("Purged parked message {}", entry.getDescription());
+                store.remove(entry);
+                purged++;
+                nrPurged.incrementAndGet();
+            }
+        }
+        return purged;
+    }
+
+    private List<Long> select(final List<Long> ids) {
+        return ids.isEmpty() ? new ArrayList<>(entries.keySet()) : ids;
+    }
+
+    /**
+     * Stop retrying. Parked messages are kept, they are retried after a restart.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+        if (!entries.isEmpty()) {
+            LOG.info("{} parked replication messages are kept in {}", entries.size(), store.getDirectory());
+        }
+    }
+
+    /**
+     * Write the parked messages and their last error.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void writeEntries(final MemTreeBuilder builder) {
+
+        for (final ParkedMessages.Entry entry : entries.values()) {
+            builder.startElement("", "message", "message", null);
+            builder.addAttribute(new QName("id", null, null), "" + entry.getId());
+
+            if (entry.getMessageId() != null) {
+                writeValue(builder, "messageId", entry.getMessageId());
+            }
+            writeValue(builder, "description", entry.getDescription());
+            writeValue(builder, "attempts", "" + entry.getAttempts());
+            writeValue(builder, "firstFailure", Instant.ofEpochMilli(entry.getFirstFailure()).toString());
+            writeValue(builder, "lastFailure", Instant.ofEpochMilli(entry.getLastFailure()).toString());
+            if (entry.getNextAttempt() > 0) {
+                writeValue(builder, "nextAttempt", Instant.ofEpochMilli(entry.getNextAttempt()).toString());
+            }
+            writeValue(builder, "error", entry.getError());
+
+            builder.endElement();
+        }
+    }
+
+    /**
+     * Write statistics of the retries to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "retries", "retries", null);
+
+        final long waiting = entries.values().stream().filter(e -> e.getNextAttempt() > 0).count();
+
+        writeValue(builder, "maxAttempts", "" + maxAttempts);
+        writeValue(builder, "delay", "" + delay);
+        writeValue(builder, "maxDelay", "" + maxDelay);
+        writeValue(builder, "waiting", "" + waiting);
+        writeValue(builder, "parked", "" + (entries.size() - waiting));
+        writeValue(builder, "nrFailed", "" + nrFailed.get());
+        writeValue(builder, "nrRetries", "" + nrRetries.get());
+        writeValue(builder, "nrRecovered", "" + nrRecovered.get());
+        writeValue(builder, "nrParked", "" + nrParked.get());
+        writeValue(builder, "nrReplayed", "" + nrReplayed.get());
+        writeValue(builder, "nrPurged", "" + nrPurged.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+}
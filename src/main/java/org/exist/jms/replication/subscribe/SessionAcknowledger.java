@@ -0,0 +1,152 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Acknowledges the messages of a JMS session. A session acknowledges all messages that it
+ * delivered, and only the thread that runs the listener may use the session. Messages are
+ * therefore acknowledged by the listener only, when all delivered messages are applied or
+ * parked and no chunked transfer is partially received.
+ * <p>
+ * When messages are applied by other threads this is rarely the case under continuous load.
+ * After a number of deferred acknowledgements the listener waits until all delivered messages
+ * are applied, and then acknowledges them. Messages that are applied but not acknowledged when
+ * no more messages arrive are redelivered after a restart, these are recognized as applied.
+ *
+ * @author Dannes Wessels
+ */
+class SessionAcknowledger {
+
+    private final static Logger LOG = LogManager.getLogger(SessionAcknowledger.class);
+
+    private static final long DRAIN_TIMEOUT = 30000;
+
+    private final int interval;
+    private final BooleanSupplier canAcknowledge;
+    private final Drain drainFunction;
+
+    // Only used by the thread of the session
+    private int nrUnacknowledged = 0;
+
+    private volatile long nrAcknowledged = 0;
+    private volatile long nrDeferred = 0;
+    private volatile long nrDrains = 0;
+    private volatile long nrTimeouts = 0;
+    private volatile long drainTime = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param interval       Maximum number of deferred acknowledgements before the listener waits
+     * @param canAcknowledge Returns TRUE when all delivered messages are applied and no transfer is partial
+     * @param drainFunction  Waits until all delivered messages are applied
+     */
+    SessionAcknowledger(final int interval, final BooleanSupplier canAcknowledge, final Drain drainFunction) {
+        this.interval = Math.max(1, interval);
+        this.canAcknowledge = canAcknowledge;
+        this.drainFunction = drainFunction;
+    }
+
+    /**
+     * Acknowledge the delivered messages, or defer this when not all of them are applied.
+     * Must be called by the thread of the session, after the message is applied or handed over.
+     *
+     * @param msg The last delivered message
+     * @throws JMSException The messages could not be acknowledged.
+     */
+    void acknowledge(final Message msg) throws JMSException {
+        nrUnacknowledged++;
+
+        if (nrUnacknowledged >= interval && !canAcknowledge.getAsBoolean()) {
+            drain();
+        }
+
+        if (canAcknowledge.getAsBoolean()) {
+            msg.acknowledge();
+            nrAcknowledged++;
+            nrUnacknowledged = 0;
+        } else {
+            nrDeferred++;
+        }
+    }
+
+    private void drain() {
+        nrDrains++;
+        final long start = System.currentTimeMillis();
+        try {
+            if (!drainFunction.drain(DRAIN_TIMEOUT)) {
+                nrTimeouts++;
+                LOG.warn("{} delivered messages are not applied after {} ms, the acknowledgement is deferred", nrUnacknowledged, DRAIN_TIMEOUT);
+            }
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+
+        } finally {
+            drainTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Write statistics of the acknowledgements to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "acknowledge", "acknowledge", null);
+
+        writeValue(builder, "interval", "" + interval);
+        writeValue(builder, "nrAcknowledged", "" + nrAcknowledged);
+        writeValue(builder, "nrDeferred", "" + nrDeferred);
+        writeValue(builder, "nrDrains", "" + nrDrains);
+        writeValue(builder, "nrTimeouts", "" + nrTimeouts);
+        writeValue(builder, "drainTime", "" + drainTime);
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    /**
+     * Waits until all delivered messages are applied.
+     */
+    @FunctionalInterface
+    interface Drain {
+
+        /**
+         * @param timeout Maximum time to wait in milliseconds
+         * @return TRUE when all delivered messages are applied
+         */
+        boolean drain(long timeout) throws InterruptedException;
+    }
+}
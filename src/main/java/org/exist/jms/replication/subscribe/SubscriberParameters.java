@@ -25,6 +25,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.exist.jms.replication.shared.ClientParameterException;
 import org.exist.jms.replication.shared.ClientParameters;
 import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.PayloadBuffer;
 
 import javax.naming.Context;
 
@@ -45,6 +46,28 @@ public class SubscriberParameters extends ClientParameters {
 
     private boolean noLocal = Boolean.TRUE;
     private boolean durable = Boolean.TRUE;
+    private int concurrency = 1;
+    private int batchSize = 1;
+    private long batchTime = 500;
+    private int processedSize = 65536;
+    private int retryAttempts = 5;
+    private long retryDelay = 1000;
+    private long retryMaxDelay = 300000;
+    private long reconnectDelay = 1000;
+    private long reconnectMaxDelay = 60000;
+    private int prefetch = 0;
+    private int admissionReserve = 0;
+    private long admissionDelay = 100;
+    private int window = 256;
+    private long windowBytes = 64L * 1024 * 1024;
+    private boolean windowAdaptive = false;
+    private long windowLatency = 1000;
+    private int pipelineDecoders = 0;
+    private int pipelineQueue = 64;
+    private int subtreeChunk = 0;
+    private long principalExpiry = 60000;
+    private int bufferThreshold = PayloadBuffer.DEFAULT_THRESHOLD;
+    private long transferExpiry = 300000;
 
     public boolean isDurable() {
         return durable;
@@ -62,6 +85,94 @@ public class SubscriberParameters extends ClientParameters {
         return noLocal;
     }
 
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchTime() {
+        return batchTime;
+    }
+
+    public int getProcessedSize() {
+        return processedSize;
+    }
+
+    public int getRetryAttempts() {
+        return retryAttempts;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    public long getReconnectMaxDelay() {
+        return reconnectMaxDelay;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public int getAdmissionReserve() {
+        return admissionReserve;
+    }
+
+    public long getAdmissionDelay() {
+        return admissionDelay;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public long getWindowBytes() {
+        return windowBytes;
+    }
+
+    public boolean isWindowAdaptive() {
+        return windowAdaptive;
+    }
+
+    public long getWindowLatency() {
+        return windowLatency;
+    }
+
+    public int getPipelineDecoders() {
+        return pipelineDecoders;
+    }
+
+    public int getPipelineQueue() {
+        return pipelineQueue;
+    }
+
+    public int getSubtreeChunk() {
+        return subtreeChunk;
+    }
+
+    public long getPrincipalExpiry() {
+        return principalExpiry;
+    }
+
+    public int getBufferThreshold() {
+        return bufferThreshold;
+    }
+
+    public long getTransferExpiry() {
+        return transferExpiry;
+    }
+
     @Override
     public void processParameters() throws ClientParameterException {
 
@@ -163,16 +274,121 @@ public class SubscriberParameters extends ClientParameters {
             throw new ClientParameterException(errorText);
         }
 
+        // Number of threads that apply the received messages
+        concurrency = getInteger(Constants.SUBSCRIBER_CONCURRENCY, concurrency, 1);
+
+        // Number of messages applied in one transaction, and the maximum time they wait
+        batchSize = getInteger(Constants.SUBSCRIBER_BATCH_SIZE, batchSize, 1);
+        batchTime = getNumber(Constants.SUBSCRIBER_BATCH_TIME, batchTime, 1);
+
+        // Number of applied messages that are remembered to detect redeliveries, 0 to disable
+        processedSize = getInteger(Constants.SUBSCRIBER_PROCESSED_SIZE, processedSize, 0);
+
+        // Retries of messages that could not be applied, 0 attempts to park them at once
+        retryAttempts = getInteger(Constants.SUBSCRIBER_RETRY_ATTEMPTS, retryAttempts, 0);
+        retryDelay = getNumber(Constants.SUBSCRIBER_RETRY_DELAY, retryDelay, 1);
+        retryMaxDelay = getNumber(Constants.SUBSCRIBER_RETRY_MAX_DELAY, retryMaxDelay, 1);
+
+        // Reconnects after the connection is lost, 0 to disable
+        reconnectDelay = getNumber(Constants.CONNECTION_RECONNECT_DELAY, reconnectDelay, 0);
+        reconnectMaxDelay = getNumber(Constants.CONNECTION_RECONNECT_MAX_DELAY, reconnectMaxDelay, 1);
+
+        // Messages sent to the consumer in advance, 0 for the default of the broker
+        prefetch = getInteger(Constants.CONSUMER_PREFETCH, prefetch, 0);
+
+        // Brokers kept free for other users of the database, 0 to disable
+        admissionReserve = getInteger(Constants.CONSUMER_ADMISSION_RESERVE, admissionReserve, 0);
+        admissionDelay = getNumber(Constants.CONSUMER_ADMISSION_DELAY, admissionDelay, 1);
+
+        // Received messages and payload bytes that are not yet applied
+        window = getInteger(Constants.SUBSCRIBER_WINDOW, window, 1);
+        windowBytes = getNumber(Constants.SUBSCRIBER_WINDOW_BYTES, windowBytes, 1);
+        windowLatency = getNumber(Constants.SUBSCRIBER_WINDOW_LATENCY, windowLatency, 1);
+
+        // Adapt the window to the time it takes to apply messages
+        value = props.getProperty(Constants.SUBSCRIBER_WINDOW_ADAPTIVE);
+        if (value != null) {
+
+            if ("FALSE".equalsIgnoreCase(value) || "NO".equalsIgnoreCase(value)) {
+                windowAdaptive = false;
+
+            } else if ("TRUE".equalsIgnoreCase(value) || "YES".equalsIgnoreCase(value)) {
+                windowAdaptive = true;
+
+            } else {
+                final String errorText = "'" + Constants.SUBSCRIBER_WINDOW_ADAPTIVE + "' contains wrong value '" + value + "'";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
+        // Decode and prepare messages before they are applied, 0 to disable
+        pipelineDecoders = getInteger(Constants.SUBSCRIBER_PIPELINE_DECODERS, pipelineDecoders, 0);
+        pipelineQueue = getInteger(Constants.SUBSCRIBER_PIPELINE_QUEUE, pipelineQueue, 1);
+
+        // Delete, move or copy collections in chunks, 0 to disable
+        subtreeChunk = getInteger(Constants.SUBSCRIBER_SUBTREE_CHUNK, subtreeChunk, 0);
+
+        // Time that resolved owner and group names are used, 0 to look them up for each message
+        principalExpiry = getNumber(Constants.SUBSCRIBER_PRINCIPAL_EXPIRY, principalExpiry, 0);
+
+        // Received and decoded payloads larger than the threshold are written to a temporary file, 0 to always use a file
+        bufferThreshold = getInteger(Constants.SUBSCRIBER_BUFFER_THRESHOLD, bufferThreshold, 0);
+
+        // Time that an incomplete chunked transfer waits for its next chunk, messages are not acknowledged meanwhile
+        transferExpiry = getNumber(Constants.SUBSCRIBER_TRANSFER_EXPIRY, transferExpiry, 1);
+
         // Get connection authentication
         connectionUsername = props.getProperty(Constants.JMS_CONNECTION_USERNAME);
         connectionPassword = props.getProperty(Constants.JMS_CONNECTION_PASSWORD);
     }
 
+    private int getInteger(final String key, final int defaultValue, final int minimum) throws ClientParameterException {
+        final long number = getNumber(key, defaultValue, minimum);
+        if (number > Integer.MAX_VALUE) {
+            final String errorText = String.format("Unable to set %s; got '%d'. value must be at most %d", key, number, Integer.MAX_VALUE);
+            LOG.error(errorText);
+            throw new ClientParameterException(errorText);
+        }
+        return (int) number;
+    }
+
+    private long getNumber(final String key, final long defaultValue, final long minimum) throws ClientParameterException {
+        final String value = props.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+
+        try {
+            final long number = Long.parseLong(value.trim());
+            if (number < minimum) {
+                throw new NumberFormatException("value must be at least " + minimum);
+            }
+            return number;
+
+        } catch (final NumberFormatException ex) {
+            final String errorText = String.format("Unable to set %s; got '%s'. %s", key, value, ex.getMessage());
+            LOG.error(errorText);
+            throw new ClientParameterException(errorText);
+        }
+    }
+
     @Override
     public String getReport() {
-        return String.format("Subscriber configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s'",
+        return String.format("Subscriber configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%s' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d'",
                 Context.INITIAL_CONTEXT_FACTORY, initialContextFactory, Context.PROVIDER_URL, providerUrl,
                 Constants.DESTINATION, topic, Constants.CLIENT_ID, clientId, SUBSCRIBER_NAME, subscriberName,
-                MESSAGE_SELECTOR, messageSelector, NO_LOCAL, noLocal, DURABLE, durable);
+                MESSAGE_SELECTOR, messageSelector, NO_LOCAL, noLocal, DURABLE, durable,
+                Constants.SUBSCRIBER_CONCURRENCY, concurrency, Constants.SUBSCRIBER_BATCH_SIZE, batchSize,
+                Constants.SUBSCRIBER_BATCH_TIME, batchTime, Constants.SUBSCRIBER_PROCESSED_SIZE, processedSize,
+                Constants.SUBSCRIBER_RETRY_ATTEMPTS, retryAttempts, Constants.SUBSCRIBER_RETRY_DELAY, retryDelay,
+                Constants.SUBSCRIBER_RETRY_MAX_DELAY, retryMaxDelay, Constants.CONNECTION_RECONNECT_DELAY, reconnectDelay,
+                Constants.CONNECTION_RECONNECT_MAX_DELAY, reconnectMaxDelay, Constants.CONSUMER_PREFETCH, prefetch,
+                Constants.CONSUMER_ADMISSION_RESERVE, admissionReserve, Constants.CONSUMER_ADMISSION_DELAY, admissionDelay,
+                Constants.SUBSCRIBER_WINDOW, window, Constants.SUBSCRIBER_WINDOW_BYTES, windowBytes,
+                Constants.SUBSCRIBER_WINDOW_ADAPTIVE, windowAdaptive, Constants.SUBSCRIBER_WINDOW_LATENCY, windowLatency,
+                Constants.SUBSCRIBER_PIPELINE_DECODERS, pipelineDecoders, Constants.SUBSCRIBER_PIPELINE_QUEUE, pipelineQueue,
+                Constants.SUBSCRIBER_SUBTREE_CHUNK, subtreeChunk, Constants.SUBSCRIBER_PRINCIPAL_EXPIRY, principalExpiry,
+                Constants.SUBSCRIBER_BUFFER_THRESHOLD, bufferThreshold, Constants.SUBSCRIBER_TRANSFER_EXPIRY, transferExpiry);
     }
 }
@@ -0,0 +1,562 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.replication.shared.ReplicationTxnManager;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.security.Permission;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Applies the deletion, move or copy of a collection in chunks. Each chunk of documents and
+ * collections is applied in its own transaction, so the collections are not locked for the
+ * whole operation and the journal does not grow with the size of the tree.
+ * <p>
+ * The progress is saved in a checkpoint file after each chunk. The message is acknowledged when
+ * the whole operation is applied, so after a crash the message is delivered again, or retried
+ * when it was parked, and the operation continues where it stopped. A deletion or move
+ * continues with the resources that are left; a copy skips the resources that were copied.
+ *
+ * @author Dannes Wessels
+ */
+class SubtreeApplier {
+
+    private final static Logger LOG = LogManager.getLogger(SubtreeApplier.class);
+
+    private final BrokerPool brokerPool;
+    private final TransactionManager txnManager;
+    private final int chunkSize;
+    private final Path checkpointFile;
+    private final Consumer<XmldbURI> invalidateFunction;
+
+    private SubtreeProgress interrupted = null;
+    private volatile SubtreeProgress current = null;
+
+    private final AtomicLong nrOperations = new AtomicLong();
+    private final AtomicLong nrResumed = new AtomicLong();
+    private final AtomicLong nrCompleted = new AtomicLong();
+    private final AtomicLong nrChunks = new AtomicLong();
+    private final AtomicLong nrResources = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param brokerPool         The database
+     * @param chunkSize          Number of documents and collections applied in one transaction
+     * @param checkpointFile     File that holds the progress of the operation
+     * @param invalidateFunction Forgets a collection and its sub collections, when removed or moved
+     */
+    SubtreeApplier(final BrokerPool brokerPool, final int chunkSize, final Path checkpointFile,
+                   final Consumer<XmldbURI> invalidateFunction) {
+        this.brokerPool = brokerPool;
+        this.txnManager = brokerPool.getTransactionManager();
+        this.chunkSize = Math.max(1, chunkSize);
+        this.checkpointFile = checkpointFile;
+        this.invalidateFunction = invalidateFunction;
+
+        if (Files.exists(checkpointFile)) {
+            try {
+                interrupted = SubtreeProgress.read(checkpointFile);
+                LOG.info("Found interrupted operation {}, {} resources in {} chunks are applied. It continues when the message is delivered again.",
+                        interrupted.getDescription(), interrupted.getNrResources(), interrupted.getNrChunks());
+
+            } catch (final IOException ex) {
+                LOG.error("Unable to read checkpoint {}: {}", checkpointFile, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return TRUE when the message deletes, moves or copies a collection
+     */
+    static boolean isSubtree(final eXistMessage em) {
+        if (em.getResourceType() != eXistMessage.ResourceType.COLLECTION) {
+            return false;
+        }
+        switch (em.getResourceOperation()) {
+            case DELETE:
+            case MOVE:
+            case COPY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Apply the operation in chunks, or continue it when it was interrupted.
+     *
+     * @param em The message
+     * @throws MessageReceiveException The operation could not be completed, the applied chunks
+     *                                 are kept and the progress is saved.
+     */
+    synchronized void apply(final eXistMessage em) {
+
+        final SubtreeProgress progress;
+        if (interrupted != null && Objects.equals(interrupted.getMessageId(), em.getMessageId())) {
+            progress = interrupted;
+            nrResumed.incrementAndGet();
+            LOG.info("Continuing {} after {} resources", progress.getDescription(), progress.getNrResources());
+
+        } else {
+            if (interrupted != null) {
+                LOG.warn("Interrupted operation {} is not continued, it is replaced by {}", interrupted.getDescription(), em.getReport());
+            }
+            progress = new SubtreeProgress(em.getMessageId(), em.getReport(), System.currentTimeMillis());
+        }
+
+        interrupted = null;
+        current = progress;
+        nrOperations.incrementAndGet();
+
+        final XmldbURI source = XmldbURI.create(em.getResourcePath());
+
+        try (final DBBroker broker = brokerPool.get(Optional.of(brokerPool.getSecurityManager().getSystemSubject()));
+             final Chunk chunk = new Chunk(broker, progress)) {
+
+            if (getChildren(broker, source) == null) {
+                LOG.error("Collection does not exist: {}", source);
+
+            } else if (em.getResourceOperation() == eXistMessage.ResourceOperation.DELETE) {
+                invalidateFunction.accept(source);
+                delete(chunk, source);
+
+            } else {
+                relocate(chunk, em, source);
+            }
+
+            // The last, partially filled, chunk
+            chunk.commit();
+
+        } catch (final Throwable t) {
+            // Continued when the message is applied again
+            interrupted = progress;
+            current = null;
+
+            LOG.error("Applied {} resources of {} in {} chunks: {}", progress.getNrResources(), em.getReport(), progress.getNrChunks(), t.getMessage(), t);
+            throw new MessageReceiveException(String.format("Unable to apply change in chunks: %s", t.getMessage()), t, em);
+        }
+
+        current = null;
+        nrCompleted.incrementAndGet();
+        deleteCheckpoint();
+
+        LOG.info("Applied {}: {} resources in {} chunks", em.getReport(), progress.getNrResources(), progress.getNrChunks());
+    }
+
+    /**
+     * Move or copy a collection into the destination collection.
+     */
+    private void relocate(final Chunk chunk, final eXistMessage em, final XmldbURI source) throws Exception {
+
+        final boolean keep = em.getResourceOperation() == eXistMessage.ResourceOperation.COPY;
+
+        final XmldbURI destPath = XmldbURI.create(em.getDestinationPath());
+        final XmldbURI destColURI = destPath.removeLastSegment();
+
+        if (getChildren(chunk.broker, destColURI) == null) {
+            LOG.error("Destination collection {} does not exist.", destColURI);
+            return; // be silent
+        }
+
+        if ((destPath + "/").startsWith(source + "/")) {
+            throw new MessageReceiveException(String.format("Unable to move or copy %s into itself", source), em);
+        }
+
+        if (!keep) {
+            invalidateFunction.accept(source);
+        }
+        relocate(chunk, source, destPath, keep);
+    }
+
+    /**
+     * Remove the documents and sub collections of a collection, then the collection itself.
+     */
+    private void delete(final Chunk chunk, final XmldbURI path) throws Exception {
+
+        final List<XmldbURI> children = getChildren(chunk.broker, path);
+        if (children == null) {
+            return;
+        }
+
+        for (final XmldbURI child : children) {
+            delete(chunk, path.append(child));
+        }
+
+        int removed;
+        do {
+            removed = 0;
+            try (final Collection collection = chunk.broker.openCollection(path, Lock.LockMode.WRITE_LOCK)) {
+                if (collection == null) {
+                    return;
+                }
+
+                for (final DocumentImpl document : getDocuments(chunk.broker, collection, chunk.remaining())) {
+                    if (document.getResourceType() == DocumentImpl.BINARY_FILE) {
+                        collection.removeBinaryResource(chunk.txn, chunk.broker, document.getFileURI());
+                    } else {
+                        collection.removeXMLResource(chunk.txn, chunk.broker, document.getFileURI());
+                    }
+                    removed++;
+                }
+            }
+            chunk.applied(removed);
+
+        } while (removed > 0);
+
+        removeCollection(chunk, path);
+    }
+
+    /**
+     * Move or copy a collection: create the target collection, then move or copy the documents,
+     * then the sub collections. A moved collection is removed when it is empty.
+     */
+    private void relocate(final Chunk chunk, final XmldbURI source, final XmldbURI target, final boolean keep) throws Exception {
+
+        final List<XmldbURI> children = getChildren(chunk.broker, source);
+        if (children == null) {
+            return;
+        }
+
+        // Copied in an earlier attempt
+        if (!keep || !chunk.progress.isApplied(source.toString(), "")) {
+            createCollection(chunk, source, target);
+            chunk.applied(1, source, "");
+        }
+
+        if (keep) {
+            copyDocuments(chunk, source, target);
+        } else {
+            moveDocuments(chunk, source, target);
+        }
+
+        for (final XmldbURI child : children) {
+            relocate(chunk, source.append(child), target.append(child), keep);
+        }
+
+        if (!keep) {
+            removeCollection(chunk, source);
+        }
+    }
+
+    /**
+     * Create the target collection, with the permissions of the source collection.
+     */
+    private void createCollection(final Chunk chunk, final XmldbURI source, final XmldbURI target) throws Exception {
+
+        try (final Collection sourceCollection = chunk.broker.openCollection(source, Lock.LockMode.READ_LOCK);
+             final Collection targetCollection = chunk.broker.getOrCreateCollection(chunk.txn, target)) {
+
+            if (sourceCollection == null || targetCollection == null) {
+                throw new MessageReceiveException(String.format("Unable to create %s as copy of %s", target, source));
+            }
+
+            final Permission from = sourceCollection.getPermissions();
+            final Permission to = targetCollection.getPermissions();
+            to.setOwner(from.getOwner().getName());
+            to.setGroup(from.getGroup().getName());
+            to.setMode(from.getMode());
+
+            chunk.broker.saveCollection(chunk.txn, targetCollection);
+        }
+    }
+
+    private void moveDocuments(final Chunk chunk, final XmldbURI source, final XmldbURI target) throws Exception {
+
+        int moved;
+        do {
+            moved = 0;
+            try (final Collection sourceCollection = chunk.broker.openCollection(source, Lock.LockMode.WRITE_LOCK);
+                 final Collection targetCollection = chunk.broker.openCollection(target, Lock.LockMode.WRITE_LOCK)) {
+
+                if (sourceCollection == null || targetCollection == null) {
+                    return;
+                }
+
+                for (final DocumentImpl document : getDocuments(chunk.broker, sourceCollection, chunk.remaining())) {
+                    chunk.broker.moveResource(chunk.txn, document, targetCollection, document.getFileURI());
+                    moved++;
+                }
+            }
+            chunk.applied(moved);
+
+        } while (moved > 0);
+    }
+
+    private void copyDocuments(final Chunk chunk, final XmldbURI source, final XmldbURI target) throws Exception {
+
+        // The documents in a fixed order, without the documents copied in an earlier attempt
+        final List<XmldbURI> names = new ArrayList<>();
+        try (final Collection sourceCollection = chunk.broker.openCollection(source, Lock.LockMode.READ_LOCK)) {
+            if (sourceCollection == null) {
+                return;
+            }
+
+            final Iterator<DocumentImpl> documents = sourceCollection.iterator(chunk.broker);
+            while (documents.hasNext()) {
+                final XmldbURI name = documents.next().getFileURI();
+                if (!chunk.progress.isApplied(source.toString(), name.toString())) {
+                    names.add(name);
+                }
+            }
+        }
+        names.sort(Comparator.comparing(XmldbURI::toString));
+
+        int next = 0;
+        while (next < names.size()) {
+            final int end = Math.min(names.size(), next + chunk.remaining());
+
+            try (final Collection sourceCollection = chunk.broker.openCollection(source, Lock.LockMode.READ_LOCK);
+                 final Collection targetCollection = chunk.broker.openCollection(target, Lock.LockMode.WRITE_LOCK)) {
+
+                if (sourceCollection == null || targetCollection == null) {
+                    return;
+                }
+
+                for (int i = next; i < end; i++) {
+                    final DocumentImpl document = sourceCollection.getDocument(chunk.broker, names.get(i));
+                    if (document != null) {
+                        chunk.broker.copyResource(chunk.txn, document, targetCollection, names.get(i));
+                    }
+                }
+            }
+
+            chunk.applied(end - next, source, names.get(end - 1).toString());
+            next = end;
+        }
+    }
+
+    private void removeCollection(final Chunk chunk, final XmldbURI path) throws Exception {
+        try (final Collection collection = chunk.broker.openCollection(path, Lock.LockMode.WRITE_LOCK)) {
+            if (collection != null) {
+                chunk.broker.removeCollection(chunk.txn, collection);
+            }
+        }
+        chunk.applied(1);
+    }
+
+    /**
+     * Get the names of the sub collections, in a fixed order.
+     *
+     * @return The names, or NULL when the collection does not exist
+     */
+    private static List<XmldbURI> getChildren(final DBBroker broker, final XmldbURI path) throws Exception {
+        try (final Collection collection = broker.openCollection(path, Lock.LockMode.READ_LOCK)) {
+            if (collection == null) {
+                return null;
+            }
+
+            final List<XmldbURI> children = new ArrayList<>();
+            collection.collectionIterator(broker).forEachRemaining(children::add);
+            children.sort(Comparator.comparing(XmldbURI::toString));
+            return children;
+        }
+    }
+
+    private static List<DocumentImpl> getDocuments(final DBBroker broker, final Collection collection,
+                                                   final int limit) throws Exception {
+        final List<DocumentImpl> documents = new ArrayList<>();
+        final Iterator<DocumentImpl> iterator = collection.iterator(broker);
+        while (iterator.hasNext() && documents.size() < limit) {
+            documents.add(iterator.next());
+        }
+        return documents;
+    }
+
+    private void writeCheckpoint(final SubtreeProgress progress) {
+        try {
+            progress.write(checkpointFile);
+        } catch (final IOException ex) {
+            LOG.warn("Unable to write checkpoint {}: {}", checkpointFile, ex.getMessage());
+        }
+    }
+
+    private void deleteCheckpoint() {
+        try {
+            Files.deleteIfExists(checkpointFile);
+        } catch (final IOException ex) {
+            LOG.warn("Unable to remove checkpoint {}: {}", checkpointFile, ex.getMessage());
+        }
+    }
+
+    /**
+     * Write statistics of the chunked operations to report, with the progress of the current
+     * or interrupted operation.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "subtree", "subtree", null);
+
+        writeValue(builder, "chunkSize", "" + chunkSize);
+        writeValue(builder, "nrOperations", "" + nrOperations.get());
+        writeValue(builder, "nrResumed", "" + nrResumed.get());
+        writeValue(builder, "nrCompleted", "" + nrCompleted.get());
+        writeValue(builder, "nrChunks", "" + nrChunks.get());
+        writeValue(builder, "nrResources", "" + nrResources.get());
+
+        final SubtreeProgress progress = current;
+        if (progress != null) {
+            writeProgress(builder, "current", progress);
+        } else {
+            final SubtreeProgress stopped;
+            synchronized (this) {
+                stopped = interrupted;
+            }
+            if (stopped != null) {
+                writeProgress(builder, "interrupted", stopped);
+            }
+        }
+
+        builder.endElement();
+    }
+
+    private void writeProgress(final MemTreeBuilder builder, final String name, final SubtreeProgress progress) {
+        builder.startElement("", name, name, null);
+
+        if (progress.getMessageId() != null) {
+            writeValue(builder, "messageId", progress.getMessageId());
+        }
+        writeValue(builder, "description", progress.getDescription());
+        writeValue(builder, "started", Instant.ofEpochMilli(progress.getStarted()).toString());
+        writeValue(builder, "nrChunks", "" + progress.getNrChunks());
+        writeValue(builder, "nrResources", "" + progress.getNrResources());
+
+        final String position = progress.getPositionCollection();
+        if (position != null) {
+            writeValue(builder, "position", position + "/" + progress.getPositionDocument());
+        }
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    /**
+     * The transaction of the current chunk. It is committed, and the progress is saved, when
+     * the chunk is full.
+     */
+    private class Chunk implements AutoCloseable {
+
+        private final DBBroker broker;
+        private final SubtreeProgress progress;
+        private Txn txn;
+        private int count = 0;
+
+        Chunk(final DBBroker broker, final SubtreeProgress progress) {
+            this.broker = broker;
+            this.progress = progress;
+            begin();
+        }
+
+        private void begin() {
+            txn = txnManager.beginTransaction();
+            ReplicationTxnManager.addReplicationTransaction(txn);
+            count = 0;
+        }
+
+        /**
+         * @return Number of resources that fit in the current chunk, at least one
+         */
+        int remaining() {
+            return Math.max(1, chunkSize - count);
+        }
+
+        void applied(final int applied) throws TransactionException {
+            applied(applied, null, null);
+        }
+
+        /**
+         * Register applied resources.
+         *
+         * @param applied    Number of applied resources
+         * @param collection Collection of the last applied resource, when its position is saved
+         * @param document   Name of the last applied document, empty for the collection itself
+         */
+        void applied(final int applied, final XmldbURI collection, final String document) throws TransactionException {
+            if (applied == 0) {
+                return;
+            }
+
+            count += applied;
+            progress.applied(applied, collection == null ? null : collection.toString(), document);
+            nrResources.addAndGet(applied);
+
+            if (count >= chunkSize) {
+                commit();
+                begin();
+            }
+        }
+
+        /**
+         * Commit the chunk and save the progress.
+         */
+        void commit() throws TransactionException {
+            txn.commit();
+            txn.close();
+            txn = null;
+
+            if (count > 0) {
+                progress.chunkCommitted();
+                nrChunks.incrementAndGet();
+                writeCheckpoint(progress);
+            }
+        }
+
+        /**
+         * Abort the chunk, when it is not committed.
+         */
+        @Override
+        public void close() {
+            if (txn != null) {
+                txn.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Progress of a chunked operation on a collection. The position is the last copied document or
+ * collection; the collections are copied in a fixed order, so everything before it has been
+ * copied. The progress is saved in a checkpoint file, so an interrupted operation continues
+ * after a restart.
+ *
+ * @author Dannes Wessels
+ */
+class SubtreeProgress {
+
+    private final String messageId;
+    private final String description;
+    private final long started;
+
+    private volatile long nrChunks = 0;
+    private volatile long nrResources = 0;
+    private volatile String positionCollection = null;
+    private volatile String positionDocument = null;
+
+    /**
+     * Constructor.
+     *
+     * @param messageId   Identifier of the message, NULL when not known
+     * @param description Description of the operation
+     * @param started     Start time of the operation
+     */
+    SubtreeProgress(final String messageId, final String description, final long started) {
+        this.messageId = messageId;
+        this.description = description;
+        this.started = started;
+    }
+
+    String getMessageId() {
+        return messageId;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    long getStarted() {
+        return started;
+    }
+
+    long getNrChunks() {
+        return nrChunks;
+    }
+
+    long getNrResources() {
+        return nrResources;
+    }
+
+    /**
+     * @return The collection of the last applied resource, or NULL when not saved
+     */
+    String getPositionCollection() {
+        return positionCollection;
+    }
+
+    /**
+     * @return The name of the last applied document, empty for the collection itself
+     */
+    String getPositionDocument() {
+        return positionDocument;
+    }
+
+    void chunkCommitted() {
+        nrChunks++;
+    }
+
+    /**
+     * Register applied resources.
+     *
+     * @param applied    Number of applied resources
+     * @param collection Collection of the last applied resource, when its position is saved
+     * @param document   Name of the last applied document, empty for the collection itself
+     */
+    void applied(final int applied, final String collection, final String document) {
+        nrResources += applied;
+        if (collection != null) {
+            positionCollection = collection;
+            positionDocument = document;
+        }
+    }
+
+    /**
+     * @return TRUE when the document, or the collection itself when the name is empty, is
+     * at or before the position
+     */
+    boolean isApplied(final String collection, final String document) {
+        if (positionCollection == null) {
+            return false;
+        }
+
+        final int order = compareCollections(collection, positionCollection);
+        if (order != 0) {
+            return order < 0;
+        }
+        return document.compareTo(positionDocument) <= 0;
+    }
+
+    /**
+     * Compare collections in the order they are copied: a collection before its sub
+     * collections, sub collections by name.
+     */
+    private static int compareCollections(final String first, final String second) {
+        final String[] a = first.split("/");
+        final String[] b = second.split("/");
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            final int order = a[i].compareTo(b[i]);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /**
+     * Save the progress. The file is replaced atomically, a crash leaves the previous checkpoint.
+     *
+     * @param checkpointFile The checkpoint file
+     * @throws IOException The progress could not be saved.
+     */
+    void write(final Path checkpointFile) throws IOException {
+        final Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.createDirectories(checkpointFile.getParent());
+
+        try (final DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            dos.writeUTF(messageId == null ? "" : messageId);
+            dos.writeUTF(description);
+            dos.writeLong(started);
+            dos.writeLong(nrChunks);
+            dos.writeLong(nrResources);
+            dos.writeBoolean(positionCollection != null);
+            if (positionCollection != null) {
+                dos.writeUTF(positionCollection);
+                dos.writeUTF(positionDocument);
+            }
+        }
+        Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read saved progress.
+     *
+     * @param checkpointFile The checkpoint file
+     * @return The saved progress
+     * @throws IOException The progress could not be read.
+     */
+    static SubtreeProgress read(final Path checkpointFile) throws IOException {
+        try (final DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+
+            final String messageId = dis.readUTF();
+            final SubtreeProgress progress = new SubtreeProgress(messageId.isEmpty() ? null : messageId, dis.readUTF(), dis.readLong());
+            progress.nrChunks = dis.readLong();
+            progress.nrResources = dis.readLong();
+            if (dis.readBoolean()) {
+                progress.positionCollection = dis.readUTF();
+                progress.positionDocument = dis.readUTF();
+            }
+            return progress;
+        }
+    }
+}
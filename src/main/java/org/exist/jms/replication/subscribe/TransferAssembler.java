@@ -0,0 +1,228 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.shared.eXistMessage;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles payloads that are sent as a sequence of chunk messages into a temporary file.
+ * Only one chunk is kept in memory at a time.
+ * <p>
+ * Chunks are not acknowledged individually; the last chunk acknowledges the whole transfer.
+ * When the transfer is redelivered it starts again with the first chunk.
+ * <p>
+ * The publisher commits every chunk, so a transfer it abandons, e.g. when the connection fails
+ * halfway, stays incomplete. Such a transfer is discarded when no chunk was received for the
+ * expiry time, 5 minutes by default. A session acknowledges all messages it delivered, so
+ * meanwhile no message is acknowledged: they are redelivered when the connection is lost, and
+ * the subscriber window fills up when the time is longer than it takes to receive that many
+ * messages. A shorter time releases the acknowledgements sooner, but discards transfers of
+ * a publisher that is only slow.
+ * <p>
+ * The file gets a neutral suffix; the content encoding of the payload is read from the
+ * message properties, like for payloads that are not chunked.
+ *
+ * @author Dannes Wessels
+ */
+class TransferAssembler {
+
+    private final static Logger LOG = LogManager.getLogger(TransferAssembler.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long EXPIRY_TIME = TimeUnit.MINUTES.toMillis(5);
+
+    private final long expiryTime;
+
+    private final Map<String, Transfer> transfers = new HashMap<>();
+
+    TransferAssembler() {
+        this(EXPIRY_TIME);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param expiryTime Time in milliseconds after which an incomplete transfer without new chunks is discarded.
+     */
+    TransferAssembler(final long expiryTime) {
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * Check if the message is part of a chunked transfer.
+     *
+     * @param bm The message
+     * @return TRUE when the message is a chunk
+     * @throws JMSException The message properties could not be read.
+     */
+    static boolean isChunk(final BytesMessage bm) throws JMSException {
+        return bm.propertyExists(eXistMessage.EXIST_TRANSFER_ID);
+    }
+
+    /**
+     * Add the content of a chunk message to its transfer.
+     *
+     * @param bm The chunk message
+     * @return The file with the complete payload when this was the last chunk, otherwise NULL. The
+     * caller is responsible for removing the file.
+     * @throws MessageReceiveException The chunk is out of sequence or could not be stored.
+     */
+    synchronized Path addChunk(final BytesMessage bm) {
+
+        String transferId = null;
+        try {
+            transferId = bm.getStringProperty(eXistMessage.EXIST_TRANSFER_ID);
+            final int chunk = bm.getIntProperty(eXistMessage.EXIST_TRANSFER_CHUNK);
+            final int nrChunks = bm.getIntProperty(eXistMessage.EXIST_TRANSFER_CHUNKS);
+            final long size = bm.getLongProperty(eXistMessage.EXIST_TRANSFER_SIZE);
+
+            expireTransfers();
+            Transfer transfer = transfers.get(transferId);
+
+            if (chunk == 0) {
+                // A (re)started transfer
+                if (transfer != null) {
+                    LOG.info("Transfer {} is restarted", transferId);
+                    transfer.discard();
+                }
+                transfer = new Transfer(transferId);
+                transfers.put(transferId, transfer);
+
+            } else if (transfer == null || transfer.nextChunk != chunk) {
+                discard(transferId);
+                throw new MessageReceiveException(String.format("Chunk %d of transfer %s received out of sequence", chunk, transferId));
+            }
+
+            transfer.append(bm);
+
+            if (chunk < nrChunks - 1) {
+                LOG.debug("Received chunk {} of {} for transfer {}", chunk + 1, nrChunks, transferId);
+                return null;
+            }
+
+            // Last chunk, transfer complete
+            transfer.close();
+            transfers.remove(transferId);
+
+            if (transfer.size != size) {
+                transfer.discard();
+                throw new MessageReceiveException(String.format("Transfer %s is incomplete: received %d of %d bytes",
+                        transferId, transfer.size, size));
+            }
+
+            LOG.debug("Transfer {} is complete, {} bytes in {} chunks", transferId, size, nrChunks);
+            return transfer.file;
+
+        } catch (final JMSException | IOException ex) {
+            discard(transferId);
+            throw new MessageReceiveException(String.format("Unable to receive chunk of transfer %s: %s", transferId, ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * @return TRUE when no transfer is being received. Acknowledging a message while a transfer
+     * is incomplete would acknowledge the chunks received so far.
+     */
+    synchronized boolean isIdle() {
+        expireTransfers();
+        return transfers.isEmpty();
+    }
+
+    private void discard(final String transferId) {
+        if (transferId != null) {
+            final Transfer transfer = transfers.remove(transferId);
+            if (transfer != null) {
+                transfer.discard();
+            }
+        }
+    }
+
+    /**
+     * Remove incomplete transfers that were abandoned by the sender.
+     */
+    private void expireTransfers() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Transfer> iterator = transfers.values().iterator();
+        while (iterator.hasNext()) {
+            final Transfer transfer = iterator.next();
+            if (now - transfer.lastUpdate > expiryTime) {
+                LOG.warn("Transfer {} expired after chunk {}", transfer.id, transfer.nextChunk - 1);
+                transfer.discard();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A payload that is being received.
+     */
+    private static class Transfer {
+
+        private final String id;
+        private final Path file;
+        private final OutputStream os;
+        private int nextChunk = 0;
+        private long size = 0;
+        private long lastUpdate = System.currentTimeMillis();
+
+        Transfer(final String id) throws IOException {
+            this.id = id;
+            this.file = Files.createTempFile("exist-jms-", ".part");
+            this.os = Files.newOutputStream(file);
+        }
+
+        void append(final BytesMessage bm) throws JMSException, IOException {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = bm.readBytes(buffer)) > 0) {
+                os.write(buffer, 0, length);
+                size += length;
+            }
+            nextChunk++;
+            lastUpdate = System.currentTimeMillis();
+        }
+
+        void close() throws IOException {
+            os.close();
+        }
+
+        void discard() {
+            try {
+                os.close();
+                Files.deleteIfExists(file);
+            } catch (final IOException ex) {
+                LOG.warn("Unable to remove {}: {}", file, ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.storage.BrokerPool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Holds back received messages while the database is busy, so that replication and message
+ * handling do not take the last brokers of the broker pool from interactive users.
+ * <p>
+ * When fewer than twice the reserved number of brokers are free, each message is delayed.
+ * When no more than the reserved number of brokers are free, messages wait until brokers are
+ * released. Waiting in the listener stops the consumer, so further messages stay at the broker.
+ *
+ * @author Dannes Wessels
+ */
+public class AdmissionController {
+
+    private final static Logger LOG = LogManager.getLogger(AdmissionController.class);
+
+    private final IntSupplier maxBrokers;
+    private final IntSupplier activeBrokers;
+    private final int reserve;
+    private final long delay;
+
+    private volatile boolean closed = false;
+    private boolean paused = false;
+
+    private long nrDelayed = 0;
+    private long nrPaused = 0;
+    private long pausedTime = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param brokerPool The database
+     * @param reserve    Number of brokers that are kept free for other users, 0 to disable
+     * @param delay      Time in milliseconds that a message is delayed when the database is busy
+     */
+    public AdmissionController(final BrokerPool brokerPool, final int reserve, final long delay) {
+        this(brokerPool::getMax, brokerPool::countActiveBrokers, reserve, delay);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxBrokers    Size of the broker pool
+     * @param activeBrokers Number of brokers that are in use
+     * @param reserve       Number of brokers that are kept free for other users, 0 to disable
+     * @param delay         Time in milliseconds that a message is delayed when the database is busy
+     */
+    AdmissionController(final IntSupplier maxBrokers, final IntSupplier activeBrokers, final int reserve, final long delay) {
+        this.maxBrokers = maxBrokers;
+        this.activeBrokers = activeBrokers;
+        this.reserve = reserve;
+        this.delay = delay;
+    }
+
+    /**
+     * Wait until the database has capacity to handle a message.
+     *
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public void admit() throws InterruptedException {
+        if (reserve == 0 || closed) {
+            return;
+        }
+
+        int free = getFreeBrokers();
+        if (free > 2 * reserve) {
+            return;
+        }
+
+        if (free > reserve) {
+            // Busy, slow down
+            synchronized (this) {
+                nrDelayed++;
+            }
+            TimeUnit.MILLISECONDS.sleep(delay);
+            return;
+        }
+
+        // Saturated, pause until brokers are released
+        final long start = System.currentTimeMillis();
+        synchronized (this) {
+            nrPaused++;
+            if (!paused) {
+                paused = true;
+                LOG.info("Database is busy, {} of {} brokers are free. Pausing JMS consumption.", free, maxBrokers.getAsInt());
+            }
+        }
+
+        while (free <= reserve && !closed) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+            free = getFreeBrokers();
+        }
+
+        synchronized (this) {
+            pausedTime += System.currentTimeMillis() - start;
+            if (paused) {
+                paused = false;
+                LOG.info("Database has capacity again, {} brokers are free. Resuming JMS consumption.", free);
+            }
+        }
+    }
+
+    private int getFreeBrokers() {
+        return maxBrokers.getAsInt() - activeBrokers.getAsInt();
+    }
+
+    /**
+     * Release waiting messages, e.g. when the listener is closed.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Write statistics of the admission control to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "admission", "admission", null);
+
+        writeValue(builder, "reserve", "" + reserve);
+        writeValue(builder, "delay", "" + delay);
+        writeValue(builder, "freeBrokers", "" + getFreeBrokers());
+        writeValue(builder, "maxBrokers", "" + maxBrokers.getAsInt());
+        writeValue(builder, "paused", "" + paused);
+        writeValue(builder, "nrDelayed", "" + nrDelayed);
+        writeValue(builder, "nrPaused", "" + nrPaused);
+        writeValue(builder, "pausedTime", "" + pausedTime);
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+}
@@ -73,20 +73,69 @@ public class Constants {
     public static final String JMS_CONNECTION_USERNAME = "connection.username";
     public static final String JMS_CONNECTION_PASSWORD = "connection.password";
     public static final String CLIENT_ID = "connection.client-id";
+    public static final String CONNECTION_RECONNECT_DELAY = "connection.reconnect.delay";
+    public static final String CONNECTION_RECONNECT_MAX_DELAY = "connection.reconnect.max-delay";
     /**
      * JMS message selector
      */
     public static final String MESSAGE_SELECTOR = "consumer.message-selector";
+    /**
+     * Number of messages the broker sends to a consumer in advance
+     */
+    public static final String CONSUMER_PREFETCH = "consumer.prefetch";
+    /**
+     * Brokers of the database that are kept free for other users, and the delay of messages while the database is busy
+     */
+    public static final String CONSUMER_ADMISSION_RESERVE = "consumer.admission.reserve";
+    public static final String CONSUMER_ADMISSION_DELAY = "consumer.admission.delay";
     /*
      * Topic parameters (durable, prefent backfire)
      */
     public static final String DURABLE = "subscriber.durable";
     public static final String NO_LOCAL = "subscriber.nolocal";
     public static final String SUBSCRIBER_NAME = "subscriber.name";
+    public static final String SUBSCRIBER_CONCURRENCY = "subscriber.concurrency";
+    public static final String SUBSCRIBER_BATCH_SIZE = "subscriber.batch.size";
+    public static final String SUBSCRIBER_BATCH_TIME = "subscriber.batch.time";
+    public static final String SUBSCRIBER_PROCESSED_SIZE = "subscriber.processed.size";
+    public static final String SUBSCRIBER_RETRY_ATTEMPTS = "subscriber.retry.attempts";
+    public static final String SUBSCRIBER_RETRY_DELAY = "subscriber.retry.delay";
+    public static final String SUBSCRIBER_RETRY_MAX_DELAY = "subscriber.retry.max-delay";
+    public static final String SUBSCRIBER_WINDOW = "subscriber.window";
+    public static final String SUBSCRIBER_WINDOW_BYTES = "subscriber.window.bytes";
+    public static final String SUBSCRIBER_WINDOW_ADAPTIVE = "subscriber.window.adaptive";
+    public static final String SUBSCRIBER_WINDOW_LATENCY = "subscriber.window.latency";
+    public static final String SUBSCRIBER_PIPELINE_DECODERS = "subscriber.pipeline.decoders";
+    public static final String SUBSCRIBER_PIPELINE_QUEUE = "subscriber.pipeline.queue";
+    public static final String SUBSCRIBER_SUBTREE_CHUNK = "subscriber.subtree.chunk";
+    public static final String SUBSCRIBER_PRINCIPAL_EXPIRY = "subscriber.principal.expiry";
+    public static final String SUBSCRIBER_BUFFER_THRESHOLD = "subscriber.buffer.threshold";
+    public static final String SUBSCRIBER_TRANSFER_EXPIRY = "subscriber.transfer.expiry";
     /*
      * Producer parameters
      */
     public static final String PRODUCER_TTL = "producer.time-to-live";
     public static final String PRODUCER_PRIORITY = "producer.priority";
     public static final String PRODUCER_DELIVERY_MODE = "producer.delivery-mode";
+    /*
+     * Replication publisher parameters
+     */
+    public static final String PUBLISHER_MODE = "publisher.mode";
+    public static final String PUBLISHER_MODE_SYNC = "sync";
+    public static final String PUBLISHER_MODE_ASYNC = "async";
+    public static final String PUBLISHER_QUEUE_SIZE = "publisher.queue.size";
+    public static final String PUBLISHER_QUEUE_POLICY = "publisher.queue.policy";
+    public static final String PUBLISHER_THREADS = "publisher.threads";
+    public static final String PUBLISHER_JOURNAL_DIR = "publisher.journal.dir";
+    public static final String PUBLISHER_TRANSACTION_BATCH = "publisher.transaction.batch";
+    public static final String PUBLISHER_CHUNK_THRESHOLD = "publisher.chunk.threshold";
+    public static final String PUBLISHER_CHUNK_SIZE = "publisher.chunk.size";
+    public static final String PUBLISHER_BUFFER_THRESHOLD = "publisher.buffer.threshold";
+    public static final String PUBLISHER_CONTENT_ENCODING = "publisher.content-encoding";
+    public static final String PUBLISHER_COMPRESSION_LEVEL = "publisher.compression.level";
+    public static final String PUBLISHER_COMPRESSION_SKIP = "publisher.compression.skip";
+    public static final String PUBLISHER_COMPRESSION_SAMPLE = "publisher.compression.sample";
+    public static final String PUBLISHER_DIGEST_CACHE_SIZE = "publisher.digest.cache.size";
+    public static final String PUBLISHER_COALESCE_WINDOW = "publisher.coalesce.window";
+    public static final String PUBLISHER_RETRY_ATTEMPTS = "publisher.retry.attempts";
 }
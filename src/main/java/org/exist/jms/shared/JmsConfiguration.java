@@ -103,6 +103,28 @@ public class JmsConfiguration extends MessagingConfiguration {
         setLocalProperty(Constants.MESSAGE_SELECTOR, params.getMessageSelector());
         setLocalProperty(Constants.NO_LOCAL, "" + params.isNoLocal());
         setLocalProperty(Constants.SUBSCRIBER_NAME, params.getSubscriberName());
+        setLocalProperty(Constants.SUBSCRIBER_CONCURRENCY, "" + params.getConcurrency());
+        setLocalProperty(Constants.SUBSCRIBER_BATCH_SIZE, "" + params.getBatchSize());
+        setLocalProperty(Constants.SUBSCRIBER_BATCH_TIME, "" + params.getBatchTime());
+        setLocalProperty(Constants.SUBSCRIBER_PROCESSED_SIZE, "" + params.getProcessedSize());
+        setLocalProperty(Constants.SUBSCRIBER_RETRY_ATTEMPTS, "" + params.getRetryAttempts());
+        setLocalProperty(Constants.SUBSCRIBER_RETRY_DELAY, "" + params.getRetryDelay());
+        setLocalProperty(Constants.SUBSCRIBER_RETRY_MAX_DELAY, "" + params.getRetryMaxDelay());
+        setLocalProperty(Constants.CONNECTION_RECONNECT_DELAY, "" + params.getReconnectDelay());
+        setLocalProperty(Constants.CONNECTION_RECONNECT_MAX_DELAY, "" + params.getReconnectMaxDelay());
+        setLocalProperty(Constants.CONSUMER_PREFETCH, "" + params.getPrefetch());
+        setLocalProperty(Constants.CONSUMER_ADMISSION_RESERVE, "" + params.getAdmissionReserve());
+        setLocalProperty(Constants.CONSUMER_ADMISSION_DELAY, "" + params.getAdmissionDelay());
+        setLocalProperty(Constants.SUBSCRIBER_WINDOW, "" + params.getWindow());
+        setLocalProperty(Constants.SUBSCRIBER_WINDOW_BYTES, "" + params.getWindowBytes());
+        setLocalProperty(Constants.SUBSCRIBER_WINDOW_ADAPTIVE, "" + params.isWindowAdaptive());
+        setLocalProperty(Constants.SUBSCRIBER_WINDOW_LATENCY, "" + params.getWindowLatency());
+        setLocalProperty(Constants.SUBSCRIBER_PIPELINE_DECODERS, "" + params.getPipelineDecoders());
+        setLocalProperty(Constants.SUBSCRIBER_PIPELINE_QUEUE, "" + params.getPipelineQueue());
+        setLocalProperty(Constants.SUBSCRIBER_SUBTREE_CHUNK, "" + params.getSubtreeChunk());
+        setLocalProperty(Constants.SUBSCRIBER_PRINCIPAL_EXPIRY, "" + params.getPrincipalExpiry());
+        setLocalProperty(Constants.SUBSCRIBER_BUFFER_THRESHOLD, "" + params.getBufferThreshold());
+        setLocalProperty(Constants.SUBSCRIBER_TRANSFER_EXPIRY, "" + params.getTransferExpiry());
 
         setLocalProperty(Constants.JMS_CONNECTION_USERNAME, params.getConnectionUsername());
         setLocalProperty(Constants.JMS_CONNECTION_PASSWORD, params.getConnectionPassword());
@@ -260,10 +282,170 @@ public class JmsConfiguration extends MessagingConfiguration {
     }
 
 
+    /**
+     * @return Delay in milliseconds before reconnecting a lost connection, doubled for each next attempt,
+     * 1000 when not set. 0 disables reconnecting.
+     */
+    public long getReconnectDelay() {
+        return Math.max(0, NumberUtils.toLong(getProperty(Constants.CONNECTION_RECONNECT_DELAY), 1000));
+    }
+
+    /**
+     * @return Maximum delay in milliseconds between two attempts to reconnect, 60000 when not set
+     */
+    public long getReconnectMaxDelay() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.CONNECTION_RECONNECT_MAX_DELAY), 60000));
+    }
+
+    /**
+     * @return Number of messages the broker sends to a consumer in advance, 0 when not set
+     * to use the default of the broker.
+     */
+    public int getConsumerPrefetch() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.CONSUMER_PREFETCH), 0));
+    }
+
+    /**
+     * @return Number of database brokers that received messages leave free for other users, 0 when
+     * not set. 0 disables the admission control.
+     */
+    public int getConsumerAdmissionReserve() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.CONSUMER_ADMISSION_RESERVE), 0));
+    }
+
+    /**
+     * @return Time in milliseconds that a received message is delayed while the database is busy, 100 when not set
+     */
+    public long getConsumerAdmissionDelay() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.CONSUMER_ADMISSION_DELAY), 100));
+    }
+
     public String getSubscriberName() {
         return getProperty(Constants.SUBSCRIBER_NAME);
     }
 
+    /**
+     * @return Number of threads that apply received messages, 1 when not set
+     */
+    public int getSubscriberConcurrency() {
+        return Math.max(1, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_CONCURRENCY), 1));
+    }
+
+    /**
+     * @return Maximum number of received messages applied in one transaction, 1 when not set
+     */
+    public int getSubscriberBatchSize() {
+        return Math.max(1, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_BATCH_SIZE), 1));
+    }
+
+    /**
+     * @return Maximum time in milliseconds that a received message waits for its batch, 500 when not set
+     */
+    public long getSubscriberBatchTime() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.SUBSCRIBER_BATCH_TIME), 500));
+    }
+
+    /**
+     * @return Number of applied messages that are remembered to detect redeliveries, 65536 when not set
+     */
+    public int getSubscriberProcessedSize() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_PROCESSED_SIZE), 65536));
+    }
+
+    /**
+     * @return Number of retries of a message that could not be applied before it stays parked, 5 when not set
+     */
+    public int getSubscriberRetryAttempts() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_RETRY_ATTEMPTS), 5));
+    }
+
+    /**
+     * @return Delay in milliseconds before the first retry, doubled for each next retry, 1000 when not set
+     */
+    public long getSubscriberRetryDelay() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.SUBSCRIBER_RETRY_DELAY), 1000));
+    }
+
+    /**
+     * @return Maximum delay in milliseconds between two retries, 300000 when not set
+     */
+    public long getSubscriberRetryMaxDelay() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.SUBSCRIBER_RETRY_MAX_DELAY), 300000));
+    }
+
+    /**
+     * @return Maximum number of received messages that are not yet applied, 256 when not set
+     */
+    public int getSubscriberWindow() {
+        return Math.max(1, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_WINDOW), 256));
+    }
+
+    /**
+     * @return Maximum size in bytes of the payloads that are not yet applied, 64MB when not set
+     */
+    public long getSubscriberWindowBytes() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.SUBSCRIBER_WINDOW_BYTES), 64L * 1024 * 1024));
+    }
+
+    /**
+     * @return TRUE when the window is adapted to the time it takes to apply messages, FALSE when not set
+     */
+    public boolean isSubscriberWindowAdaptive() {
+        return BooleanUtils.toBoolean(getProperty(Constants.SUBSCRIBER_WINDOW_ADAPTIVE));
+    }
+
+    /**
+     * @return Time in milliseconds that applying a message should take at most, 1000 when not set
+     */
+    public long getSubscriberWindowLatency() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.SUBSCRIBER_WINDOW_LATENCY), 1000));
+    }
+
+    /**
+     * @return Number of threads that decode received messages before they are applied, 0 when not set
+     */
+    public int getSubscriberPipelineDecoders() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_PIPELINE_DECODERS), 0));
+    }
+
+    /**
+     * @return Maximum number of messages that are decoded or prepared but not yet applied, 64 when not set
+     */
+    public int getSubscriberPipelineQueue() {
+        return Math.max(1, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_PIPELINE_QUEUE), 64));
+    }
+
+    /**
+     * @return Number of documents and collections that are deleted, moved or copied in one transaction
+     * when a collection is deleted, moved or copied, 0 when not set
+     */
+    public int getSubscriberSubtreeChunk() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_SUBTREE_CHUNK), 0));
+    }
+
+    /**
+     * @return Time in milliseconds that resolved owner and group names are used, 60000 when not set
+     */
+    public long getSubscriberPrincipalExpiry() {
+        return Math.max(0, NumberUtils.toLong(getProperty(Constants.SUBSCRIBER_PRINCIPAL_EXPIRY), 60000));
+    }
+
+    /**
+     * @return Number of bytes of a received or decoded payload that are kept in memory, larger
+     * payloads are written to a temporary file. {@link PayloadBuffer#DEFAULT_THRESHOLD} when not set
+     */
+    public int getSubscriberBufferThreshold() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.SUBSCRIBER_BUFFER_THRESHOLD), PayloadBuffer.DEFAULT_THRESHOLD));
+    }
+
+    /**
+     * @return Time in milliseconds after which an incomplete chunked transfer without new chunks
+     * is discarded, 300000 when not set
+     */
+    public long getSubscriberTransferExpiry() {
+        return Math.max(1, NumberUtils.toLong(getProperty(Constants.SUBSCRIBER_TRANSFER_EXPIRY), 300000));
+    }
+
     @Override
     public String toString() {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
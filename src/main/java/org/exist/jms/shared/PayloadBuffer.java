@@ -0,0 +1,360 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffer for message payloads. Small payloads are kept in memory, when the size of the
+ * payload exceeds the threshold the data is moved to a temporary file. Data in a file is
+ * read back via a memory mapping.
+ * <p>
+ * The threshold is set by the publisher and subscriber parameters, the default can be set with
+ * the system property {@value #THRESHOLD_PROPERTY}, default 4 MB. The buffer must be closed to
+ * remove the temporary file.
+ *
+ * @author Dannes Wessels
+ */
+public class PayloadBuffer implements Closeable {
+
+    public static final String THRESHOLD_PROPERTY = "exist.jms.buffer.threshold";
+
+    private final static Logger LOG = LogManager.getLogger(PayloadBuffer.class);
+
+    public static final int DEFAULT_THRESHOLD = Integer.getInteger(THRESHOLD_PROPERTY, 4 * 1024 * 1024);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    static final long MAPPING_SIZE = 64 * 1024 * 1024;
+
+    private final long threshold;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path file = null;
+    private OutputStream fileStream = null;
+    private long size = 0;
+
+    /**
+     * Create buffer with the default threshold.
+     */
+    public PayloadBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Create buffer.
+     *
+     * @param threshold Maximum number of bytes kept in memory
+     */
+    public PayloadBuffer(final long threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Get stream to write the payload. Closing the stream does not close the buffer.
+     *
+     * @return Output stream
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                append(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (fileStream != null) {
+                    fileStream.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (fileStream != null) {
+                    fileStream.close();
+                    fileStream = null;
+                }
+            }
+        };
+    }
+
+    private void append(final byte[] b, final int off, final int len) throws IOException {
+
+        checkOpen();
+
+        if (file == null && size + len > threshold) {
+            // Move data to disk
+            file = Files.createTempFile("exist-jms-", ".buf");
+            fileStream = new BufferedOutputStream(Files.newOutputStream(file), COPY_BUFFER_SIZE);
+            memory.writeTo(fileStream);
+            memory = null;
+
+            LOG.debug("Payload exceeds {} bytes, moved to {}", threshold, file);
+        }
+
+        if (file == null) {
+            memory.write(b, off, len);
+
+        } else {
+            if (fileStream == null) {
+                fileStream = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND), COPY_BUFFER_SIZE);
+            }
+            fileStream.write(b, off, len);
+        }
+
+        size += len;
+    }
+
+    /**
+     * Get stream to read the payload.
+     *
+     * @return Input stream
+     * @throws IOException The data could not be read.
+     */
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+
+        if (file == null) {
+            return memory.toInputStream();
+        }
+
+        if (fileStream != null) {
+            fileStream.close();
+            fileStream = null;
+        }
+        return new MappedInputStream(file);
+    }
+
+    private void checkOpen() throws IOException {
+        if (file == null && memory == null) {
+            throw new IOException("Payload buffer is closed");
+        }
+    }
+
+    private void checkNotClosed() {
+        if (file == null && memory == null) {
+            throw new IllegalStateException("Payload buffer is closed");
+        }
+    }
+
+    /**
+     * @return Number of bytes in the buffer
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return TRUE when the payload is kept in memory
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Read the body of the message into the buffer, in small blocks.
+     *
+     * @param bm The message
+     * @throws JMSException The message could not be read.
+     * @throws IOException  The data could not be written.
+     */
+    public void readFrom(final BytesMessage bm) throws JMSException, IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (final OutputStream os = getOutputStream()) {
+            int length;
+            while ((length = bm.readBytes(buffer)) > 0) {
+                os.write(buffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Read a stream into the buffer, e.g. a decoded payload.
+     *
+     * @param is The stream, it is not closed
+     * @throws IOException The data could not be read or written.
+     */
+    public void readFrom(final InputStream is) throws IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (final OutputStream os = getOutputStream()) {
+            int length;
+            while ((length = is.read(buffer)) > 0) {
+                os.write(buffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Write the payload into the body of the message, in small blocks.
+     *
+     * @param bm The message
+     * @throws JMSException The message could not be written.
+     * @throws IOException  The data could not be read.
+     * @throws IllegalStateException The buffer is closed.
+     */
+    public void writeTo(final BytesMessage bm) throws JMSException, IOException {
+        checkNotClosed();
+
+        if (file == null) {
+            bm.writeBytes(memory.toByteArray());
+        } else {
+            try (final InputStream is = getInputStream()) {
+                copy(is, bm);
+            }
+        }
+    }
+
+    /**
+     * Move the payload into the message. A payload in memory is copied, a file is handed over
+     * to the message and is not removed when the buffer is closed.
+     *
+     * @param em The message
+     * @throws IOException The file could not be closed.
+     * @throws IllegalStateException The buffer is closed.
+     */
+    public void moveTo(final eXistMessage em) throws IOException {
+        checkNotClosed();
+
+        if (file == null) {
+            em.setPayload(memory.toByteArray());
+
+        } else {
+            if (fileStream != null) {
+                fileStream.close();
+                fileStream = null;
+            }
+            em.setPayloadFile(file);
+            file = null;
+            memory = new ByteArrayOutputStream();
+            size = 0;
+        }
+    }
+
+    /**
+     * Copy data from a stream into the body of the message, in small blocks.
+     *
+     * @param is The data
+     * @param bm The message
+     * @throws JMSException The message could not be written.
+     * @throws IOException  The data could not be read.
+     */
+    public static void copy(final InputStream is, final BytesMessage bm) throws JMSException, IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int length;
+        while ((length = is.read(buffer)) > 0) {
+            bm.writeBytes(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Remove temporary file, if any.
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                if (fileStream != null) {
+                    fileStream.close();
+                    fileStream = null;
+                }
+                Files.deleteIfExists(file);
+
+            } catch (final IOException ex) {
+                LOG.warn("Unable to remove {}: {}", file, ex.getMessage());
+            }
+            file = null;
+        }
+        memory = null;
+    }
+
+    /**
+     * Sequential reading of a file via consecutive memory mappings.
+     */
+    private static class MappedInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final long length;
+        private long position = 0;
+        private MappedByteBuffer mapping = null;
+
+        MappedInputStream(final Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.length = channel.size();
+        }
+
+        private boolean ensureMapped() throws IOException {
+            if (mapping != null && mapping.hasRemaining()) {
+                return true;
+            }
+            if (position >= length) {
+                return false;
+            }
+
+            final long mappingSize = Math.min(MAPPING_SIZE, length - position);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, mappingSize);
+            position += mappingSize;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureMapped() ? (mapping.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureMapped()) {
+                return -1;
+            }
+            final int count = Math.min(len, mapping.remaining());
+            mapping.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (mapping == null ? 0 : mapping.remaining());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mapping = null;
+            channel.close();
+        }
+    }
+}
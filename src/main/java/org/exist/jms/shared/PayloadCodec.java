@@ -0,0 +1,59 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding of message payloads, e.g. compression. The name of the codec is sent
+ * with the message so the receiver can decode the payload.
+ *
+ * @author Dannes Wessels
+ * @see PayloadCodecs
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return Name of the codec, used as value of the content-encoding message property.
+     */
+    String getName();
+
+    /**
+     * Wrap stream to encode the data written to it. Closing the returned stream
+     * closes the original stream.
+     *
+     * @param os The stream receiving the encoded data
+     * @return The stream to write the original data to
+     * @throws IOException The stream could not be created.
+     */
+    OutputStream encode(OutputStream os) throws IOException;
+
+    /**
+     * Wrap stream to decode the data read from it. Closing the returned stream
+     * closes the original stream.
+     *
+     * @param is The stream providing the encoded data
+     * @return The stream to read the original data from
+     * @throws IOException The stream could not be created.
+     */
+    InputStream decode(InputStream is) throws IOException;
+}
@@ -0,0 +1,234 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.zip.*;
+
+/**
+ * Registry of payload codecs. Available are:
+ * <ul>
+ * <li>{@value #IDENTITY} - no encoding</li>
+ * <li>{@value #GZIP} - gzip compression, level 0-9</li>
+ * <li>{@value #DEFLATE} - raw deflate compression, level 0-9</li>
+ * <li>{@value #LZ4} - fast LZ4 compression (frame format)</li>
+ * </ul>
+ * Additional codecs can be registered.
+ *
+ * @author Dannes Wessels
+ */
+public class PayloadCodecs {
+
+    public static final String IDENTITY = "identity";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String LZ4 = "lz4";
+
+    /**
+     * Compression level of the codec default.
+     */
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final Map<String, IntFunction<PayloadCodec>> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(IDENTITY, level -> new IdentityCodec());
+        register(GZIP, GzipCodec::new);
+        register(DEFLATE, DeflateCodec::new);
+        register(LZ4, level -> new Lz4Codec());
+    }
+
+    private PayloadCodecs() {
+        // Utility class
+    }
+
+    /**
+     * Register a codec.
+     *
+     * @param name    Name of the codec
+     * @param factory Creates the codec for a compression level
+     */
+    public static void register(final String name, final IntFunction<PayloadCodec> factory) {
+        codecs.put(name.toLowerCase(Locale.ENGLISH), factory);
+    }
+
+    /**
+     * @return Names of the registered codecs
+     */
+    public static Set<String> getNames() {
+        return codecs.keySet();
+    }
+
+    /**
+     * Get codec with default compression level. When no name is provided the gzip
+     * codec is returned, which was the only encoding in previous versions.
+     *
+     * @param name Name of the codec
+     * @return The codec
+     * @throws IllegalArgumentException The codec is unknown.
+     */
+    public static PayloadCodec get(final String name) {
+        return get(name, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Get codec.
+     *
+     * @param name  Name of the codec
+     * @param level Compression level, when supported by the codec
+     * @return The codec
+     * @throws IllegalArgumentException The codec is unknown or the level is not supported.
+     */
+    public static PayloadCodec get(final String name, final int level) {
+
+        final String key = StringUtils.isBlank(name) ? GZIP : name.trim().toLowerCase(Locale.ENGLISH);
+
+        final IntFunction<PayloadCodec> factory = codecs.get(key);
+        if (factory == null) {
+            throw new IllegalArgumentException(String.format("Unknown content encoding '%s', available are %s", name, codecs.keySet()));
+        }
+
+        if (level != DEFAULT_LEVEL && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException(String.format("Compression level must be between %d and %d, got %d",
+                    Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION, level));
+        }
+
+        return factory.apply(level);
+    }
+
+    private static class IdentityCodec implements PayloadCodec {
+
+        @Override
+        public String getName() {
+            return IDENTITY;
+        }
+
+        @Override
+        public OutputStream encode(final OutputStream os) {
+            return os;
+        }
+
+        @Override
+        public InputStream decode(final InputStream is) {
+            return is;
+        }
+    }
+
+    private static class GzipCodec implements PayloadCodec {
+
+        private final int level;
+
+        GzipCodec(final int level) {
+            this.level = level;
+        }
+
+        @Override
+        public String getName() {
+            return GZIP;
+        }
+
+        @Override
+        public OutputStream encode(final OutputStream os) throws IOException {
+            return new GZIPOutputStream(os) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(final InputStream is) throws IOException {
+            return new GZIPInputStream(is);
+        }
+    }
+
+    private static class DeflateCodec implements PayloadCodec {
+
+        private final int level;
+
+        DeflateCodec(final int level) {
+            this.level = level;
+        }
+
+        @Override
+        public String getName() {
+            return DEFLATE;
+        }
+
+        @Override
+        public OutputStream encode(final OutputStream os) {
+            final Deflater deflater = new Deflater(level, true);
+            return new DeflaterOutputStream(os, deflater) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(final InputStream is) {
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(is, inflater) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    }
+
+    private static class Lz4Codec implements PayloadCodec {
+
+        @Override
+        public String getName() {
+            return LZ4;
+        }
+
+        @Override
+        public OutputStream encode(final OutputStream os) throws IOException {
+            return new LZ4FrameOutputStream(os);
+        }
+
+        @Override
+        public InputStream decode(final InputStream is) throws IOException {
+            return new LZ4FrameInputStream(is);
+        }
+    }
+}
@@ -61,49 +61,49 @@ public class Report {
     /**
      * Increase the nr of total received messages
      */
-    public void incMessageCounterTotal() {
+    public synchronized void incMessageCounterTotal() {
         messageCounterTotal++;
     }
 
     /**
      * @return Total number of received messages
      */
-    public long getMessageCounterTotal() {
+    public synchronized long getMessageCounterTotal() {
         return messageCounterTotal;
     }
 
     /**
      * @return Total number of NOT successfully received messages
      */
-    public long getMessageCounterNOK() {
+    public synchronized long getMessageCounterNOK() {
         return (messageCounterTotal - messageCounterOK);
     }
 
     /**
      * Increase the number of correctly processed messages
      */
-    public void incMessageCounterOK() {
+    public synchronized void incMessageCounterOK() {
         messageCounterOK++;
     }
 
     /**
      * @return Total number of successfully received messages
      */
-    public long getMessageCounterOK() {
+    public synchronized long getMessageCounterOK() {
         return messageCounterOK;
     }
 
     /**
      * Add the current processing time to the total processing time
      */
-    public void addCumulatedProcessingTime() {
+    public synchronized void addCumulatedProcessingTime() {
         this.totalTime += (stopTime - startTime);
     }
 
     /**
      * @return Total processing time
      */
-    public long getCumulatedProcessingTime() {
+    public synchronized long getCumulatedProcessingTime() {
         return totalTime;
     }
 
@@ -112,7 +112,7 @@ public class Report {
      *
      * @param error The Listener error
      */
-    public void addListenerError(final Throwable error) {
+    public synchronized void addListenerError(final Throwable error) {
         errors.add(new ReportItem(error, CONTEXT.LISTENER));
     }
 
@@ -121,7 +121,7 @@ public class Report {
      *
      * @param error The Receiver error
      */
-    public void addReceiverError(final Throwable error) {
+    public synchronized void addReceiverError(final Throwable error) {
         errors.add(new ReportItem(error, CONTEXT.RECEIVER));
     }
 
@@ -130,14 +130,14 @@ public class Report {
      *
      * @param error The connection error
      */
-    public void addConnectionError(final Throwable error) {
+    public synchronized void addConnectionError(final Throwable error) {
         errors.add(new ReportItem(error, CONTEXT.CONNECTION));
     }
 
     /**
      * @return List texts of all problems
      */
-    public List<String> getErrorMessages() {
+    public synchronized List<String> getErrorMessages() {
         final List<String> errorMessages = new ArrayList<>();
         errors.forEach((t) -> errorMessages.add(t.getMessage()));
         return errorMessages;
@@ -148,8 +148,8 @@ public class Report {
      *
      * @return All report items
      */
-    public final List<ReportItem> getReportItems() {
-        return errors;
+    public final synchronized List<ReportItem> getReportItems() {
+        return new ArrayList<>(errors);
     }
 
     /**
@@ -171,7 +171,7 @@ public class Report {
      *
      * @param builder The builder to create the XML report.
      */
-    public void write(final MemTreeBuilder builder) {
+    public synchronized void write(final MemTreeBuilder builder) {
 
         builder.startElement("", "errorMessages", "errorMessages", null);
 
@@ -183,7 +183,7 @@ public class Report {
         builder.endElement();
     }
 
-    public void clear() {
+    public synchronized void clear() {
         LOG.info("Clear report");
 
         errors.clear();
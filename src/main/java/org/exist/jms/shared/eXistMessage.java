@@ -27,6 +27,9 @@ import org.apache.logging.log4j.Logger;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -55,6 +58,22 @@ public class eXistMessage {
      * Header to describe destination path, for COPY and MOVE operation
      */
     public final static String EXIST_DESTINATION_PATH = "exist.destination.path";
+    /**
+     * Header to identify a payload that is transferred in multiple chunk messages
+     */
+    public final static String EXIST_TRANSFER_ID = "exist.transfer.id";
+    /**
+     * Header to describe the sequence number of a chunk, starting with 0
+     */
+    public final static String EXIST_TRANSFER_CHUNK = "exist.transfer.chunk";
+    /**
+     * Header to describe the total number of chunks of a transfer
+     */
+    public final static String EXIST_TRANSFER_CHUNKS = "exist.transfer.chunks";
+    /**
+     * Header to describe the total size of the transferred payload
+     */
+    public final static String EXIST_TRANSFER_SIZE = "exist.transfer.size";
     private final static Logger LOG = LogManager.getLogger(eXistMessage.class);
     private ResourceOperation resourceOperation = ResourceOperation.UNDEFINED;
     private ResourceType resourceType = ResourceType.UNDEFINED;
@@ -63,6 +82,8 @@ public class eXistMessage {
     private String path;
     private String destination;
     private byte[] payload;
+    private Path payloadFile;
+    private String messageId;
 
     private Map<String, Object> metaData = new HashMap<>();
 
@@ -126,9 +147,63 @@ public class eXistMessage {
         payload = data;
     }
 
+    /**
+     * Get the file containing the payload. Large payloads are kept on disk instead of in memory.
+     *
+     * @return The file, or NULL when the payload is kept in memory
+     */
+    public Path getPayloadFile() {
+        return payloadFile;
+    }
+
+    public void setPayloadFile(final Path file) {
+        payloadFile = file;
+    }
+
+    /**
+     * Get the size of the payload, either in memory or on disk.
+     *
+     * @return Size of the payload in bytes
+     * @throws IOException The size of the payload file could not be determined.
+     */
+    public long getPayloadSize() throws IOException {
+        if (payloadFile != null) {
+            return Files.size(payloadFile);
+        }
+        return payload == null ? 0 : payload.length;
+    }
+
+    /**
+     * Remove the payload file, when present.
+     */
+    public void deletePayloadFile() {
+        if (payloadFile != null) {
+            try {
+                Files.deleteIfExists(payloadFile);
+            } catch (final IOException ex) {
+                LOG.warn("Unable to delete payload file {}: {}", payloadFile, ex.getMessage());
+            }
+            payloadFile = null;
+        }
+    }
+
     public void resetPayload() {
         LOG.debug("Removing payload. {}", getReport());
         payload = new byte[0];
+        deletePayloadFile();
+    }
+
+    /**
+     * Get the identity of the received message, it is the same when the message is redelivered.
+     *
+     * @return The identity, or NULL when not set
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(final String id) {
+        messageId = id;
     }
 
     public Map<String, Object> getMetadata() {
@@ -169,6 +244,10 @@ public class eXistMessage {
             sb.append("PayloadSize='").append(payload.length).append("'  ");
         }
 
+        if (payloadFile != null) {
+            sb.append("PayloadFile='").append(payloadFile).append("'  ");
+        }
+
         // Iterate over properties if present
         final Set<String> keys = metaData.keySet();
         if (!keys.isEmpty()) {
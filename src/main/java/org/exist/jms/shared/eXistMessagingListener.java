@@ -22,6 +22,7 @@ package org.exist.jms.shared;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
 
 import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
@@ -84,6 +85,22 @@ public abstract class eXistMessagingListener implements MessageListener, Excepti
         this.id = id;
     }
 
+    /**
+     * Release resources of the listener, called when the receiver is closed.
+     */
+    public void close() {
+        // Nothing to release by default
+    }
+
+    /**
+     * Write listener specific statistics to the receiver report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void writeStatistics(final MemTreeBuilder builder) {
+        // No additional statistics by default
+    }
+
     @Override
     public void onException(final JMSException jmse) {
 
@@ -53,12 +53,17 @@ public class Receiver {
 
     private final static Logger LOG = LogManager.getLogger(Receiver.class);
     private static volatile int lastId = 0;
+
+    /**
+     * Prefetch of all consumers, read by ActiveMQ from the JNDI environment
+     */
+    private static final String ACTIVEMQ_PREFETCH = "prefetchPolicy.all";
     /*
      *
      */
     private final JmsConfiguration jmsConfig;
     private DatatypeFactory dtFactory = null;
-    private STATE state = STATE.NOT_DEFINED;
+    private volatile STATE state = STATE.NOT_DEFINED;
     /**
      * The JMS listeners
      */
@@ -72,6 +77,12 @@ public class Receiver {
 
     private final int id;
 
+    /**
+     * Reconnects when the connection is lost while the receiver is started
+     */
+    private final ReconnectSupervisor supervisor;
+    private volatile boolean running = false;
+
     /**
      * Constructor
      *
@@ -87,6 +98,8 @@ public class Receiver {
 
         listener.setReceiverID(id);
 
+        supervisor = new ReconnectSupervisor(id, config.getReconnectDelay(), config.getReconnectMaxDelay(), this::reconnect);
+
         // Initialing XML datafactory
         try {
             dtFactory = DatatypeFactory.newInstance();
@@ -109,6 +122,15 @@ public class Receiver {
         return id;
     }
 
+    /**
+     * Get the message listener
+     *
+     * @return The listener that handles the received messages
+     */
+    public eXistMessagingListener getListener() {
+        return messageListener;
+    }
+
     /**
      * Get report of message listener
      *
@@ -124,7 +146,7 @@ public class Receiver {
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      * @see Connection#start()
      */
-    public void start() throws XPathException {
+    public synchronized void start() throws XPathException {
 
         if (connection == null) {
             final String txt = "JMS connection must be initialized first";
@@ -139,6 +161,7 @@ public class Receiver {
             LOG.info("JMS connection is started. ClientId={}", connection.getClientID());
 
             state = STATE.STARTED;
+            running = true;
 
         } catch (final JMSException ex) {
             LOG.error(ex.getMessage(), ex);
@@ -152,46 +175,77 @@ public class Receiver {
      *
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      */
-    public void initialize() throws XPathException {
+    public synchronized void initialize() throws XPathException {
 
         LOG.info("Initializing JMS connection");
 
         // JMS specific checks
         jmsConfig.validate();
 
+        try {
+            use(connect());
+
+            state = STATE.STOPPED;
+
+        } catch (final Throwable t) {
+            state = STATE.ERROR;
+
+            LOG.error(t.getMessage(), t);
+            LOG.debug("{}", jmsConfig.toString());
+
+            messageListener.getReport().addReceiverError(t);
+            throw new XPathException(JMS000, t.getMessage());
+        }
+
+    }
+
+    /**
+     * Create a new connection with session and consumer, without changing the receiver. The
+     * connection is not started. When it fails the resources created so far are closed.
+     */
+    private Connected connect() throws Throwable {
+
+        final Connected connected = new Connected();
         try {
             // Setup Context
             final Properties props = new Properties();
             props.setProperty(Context.INITIAL_CONTEXT_FACTORY, jmsConfig.getInitialContextFactory());
             props.setProperty(Context.PROVIDER_URL, jmsConfig.getBrokerURL());
-            initialContext = new InitialContext(props);
+
+            // Number of messages sent to the consumer in advance
+            final int prefetch = jmsConfig.getConsumerPrefetch();
+            if (prefetch > 0) {
+                props.setProperty(ACTIVEMQ_PREFETCH, "" + prefetch);
+            }
+
+            connected.context = new InitialContext(props);
 
             // Setup connection
-            connectionFactory = (ConnectionFactory) initialContext.lookup(jmsConfig.getConnectionFactory());
+            connected.connectionFactory = (ConnectionFactory) connected.context.lookup(jmsConfig.getConnectionFactory());
 
             // Setup username/password when required
             final String userName = jmsConfig.getConnectionUserName();
             final String password = jmsConfig.getConnectionPassword();
             if (StringUtils.isBlank(userName) || StringUtils.isBlank(password)) {
-                connection = connectionFactory.createConnection();
+                connected.connection = connected.connectionFactory.createConnection();
             } else {
-                connection = connectionFactory.createConnection(userName, password);
+                connected.connection = connected.connectionFactory.createConnection(userName, password);
             }
 
             // Register error listener
-            connection.setExceptionListener(messageListener);
+            connected.connection.setExceptionListener(this::onException);
 
             // Set clientId when set and not empty
             final String clientId = jmsConfig.getClientId();
             if (StringUtils.isNotBlank(clientId)) {
-                connection.setClientID(clientId);
+                connected.connection.setClientID(clientId);
             }
 
             // Setup session
-            session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+            connected.session = connected.connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
 
             // Setup destination
-            destination = (Destination) initialContext.lookup(jmsConfig.getDestination());
+            connected.destination = (Destination) connected.context.lookup(jmsConfig.getDestination());
 
             // Setup consumer with message selector
             final String messageSelector = jmsConfig.getMessageSelector();
@@ -201,44 +255,48 @@ public class Receiver {
             final boolean isNoLocal = jmsConfig.isNoLocal();
 
             // Interesting switch due to JMS specification
-            if (destination instanceof Topic && isDurable) {
+            if (connected.destination instanceof Topic && isDurable) {
                 // Create durable subscriber for topic only when set durable manually
-                messageConsumer = session.createDurableSubscriber((Topic) destination, subscriberName, messageSelector, isNoLocal);
+                connected.consumer = connected.session.createDurableSubscriber((Topic) connected.destination, subscriberName, messageSelector, isNoLocal);
 
                 LOG.info("Created durable subscriber for {}", jmsConfig.getDestination());
 
             } else {
                 // When not a Topic OR when a Topic but not durable.....
-                messageConsumer = session.createConsumer(destination, messageSelector, isNoLocal);
+                connected.consumer = connected.session.createConsumer(connected.destination, messageSelector, isNoLocal);
 
                 LOG.info("Created non-durable subscriber for {}", jmsConfig.getDestination());
             }
 
-            // Register listener
-            messageListener.setSession(session);
-            messageConsumer.setMessageListener(messageListener);
+            // Register listener, no messages are delivered until the connection is started
+            connected.consumer.setMessageListener(messageListener);
 
             if (LOG.isDebugEnabled()) {
-                LOG.debug("JMS connection is initialized: {}={} {}", Constants.CLIENT_ID, connection.getClientID(), jmsConfig.toString());
+                LOG.debug("JMS connection is initialized: {}={} {}", Constants.CLIENT_ID, connected.connection.getClientID(), jmsConfig.toString());
             } else {
-                LOG.info("JMS connection is initialized: {}={}", Constants.CLIENT_ID, connection.getClientID());
+                LOG.info("JMS connection is initialized: {}={}", Constants.CLIENT_ID, connected.connection.getClientID());
             }
 
-
-            state = STATE.STOPPED;
+            return connected;
 
         } catch (final Throwable t) {
-            state = STATE.ERROR;
-
-            closeAllSilently(initialContext, connection, session);
-
-            LOG.error(t.getMessage(), t);
-            LOG.debug("{}", jmsConfig.toString());
-
-            messageListener.getReport().addReceiverError(t);
-            throw new XPathException(JMS000, t.getMessage());
+            closeAllSilently(connected.context, connected.connection, connected.session);
+            throw t;
         }
+    }
 
+    /**
+     * Replace the resources of the receiver by a new connection.
+     */
+    private void use(final Connected connected) {
+        initialContext = connected.context;
+        connectionFactory = connected.connectionFactory;
+        connection = connected.connection;
+        session = connected.session;
+        destination = connected.destination;
+        messageConsumer = connected.consumer;
+
+        messageListener.setSession(session);
     }
 
     /**
@@ -247,7 +305,11 @@ public class Receiver {
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      * @see Connection#stop()
      */
-    public void stop() throws XPathException {
+    public synchronized void stop() throws XPathException {
+
+        // Stopped on purpose, do not reconnect
+        running = false;
+        supervisor.cancel();
 
         if (connection == null) {
             final String txt = "JMS connection must be initialized first";
@@ -277,7 +339,22 @@ public class Receiver {
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      * @see Connection#close()
      */
-    public void close() throws XPathException {
+    public synchronized void close() throws XPathException {
+
+        // Closed on purpose, do not reconnect
+        running = false;
+        supervisor.cancel();
+
+        try {
+            closeConnection();
+
+        } finally {
+            // Also when the connection was never initialized
+            messageListener.close();
+        }
+    }
+
+    private void closeConnection() throws XPathException {
 
         if (connection == null) {
             final String txt = "JMS connection must be initialized first";
@@ -324,6 +401,85 @@ public class Receiver {
         }
     }
 
+    /**
+     * Connect in the background, with increasing delays, until the connection is started or
+     * the receiver is stopped. Used when the broker is not available when the receiver is
+     * created.
+     */
+    public synchronized void scheduleReconnect() {
+        running = true;
+        state = STATE.RECONNECTING;
+        supervisor.connectionLost();
+    }
+
+    /**
+     * Errors of the connection are reported to the listener. The connection is lost when
+     * the broker is stopped or not reachable, it is reconnected when the receiver is started.
+     */
+    private void onException(final JMSException ex) {
+        messageListener.onException(ex);
+
+        if (running) {
+            state = STATE.RECONNECTING;
+            supervisor.connectionLost();
+        }
+    }
+
+    /**
+     * Replace the connection with a new one, using the same configuration. A durable
+     * subscription is restored with the same client ID and subscriber name.
+     * <p>
+     * Connecting can take long when the broker does not respond, so it is done without
+     * holding the lock of the receiver; {@link #stop()} and {@link #close()} do not wait for
+     * it. When the receiver was stopped or closed in the meantime the new connection is
+     * closed again.
+     */
+    private void reconnect() throws XPathException {
+        final Context oldContext;
+        final Connection oldConnection;
+        final Session oldSession;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            oldContext = initialContext;
+            oldConnection = connection;
+            oldSession = session;
+        }
+
+        // The client ID can only be used by one connection at a time
+        closeAllSilently(oldContext, oldConnection, oldSession);
+
+        final Connected connected;
+        try {
+            connected = connect();
+
+        } catch (final Throwable t) {
+            state = STATE.RECONNECTING;
+            LOG.error(t.getMessage(), t);
+            messageListener.getReport().addReceiverError(t);
+            throw new XPathException(JMS000, t.getMessage());
+        }
+
+        synchronized (this) {
+            if (!running) {
+                // Stopped or closed while connecting
+                closeAllSilently(connected.context, connected.connection, connected.session);
+                return;
+            }
+
+            use(connected);
+
+            try {
+                start();
+
+            } catch (final XPathException ex) {
+                state = STATE.RECONNECTING;
+                throw ex;
+            }
+        }
+    }
+
     /**
      * @return Get report about Receiver and Listener
      */
@@ -341,6 +497,9 @@ public class Receiver {
         builder.characters("" + state.name());
         builder.endElement();
 
+        // Reconnects after the connection was lost
+        supervisor.write(builder);
+
         // JMS configuration
         builder.startElement("", Context.INITIAL_CONTEXT_FACTORY, Context.INITIAL_CONTEXT_FACTORY, null);
         builder.characters(jmsConfig.getInitialContextFactory());
@@ -381,6 +540,14 @@ public class Receiver {
             }
         }
 
+        // Prefetch
+        final int prefetch = jmsConfig.getConsumerPrefetch();
+        if (prefetch > 0) {
+            builder.startElement("", Constants.CONSUMER_PREFETCH, Constants.CONSUMER_PREFETCH, null);
+            builder.characters("" + prefetch);
+            builder.endElement();
+        }
+
         // Message consumer
         if (messageConsumer != null) {
             try {
@@ -423,6 +590,9 @@ public class Receiver {
             builder.characters("" + stats.getMessageCounterNOK());
             builder.endElement();
 
+            // Listener specific
+            messageListener.writeStatistics(builder);
+
             builder.endElement();
         }
 
@@ -477,10 +647,22 @@ public class Receiver {
         }
     }
 
+    /**
+     * Resources of one connection
+     */
+    private static class Connected {
+        private Context context = null;
+        private ConnectionFactory connectionFactory = null;
+        private Connection connection = null;
+        private Session session = null;
+        private Destination destination = null;
+        private MessageConsumer consumer = null;
+    }
+
     /**
      * States of receiver
      */
     private enum STATE {
-        NOT_DEFINED, STARTED, STOPPED, CLOSED, ERROR
+        NOT_DEFINED, STARTED, STOPPED, CLOSED, ERROR, RECONNECTING
     }
 }
@@ -0,0 +1,212 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.receive;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconnects a receiver after its connection is lost, e.g. when the broker is restarted.
+ * <p>
+ * The delay between two attempts doubles after each failed attempt, up to a maximum. A random
+ * part of up to half the delay is added, so receivers of several instances do not all connect
+ * at the same moment when the broker is back. Each attempt runs in its own thread, so a
+ * receiver that waits for a broker that does not respond does not delay the other receivers.
+ *
+ * @author Dannes Wessels
+ */
+class ReconnectSupervisor {
+
+    private final static Logger LOG = LogManager.getLogger(ReconnectSupervisor.class);
+
+    /**
+     * One thread for all receivers to wait for the next attempt.
+     */
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "jms-receiver-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Runs the attempts, at most one per receiver at a time. Idle threads are stopped.
+     */
+    private static final ExecutorService CONNECTOR = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "jms-receiver-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int receiverId;
+    private final long delay;
+    private final long maxDelay;
+    private final Action action;
+
+    private ScheduledFuture<?> pending = null;
+    private long downSince = 0;
+    private int attempt = 0;
+
+    private long nrConnectionLost = 0;
+    private long nrAttempts = 0;
+    private long nrReconnects = 0;
+    private long downtime = 0;
+    private String lastError = null;
+
+    /**
+     * Constructor.
+     *
+     * @param receiverId Identification of the receiver, for logging
+     * @param delay      Delay in milliseconds before the first attempt, 0 to disable reconnecting
+     * @param maxDelay   Maximum delay in milliseconds between two attempts
+     * @param action     Connects and starts the receiver, throws an exception when it fails
+     */
+    ReconnectSupervisor(final int receiverId, final long delay, final long maxDelay, final Action action) {
+        this.receiverId = receiverId;
+        this.delay = delay;
+        this.maxDelay = Math.max(delay, maxDelay);
+        this.action = action;
+    }
+
+    /**
+     * Start reconnecting, unless already reconnecting.
+     */
+    synchronized void connectionLost() {
+        if (delay == 0 || downSince != 0) {
+            return;
+        }
+
+        downSince = System.currentTimeMillis();
+        attempt = 0;
+        nrConnectionLost++;
+
+        LOG.warn("Connection of receiver {} is lost, reconnecting", receiverId);
+        schedule();
+    }
+
+    /**
+     * Stop reconnecting, e.g. when the receiver is stopped or closed.
+     */
+    synchronized void cancel() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        if (downSince != 0) {
+            downtime += System.currentTimeMillis() - downSince;
+            downSince = 0;
+        }
+    }
+
+    synchronized boolean isReconnecting() {
+        return downSince != 0;
+    }
+
+    private void schedule() {
+        final long backoff = Math.min(maxDelay, delay << Math.min(attempt, 30));
+        final long wait = backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+        LOG.debug("Reconnecting receiver {} in {} ms", receiverId, wait);
+        pending = EXECUTOR.schedule(() -> CONNECTOR.execute(this::reconnect), wait, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (downSince == 0) {
+                // Cancelled
+                return;
+            }
+            attempt++;
+            nrAttempts++;
+        }
+
+        try {
+            action.run();
+
+            synchronized (this) {
+                if (downSince != 0) {
+                    final long duration = System.currentTimeMillis() - downSince;
+                    downtime += duration;
+                    downSince = 0;
+                    nrReconnects++;
+                    LOG.info("Receiver {} is reconnected after {} ms and {} attempts", receiverId, duration, attempt);
+                }
+                pending = null;
+            }
+
+        } catch (final Throwable t) {
+            LOG.warn("Attempt {} to reconnect receiver {} failed: {}", attempt, receiverId, t.getMessage());
+
+            synchronized (this) {
+                lastError = t.getMessage();
+                if (downSince != 0) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write statistics of the reconnects to report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "reconnect", "reconnect", null);
+
+        final long currentDowntime = (downSince == 0) ? 0 : System.currentTimeMillis() - downSince;
+
+        writeValue(builder, "delay", "" + delay);
+        writeValue(builder, "maxDelay", "" + maxDelay);
+        writeValue(builder, "reconnecting", "" + (downSince != 0));
+        writeValue(builder, "nrConnectionLost", "" + nrConnectionLost);
+        writeValue(builder, "nrAttempts", "" + nrAttempts);
+        writeValue(builder, "nrReconnects", "" + nrReconnects);
+        writeValue(builder, "currentDowntime", "" + currentDowntime);
+        writeValue(builder, "downtime", "" + (downtime + currentDowntime));
+        if (lastError != null) {
+            writeValue(builder, "lastError", lastError);
+        }
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final String value) {
+        builder.startElement("", name, name, null);
+        builder.characters(value);
+        builder.endElement();
+    }
+
+    /**
+     * Connects and starts the receiver.
+     */
+    @FunctionalInterface
+    interface Action {
+        void run() throws Exception;
+    }
+}
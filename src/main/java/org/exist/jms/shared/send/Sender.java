@@ -20,7 +20,6 @@
 package org.exist.jms.shared.send;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -44,6 +43,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.file.Files;
 import java.util.Map;
 import java.util.Properties;
 import java.util.zip.GZIPOutputStream;
@@ -269,21 +269,27 @@ public class Sender {
                     jmp.setProperty(EXIST_DOCUMENT_MIMETYPE, np.getDoc().getMetadata().getMimeType());
                 }
 
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
                 // Stream content node to buffer
                 final NodeValue node = (NodeValue) item;
 
                 // note: this code is not responsible to close the broker!
                 final DBBroker broker = xQueryContext.getBroker();
 
+                // Create actual message, pass data
+                final BytesMessage bytesMessage = session.createBytesMessage();
+
                 final Serializer serializer = broker.newSerializer();
-                try (final InputStream is = new NodeInputStream(xQueryContext.getDatabase(), serializer, node);
+                try (final PayloadBuffer buffer = new PayloadBuffer()) {
+
+                    try (final InputStream is = new NodeInputStream(xQueryContext.getDatabase(), serializer, node);
 
-                     // Compress data when indicated
-                     final OutputStream os = getOutputStream(isCompressed, baos)) {
+                         // Compress data when indicated
+                         final OutputStream os = getOutputStream(isCompressed, buffer)) {
 
-                    IOUtils.copy(is, os);
+                        IOUtils.copy(is, os);
+                    }
+
+                    buffer.writeTo(bytesMessage);
 
                 } catch (final IOException ex) {
                     LOG.error(ex.getMessage(), ex);
@@ -294,10 +300,6 @@ public class Sender {
 //                    LOG.error(e);
 //                }
 
-                // Create actual message, pass data
-                final BytesMessage bytesMessage = session.createBytesMessage();
-                bytesMessage.writeBytes(baos.toByteArray());
-
                 // Swap
                 message = bytesMessage;
 
@@ -319,26 +321,27 @@ public class Sender {
 
                 }
 
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
+                // Create actual message, pass data
+                final BytesMessage bytesMessage = session.createBytesMessage();
 
                 // Copy data from item to buffer
                 final BinaryValue binary = (BinaryValue) item;
 
-                try (final InputStream is = binary.getInputStream();
-                     final OutputStream os = getOutputStream(isCompressed, baos)) {
+                try (final PayloadBuffer buffer = new PayloadBuffer()) {
+
+                    try (final InputStream is = binary.getInputStream();
+                         final OutputStream os = getOutputStream(isCompressed, buffer)) {
 
-                    IOUtils.copy(is, os);
+                        IOUtils.copy(is, os);
+                    }
+
+                    buffer.writeTo(bytesMessage);
 
                 } catch (final IOException ex) {
                     LOG.error(ex);
                     throw new XPathException(JMS001, ex.getMessage(), ex);
                 }
 
-                // Create actual message, pass data
-                final BytesMessage bytesMessage = session.createBytesMessage();
-                bytesMessage.writeBytes(baos.toByteArray());
-
                 // Swap
                 message = bytesMessage;
 
@@ -389,8 +392,9 @@ public class Sender {
         return message;
     }
 
-    private OutputStream getOutputStream(final boolean isCompressed, final ByteArrayOutputStream baos) throws IOException {
-        return isCompressed ? new GZIPOutputStream(baos) : baos;
+    private OutputStream getOutputStream(final boolean isCompressed, final PayloadBuffer buffer) throws IOException {
+        final OutputStream os = buffer.getOutputStream();
+        return isCompressed ? new GZIPOutputStream(os) : os;
     }
 
     /**
@@ -401,8 +405,9 @@ public class Sender {
      * @param msgMetaProps Additional JMS message properties
      * @return JMS Message
      * @throws JMSException When an issue happens
+     * @throws IOException  When the payload could not be read
      */
-    private Message createMessageFromExistMessageItem(final Session session, final eXistMessageItem emi, final JmsMessageProperties msgMetaProps) throws JMSException {
+    private Message createMessageFromExistMessageItem(final Session session, final eXistMessageItem emi, final JmsMessageProperties msgMetaProps) throws JMSException, IOException {
 
         // Create bytes message
         final BytesMessage message = session.createBytesMessage();
@@ -412,7 +417,12 @@ public class Sender {
 
         final byte[] payload = em.getPayload();
 
-        if (payload == null) {
+        if (em.getPayloadFile() != null) {
+            try (final InputStream is = Files.newInputStream(em.getPayloadFile())) {
+                PayloadBuffer.copy(is, message);
+            }
+
+        } else if (payload == null) {
             LOG.debug("No payload for replication");
         } else {
             message.writeBytes(payload);
@@ -21,6 +21,8 @@ package org.exist.jms.xquery;
 
 
 import org.exist.dom.QName;
+import org.exist.jms.xquery.replication.ManageParkedMessages;
+import org.exist.jms.xquery.replication.PublisherReport;
 import org.exist.jms.xquery.replication.RegisterReceiver;
 import org.exist.jms.xquery.replication.ReplicationSwitch;
 import org.exist.jms.xquery.replication.ReplicationSwitchStatus;
@@ -50,6 +52,10 @@ public class ReplicationModule extends AbstractInternalModule {
             new FunctionDef(SyncResource.signatures[1], SyncResource.class),
             new FunctionDef(ReplicationSwitch.signatures[0], ReplicationSwitch.class),
             new FunctionDef(ReplicationSwitchStatus.signatures[0], ReplicationSwitchStatus.class),
+            new FunctionDef(PublisherReport.signatures[0], PublisherReport.class),
+            new FunctionDef(ManageParkedMessages.signatures[0], ManageParkedMessages.class),
+            new FunctionDef(ManageParkedMessages.signatures[1], ManageParkedMessages.class),
+            new FunctionDef(ManageParkedMessages.signatures[2], ManageParkedMessages.class),
     };
 
     public final static QName EXCEPTION_QNAME =
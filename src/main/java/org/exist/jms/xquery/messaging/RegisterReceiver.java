@@ -93,7 +93,7 @@ public class RegisterReceiver extends BasicFunction {
 
             // Setup listener, pass correct User object
             // get user via Broker for compatibility < existdb 2.2
-            final MessagingJmsListener myListener = new MessagingJmsListener(functionReference, functionParams, context);
+            final MessagingJmsListener myListener = new MessagingJmsListener(functionReference, functionParams, context, config);
 
             // Create receiver
             final Receiver receiver = new Receiver(config, myListener); // TODO check use .copyContext() ?
@@ -0,0 +1,145 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.replication;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.subscribe.ReplicationJmsListener;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessagingListener;
+import org.exist.jms.shared.receive.Receiver;
+import org.exist.jms.shared.receive.ReceiversManager;
+import org.exist.jms.xquery.ReplicationModule;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.exist.jms.shared.ErrorCodes.*;
+
+/**
+ * Implementation of the replication:parked-messages(), replication:replay-parked() and
+ * replication:purge-parked() functions, for received messages that could not be applied.
+ *
+ * @author Dannes Wessels
+ */
+public class ManageParkedMessages extends BasicFunction {
+
+    public static final String LIST = "parked-messages";
+    public static final String REPLAY = "replay-parked";
+    public static final String PURGE = "purge-parked";
+
+    public static final String ID = "id";
+    public static final String RECEIVER_ID = "Replication receiver ID";
+    public static final String MESSAGE_IDS = "message-ids";
+    public static final String MESSAGE_IDS_DESCRIPTION = "IDs of parked messages, all parked messages when empty";
+
+    public final static FunctionSignature[] signatures = {
+            new FunctionSignature(
+                    new QName(LIST, ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Get the received messages that could not be applied, with the error of their last attempt.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType(ID, Type.INTEGER, Cardinality.EXACTLY_ONE, RECEIVER_ID),},
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with the parked messages")
+            ),
+            new FunctionSignature(
+                    new QName(REPLAY, ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Apply parked messages again. Messages that fail again stay parked.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType(ID, Type.INTEGER, Cardinality.EXACTLY_ONE, RECEIVER_ID),
+                            new FunctionParameterSequenceType(MESSAGE_IDS, Type.INTEGER, Cardinality.ZERO_OR_MORE, MESSAGE_IDS_DESCRIPTION),},
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "Number of applied messages")
+            ),
+            new FunctionSignature(
+                    new QName(PURGE, ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Remove parked messages without applying them.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType(ID, Type.INTEGER, Cardinality.EXACTLY_ONE, RECEIVER_ID),
+                            new FunctionParameterSequenceType(MESSAGE_IDS, Type.INTEGER, Cardinality.ZERO_OR_MORE, MESSAGE_IDS_DESCRIPTION),},
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "Number of removed messages")
+            ),};
+
+    public ManageParkedMessages(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        // Get receiver by ID
+        final Integer id = args[0].toJavaObject(Integer.class);
+        final Receiver receiver = ReceiversManager.getInstance().get(id);
+
+        // Verify if receiver is available and receives replication messages
+        final eXistMessagingListener listener = (receiver == null) ? null : receiver.getListener();
+        if (!(listener instanceof ReplicationJmsListener)) {
+            throw new XPathException(this, JMS020, String.format("No replication receiver exists for id '%s'", id));
+        }
+        final ReplicationJmsListener replicationListener = (ReplicationJmsListener) listener;
+
+        try {
+            if (isCalledAs(LIST)) {
+                final MemTreeBuilder builder = new MemTreeBuilder();
+                builder.startDocument();
+
+                final int nodeNr = builder.startElement("", "parkedMessages", "parkedMessages", null);
+                builder.addAttribute(new QName("receiver", null, null), "" + id);
+                replicationListener.writeParkedMessages(builder);
+                builder.endElement();
+
+                return builder.getDocument().getNode(nodeNr);
+            }
+
+            final List<Long> messageIds = new ArrayList<>();
+            for (final SequenceIterator i = args[1].iterate(); i.hasNext(); ) {
+                messageIds.add(i.nextItem().toJavaObject(Long.class));
+            }
+
+            if (isCalledAs(REPLAY)) {
+                return new IntegerValue(replicationListener.replayParkedMessages(messageIds));
+
+            } else if (isCalledAs(PURGE)) {
+                return new IntegerValue(replicationListener.purgeParkedMessages(messageIds));
+
+            } else {
+                throw new XPathException(this, JMS002, String.format("Function '%s' does not exist.", getSignature().getName().getLocalPart()));
+            }
+
+        } catch (final XPathException ex) {
+            LOG.error(ex.getMessage());
+            ex.setLocation(this.line, this.column, this.getSource());
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, JMS000, t);
+        }
+    }
+}
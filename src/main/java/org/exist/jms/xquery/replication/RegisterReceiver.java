@@ -76,7 +76,7 @@ public class RegisterReceiver extends BasicFunction {
 
             // Setup listener, pass correct User object
             // get user via Broker for compatibility < existdb 2.2
-            final ReplicationJmsListener myListener = new ReplicationJmsListener(context.getBroker().getBrokerPool());
+            final ReplicationJmsListener myListener = new ReplicationJmsListener(context.getBroker().getBrokerPool(), config);
             // TODO autoclose broker - not possible as broker but live for long time
 
             // By default replication must be durable
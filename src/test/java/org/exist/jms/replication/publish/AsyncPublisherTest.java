@@ -0,0 +1,427 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Dannes Wessels
+ */
+public class AsyncPublisherTest {
+
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void eventsOfPartitionAreSentInOrder() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        final AsyncPublisher publisher = publisher(transport, "block", 100, 2);
+        try {
+            final List<eXistMessage> events = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                events.add(delete("/db/a/" + i + ".xml"));
+            }
+            for (final eXistMessage em : events) {
+                publisher.publish(em);
+            }
+
+            transport.awaitSent(events.size());
+            assertEquals(events, transport.getSent());
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void barrierIsSentBetweenEarlierAndLaterEvents() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.close();
+        final AsyncPublisher publisher = publisher(transport, "block", 100, 2);
+        try {
+            final eXistMessage first = delete("/db/a/1.xml");
+            final eXistMessage second = delete("/db/b/2.xml");
+            final eXistMessage barrier = move("/db/a/x.xml", "/db/b/x.xml");
+            final eXistMessage later = delete("/db/a/3.xml");
+
+            publisher.publish(first);
+            publisher.publish(second);
+
+            final Thread thread = new Thread(() -> {
+                try {
+                    publisher.publish(barrier);
+                } catch (final TransportException ex) {
+                    fail(ex.getMessage());
+                }
+            });
+            thread.start();
+
+            // The barrier waits for the earlier events
+            Thread.sleep(200);
+            assertTrue(transport.getSent().isEmpty());
+
+            transport.open();
+            thread.join(TIMEOUT);
+            publisher.publish(later);
+
+            transport.awaitSent(4);
+            final List<eXistMessage> sent = transport.getSent();
+            assertTrue(sent.indexOf(barrier) > sent.indexOf(first));
+            assertTrue(sent.indexOf(barrier) > sent.indexOf(second));
+            assertEquals(3, sent.indexOf(later));
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void failPolicyRejectsWhenQueueIsFull() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.close();
+        final AsyncPublisher publisher = publisher(transport, "fail", 1, 1);
+        try {
+            publisher.publish(delete("/db/a/1.xml"));
+            transport.awaitEntered();
+            publisher.publish(delete("/db/a/2.xml"));
+
+            try {
+                publisher.publish(delete("/db/a/3.xml"));
+                fail("Event is not rejected");
+            } catch (final TransportException ex) {
+                // expected
+            }
+
+            transport.open();
+            transport.awaitSent(2);
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void journaledEventsKeepTheirOrder() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.close();
+        final AsyncPublisher publisher = publisher(transport, "journal", 1, 1);
+        try {
+            final eXistMessage first = delete("/db/a/1.xml");
+            publisher.publish(first);
+            transport.awaitEntered();
+
+            // Queued, then journaled because the queue is full
+            final List<eXistMessage> events = new ArrayList<>(Collections.singletonList(first));
+            for (int i = 2; i < 6; i++) {
+                final eXistMessage em = delete("/db/a/" + i + ".xml");
+                events.add(em);
+                publisher.publish(em);
+            }
+
+            // Journaled after the overflow, also the barrier
+            final eXistMessage barrier = move("/db/a/x.xml", "/db/b/x.xml");
+            final eXistMessage later = delete("/db/b/6.xml");
+            publisher.publish(barrier);
+            publisher.publish(later);
+            events.add(barrier);
+            events.add(later);
+
+            transport.open();
+            transport.awaitSent(events.size());
+            assertEquals(reports(events), reports(transport.getSent()));
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void journalIsSentOnStart() throws Exception {
+        final Path journalDir = temporaryFolder.newFolder().toPath();
+
+        final List<eXistMessage> events = Arrays.asList(delete("/db/a/1.xml"), delete("/db/b/2.xml"),
+                move("/db/a/x.xml", "/db/b/x.xml"), delete("/db/a/3.xml"));
+
+        final PublishJournal journal = new PublishJournal(journalDir);
+        for (final eXistMessage em : events.subList(0, 3)) {
+            journal.append(em);
+        }
+
+        final RecordingTransport transport = new RecordingTransport();
+        final AsyncPublisher publisher = new AsyncPublisher(transport, parameters("block", 100, 1), null, journalDir);
+        try {
+            // Sent after the journaled events
+            publisher.publish(events.get(3));
+
+            transport.awaitSent(events.size());
+            assertEquals(reports(events), reports(transport.getSent()));
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void failedEventIsRetried() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.failures.set(1);
+        final AsyncPublisher publisher = publisher(transport, "block", 100, 1);
+        try {
+            final eXistMessage first = delete("/db/a/1.xml");
+            final eXistMessage second = delete("/db/a/2.xml");
+            publisher.publish(first);
+            publisher.publish(second);
+
+            transport.awaitSent(2);
+            assertEquals(Arrays.asList(first, second), transport.getSent());
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void failedEventIsGivenUp() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.failures.set(2);
+        final Path journalDir = temporaryFolder.newFolder().toPath();
+        final PublisherParameters parameters = parameters("block", 100, 1);
+        parameters.getProps().setProperty(Constants.PUBLISHER_RETRY_ATTEMPTS, "2");
+        parameters.processParameters();
+
+        final AsyncPublisher publisher = new AsyncPublisher(transport, parameters, null, journalDir);
+        try {
+            final eXistMessage first = delete("/db/a/1.xml");
+            final eXistMessage second = delete("/db/a/2.xml");
+            publisher.publish(first);
+            publisher.publish(second);
+
+            // The later event is not held back
+            transport.awaitSent(1);
+            assertEquals(Collections.singletonList(second), transport.getSent());
+
+        } finally {
+            publisher.shutdown();
+        }
+
+        final PublishJournal deadLetters = new PublishJournal(journalDir.resolve("failed"));
+        assertEquals(1, deadLetters.size());
+        assertEquals(delete("/db/a/1.xml").getReport(), deadLetters.peek().getReport());
+    }
+
+    @Test
+    public void transactionIsSentAsOneBatch() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        final AsyncPublisher publisher = publisher(transport, "block", 100, 2);
+        try {
+            final List<eXistMessage> events = Arrays.asList(delete("/db/a/1.xml"),
+                    move("/db/a/x.xml", "/db/b/x.xml"), delete("/db/b/2.xml"));
+            publisher.publish(events);
+
+            transport.awaitSent(events.size());
+            assertEquals(1, transport.batches.size());
+            assertEquals(events, transport.batches.get(0));
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectedTransactionIsNotPublished() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.close();
+        final AsyncPublisher publisher = publisher(transport, "fail", 1, 1);
+        try {
+            publisher.publish(delete("/db/a/1.xml"));
+            transport.awaitEntered();
+            publisher.publish(delete("/db/a/2.xml"));
+
+            try {
+                publisher.publish(Arrays.asList(delete("/db/a/3.xml"), delete("/db/a/4.xml")));
+                fail("Transaction is not rejected");
+            } catch (final TransportException ex) {
+                // expected
+            }
+
+            transport.open();
+            transport.awaitSent(2);
+            Thread.sleep(200);
+            assertEquals(2, transport.getSent().size());
+            assertTrue(transport.batches.isEmpty());
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void journaledTransactionIsSentAsOneBatch() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.close();
+        final AsyncPublisher publisher = publisher(transport, "journal", 1, 1);
+        try {
+            publisher.publish(delete("/db/a/1.xml"));
+            transport.awaitEntered();
+            publisher.publish(delete("/db/a/2.xml"));
+
+            final List<eXistMessage> events = Arrays.asList(delete("/db/a/3.xml"), delete("/db/a/4.xml"));
+            publisher.publish(events);
+
+            transport.open();
+            transport.awaitSent(4);
+            assertEquals(1, transport.batches.size());
+            assertEquals(reports(events), reports(transport.batches.get(0)));
+
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    private AsyncPublisher publisher(final AsyncPublisher.Transport transport, final String policy,
+                                     final int queueSize, final int threads) throws Exception {
+        return new AsyncPublisher(transport, parameters(policy, queueSize, threads), null,
+                temporaryFolder.newFolder().toPath());
+    }
+
+    private static PublisherParameters parameters(final String policy, final int queueSize, final int threads)
+            throws TransportException {
+        final PublisherParameters parameters = new PublisherParameters();
+        parameters.getProps().setProperty(Constants.PUBLISHER_MODE, Constants.PUBLISHER_MODE_ASYNC);
+        parameters.getProps().setProperty(Constants.PUBLISHER_QUEUE_POLICY, policy);
+        parameters.getProps().setProperty(Constants.PUBLISHER_QUEUE_SIZE, "" + queueSize);
+        parameters.getProps().setProperty(Constants.PUBLISHER_THREADS, "" + threads);
+        parameters.processParameters();
+        return parameters;
+    }
+
+    private static eXistMessage delete(final String path) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.DELETE);
+        em.setResourcePath(path);
+        return em;
+    }
+
+    private static eXistMessage move(final String path, final String destination) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.MOVE);
+        em.setResourcePath(path);
+        em.setDestinationPath(destination);
+        return em;
+    }
+
+    /**
+     * Journaled events are read back as new objects.
+     */
+    private static List<String> reports(final List<eXistMessage> events) {
+        final List<String> reports = new ArrayList<>();
+        events.forEach(em -> reports.add(em.getReport()));
+        return reports;
+    }
+
+    /**
+     * Records the sent events. Sending can be held back, and can fail a number of times.
+     */
+    private static class RecordingTransport implements AsyncPublisher.Transport {
+
+        private final List<eXistMessage> sent = Collections.synchronizedList(new ArrayList<>());
+        private final List<List<eXistMessage>> batches = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Override
+        public boolean skipUnchanged(final eXistMessage em) {
+            return false;
+        }
+
+        @Override
+        public void send(final eXistMessage em) throws TransportException {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TransportException("Interrupted", ex);
+            }
+
+            if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                throw new TransportException("Broker is not available");
+            }
+            sent.add(em);
+        }
+
+        @Override
+        public void sendBatch(final List<eXistMessage> events) throws TransportException {
+            batches.add(new ArrayList<>(events));
+            for (final eXistMessage em : events) {
+                send(em);
+            }
+        }
+
+        void close() {
+            gate = new CountDownLatch(1);
+        }
+
+        void open() {
+            gate.countDown();
+        }
+
+        void awaitEntered() throws InterruptedException {
+            assertTrue(entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void awaitSent(final int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (sent.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, sent.size());
+        }
+
+        List<eXistMessage> getSent() {
+            synchronized (sent) {
+                return new ArrayList<>(sent);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class DigestCacheTest {
+
+    @Test
+    public void sameContentIsSuppressed() {
+        final DigestCache cache = new DigestCache(10);
+
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.CREATE, "/db/a.xml", null, "d1")));
+        assertFalse(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1")));
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d2")));
+        assertFalse(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d2")));
+    }
+
+    @Test
+    public void otherPathIsPublished() {
+        final DigestCache cache = new DigestCache(10);
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1"));
+
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/b.xml", null, "d1")));
+    }
+
+    @Test
+    public void createIsAlwaysPublished() {
+        final DigestCache cache = new DigestCache(10);
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1"));
+
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.CREATE, "/db/a.xml", null, "d1")));
+    }
+
+    @Test
+    public void updateWithoutDigestIsPublished() {
+        final DigestCache cache = new DigestCache(10);
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1"));
+
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, null)));
+        assertEquals(0, cache.size());
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1")));
+    }
+
+    @Test
+    public void forgottenUpdateIsPublishedAgain() {
+        final DigestCache cache = new DigestCache(10);
+        final eXistMessage em = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1");
+        cache.accept(em);
+        cache.forget(em);
+
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1")));
+    }
+
+    @Test
+    public void deletedAndMovedDocumentsAreForgotten() {
+        final DigestCache cache = new DigestCache(10);
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1"));
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/b.xml", null, "d2"));
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/c.xml", null, "d3"));
+
+        cache.accept(document(eXistMessage.ResourceOperation.DELETE, "/db/a.xml", null, null));
+        cache.accept(document(eXistMessage.ResourceOperation.MOVE, "/db/b.xml", "/db/c.xml", null));
+
+        assertEquals(0, cache.size());
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1")));
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/c.xml", null, "d2")));
+    }
+
+    @Test
+    public void collectionChangesForgetDocuments() {
+        final DigestCache cache = new DigestCache(10);
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a/x.xml", null, "d1"));
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/ab/x.xml", null, "d2"));
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/b/x.xml", null, "d3"));
+
+        cache.accept(collection(eXistMessage.ResourceOperation.MOVE, "/db/a", "/db/b"));
+
+        // Only documents inside the collections, not with the same prefix
+        assertEquals(1, cache.size());
+        assertFalse(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/ab/x.xml", null, "d2")));
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a/x.xml", null, "d1")));
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/b/x.xml", null, "d3")));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        final DigestCache cache = new DigestCache(2);
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1"));
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/b.xml", null, "d2"));
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/c.xml", null, "d3"));
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1")));
+    }
+
+    @Test
+    public void emptyCacheIsDisabled() {
+        final DigestCache cache = new DigestCache(0);
+        cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1"));
+
+        assertTrue(cache.accept(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null, "d1")));
+        assertEquals(0, cache.size());
+    }
+
+    private static eXistMessage collection(final eXistMessage.ResourceOperation operation, final String path,
+                                           final String destination) {
+        final eXistMessage em = document(operation, path, destination, null);
+        em.setResourceType(eXistMessage.ResourceType.COLLECTION);
+        return em;
+    }
+
+    private static eXistMessage document(final eXistMessage.ResourceOperation operation, final String path,
+                                         final String destination, final String digest) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(operation);
+        em.setResourcePath(path);
+        em.setDestinationPath(destination);
+        if (digest != null) {
+            em.getMetadata().put(MessageHelper.EXIST_RESOURCE_DIGEST, digest);
+        }
+        return em;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class EventCoalescerTest {
+
+    private static final long WINDOW = 100;
+
+    @Test
+    public void updatesAreMergedWithinWindow() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        final eXistMessage first = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+
+        assertFalse(coalescer.add(first, 0));
+        assertTrue(coalescer.add(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml"), 50));
+        assertEquals(1, coalescer.size());
+
+        assertNull(coalescer.poll(WINDOW - 1));
+        assertSame(first, coalescer.poll(WINDOW));
+        assertNull(coalescer.poll(WINDOW));
+    }
+
+    @Test
+    public void createIsKept() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        final eXistMessage create = document(eXistMessage.ResourceOperation.CREATE, "/db/a.xml");
+
+        coalescer.add(create, 0);
+        coalescer.add(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml"), 10);
+        coalescer.add(document(eXistMessage.ResourceOperation.METADATA, "/db/a.xml"), 20);
+
+        assertSame(create, coalescer.poll(WINDOW));
+    }
+
+    @Test
+    public void metadataIsSupersededByContent() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        final eXistMessage update = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+
+        coalescer.add(document(eXistMessage.ResourceOperation.METADATA, "/db/a.xml"), 0);
+        assertTrue(coalescer.add(update, 10));
+
+        assertSame(update, coalescer.poll(WINDOW));
+    }
+
+    @Test
+    public void barrierReleasesEarlierEvents() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        final eXistMessage update = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+        final eXistMessage delete = document(eXistMessage.ResourceOperation.DELETE, "/db/a.xml");
+
+        coalescer.add(update, 0);
+        assertFalse(coalescer.add(delete, 10));
+        assertEquals(0, coalescer.getDelay(10));
+
+        assertSame(update, coalescer.poll(10));
+        assertSame(delete, coalescer.poll(10));
+        assertNull(coalescer.poll(10));
+    }
+
+    @Test
+    public void eventsAreNotMergedAcrossBarrier() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        final eXistMessage before = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+        final eXistMessage barrier = document(eXistMessage.ResourceOperation.MOVE, "/db/b.xml");
+        final eXistMessage after = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+
+        coalescer.add(before, 0);
+        coalescer.add(barrier, 10);
+        assertFalse(coalescer.add(after, 20));
+
+        assertSame(before, coalescer.poll(20));
+        assertSame(barrier, coalescer.poll(20));
+        assertNull(coalescer.poll(20));
+        assertSame(after, coalescer.poll(20 + WINDOW));
+    }
+
+    @Test
+    public void orderIsKept() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        final eXistMessage a = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+        final eXistMessage b = document(eXistMessage.ResourceOperation.UPDATE, "/db/b.xml");
+
+        coalescer.add(a, 0);
+        coalescer.add(b, 10);
+        coalescer.add(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml"), 20);
+
+        assertSame(a, coalescer.poll(200));
+        assertSame(b, coalescer.poll(200));
+    }
+
+    @Test
+    public void fullCoalescerReleasesOldest() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 2);
+        final eXistMessage a = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+
+        coalescer.add(a, 0);
+        assertNull(coalescer.poll(0));
+        coalescer.add(document(eXistMessage.ResourceOperation.UPDATE, "/db/b.xml"), 0);
+
+        assertSame(a, coalescer.poll(0));
+        assertNull(coalescer.poll(0));
+    }
+
+    @Test
+    public void noWindow() {
+        final EventCoalescer coalescer = new EventCoalescer(0, 10);
+        final eXistMessage a = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+
+        coalescer.add(a, 0);
+        assertEquals(0, coalescer.getDelay(0));
+        assertSame(a, coalescer.poll(0));
+    }
+
+    @Test
+    public void delay() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        assertEquals(Long.MAX_VALUE, coalescer.getDelay(0));
+
+        coalescer.add(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml"), 0);
+        assertEquals(WINDOW - 30, coalescer.getDelay(30));
+        assertEquals(0, coalescer.getDelay(WINDOW + 30));
+    }
+
+    @Test
+    public void drainReturnsEventsInOrder() {
+        final EventCoalescer coalescer = new EventCoalescer(WINDOW, 10);
+        final eXistMessage a = document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml");
+        final eXistMessage b = document(eXistMessage.ResourceOperation.DELETE, "/db/b.xml");
+
+        coalescer.add(a, 0);
+        coalescer.add(b, 0);
+
+        assertEquals(2, coalescer.drain().size());
+        assertEquals(0, coalescer.size());
+        assertNull(coalescer.poll(WINDOW));
+    }
+
+    private static eXistMessage document(final eXistMessage.ResourceOperation operation, final String path) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(operation);
+        em.setResourcePath(path);
+        return em;
+    }
+}
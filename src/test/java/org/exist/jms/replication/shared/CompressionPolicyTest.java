@@ -0,0 +1,137 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+import org.exist.jms.shared.PayloadCodecs;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class CompressionPolicyTest {
+
+    @Test
+    public void exactTypeIsCompressed() {
+        final CompressionPolicy policy = policy(CompressionPolicy.DEFAULT_SKIP_TYPES);
+
+        assertTrue(policy.isCompressedType("image/png"));
+        assertTrue(policy.isCompressedType("application/zip"));
+        assertFalse(policy.isCompressedType("image/svg+xml"));
+        assertFalse(policy.isCompressedType("application/octet-stream"));
+        assertFalse(policy.isCompressedType("text/plain"));
+    }
+
+    @Test
+    public void prefixMatchesTypes() {
+        final CompressionPolicy policy = policy(CompressionPolicy.DEFAULT_SKIP_TYPES);
+
+        assertTrue(policy.isCompressedType("video/mp4"));
+        assertTrue(policy.isCompressedType("audio/mpeg"));
+        assertTrue(policy.isCompressedType("application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+        assertFalse(policy.isCompressedType("application/vnd.ms-excel"));
+
+        // A prefix is not an exact type
+        assertFalse(policy.isCompressedType("application/vnd.openxmlformats"));
+    }
+
+    @Test
+    public void typeIsNormalized() {
+        final CompressionPolicy policy = policy(" Image/PNG , application/x-custom* ,");
+
+        assertTrue(policy.isCompressedType("image/png"));
+        assertTrue(policy.isCompressedType("IMAGE/png"));
+        assertTrue(policy.isCompressedType("image/png; name=logo.png"));
+        assertTrue(policy.isCompressedType("application/x-custom-archive"));
+        assertFalse(policy.isCompressedType("application/x-other"));
+    }
+
+    @Test
+    public void missingTypeIsNotCompressed() {
+        final CompressionPolicy policy = policy(CompressionPolicy.DEFAULT_SKIP_TYPES);
+
+        assertFalse(policy.isCompressedType(null));
+        assertFalse(policy.isCompressedType(" "));
+    }
+
+    @Test
+    public void noTypesAreSkippedWithoutList() {
+        final CompressionPolicy policy = policy(null);
+
+        assertFalse(policy.isCompressedType("image/png"));
+        assertFalse(policy.isCompressedType("video/mp4"));
+    }
+
+    @Test
+    public void randomDataHasHighEntropy() {
+        final byte[] sample = new byte[4096];
+        new Random(42).nextBytes(sample);
+
+        assertTrue(CompressionPolicy.isHighEntropy(sample, sample.length));
+    }
+
+    @Test
+    public void textHasLowEntropy() {
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4096) {
+            sb.append("<record id=\"").append(sb.length()).append("\">Lorem ipsum dolor sit amet</record>");
+        }
+        final byte[] sample = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(CompressionPolicy.isHighEntropy(sample, sample.length));
+    }
+
+    @Test
+    public void entropyThreshold() {
+        // Evenly distributed values have log2(values) bits per byte, the threshold is 7.5
+        assertFalse(CompressionPolicy.isHighEntropy(distributed(181), 181 * 20));
+        assertTrue(CompressionPolicy.isHighEntropy(distributed(182), 182 * 20));
+        assertTrue(CompressionPolicy.isHighEntropy(distributed(256), 256 * 20));
+    }
+
+    @Test
+    public void smallSampleIsNotJudged() {
+        final byte[] sample = new byte[4096];
+        new Random(42).nextBytes(sample);
+
+        assertFalse(CompressionPolicy.isHighEntropy(sample, 255));
+        assertFalse(CompressionPolicy.isHighEntropy(sample, 0));
+    }
+
+    private static CompressionPolicy policy(final String skipTypes) {
+        return new CompressionPolicy(PayloadCodecs.get(PayloadCodecs.GZIP), skipTypes, false);
+    }
+
+    /**
+     * @return Each of the values 20 times
+     */
+    private static byte[] distributed(final int values) {
+        final byte[] sample = new byte[values * 20];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = (byte) (i % values);
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * @author Dannes Wessels
+ */
+public class MessageHelperTest {
+
+    @Test
+    public void digestDoesNotDependOnOrder() {
+        final Map<Object, Object> first = new LinkedHashMap<>();
+        first.put("destination", "dynamicTopics/eXistdb");
+        first.put("publisher.mode", "async");
+
+        final Map<Object, Object> second = new LinkedHashMap<>();
+        second.put("publisher.mode", "async");
+        second.put("destination", "dynamicTopics/eXistdb");
+
+        assertEquals(MessageHelper.getConfigurationDigest(first), MessageHelper.getConfigurationDigest(second));
+        assertEquals(64, MessageHelper.getConfigurationDigest(first).length());
+    }
+
+    @Test
+    public void differentConfigurationsHaveDifferentDigests() {
+        final Map<Object, Object> first = new HashMap<>();
+        first.put("destination", "dynamicTopics/a");
+
+        final Map<Object, Object> second = new HashMap<>();
+        second.put("destination", "dynamicTopics/b");
+
+        assertNotEquals(MessageHelper.getConfigurationDigest(first), MessageHelper.getConfigurationDigest(second));
+    }
+
+    @Test
+    public void entriesDoNotRunIntoEachOther() {
+        final Map<Object, Object> first = new HashMap<>();
+        first.put("ab", "c");
+
+        final Map<Object, Object> second = new HashMap<>();
+        second.put("a", "bc");
+
+        assertNotEquals(MessageHelper.getConfigurationDigest(first), MessageHelper.getConfigurationDigest(second));
+    }
+
+    @Test
+    public void hashCodeCollisionHasDifferentDigest() {
+        // "Aa" and "BB" have the same hash code
+        final Map<Object, Object> first = new HashMap<>();
+        first.put("destination", "Aa");
+
+        final Map<Object, Object> second = new HashMap<>();
+        second.put("destination", "BB");
+
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(MessageHelper.getConfigurationDigest(first), MessageHelper.getConfigurationDigest(second));
+    }
+}
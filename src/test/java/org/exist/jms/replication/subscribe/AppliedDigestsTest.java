@@ -0,0 +1,109 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Dannes Wessels
+ */
+public class AppliedDigestsTest {
+
+    @Test
+    public void lastAppliedVersionIsKept() {
+        final AppliedDigests digests = new AppliedDigests(10);
+        digests.put("/db/a.xml", "d1", 100L);
+        digests.put("/db/a.xml", "d2", 200L);
+
+        final AppliedDigests.Version version = digests.get("/db/a.xml");
+        assertNotNull(version);
+        assertEquals("d2", version.getDigest());
+        assertEquals(200L, version.getLastModified());
+        assertNull(digests.get("/db/b.xml"));
+    }
+
+    @Test
+    public void updateIsNotForgotten() {
+        final AppliedDigests digests = new AppliedDigests(10);
+        digests.put("/db/a.xml", "d1", 100L);
+
+        digests.forget(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", null));
+        digests.forget(document(eXistMessage.ResourceOperation.METADATA, "/db/a.xml", null));
+
+        assertNotNull(digests.get("/db/a.xml"));
+    }
+
+    @Test
+    public void deletedAndMovedDocumentsAreForgotten() {
+        final AppliedDigests digests = new AppliedDigests(10);
+        digests.put("/db/a.xml", "d1", 100L);
+        digests.put("/db/b.xml", "d2", 100L);
+        digests.put("/db/c.xml", "d3", 100L);
+
+        digests.forget(document(eXistMessage.ResourceOperation.DELETE, "/db/a.xml", null));
+        digests.forget(document(eXistMessage.ResourceOperation.MOVE, "/db/b.xml", "/db/c.xml"));
+
+        assertEquals(0, digests.size());
+    }
+
+    @Test
+    public void collectionChangesForgetDocuments() {
+        final AppliedDigests digests = new AppliedDigests(10);
+        digests.put("/db/a/x.xml", "d1", 100L);
+        digests.put("/db/ab/x.xml", "d2", 100L);
+        digests.put("/db/b/c/x.xml", "d3", 100L);
+
+        final eXistMessage em = document(eXistMessage.ResourceOperation.COPY, "/db/a", "/db/b");
+        em.setResourceType(eXistMessage.ResourceType.COLLECTION);
+        digests.forget(em);
+
+        // Only documents inside the collections, not with the same prefix
+        assertEquals(1, digests.size());
+        assertNotNull(digests.get("/db/ab/x.xml"));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        final AppliedDigests digests = new AppliedDigests(2);
+        digests.put("/db/a.xml", "d1", 100L);
+        digests.put("/db/b.xml", "d2", 100L);
+        digests.get("/db/a.xml");
+        digests.put("/db/c.xml", "d3", 100L);
+
+        assertEquals(2, digests.size());
+        assertNotNull(digests.get("/db/a.xml"));
+        assertNull(digests.get("/db/b.xml"));
+    }
+
+    private static eXistMessage document(final eXistMessage.ResourceOperation operation, final String path,
+                                         final String destination) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(operation);
+        em.setResourcePath(path);
+        em.setDestinationPath(destination);
+        return em;
+    }
+}
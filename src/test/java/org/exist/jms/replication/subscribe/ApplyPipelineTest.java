@@ -0,0 +1,209 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Dannes Wessels
+ */
+public class ApplyPipelineTest {
+
+    private static final long BLOCKED = 200;
+    private static final long TIMEOUT = 5000;
+
+    private final List<String> stages = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> committed = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> discarded = Collections.synchronizedList(new ArrayList<>());
+    private final Report report = new Report();
+
+    @Test
+    public void messagesAreCommittedInOrder() throws InterruptedException {
+        final ApplyPipeline pipeline = new ApplyPipeline(4, 8, em -> {
+            // Decoding takes a different time for each message
+            Thread.sleep(ThreadLocalRandom.current().nextInt(10));
+        }, em -> {
+        }, em -> committed.add(em.getResourcePath()), report);
+
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final String path = "/db/doc" + i + ".xml";
+            expected.add(path);
+            pipeline.submit(document(path));
+        }
+
+        awaitCommitted(50);
+        assertEquals(expected, committed);
+        assertTrue(report.getErrorMessages().isEmpty());
+        pipeline.shutdown(em -> discarded.add(em.getResourcePath()));
+    }
+
+    @Test
+    public void messageIsDecodedAndPreparedBeforeCommit() throws InterruptedException {
+        final ApplyPipeline pipeline = new ApplyPipeline(2, 4,
+                em -> stages.add("decode " + em.getResourcePath()),
+                em -> stages.add("prepare " + em.getResourcePath()),
+                em -> {
+                    stages.add("commit " + em.getResourcePath());
+                    committed.add(em.getResourcePath());
+                }, report);
+
+        pipeline.submit(document("/db/a.xml"));
+
+        awaitCommitted(1);
+        assertEquals(List.of("decode /db/a.xml", "prepare /db/a.xml", "commit /db/a.xml"), stages);
+        pipeline.shutdown(em -> discarded.add(em.getResourcePath()));
+    }
+
+    @Test
+    public void failedDecodeIsCommitted() throws InterruptedException {
+        final ApplyPipeline pipeline = new ApplyPipeline(2, 4, em -> {
+            if (em.getResourcePath().equals("/db/b.xml")) {
+                throw new IllegalStateException("Corrupt payload");
+            }
+        }, em -> stages.add("prepare " + em.getResourcePath()), em -> committed.add(em.getResourcePath()), report);
+
+        pipeline.submit(document("/db/a.xml"));
+        pipeline.submit(document("/db/b.xml"));
+        pipeline.submit(document("/db/c.xml"));
+
+        awaitCommitted(3);
+        assertEquals(List.of("/db/a.xml", "/db/b.xml", "/db/c.xml"), committed);
+        assertFalse(stages.contains("prepare /db/b.xml"));
+        assertTrue(report.getErrorMessages().isEmpty());
+        pipeline.shutdown(em -> discarded.add(em.getResourcePath()));
+    }
+
+    @Test
+    public void failedCommitIsReported() throws InterruptedException {
+        final ApplyPipeline pipeline = new ApplyPipeline(2, 4, em -> {
+        }, em -> {
+        }, em -> {
+            if (em.getResourcePath().equals("/db/a.xml")) {
+                throw new IllegalStateException("Collection is locked");
+            }
+            committed.add(em.getResourcePath());
+        }, report);
+
+        pipeline.submit(document("/db/a.xml"));
+        pipeline.submit(document("/db/b.xml"));
+
+        awaitCommitted(1);
+        assertEquals(List.of("/db/b.xml"), committed);
+        assertEquals(1, report.getErrorMessages().size());
+        pipeline.shutdown(em -> discarded.add(em.getResourcePath()));
+    }
+
+    @Test
+    public void submitBlocksWhenFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ApplyPipeline pipeline = new ApplyPipeline(2, 2, em -> {
+        }, em -> {
+        }, em -> {
+            release.await();
+            committed.add(em.getResourcePath());
+        }, report);
+
+        // The first message is committed, the next two fill the pipeline
+        pipeline.submit(document("/db/a.xml"));
+        pipeline.submit(document("/db/b.xml"));
+        pipeline.submit(document("/db/c.xml"));
+
+        final Thread submitter = new Thread(() -> {
+            try {
+                pipeline.submit(document("/db/d.xml"));
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+
+        submitter.join(BLOCKED);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(TIMEOUT);
+        assertFalse(submitter.isAlive());
+
+        awaitCommitted(4);
+        assertEquals(List.of("/db/a.xml", "/db/b.xml", "/db/c.xml", "/db/d.xml"), committed);
+        pipeline.shutdown(em -> discarded.add(em.getResourcePath()));
+    }
+
+    @Test
+    public void shutdownAppliesQueuedMessages() throws InterruptedException {
+        final ApplyPipeline pipeline = new ApplyPipeline(2, 4, em -> Thread.sleep(20), em -> {
+        }, em -> committed.add(em.getResourcePath()), report);
+
+        pipeline.submit(document("/db/a.xml"));
+        pipeline.submit(document("/db/b.xml"));
+        pipeline.submit(document("/db/c.xml"));
+        pipeline.shutdown(em -> discarded.add(em.getResourcePath()));
+
+        assertEquals(List.of("/db/a.xml", "/db/b.xml", "/db/c.xml"), committed);
+        assertTrue(discarded.isEmpty());
+    }
+
+    @Test
+    public void submitAfterShutdownFails() throws InterruptedException {
+        final ApplyPipeline pipeline = new ApplyPipeline(1, 1, em -> {
+        }, em -> {
+        }, em -> committed.add(em.getResourcePath()), report);
+
+        pipeline.shutdown(em -> discarded.add(em.getResourcePath()));
+
+        try {
+            pipeline.submit(document("/db/a.xml"));
+            fail("Pipeline is stopped");
+        } catch (final MessageReceiveException ex) {
+            assertTrue(committed.isEmpty());
+        }
+    }
+
+    private void awaitCommitted(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (committed.size() < count && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertEquals(count, committed.size());
+    }
+
+    private static eXistMessage document(final String path) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.UPDATE);
+        em.setResourcePath(path);
+        return em;
+    }
+}
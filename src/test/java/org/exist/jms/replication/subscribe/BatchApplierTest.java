@@ -0,0 +1,184 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class BatchApplierTest {
+
+    private static final long NEVER = 60000;
+    private static final long TIMEOUT = 5000;
+
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> completed = Collections.synchronizedList(new ArrayList<>());
+    private final Report report = new Report();
+
+    @Test
+    public void fullBatchIsApplied() {
+        final BatchApplier applier = applier(3, NEVER, messages -> {
+        });
+
+        applier.add(document("/db/a.xml"));
+        applier.add(document("/db/b.xml"));
+        assertTrue(batches.isEmpty());
+
+        applier.add(document("/db/c.xml"));
+        assertEquals(Collections.singletonList(Arrays.asList("/db/a.xml", "/db/b.xml", "/db/c.xml")), batches);
+        assertEquals(3, completed.size());
+        applier.shutdown();
+    }
+
+    @Test
+    public void flushAppliesPendingMessages() {
+        final BatchApplier applier = applier(10, NEVER, messages -> {
+        });
+
+        applier.add(document("/db/a.xml"));
+        applier.flush();
+        applier.flush();
+
+        assertEquals(Collections.singletonList(Collections.singletonList("/db/a.xml")), batches);
+        assertEquals(1, completed.size());
+        applier.shutdown();
+    }
+
+    @Test
+    public void collectionIsAppliedAlone() {
+        final BatchApplier applier = applier(10, NEVER, messages -> {
+        });
+
+        applier.add(document("/db/a.xml"));
+        applier.add(collection("/db/c"));
+        applier.add(document("/db/b.xml"));
+
+        assertEquals(Arrays.asList(Collections.singletonList("/db/a.xml"), Collections.singletonList("/db/c")), batches);
+
+        applier.flush();
+        assertEquals(Collections.singletonList("/db/b.xml"), batches.get(2));
+        applier.shutdown();
+    }
+
+    @Test
+    public void batchIsAppliedAfterBatchTime() throws InterruptedException {
+        final BatchApplier applier = applier(10, 50, messages -> {
+        });
+
+        applier.add(document("/db/a.xml"));
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (batches.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList(Collections.singletonList("/db/a.xml")), batches);
+        applier.shutdown();
+    }
+
+    @Test
+    public void failedBatchIsAppliedPerMessage() {
+        final BatchApplier applier = applier(3, NEVER, messages -> {
+            for (final eXistMessage em : messages) {
+                if (em.getResourcePath().equals("/db/b.xml")) {
+                    throw new MessageReceiveException("Failed", em);
+                }
+            }
+        });
+
+        applier.add(document("/db/a.xml"));
+        applier.add(document("/db/b.xml"));
+        applier.add(document("/db/c.xml"));
+
+        // The batch, then each message on its own
+        assertEquals(4, batches.size());
+        assertEquals(Collections.singletonList("/db/a.xml"), batches.get(1));
+        assertEquals(Collections.singletonList("/db/b.xml"), batches.get(2));
+        assertEquals(Collections.singletonList("/db/c.xml"), batches.get(3));
+
+        assertEquals(Collections.singletonList("/db/b.xml"), failed);
+        assertEquals(1, report.getErrorMessages().size());
+        assertEquals(3, completed.size());
+        applier.shutdown();
+    }
+
+    @Test
+    public void failedMessageIsNotRetried() {
+        final BatchApplier applier = applier(10, NEVER, messages -> {
+            throw new MessageReceiveException("Failed");
+        });
+
+        applier.add(document("/db/a.xml"));
+        applier.flush();
+
+        assertEquals(1, batches.size());
+        assertEquals(Collections.singletonList("/db/a.xml"), failed);
+        assertEquals(1, completed.size());
+        applier.shutdown();
+    }
+
+    @Test
+    public void shutdownReleasesPendingMessages() {
+        final BatchApplier applier = applier(10, NEVER, messages -> {
+        });
+
+        applier.add(document("/db/a.xml"));
+        applier.shutdown();
+
+        assertTrue(batches.isEmpty());
+        assertEquals(Collections.singletonList("/db/a.xml"), completed);
+    }
+
+    private BatchApplier applier(final int batchSize, final long batchTime, final Consumer<List<eXistMessage>> apply) {
+        return new BatchApplier(batchSize, batchTime, messages -> {
+            final List<String> paths = new ArrayList<>();
+            messages.forEach(em -> paths.add(em.getResourcePath()));
+            batches.add(paths);
+            apply.accept(messages);
+        }, (em, t) -> failed.add(em.getResourcePath()), em -> completed.add(em.getResourcePath()), report);
+    }
+
+    private static eXistMessage collection(final String path) {
+        final eXistMessage em = document(path);
+        em.setResourceType(eXistMessage.ResourceType.COLLECTION);
+        em.setResourceOperation(eXistMessage.ResourceOperation.DELETE);
+        return em;
+    }
+
+    private static eXistMessage document(final String path) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.UPDATE);
+        em.setResourcePath(path);
+        return em;
+    }
+}
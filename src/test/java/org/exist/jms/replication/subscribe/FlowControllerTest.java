@@ -0,0 +1,175 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class FlowControllerTest {
+
+    private static final long BLOCKED = 200;
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void releaseEmptiesWindow() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 2, Long.MAX_VALUE, false, 1000);
+        final eXistMessage first = message(0);
+        final eXistMessage second = message(0);
+
+        assertTrue(flowControl.isEmpty());
+        flowControl.acquire(first);
+        flowControl.acquire(second);
+        assertFalse(flowControl.isEmpty());
+
+        flowControl.release(first);
+        flowControl.release(second);
+        assertTrue(flowControl.isEmpty());
+    }
+
+    @Test
+    public void waitsWhenWindowIsFull() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 1, Long.MAX_VALUE, false, 1000);
+        final eXistMessage first = message(0);
+        flowControl.acquire(first);
+
+        final Thread waiting = acquireInBackground(flowControl, message(0));
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+
+        flowControl.release(first);
+        waiting.join(TIMEOUT);
+        assertFalse(waiting.isAlive());
+    }
+
+    @Test
+    public void waitsWhenPayloadsAreTooLarge() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 10, 10, false, 1000);
+        final eXistMessage first = message(8);
+        flowControl.acquire(first);
+
+        final Thread waiting = acquireInBackground(flowControl, message(8));
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+
+        flowControl.release(first);
+        waiting.join(TIMEOUT);
+        assertFalse(waiting.isAlive());
+    }
+
+    @Test
+    public void largeMessageFitsInEmptyWindow() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 10, 10, false, 1000);
+
+        final Thread acquiring = acquireInBackground(flowControl, message(100));
+        acquiring.join(TIMEOUT);
+        assertFalse(acquiring.isAlive());
+        assertFalse(flowControl.isEmpty());
+    }
+
+    @Test
+    public void convertKeepsMessageInWindow() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 10, 10, false, 1000);
+        final Object received = new Object();
+        flowControl.acquire(received, 8);
+
+        final Thread waiting = acquireInBackground(flowControl, message(8));
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+
+        final eXistMessage em = message(8);
+        flowControl.convert(received, em);
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+
+        flowControl.release(em);
+        waiting.join(TIMEOUT);
+        assertFalse(waiting.isAlive());
+    }
+
+    @Test
+    public void awaitEmpty() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 2, Long.MAX_VALUE, false, 1000);
+        final eXistMessage em = message(0);
+        flowControl.acquire(em);
+
+        assertFalse(flowControl.awaitEmpty(50));
+
+        final Thread releasing = new Thread(() -> flowControl.release(em));
+        releasing.start();
+        assertTrue(flowControl.awaitEmpty(TIMEOUT));
+    }
+
+    @Test
+    public void slowApplyHalvesWindow() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 4, Long.MAX_VALUE, true, 10);
+        flowControl.applied(1, 100);
+
+        final eXistMessage first = message(0);
+        flowControl.acquire(first);
+        flowControl.acquire(message(0));
+
+        final Thread waiting = acquireInBackground(flowControl, message(0));
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+
+        flowControl.release(first);
+        waiting.join(TIMEOUT);
+        assertFalse(waiting.isAlive());
+    }
+
+    @Test
+    public void fixedWindowIsNotAdapted() throws InterruptedException {
+        final FlowController flowControl = new FlowController(1, 4, Long.MAX_VALUE, false, 10);
+        flowControl.applied(1, 100);
+
+        for (int i = 0; i < 3; i++) {
+            flowControl.acquire(message(0));
+        }
+
+        final Thread acquiring = acquireInBackground(flowControl, message(0));
+        acquiring.join(TIMEOUT);
+        assertFalse(acquiring.isAlive());
+    }
+
+    private static eXistMessage message(final int size) {
+        final eXistMessage em = new eXistMessage();
+        em.setPayload(new byte[size]);
+        return em;
+    }
+
+    private static Thread acquireInBackground(final FlowController flowControl, final eXistMessage em) {
+        final Thread thread = new Thread(() -> {
+            try {
+                flowControl.acquire(em);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
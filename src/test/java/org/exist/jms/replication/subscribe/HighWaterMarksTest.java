@@ -0,0 +1,159 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class HighWaterMarksTest {
+
+    @Test
+    public void olderEventIsStale() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(event("i1", 5L, "/db/a.xml", null));
+
+        assertTrue(marks.isStale(event("i1", 4L, "/db/a.xml", null)));
+        assertFalse(marks.isStale(event("i1", 5L, "/db/a.xml", null)));
+        assertFalse(marks.isStale(event("i1", 6L, "/db/a.xml", null)));
+    }
+
+    @Test
+    public void otherPathIsNotStale() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(event("i1", 5L, "/db/a.xml", null));
+
+        assertFalse(marks.isStale(event("i1", 4L, "/db/b.xml", null)));
+    }
+
+    @Test
+    public void otherInstanceIsNotCompared() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(event("i1", 5L, "/db/a.xml", null));
+
+        assertFalse(marks.isStale(event("i2", 4L, "/db/a.xml", null)));
+
+        // The last applied event determines the instance
+        marks.applied(event("i2", 4L, "/db/a.xml", null));
+        assertFalse(marks.isStale(event("i1", 1L, "/db/a.xml", null)));
+        assertTrue(marks.isStale(event("i2", 3L, "/db/a.xml", null)));
+    }
+
+    @Test
+    public void markIsNotLowered() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(event("i1", 5L, "/db/a.xml", null));
+        marks.applied(event("i1", 3L, "/db/a.xml", null));
+
+        assertTrue(marks.isStale(event("i1", 4L, "/db/a.xml", null)));
+    }
+
+    @Test
+    public void destinationIsMarked() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(event("i1", 5L, "/db/a.xml", "/db/b.xml"));
+
+        assertTrue(marks.isStale(event("i1", 4L, "/db/a.xml", null)));
+        assertTrue(marks.isStale(event("i1", 4L, "/db/b.xml", null)));
+    }
+
+    @Test
+    public void eventWithoutSequenceIsNotStale() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(event("i1", 5L, "/db/a.xml", null));
+
+        assertFalse(marks.isStale(event("i1", null, "/db/a.xml", null)));
+        assertFalse(marks.isStale(event(null, 4L, "/db/a.xml", null)));
+    }
+
+    @Test
+    public void leastRecentlyUsedPathIsForgotten() {
+        final HighWaterMarks marks = new HighWaterMarks(2);
+        marks.applied(event("i1", 5L, "/db/a.xml", null));
+        marks.applied(event("i1", 6L, "/db/b.xml", null));
+        marks.applied(event("i1", 7L, "/db/c.xml", null));
+
+        assertFalse(marks.isStale(event("i1", 1L, "/db/a.xml", null)));
+        assertTrue(marks.isStale(event("i1", 1L, "/db/b.xml", null)));
+        assertTrue(marks.isStale(event("i1", 1L, "/db/c.xml", null)));
+    }
+
+    @Test
+    public void olderEventInDeletedCollectionIsStale() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(collection(eXistMessage.ResourceOperation.DELETE, 5L, "/db/c", null));
+
+        assertTrue(marks.isStale(event("i1", 4L, "/db/c/a.xml", null)));
+        assertTrue(marks.isStale(event("i1", 4L, "/db/c/d/b.xml", null)));
+        assertFalse(marks.isStale(event("i1", 6L, "/db/c/a.xml", null)));
+        assertFalse(marks.isStale(event("i1", 4L, "/db/cd/a.xml", null)));
+        assertFalse(marks.isStale(event("i2", 4L, "/db/c/a.xml", null)));
+    }
+
+    @Test
+    public void olderEventInMovedCollectionIsStale() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(collection(eXistMessage.ResourceOperation.MOVE, 5L, "/db/c", "/db/d"));
+
+        assertTrue(marks.isStale(event("i1", 4L, "/db/c/a.xml", null)));
+        assertTrue(marks.isStale(event("i1", 4L, "/db/d/a.xml", null)));
+        assertFalse(marks.isStale(event("i1", 6L, "/db/d/a.xml", null)));
+    }
+
+    @Test
+    public void collectionMetadataDoesNotAffectContent() {
+        final HighWaterMarks marks = new HighWaterMarks(10);
+        marks.applied(collection(eXistMessage.ResourceOperation.METADATA, 5L, "/db/c", null));
+
+        assertFalse(marks.isStale(event("i1", 4L, "/db/c/a.xml", null)));
+        assertTrue(marks.isStale(collection(eXistMessage.ResourceOperation.METADATA, 4L, "/db/c", null)));
+    }
+
+    private static eXistMessage collection(final eXistMessage.ResourceOperation operation, final Long sequence,
+                                           final String path, final String destination) {
+        final eXistMessage em = event("i1", sequence, path, destination);
+        em.setResourceType(eXistMessage.ResourceType.COLLECTION);
+        em.setResourceOperation(operation);
+        return em;
+    }
+
+    private static eXistMessage event(final String instance, final Long sequence, final String path,
+                                      final String destination) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.UPDATE);
+        em.setResourcePath(path);
+        em.setDestinationPath(destination);
+        if (instance != null) {
+            em.getMetadata().put(Constants.EXIST_INSTANCE_ID, instance);
+        }
+        if (sequence != null) {
+            em.getMetadata().put(MessageHelper.EXIST_MESSAGE_SEQUENCE, sequence);
+        }
+        return em;
+    }
+}
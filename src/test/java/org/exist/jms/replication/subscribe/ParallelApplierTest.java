@@ -0,0 +1,239 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class ParallelApplierTest {
+
+    private static final long BLOCKED = 200;
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void changesOfOnePathAreAppliedInOrder() throws InterruptedException {
+        final Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+        final ParallelApplier applier = new ParallelApplier(4, em -> {
+            applied.computeIfAbsent(em.getResourcePath(), p -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(sequence(em));
+            pause(1);
+        }, new Report());
+
+        for (int i = 0; i < 200; i++) {
+            applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/doc" + (i % 10) + ".xml", i));
+        }
+        applier.shutdown();
+
+        assertEquals(10, applied.size());
+        for (final List<Integer> sequences : applied.values()) {
+            assertEquals(20, sequences.size());
+            for (int i = 1; i < sequences.size(); i++) {
+                assertTrue(sequences.get(i - 1) < sequences.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void unrelatedPathsAreAppliedConcurrently() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ParallelApplier applier = new ParallelApplier(2, em -> {
+            started.countDown();
+            await(release);
+        }, new Report());
+
+        // Paths that are handled by different workers
+        final String first = "/db/a.xml";
+        String second = "/db/b.xml";
+        for (int i = 0; Math.floorMod(second.hashCode(), 2) == Math.floorMod(first.hashCode(), 2); i++) {
+            second = "/db/b" + i + ".xml";
+        }
+
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, first, 1));
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, second, 2));
+
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        release.countDown();
+        applier.shutdown();
+    }
+
+    @Test
+    public void barrierWaitsForEarlierChanges() throws InterruptedException {
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final ParallelApplier applier = new ParallelApplier(2, em -> {
+            if (sequence(em) == 1) {
+                await(release);
+            }
+            applied.add(sequence(em));
+        }, new Report());
+
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/a/x.xml", 1));
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/a/y.xml", 2));
+
+        final Thread barrier = dispatchInBackground(applier, collection(eXistMessage.ResourceOperation.DELETE, "/db/a", 3));
+        barrier.join(BLOCKED);
+        assertTrue(barrier.isAlive());
+        assertFalse(applied.contains(3));
+
+        release.countDown();
+        barrier.join(TIMEOUT);
+        assertFalse(barrier.isAlive());
+
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/a/x.xml", 4));
+        applier.shutdown();
+
+        assertEquals(4, applied.size());
+        assertEquals(Integer.valueOf(3), applied.get(2));
+        assertEquals(Integer.valueOf(4), applied.get(3));
+    }
+
+    @Test
+    public void documentMoveIsBarrier() throws InterruptedException {
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final ParallelApplier applier = new ParallelApplier(2, em -> {
+            if (sequence(em) == 1) {
+                await(release);
+            }
+            applied.add(sequence(em));
+        }, new Report());
+
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/b.xml", 1));
+
+        final eXistMessage move = document(eXistMessage.ResourceOperation.MOVE, "/db/a.xml", 2);
+        move.setDestinationPath("/db/b.xml");
+        final Thread barrier = dispatchInBackground(applier, move);
+        barrier.join(BLOCKED);
+        assertTrue(barrier.isAlive());
+
+        release.countDown();
+        barrier.join(TIMEOUT);
+        applier.shutdown();
+
+        assertEquals(2, applied.size());
+        assertEquals(Integer.valueOf(1), applied.get(0));
+        assertEquals(Integer.valueOf(2), applied.get(1));
+    }
+
+    @Test
+    public void failureDoesNotBlockBarrier() throws InterruptedException {
+        final Report report = new Report();
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        final ParallelApplier applier = new ParallelApplier(2, em -> {
+            if (sequence(em) == 1) {
+                throw new MessageReceiveException("Failed");
+            }
+            applied.add(sequence(em));
+        }, report);
+
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", 1));
+        applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", 2));
+
+        final Thread barrier = dispatchInBackground(applier, collection(eXistMessage.ResourceOperation.CREATE, "/db/c", 3));
+        barrier.join(TIMEOUT);
+        assertFalse(barrier.isAlive());
+        applier.shutdown();
+
+        assertEquals(2, applied.size());
+        assertEquals(1, report.getErrorMessages().size());
+    }
+
+    @Test
+    public void shutdownAppliesQueuedChanges() throws InterruptedException {
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        final ParallelApplier applier = new ParallelApplier(1, em -> {
+            pause(5);
+            applied.add(sequence(em));
+        }, new Report());
+
+        for (int i = 0; i < 20; i++) {
+            applier.dispatch(document(eXistMessage.ResourceOperation.UPDATE, "/db/a.xml", i));
+        }
+        applier.shutdown();
+
+        assertEquals(20, applied.size());
+    }
+
+    private static Thread dispatchInBackground(final ParallelApplier applier, final eXistMessage em) {
+        final Thread thread = new Thread(() -> {
+            try {
+                applier.dispatch(em);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void pause(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int sequence(final eXistMessage em) {
+        return (Integer) em.getMetadata().get("sequence");
+    }
+
+    private static eXistMessage collection(final eXistMessage.ResourceOperation operation, final String path,
+                                           final int sequence) {
+        final eXistMessage em = document(operation, path, sequence);
+        em.setResourceType(eXistMessage.ResourceType.COLLECTION);
+        return em;
+    }
+
+    private static eXistMessage document(final eXistMessage.ResourceOperation operation, final String path,
+                                         final int sequence) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(operation);
+        em.setResourcePath(path);
+        em.getMetadata().put("sequence", sequence);
+        return em;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class ParkedMessagesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parkedMessageIsReadBack() throws IOException {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath().resolve("parked"));
+        final eXistMessage em = message("/db/a.xml", "<a/>");
+        em.setDestinationPath("/db/b.xml");
+
+        final ParkedMessages.Entry entry = store.park(em, new MessageReceiveException("Failed"));
+        assertEquals("i1-1", entry.getMessageId());
+        assertEquals(1, entry.getAttempts());
+        assertEquals("Failed", entry.getError());
+
+        final eXistMessage read = store.read(entry);
+        try {
+            assertEquals(eXistMessage.ResourceType.DOCUMENT, read.getResourceType());
+            assertEquals(eXistMessage.ResourceOperation.UPDATE, read.getResourceOperation());
+            assertEquals("/db/a.xml", read.getResourcePath());
+            assertEquals("/db/b.xml", read.getDestinationPath());
+            assertEquals("i1-1", read.getMessageId());
+            assertEquals(42L, read.getMetadata().get(MessageHelper.EXIST_MESSAGE_SEQUENCE));
+            assertEquals(7, read.getMetadata().get("count"));
+            assertEquals("admin", read.getMetadata().get(MessageHelper.EXIST_RESOURCE_OWNER));
+            assertArrayEquals("<a/>".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(read.getPayloadFile()));
+        } finally {
+            read.deletePayloadFile();
+        }
+    }
+
+    @Test
+    public void optionalHeadersAreKept() throws IOException {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath());
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.COLLECTION);
+        em.setResourceOperation(eXistMessage.ResourceOperation.DELETE);
+        em.setResourcePath("/db/c");
+        em.setPayload(new byte[0]);
+
+        final eXistMessage read = store.read(store.park(em, new MessageReceiveException("Failed")));
+        try {
+            assertNull(read.getDestinationPath());
+            assertNull(read.getMessageId());
+            assertEquals(0, Files.size(read.getPayloadFile()));
+        } finally {
+            read.deletePayloadFile();
+        }
+    }
+
+    @Test
+    public void entriesAreReloaded() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final ParkedMessages store = new ParkedMessages(directory);
+        final ParkedMessages.Entry first = store.park(message("/db/a.xml", "<a/>"), new MessageReceiveException("First"));
+        store.park(message("/db/b.xml", "<b/>"), new MessageReceiveException("Second"));
+        store.failed(first, new MessageReceiveException("Again"));
+
+        // Restart
+        final ParkedMessages reloaded = new ParkedMessages(directory);
+        final List<ParkedMessages.Entry> entries = reloaded.load();
+
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).getId() < entries.get(1).getId());
+        assertEquals(first.getId(), entries.get(0).getId());
+        assertEquals(2, entries.get(0).getAttempts());
+        assertEquals("Again", entries.get(0).getError());
+        assertEquals(first.getFirstFailure(), entries.get(0).getFirstFailure());
+        assertEquals(1, entries.get(1).getAttempts());
+        assertEquals("Second", entries.get(1).getError());
+
+        // New entries do not replace reloaded entries
+        final ParkedMessages.Entry third = reloaded.park(message("/db/c.xml", "<c/>"), new MessageReceiveException("Third"));
+        assertTrue(third.getId() > entries.get(1).getId());
+        assertEquals(3, reloaded.load().size());
+    }
+
+    @Test
+    public void removedEntryIsNotReloaded() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final ParkedMessages store = new ParkedMessages(directory);
+        final ParkedMessages.Entry entry = store.park(message("/db/a.xml", "<a/>"), new MessageReceiveException("Failed"));
+
+        store.remove(entry);
+
+        assertTrue(new ParkedMessages(directory).load().isEmpty());
+        try (final Stream<Path> files = Files.list(directory)) {
+            assertFalse(files.findAny().isPresent());
+        }
+    }
+
+    @Test
+    public void unknownFilesAreIgnored() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        Files.write(directory.resolve("readme.msg"), new byte[]{1, 2, 3});
+        Files.write(directory.resolve("other.txt"), new byte[]{1, 2, 3});
+
+        assertTrue(new ParkedMessages(directory).load().isEmpty());
+    }
+
+    @Test
+    public void missingDirectoryHasNoEntries() throws IOException {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath().resolve("missing"));
+
+        assertTrue(store.load().isEmpty());
+    }
+
+    static eXistMessage message(final String path, final String payload) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.UPDATE);
+        em.setResourcePath(path);
+        em.setMessageId("i1-1");
+        em.getMetadata().put(MessageHelper.EXIST_MESSAGE_SEQUENCE, 42L);
+        em.getMetadata().put("count", 7);
+        em.getMetadata().put(MessageHelper.EXIST_RESOURCE_OWNER, "admin");
+        em.setPayload(payload.getBytes(StandardCharsets.UTF_8));
+        return em;
+    }
+}
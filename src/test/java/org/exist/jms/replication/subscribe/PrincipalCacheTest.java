@@ -0,0 +1,77 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Dannes Wessels
+ */
+public class PrincipalCacheTest {
+
+    @Test
+    public void resolvedNameIsCached() {
+        final PrincipalCache cache = new PrincipalCache("accounts", 10, 60000);
+        final AtomicInteger lookups = new AtomicInteger();
+
+        assertEquals("admin", cache.resolve("admin", name -> {
+            lookups.incrementAndGet();
+            return name;
+        }));
+        assertEquals("admin", cache.resolve("admin", name -> {
+            lookups.incrementAndGet();
+            return name;
+        }));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void missingPrincipalIsNotCached() {
+        final PrincipalCache cache = new PrincipalCache("accounts", 10, 60000);
+
+        assertNull(cache.resolve("editor", name -> null));
+
+        // Created locally, used right away
+        assertEquals("editor", cache.resolve("editor", name -> name));
+    }
+
+    @Test
+    public void expiredNameIsResolvedAgain() throws InterruptedException {
+        final PrincipalCache cache = new PrincipalCache("accounts", 10, 10);
+        cache.resolve("editor", name -> name);
+
+        Thread.sleep(50);
+        assertNull(cache.resolve("editor", name -> null));
+    }
+
+    @Test
+    public void nameIsNotReusedWithoutExpiry() {
+        final PrincipalCache cache = new PrincipalCache("accounts", 10, 0);
+        cache.resolve("editor", name -> name);
+
+        // Removed locally
+        assertNull(cache.resolve("editor", name -> null));
+    }
+}
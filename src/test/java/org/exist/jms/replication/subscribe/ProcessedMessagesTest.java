@@ -0,0 +1,123 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class ProcessedMessagesTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void addedMessageIsRecognized() {
+        final ProcessedMessages processed = new ProcessedMessages(4, null);
+
+        assertFalse(processed.contains("ID:1"));
+        processed.add("ID:1");
+        assertTrue(processed.contains("ID:1"));
+        assertFalse(processed.contains("ID:2"));
+    }
+
+    @Test
+    public void oldestMessageIsEvicted() {
+        final ProcessedMessages processed = new ProcessedMessages(2, null);
+
+        processed.add("ID:1");
+        processed.add("ID:2");
+        processed.add("ID:3");
+
+        assertFalse(processed.contains("ID:1"));
+        assertTrue(processed.contains("ID:2"));
+        assertTrue(processed.contains("ID:3"));
+    }
+
+    @Test
+    public void duplicateDoesNotEvict() {
+        final ProcessedMessages processed = new ProcessedMessages(2, null);
+
+        processed.add("ID:1");
+        processed.add("ID:2");
+        processed.add("ID:2");
+
+        assertTrue(processed.contains("ID:1"));
+        assertTrue(processed.contains("ID:2"));
+    }
+
+    @Test
+    public void disabled() {
+        final ProcessedMessages processed = new ProcessedMessages(0, null);
+
+        processed.add("ID:1");
+        assertFalse(processed.contains("ID:1"));
+        assertFalse(processed.contains(null));
+    }
+
+    @Test
+    public void recognizedAfterRestart() throws Exception {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("processed").resolve("messages.dat");
+
+        final ProcessedMessages first = new ProcessedMessages(2, file);
+        first.add("ID:1");
+        first.add("ID:2");
+        first.add("ID:3");
+        first.close();
+
+        final ProcessedMessages second = new ProcessedMessages(2, file);
+        try {
+            assertFalse(second.contains("ID:1"));
+            assertTrue(second.contains("ID:2"));
+            assertTrue(second.contains("ID:3"));
+
+            // The ring continues where it was, ID:2 is the oldest
+            second.add("ID:4");
+            assertFalse(second.contains("ID:2"));
+            assertTrue(second.contains("ID:3"));
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void otherCapacityStartsEmpty() throws Exception {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("messages.dat");
+
+        final ProcessedMessages first = new ProcessedMessages(2, file);
+        first.add("ID:1");
+        first.close();
+
+        final ProcessedMessages second = new ProcessedMessages(4, file);
+        try {
+            assertFalse(second.contains("ID:1"));
+        } finally {
+            second.close();
+        }
+    }
+}
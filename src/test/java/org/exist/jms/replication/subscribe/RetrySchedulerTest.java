@@ -0,0 +1,189 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.exist.jms.replication.subscribe.ParkedMessagesTest.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class RetrySchedulerTest {
+
+    private static final long BLOCKED = 200;
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void failedMessageIsRetried() throws Exception {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath());
+        final AtomicInteger attempts = new AtomicInteger();
+        final RetryScheduler retries = new RetryScheduler(store, 3, 10, 100, em -> {
+            if (attempts.incrementAndGet() < 2) {
+                throw new MessageReceiveException("Not yet");
+            }
+            apply(em);
+        });
+
+        retries.failed(message("/db/a.xml", "<a/>"), new MessageReceiveException("Failed"));
+
+        awaitApplied(1);
+        assertEquals(Collections.singletonList("/db/a.xml <a/>"), applied);
+
+        // Removed after it is applied
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!store.load().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.load().isEmpty());
+        retries.shutdown();
+    }
+
+    @Test
+    public void exhaustedMessageStaysParked() throws Exception {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath());
+        final AtomicInteger attempts = new AtomicInteger();
+        final RetryScheduler retries = new RetryScheduler(store, 2, 10, 20, em -> {
+            attempts.incrementAndGet();
+            throw new MessageReceiveException("Failed again");
+        });
+
+        retries.failed(message("/db/a.xml", "<a/>"), new MessageReceiveException("Failed"));
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (attempts.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(BLOCKED);
+        assertEquals(2, attempts.get());
+
+        final List<ParkedMessages.Entry> entries = store.load();
+        assertEquals(1, entries.size());
+        assertEquals(3, entries.get(0).getAttempts());
+        assertEquals("Failed again", entries.get(0).getError());
+        retries.shutdown();
+    }
+
+    @Test
+    public void replayAppliesParkedMessages() throws Exception {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath());
+        final RetryScheduler retries = new RetryScheduler(store, 0, 10, 10, this::apply);
+
+        retries.failed(message("/db/a.xml", "<a/>"), new MessageReceiveException("Failed"));
+        retries.failed(message("/db/b.xml", "<b/>"), new MessageReceiveException("Failed"));
+
+        // Parked at once, not retried
+        Thread.sleep(BLOCKED);
+        assertTrue(applied.isEmpty());
+
+        assertEquals(2, retries.replay(Collections.emptyList()));
+        assertEquals(2, applied.size());
+        assertEquals("/db/a.xml <a/>", applied.get(0));
+        assertEquals("/db/b.xml <b/>", applied.get(1));
+        assertTrue(store.load().isEmpty());
+        retries.shutdown();
+    }
+
+    @Test
+    public void replayedMessageThatFailsStaysParked() throws Exception {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath());
+        final RetryScheduler retries = new RetryScheduler(store, 0, 10, 10, em -> {
+            throw new MessageReceiveException("Failed again");
+        });
+
+        retries.failed(message("/db/a.xml", "<a/>"), new MessageReceiveException("Failed"));
+        final long id = store.load().get(0).getId();
+
+        assertEquals(0, retries.replay(Collections.singletonList(id)));
+        assertEquals(0, retries.replay(Collections.singletonList(id + 1)));
+
+        final List<ParkedMessages.Entry> entries = store.load();
+        assertEquals(1, entries.size());
+        assertEquals(2, entries.get(0).getAttempts());
+        retries.shutdown();
+    }
+
+    @Test
+    public void purgeRemovesParkedMessages() throws Exception {
+        final ParkedMessages store = new ParkedMessages(folder.getRoot().toPath());
+        final RetryScheduler retries = new RetryScheduler(store, 0, 10, 10, this::apply);
+
+        retries.failed(message("/db/a.xml", "<a/>"), new MessageReceiveException("Failed"));
+        retries.failed(message("/db/b.xml", "<b/>"), new MessageReceiveException("Failed"));
+        final long first = store.load().get(0).getId();
+
+        assertEquals(1, retries.purge(Collections.singletonList(first)));
+        assertEquals(1, store.load().size());
+
+        assertEquals(1, retries.purge(Collections.emptyList()));
+        assertTrue(store.load().isEmpty());
+
+        assertEquals(0, retries.replay(Collections.emptyList()));
+        assertTrue(applied.isEmpty());
+        retries.shutdown();
+    }
+
+    @Test
+    public void parkedMessagesAreReplayedAfterRestart() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final RetryScheduler before = new RetryScheduler(new ParkedMessages(directory), 0, 10, 10, this::apply);
+        before.failed(message("/db/a.xml", "<a/>"), new MessageReceiveException("Failed"));
+        before.shutdown();
+
+        final RetryScheduler after = new RetryScheduler(new ParkedMessages(directory), 0, 10, 10, this::apply);
+        assertEquals(1, after.replay(Collections.emptyList()));
+        assertEquals(Collections.singletonList("/db/a.xml <a/>"), applied);
+        after.shutdown();
+    }
+
+    private void apply(final eXistMessage em) {
+        try {
+            applied.add(em.getResourcePath() + " " + new String(Files.readAllBytes(em.getPayloadFile()), StandardCharsets.UTF_8));
+        } catch (final IOException ex) {
+            throw new MessageReceiveException(ex.getMessage());
+        }
+    }
+
+    private void awaitApplied(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (applied.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class SubtreeProgressTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void checkpointIsRead() throws IOException {
+        final Path checkpoint = folder.getRoot().toPath().resolve("subtree").resolve("checkpoint");
+
+        final SubtreeProgress progress = new SubtreeProgress("ID:1", "copy /db/a", 1000L);
+        progress.applied(5, null, null);
+        progress.applied(3, "/db/a/b", "c.xml");
+        progress.chunkCommitted();
+        progress.chunkCommitted();
+        progress.write(checkpoint);
+
+        final SubtreeProgress read = SubtreeProgress.read(checkpoint);
+        assertEquals("ID:1", read.getMessageId());
+        assertEquals("copy /db/a", read.getDescription());
+        assertEquals(1000L, read.getStarted());
+        assertEquals(2, read.getNrChunks());
+        assertEquals(8, read.getNrResources());
+        assertEquals("/db/a/b", read.getPositionCollection());
+        assertEquals("c.xml", read.getPositionDocument());
+        assertTrue(read.isApplied("/db/a/b", "c.xml"));
+        assertFalse(read.isApplied("/db/a/b", "d.xml"));
+    }
+
+    @Test
+    public void checkpointWithoutPosition() throws IOException {
+        final Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+
+        final SubtreeProgress progress = new SubtreeProgress(null, "delete /db/a", 1000L);
+        progress.applied(5, null, null);
+        progress.chunkCommitted();
+        progress.write(checkpoint);
+
+        final SubtreeProgress read = SubtreeProgress.read(checkpoint);
+        assertNull(read.getMessageId());
+        assertEquals(5, read.getNrResources());
+        assertNull(read.getPositionCollection());
+        assertFalse(read.isApplied("/db/a", ""));
+    }
+
+    @Test
+    public void checkpointIsReplaced() throws IOException {
+        final Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+
+        final SubtreeProgress progress = new SubtreeProgress("ID:1", "copy /db/a", 1000L);
+        progress.applied(1, "/db/a", "");
+        progress.write(checkpoint);
+        progress.applied(1, "/db/a", "b.xml");
+        progress.write(checkpoint);
+
+        assertEquals("b.xml", SubtreeProgress.read(checkpoint).getPositionDocument());
+        assertFalse(Files.exists(checkpoint.resolveSibling("checkpoint.tmp")));
+    }
+
+    @Test
+    public void nothingIsAppliedWithoutPosition() {
+        final SubtreeProgress progress = new SubtreeProgress("ID:1", "copy /db/a", 1000L);
+
+        assertFalse(progress.isApplied("/db/a", ""));
+        assertFalse(progress.isApplied("/db/a", "a.xml"));
+    }
+
+    @Test
+    public void documentsAreAppliedByName() {
+        final SubtreeProgress progress = new SubtreeProgress("ID:1", "copy /db/a", 1000L);
+        progress.applied(1, "/db/a/b", "d.xml");
+
+        assertTrue(progress.isApplied("/db/a/b", ""));
+        assertTrue(progress.isApplied("/db/a/b", "c.xml"));
+        assertTrue(progress.isApplied("/db/a/b", "d.xml"));
+        assertFalse(progress.isApplied("/db/a/b", "e.xml"));
+    }
+
+    @Test
+    public void collectionIsAppliedBeforeSubCollections() {
+        final SubtreeProgress progress = new SubtreeProgress("ID:1", "copy /db/a", 1000L);
+        progress.applied(1, "/db/a/b", "");
+
+        // The parent and its documents, and the collections before it
+        assertTrue(progress.isApplied("/db/a", ""));
+        assertTrue(progress.isApplied("/db/a", "z.xml"));
+        assertTrue(progress.isApplied("/db/a/a", ""));
+        assertTrue(progress.isApplied("/db/a/a/z", "z.xml"));
+
+        // The documents and the sub collections, and the collections after it
+        assertFalse(progress.isApplied("/db/a/b", "a.xml"));
+        assertFalse(progress.isApplied("/db/a/b/a", ""));
+        assertFalse(progress.isApplied("/db/a/c", ""));
+    }
+
+    @Test
+    public void collectionsAreComparedBySegment() {
+        final SubtreeProgress progress = new SubtreeProgress("ID:1", "copy /db/a", 1000L);
+        progress.applied(1, "/db/a/b-c", "");
+
+        // As text "/db/a/b/x" is after "/db/a/b-c", but b is copied before b-c
+        assertTrue(progress.isApplied("/db/a/b/x", ""));
+        assertFalse(progress.isApplied("/db/a/b-c/a", ""));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import javax.jms.BytesMessage;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Dannes Wessels
+ */
+public class TransferAssemblerTest {
+
+    @Test
+    public void chunksAreAssembled() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler();
+
+        assertNull(assembler.addChunk(chunk("t1", 0, 3, 7, "abc")));
+        assertFalse(assembler.isIdle());
+        assertNull(assembler.addChunk(chunk("t1", 1, 3, 7, "def")));
+        assertFalse(assembler.isIdle());
+
+        final Path file = assembler.addChunk(chunk("t1", 2, 3, 7, "g"));
+        try {
+            assertEquals("abcdefg", content(file));
+            assertTrue(assembler.isIdle());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void singleChunk() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler();
+
+        final Path file = assembler.addChunk(chunk("t1", 0, 1, 3, "abc"));
+        try {
+            assertEquals("abc", content(file));
+            assertTrue(assembler.isIdle());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void redeliveredTransferStartsAgain() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler();
+
+        assertNull(assembler.addChunk(chunk("t1", 0, 2, 6, "xxx")));
+
+        // Redelivered after a failure, before the last chunk was received
+        assertNull(assembler.addChunk(chunk("t1", 0, 2, 6, "abc")));
+        final Path file = assembler.addChunk(chunk("t1", 1, 2, 6, "def"));
+        try {
+            assertEquals("abcdef", content(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void chunkOutOfSequence() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler();
+        assembler.addChunk(chunk("t1", 0, 3, 7, "abc"));
+
+        try {
+            assembler.addChunk(chunk("t1", 2, 3, 7, "g"));
+            fail("Chunk out of sequence is accepted");
+        } catch (final MessageReceiveException ex) {
+            assertTrue(assembler.isIdle());
+        }
+    }
+
+    @Test
+    public void chunkOfUnknownTransfer() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler();
+
+        try {
+            assembler.addChunk(chunk("t1", 1, 3, 7, "def"));
+            fail("Chunk of unknown transfer is accepted");
+        } catch (final MessageReceiveException ex) {
+            assertTrue(assembler.isIdle());
+        }
+    }
+
+    @Test
+    public void incompleteTransfer() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler();
+        assembler.addChunk(chunk("t1", 0, 2, 10, "abc"));
+
+        try {
+            assembler.addChunk(chunk("t1", 1, 2, 10, "def"));
+            fail("Incomplete transfer is accepted");
+        } catch (final MessageReceiveException ex) {
+            assertTrue(assembler.isIdle());
+        }
+    }
+
+    @Test
+    public void transfersAreIndependent() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler();
+
+        assembler.addChunk(chunk("t1", 0, 2, 4, "ab"));
+        assembler.addChunk(chunk("t2", 0, 2, 4, "wx"));
+
+        final Path first = assembler.addChunk(chunk("t1", 1, 2, 4, "cd"));
+        assertFalse(assembler.isIdle());
+        final Path second = assembler.addChunk(chunk("t2", 1, 2, 4, "yz"));
+        try {
+            assertEquals("abcd", content(first));
+            assertEquals("wxyz", content(second));
+            assertTrue(assembler.isIdle());
+        } finally {
+            Files.deleteIfExists(first);
+            Files.deleteIfExists(second);
+        }
+    }
+
+    @Test
+    public void abandonedTransferIsDiscarded() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler(50);
+
+        assertNull(assembler.addChunk(chunk("t1", 0, 3, 7, "abc")));
+        assertFalse(assembler.isIdle());
+
+        Thread.sleep(100);
+        assertTrue(assembler.isIdle());
+
+        try {
+            assembler.addChunk(chunk("t1", 1, 3, 7, "def"));
+            fail("Chunk of discarded transfer is accepted");
+        } catch (final MessageReceiveException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void activeTransferIsKept() throws Exception {
+        final TransferAssembler assembler = new TransferAssembler(200);
+
+        assertNull(assembler.addChunk(chunk("t1", 0, 3, 7, "abc")));
+        Thread.sleep(120);
+        assertNull(assembler.addChunk(chunk("t1", 1, 3, 7, "def")));
+        Thread.sleep(120);
+
+        final Path file = assembler.addChunk(chunk("t1", 2, 3, 7, "g"));
+        try {
+            assertEquals("abcdefg", content(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void isChunk() throws Exception {
+        assertTrue(TransferAssembler.isChunk(chunk("t1", 0, 1, 0, "")));
+        assertFalse(TransferAssembler.isChunk(message(new HashMap<>(), "")));
+    }
+
+    private static String content(final Path file) throws Exception {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static BytesMessage chunk(final String id, final int chunk, final int nrChunks, final long size,
+                                      final String content) {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(eXistMessage.EXIST_TRANSFER_ID, id);
+        properties.put(eXistMessage.EXIST_TRANSFER_CHUNK, chunk);
+        properties.put(eXistMessage.EXIST_TRANSFER_CHUNKS, nrChunks);
+        properties.put(eXistMessage.EXIST_TRANSFER_SIZE, size);
+        return message(properties, content);
+    }
+
+    /**
+     * Message with properties and a body, only the methods used by the assembler are supported.
+     */
+    private static BytesMessage message(final Map<String, Object> properties, final String content) {
+        final ByteArrayInputStream body = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+
+        return (BytesMessage) Proxy.newProxyInstance(TransferAssemblerTest.class.getClassLoader(),
+                new Class<?>[]{BytesMessage.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "propertyExists":
+                            return properties.containsKey(args[0]);
+                        case "getStringProperty":
+                        case "getIntProperty":
+                        case "getLongProperty":
+                            return properties.get(args[0]);
+                        case "readBytes":
+                            return body.read((byte[]) args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
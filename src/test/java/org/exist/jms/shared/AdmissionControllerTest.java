@@ -0,0 +1,118 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class AdmissionControllerTest {
+
+    private static final int MAX_BROKERS = 10;
+    private static final long DELAY = 200;
+    private static final long BLOCKED = 500;
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void disabledWhenNoReserve() throws InterruptedException {
+        final AdmissionController admission = controller(new AtomicInteger(MAX_BROKERS), 0);
+
+        assertTrue(admit(admission) < DELAY);
+    }
+
+    @Test
+    public void admittedWhenEnoughBrokersAreFree() throws InterruptedException {
+        // 5 free, more than twice the reserve
+        final AdmissionController admission = controller(new AtomicInteger(5), 2);
+
+        assertTrue(admit(admission) < DELAY);
+    }
+
+    @Test
+    public void delayedWhenBusy() throws InterruptedException {
+        // 4 free, twice the reserve
+        final AdmissionController admission = controller(new AtomicInteger(6), 2);
+        assertTrue(admit(admission) >= DELAY);
+
+        // 3 free, more than the reserve
+        final AdmissionController busier = controller(new AtomicInteger(7), 2);
+        assertTrue(admit(busier) >= DELAY);
+    }
+
+    @Test
+    public void pausedWhileSaturated() throws InterruptedException {
+        // 2 free, the reserve
+        final AtomicInteger active = new AtomicInteger(8);
+        final AdmissionController admission = controller(active, 2);
+
+        final Thread waiting = admitInBackground(admission);
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+
+        // 3 free, more than the reserve
+        active.set(7);
+        waiting.join(TIMEOUT);
+        assertFalse(waiting.isAlive());
+    }
+
+    @Test
+    public void closeReleasesPausedMessage() throws InterruptedException {
+        final AdmissionController admission = controller(new AtomicInteger(MAX_BROKERS), 2);
+
+        final Thread waiting = admitInBackground(admission);
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+
+        admission.close();
+        waiting.join(TIMEOUT);
+        assertFalse(waiting.isAlive());
+
+        // Not held back anymore
+        assertTrue(admit(admission) < DELAY);
+    }
+
+    private static AdmissionController controller(final AtomicInteger active, final int reserve) {
+        return new AdmissionController(() -> MAX_BROKERS, active::get, reserve, DELAY);
+    }
+
+    private static long admit(final AdmissionController admission) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        admission.admit();
+        return System.currentTimeMillis() - start;
+    }
+
+    private static Thread admitInBackground(final AdmissionController admission) {
+        final Thread thread = new Thread(() -> {
+            try {
+                admission.admit();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Dannes Wessels
+ */
+public class PayloadBufferTest {
+
+    private static final int THRESHOLD = 16;
+
+    @Test
+    public void smallPayloadIsKeptInMemory() throws IOException {
+        try (final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD)) {
+            write(buffer, bytes(THRESHOLD));
+
+            assertTrue(buffer.isInMemory());
+            assertEquals(THRESHOLD, buffer.size());
+            assertArrayEquals(bytes(THRESHOLD), read(buffer));
+        }
+    }
+
+    @Test
+    public void largePayloadIsMovedToFile() throws IOException {
+        try (final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD)) {
+            write(buffer, bytes(THRESHOLD));
+            write(buffer, bytes(1));
+
+            assertFalse(buffer.isInMemory());
+            assertEquals(THRESHOLD + 1, buffer.size());
+            assertArrayEquals(concat(bytes(THRESHOLD), bytes(1)), read(buffer));
+        }
+    }
+
+    @Test
+    public void streamIsReadIntoBuffer() throws IOException {
+        try (final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD);
+             final InputStream is = new ByteArrayInputStream(bytes(100))) {
+            buffer.readFrom(is);
+
+            assertFalse(buffer.isInMemory());
+            assertArrayEquals(bytes(100), read(buffer));
+        }
+    }
+
+    @Test
+    public void payloadIsReadMoreThanOnce() throws IOException {
+        try (final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD)) {
+            write(buffer, bytes(100));
+
+            assertArrayEquals(bytes(100), read(buffer));
+            assertArrayEquals(bytes(100), read(buffer));
+        }
+    }
+
+    @Test
+    public void appendAfterStreamIsClosed() throws IOException {
+        try (final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD)) {
+            write(buffer, bytes(10));
+            write(buffer, bytes(10));
+            assertArrayEquals(concat(bytes(10), bytes(10)), read(buffer));
+
+            // Appended to the file after it was read
+            write(buffer, bytes(5));
+            assertEquals(25, buffer.size());
+            assertArrayEquals(concat(concat(bytes(10), bytes(10)), bytes(5)), read(buffer));
+        }
+    }
+
+    @Test
+    public void closedBufferIsRejected() throws IOException {
+        final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD);
+        write(buffer, bytes(100));
+        buffer.close();
+
+        try {
+            write(buffer, bytes(1));
+            fail("Closed buffer is written");
+        } catch (final IOException ex) {
+            // expected
+        }
+
+        try {
+            buffer.getInputStream();
+            fail("Closed buffer is read");
+        } catch (final IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void closedBufferIsNotMoved() throws IOException {
+        final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD);
+        write(buffer, bytes(10));
+        buffer.close();
+
+        try {
+            buffer.moveTo(new eXistMessage());
+            fail("Closed buffer is moved");
+        } catch (final IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void movedFileIsKept() throws IOException {
+        final eXistMessage em = new eXistMessage();
+        final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD);
+        write(buffer, bytes(100));
+
+        // The file is handed over to the message
+        buffer.moveTo(em);
+        buffer.close();
+
+        final Path file = em.getPayloadFile();
+        assertNotNull(file);
+        assertTrue(Files.exists(file));
+        assertArrayEquals(bytes(100), Files.readAllBytes(file));
+
+        em.deletePayloadFile();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void smallPayloadIsMovedIntoMessage() throws IOException {
+        final eXistMessage em = new eXistMessage();
+        try (final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD)) {
+            write(buffer, "<a/>".getBytes(StandardCharsets.UTF_8));
+            buffer.moveTo(em);
+        }
+
+        assertNull(em.getPayloadFile());
+        assertArrayEquals("<a/>".getBytes(StandardCharsets.UTF_8), em.getPayload());
+    }
+
+    @Test
+    public void readAcrossMappings() throws IOException {
+        final long length = PayloadBuffer.MAPPING_SIZE + 4096;
+
+        try (final PayloadBuffer buffer = new PayloadBuffer(THRESHOLD)) {
+            try (final OutputStream os = buffer.getOutputStream()) {
+                final byte[] block = new byte[64 * 1024];
+                for (long position = 0; position < length; position += block.length) {
+                    final int count = (int) Math.min(block.length, length - position);
+                    for (int i = 0; i < count; i++) {
+                        block[i] = pattern(position + i);
+                    }
+                    os.write(block, 0, count);
+                }
+            }
+            assertEquals(length, buffer.size());
+
+            // Blocks that are not aligned with the mappings
+            try (final InputStream is = buffer.getInputStream()) {
+                final byte[] block = new byte[100000];
+                long position = 0;
+                int count;
+                while ((count = is.read(block)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        assertEquals(pattern(position + i), block[i]);
+                    }
+                    position += count;
+                }
+                assertEquals(length, position);
+            }
+
+            // Single bytes
+            try (final InputStream is = buffer.getInputStream()) {
+                long position = 0;
+                int value;
+                while ((value = is.read()) != -1) {
+                    assertEquals(pattern(position++), (byte) value);
+                }
+                assertEquals(length, position);
+            }
+        }
+    }
+
+    private static byte pattern(final long position) {
+        return (byte) (position % 251);
+    }
+
+    private static byte[] bytes(final int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = pattern(i);
+        }
+        return data;
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        final byte[] data = new byte[first.length + second.length];
+        System.arraycopy(first, 0, data, 0, first.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        return data;
+    }
+
+    private static void write(final PayloadBuffer buffer, final byte[] data) throws IOException {
+        try (final OutputStream os = buffer.getOutputStream()) {
+            os.write(data);
+        }
+    }
+
+    private static byte[] read(final PayloadBuffer buffer) throws IOException {
+        try (final InputStream is = buffer.getInputStream()) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class PayloadCodecsTest {
+
+    private static final String[] NAMES = {PayloadCodecs.IDENTITY, PayloadCodecs.GZIP, PayloadCodecs.DEFLATE, PayloadCodecs.LZ4};
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (final String name : NAMES) {
+            final PayloadCodec codec = PayloadCodecs.get(name);
+            assertEquals(name, codec.getName());
+
+            for (final byte[] data : new byte[][]{new byte[0], text(), random()}) {
+                assertArrayEquals(name, data, decode(codec, encode(codec, data)));
+            }
+        }
+    }
+
+    @Test
+    public void roundTripWithLevels() throws IOException {
+        for (final String name : new String[]{PayloadCodecs.GZIP, PayloadCodecs.DEFLATE}) {
+            for (int level = 0; level <= 9; level++) {
+                final PayloadCodec codec = PayloadCodecs.get(name, level);
+                assertArrayEquals(name + " " + level, text(), decode(codec, encode(codec, text())));
+            }
+        }
+    }
+
+    @Test
+    public void compressionLevelIsApplied() throws IOException {
+        for (final String name : new String[]{PayloadCodecs.GZIP, PayloadCodecs.DEFLATE}) {
+            final int stored = encode(PayloadCodecs.get(name, 0), text()).length;
+            final int best = encode(PayloadCodecs.get(name, 9), text()).length;
+
+            assertTrue(name, stored > text().length);
+            assertTrue(name, best < text().length / 4);
+        }
+    }
+
+    @Test
+    public void identityDoesNotEncode() throws IOException {
+        final PayloadCodec codec = PayloadCodecs.get(PayloadCodecs.IDENTITY);
+        assertArrayEquals(text(), encode(codec, text()));
+    }
+
+    @Test
+    public void gzipIsStandardFormat() throws IOException {
+        final byte[] encoded = encode(PayloadCodecs.get(PayloadCodecs.GZIP), text());
+        try (final InputStream is = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+            assertArrayEquals(text(), IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void gzipIsDefault() {
+        assertEquals(PayloadCodecs.GZIP, PayloadCodecs.get(null).getName());
+        assertEquals(PayloadCodecs.GZIP, PayloadCodecs.get(" ").getName());
+    }
+
+    @Test
+    public void nameIsNotCaseSensitive() {
+        assertEquals(PayloadCodecs.LZ4, PayloadCodecs.get(" LZ4 ").getName());
+        assertEquals(PayloadCodecs.DEFLATE, PayloadCodecs.get("Deflate").getName());
+    }
+
+    @Test
+    public void allCodecsAreRegistered() {
+        for (final String name : NAMES) {
+            assertTrue(name, PayloadCodecs.getNames().contains(name));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCodecIsRejected() {
+        PayloadCodecs.get("zip");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void levelBelowRangeIsRejected() {
+        PayloadCodecs.get(PayloadCodecs.GZIP, -2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void levelAboveRangeIsRejected() {
+        PayloadCodecs.get(PayloadCodecs.DEFLATE, 10);
+    }
+
+    @Test
+    public void defaultLevelIsAccepted() throws IOException {
+        for (final String name : NAMES) {
+            final PayloadCodec codec = PayloadCodecs.get(name, PayloadCodecs.DEFAULT_LEVEL);
+            assertArrayEquals(name, text(), decode(codec, encode(codec, text())));
+        }
+    }
+
+    private static byte[] encode(final PayloadCodec codec, final byte[] data) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (final OutputStream os = codec.encode(baos)) {
+            os.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] decode(final PayloadCodec codec, final byte[] data) throws IOException {
+        try (final InputStream is = codec.decode(new ByteArrayInputStream(data))) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    private static byte[] text() {
+        final StringBuilder sb = new StringBuilder("<records>");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<record id=\"").append(i).append("\">value</record>");
+        }
+        return sb.append("</records>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random() {
+        final byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Timing of the ingestion of a gzip encoded XML payload that is parsed twice, like a
+ * replicated document is validated and then stored. The payload is either decoded for each
+ * parse, or decoded once into a {@link PayloadBuffer} that is read by both parses, the way
+ * the subscriber decodes it.
+ * <p>
+ * Only decoding and parsing are measured: the database store itself is the same in both cases
+ * and is not part of the harness, it needs a running database.
+ * <p>
+ * The harness is skipped unless the system property {@value #TIMING_PROPERTY} is set:
+ * <pre>mvn test -Dtest=PayloadDecodeTimingTest -D{@value #TIMING_PROPERTY}=true</pre>
+ *
+ * @author Dannes Wessels
+ */
+public class PayloadDecodeTimingTest {
+
+    private static final String TIMING_PROPERTY = "exist.jms.timing";
+    private static final int ITERATIONS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue("Set -D" + TIMING_PROPERTY + "=true to run", Boolean.getBoolean(TIMING_PROPERTY));
+    }
+
+    @Test
+    public void document1MB() throws Exception {
+        compare(1024 * 1024);
+    }
+
+    @Test
+    public void document100MB() throws Exception {
+        compare(100 * 1024 * 1024);
+    }
+
+    private void compare(final long size) throws Exception {
+        final Path payload = createPayload(size);
+
+        long decodeTwice = Long.MAX_VALUE;
+        long decodeOnce = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            decodeTwice = Math.min(decodeTwice, decodeTwice(payload));
+            decodeOnce = Math.min(decodeOnce, decodeOnce(payload));
+        }
+
+        System.out.printf("%,d bytes, encoded %,d bytes: decode per parse %d ms, decode once %d ms%n",
+                size, Files.size(payload), decodeTwice / 1000000, decodeOnce / 1000000);
+    }
+
+    /**
+     * Before: the payload is decoded for the validation and again for the store.
+     */
+    private long decodeTwice(final Path payload) throws Exception {
+        final long start = System.nanoTime();
+
+        final long elements;
+        try (final InputStream is = decode(payload)) {
+            elements = parse(is);
+        }
+        try (final InputStream is = decode(payload)) {
+            assertEquals(elements, parse(is));
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * After: the payload is decoded once, both parses read the buffer.
+     */
+    private long decodeOnce(final Path payload) throws Exception {
+        final long start = System.nanoTime();
+
+        try (final PayloadBuffer buffer = new PayloadBuffer()) {
+            try (final InputStream is = decode(payload)) {
+                buffer.readFrom(is);
+            }
+
+            final long elements;
+            try (final InputStream is = buffer.getInputStream()) {
+                elements = parse(is);
+            }
+            try (final InputStream is = buffer.getInputStream()) {
+                assertEquals(elements, parse(is));
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static InputStream decode(final Path payload) throws Exception {
+        return PayloadCodecs.get(PayloadCodecs.GZIP).decode(Files.newInputStream(payload));
+    }
+
+    private static long parse(final InputStream is) throws Exception {
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        final long[] elements = {0};
+        factory.newSAXParser().parse(new InputSource(is), new DefaultHandler() {
+            @Override
+            public void startElement(final String uri, final String localName, final String qName,
+                                     final Attributes attributes) {
+                elements[0]++;
+            }
+        });
+        return elements[0];
+    }
+
+    /**
+     * Create a gzip encoded document of about the size, with varying content so it does not
+     * compress unrealistically well.
+     */
+    private Path createPayload(final long size) throws Exception {
+        final Path payload = folder.newFile().toPath();
+        final Random random = new Random(42);
+
+        try (final OutputStream os = PayloadCodecs.get(PayloadCodecs.GZIP).encode(
+                new BufferedOutputStream(Files.newOutputStream(payload)));
+             final CountingWriter writer = new CountingWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<records>\n");
+            long id = 0;
+            while (writer.count < size) {
+                writer.write("  <record id=\"" + id++ + "\" value=\"" + random.nextLong() + "\">");
+                writer.write("<name>" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + "</name>");
+                writer.write("<amount>" + random.nextInt(100000) + "</amount>");
+                writer.write("</record>\n");
+            }
+            writer.write("</records>\n");
+        }
+        return payload;
+    }
+
+    private static class CountingWriter extends Writer {
+
+        private final Writer writer;
+        private long count = 0;
+
+        CountingWriter(final Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            writer.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2020 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.receive;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dannes Wessels
+ */
+public class ReconnectSupervisorTest {
+
+    private static final long BLOCKED = 300;
+    private static final long TIMEOUT = 5000;
+
+    private final List<Long> attempts = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void disabledWithoutDelay() throws InterruptedException {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(1, 0, 1000, attempting(0));
+
+        supervisor.connectionLost();
+
+        assertFalse(supervisor.isReconnecting());
+        Thread.sleep(BLOCKED);
+        assertTrue(attempts.isEmpty());
+    }
+
+    @Test
+    public void delayDoublesAfterFailedAttempt() throws InterruptedException {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(1, 20, 1000, attempting(2));
+
+        supervisor.connectionLost();
+        assertTrue(supervisor.isReconnecting());
+        awaitReconnected(supervisor);
+
+        assertEquals(3, attempts.size());
+        assertTrue(attempts.get(1) - attempts.get(0) >= 40);
+        assertTrue(attempts.get(2) - attempts.get(1) >= 80);
+    }
+
+    @Test
+    public void delayIsLimited() throws InterruptedException {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(1, 10, 20, attempting(5));
+
+        supervisor.connectionLost();
+        awaitReconnected(supervisor);
+
+        // At most the maximum delay plus half of it, and some scheduling time
+        assertEquals(6, attempts.size());
+        for (int i = 1; i < attempts.size(); i++) {
+            final long wait = attempts.get(i) - attempts.get(i - 1);
+            assertTrue(wait >= 20);
+            assertTrue(wait < 30 + 200);
+        }
+    }
+
+    @Test
+    public void lostConnectionIsReconnectedOnce() throws InterruptedException {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(1, 20, 1000, attempting(0));
+
+        supervisor.connectionLost();
+        supervisor.connectionLost();
+        awaitReconnected(supervisor);
+        Thread.sleep(BLOCKED);
+
+        assertEquals(1, attempts.size());
+    }
+
+    @Test
+    public void cancelStopsReconnecting() throws InterruptedException {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(1, 20, 20, attempting(Integer.MAX_VALUE));
+
+        supervisor.connectionLost();
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (attempts.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        supervisor.cancel();
+        assertFalse(supervisor.isReconnecting());
+
+        final int count = attempts.size();
+        Thread.sleep(BLOCKED);
+        assertEquals(count, attempts.size());
+    }
+
+    @Test
+    public void reconnectingAfterCancel() throws InterruptedException {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(1, 20, 20, attempting(0));
+
+        supervisor.connectionLost();
+        supervisor.cancel();
+        Thread.sleep(BLOCKED);
+        assertTrue(attempts.isEmpty());
+
+        supervisor.connectionLost();
+        awaitReconnected(supervisor);
+        assertEquals(1, attempts.size());
+    }
+
+    /**
+     * @return Action that fails a number of times before it succeeds
+     */
+    private ReconnectSupervisor.Action attempting(final int failures) {
+        return () -> {
+            attempts.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+            if (attempts.size() <= failures) {
+                throw new IllegalStateException("Broker is not available");
+            }
+        };
+    }
+
+    private static void awaitReconnected(final ReconnectSupervisor supervisor) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (supervisor.isReconnecting() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(supervisor.isReconnecting());
+    }
+}